@@ -27,7 +27,6 @@
  *******************************************************************************/
 package org.cyclades.client;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -39,8 +38,9 @@ import java.util.Map;
 import org.cyclades.engine.nyxlet.templates.xstroma.ServiceBrokerNyxletImpl;
 import org.cyclades.engine.stroma.xstroma.STROMARequest;
 import org.cyclades.engine.stroma.xstroma.XSTROMABrokerRequest;
-import org.cyclades.io.ResourceRequestUtils;
+import org.cyclades.io.HTTPTransport;
 import org.cyclades.io.StreamUtils;
+import org.cyclades.io.URLConnectionHTTPTransport;
 
 public class Http {
     
@@ -86,7 +86,7 @@ public class Http {
         }
         InputStream is = null;
         try {
-            is = ResourceRequestUtils.getInputStreamHTTP(requestURL.toString(), "POST", new ByteArrayInputStream(xstromaString.getBytes()), headerProperties, connectionTimeout, readTimeout);
+            is = httpTransport.execute(requestURL.toString(), "POST", xstromaString.getBytes(), headerProperties, connectionTimeout, readTimeout);
             StreamUtils.write(is, out);
         } finally {
             try { is.close(); } catch (Exception e) {}
@@ -148,13 +148,25 @@ public class Http {
         String stromaDataString = stromaRequest.generateData();
         InputStream is = null;
         try {
-            is = ResourceRequestUtils.getInputStreamHTTP(requestURL.toString(), "POST", new ByteArrayInputStream(stromaDataString.getBytes()), headerProperties, connectionTimeout, readTimeout);
+            is = httpTransport.execute(requestURL.toString(), "POST", stromaDataString.getBytes(), headerProperties, connectionTimeout, readTimeout);
             StreamUtils.write(is, out);
         } finally {
             try { is.close(); } catch (Exception e) {}
         }
     }
     
+    /**
+     * Set the HTTPTransport used for all requests, by default a URLConnectionHTTPTransport. Set
+     * PooledHTTPTransport.getDefault() to keep connections alive and reuse them (no proxy, redirect or
+     * authentication handling).
+     *
+     * @param transport The HTTPTransport to use
+     */
+    public static void setHTTPTransport (HTTPTransport transport) {
+        httpTransport = transport;
+    }
+
+    private static volatile HTTPTransport httpTransport = new URLConnectionHTTPTransport();
     private static final Map<String, String> headerProperties;
     static {
         headerProperties = new HashMap<String, String>();
@@ -0,0 +1,128 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.collectiveutils.weightedqueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An immutable weighted sampler, built with Vose's alias method. Selecting an item (peek) is O(1)
+ * regardless of the number of items, after an O(n) build. This is the structure to use when the same
+ * weighted set is selected from repeatedly, for example weighted target selection. Instances are thread safe.
+ */
+public class AliasWeightedSampler <T> {
+
+    /**
+     * Build a sampler
+     *
+     * @param weightedItems The items and their weights, weights must not be negative and at least one must be positive
+     * @throws Exception
+     */
+    public AliasWeightedSampler (List<? extends WeightedItem<T>> weightedItems) throws Exception {
+        final String eLabel = "AliasWeightedSampler.AliasWeightedSampler: ";
+        try {
+            int n = weightedItems.size();
+            if (n < 1) throw new Exception("No items to sample from");
+            items = new ArrayList<T>(n);
+            probabilities = new double[n];
+            aliases = new int[n];
+            double total = 0;
+            double weight;
+            for (WeightedItem<T> weightedItem : weightedItems) {
+                weight = weightedItem.getWeight();
+                if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) throw new Exception("Invalid weight: " + weight);
+                total += weight;
+                items.add(weightedItem.getItem());
+            }
+            if (total <= 0) throw new Exception("The total weight must be greater than 0");
+            // Scale so that the average weight is 1, then pair each under full column with an over full one
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int smallCount = 0;
+            int largeCount = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weightedItems.get(i).getWeight() * n / total;
+                if (scaled[i] < 1.0) {
+                    small[smallCount++] = i;
+                } else {
+                    large[largeCount++] = i;
+                }
+            }
+            int less;
+            int more;
+            while (smallCount > 0 && largeCount > 0) {
+                less = small[--smallCount];
+                more = large[--largeCount];
+                probabilities[less] = scaled[less];
+                aliases[less] = more;
+                scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+                if (scaled[more] < 1.0) {
+                    small[smallCount++] = more;
+                } else {
+                    large[largeCount++] = more;
+                }
+            }
+            // Whatever is left is full, up to rounding error
+            while (largeCount > 0) probabilities[large[--largeCount]] = 1.0;
+            while (smallCount > 0) probabilities[small[--smallCount]] = 1.0;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Retrieve an item based on the weighted algorithm
+     *
+     * @return The item
+     */
+    public T peek () {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int column = random.nextInt(probabilities.length);
+        return items.get((random.nextDouble() < probabilities[column]) ? column : aliases[column]);
+    }
+
+    /**
+     * Retrieve an item based on the index passed in (the order the items were given in)
+     *
+     * @param i The index of the item desired
+     * @return The item
+     */
+    public T getItemAt (int i) {
+        return items.get(i);
+    }
+
+    public int size () {
+        return items.size();
+    }
+
+    private final List<T> items;
+    private final double[] probabilities;
+    private final int[] aliases;
+}
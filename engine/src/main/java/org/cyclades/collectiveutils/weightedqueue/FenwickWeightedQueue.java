@@ -0,0 +1,169 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.collectiveutils.weightedqueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A WeightedQueue backed by a Fenwick (binary indexed) tree of the weights, so peek, add and getAndRemove
+ * are O(log n) instead of O(n), and sorting a list is O(n log n) instead of O(n^2). Removed items keep their
+ * slot with a weight of 0. Instances are not thread safe, please see AliasWeightedSampler for an immutable,
+ * thread safe alternative when items are not removed.
+ */
+public class FenwickWeightedQueue <T> {
+
+    /**
+     * Add an item to this queue
+     *
+     * @param weight    The weight to use when retrieving this item with the peek or getAndRemove methods
+     * @param item      The item to add to the queue
+     * @throws Exception
+     */
+    public void add (Double weight, T item) throws Exception {
+        final String eLabel = "FenwickWeightedQueue.add: ";
+        if (weight == null || weight < 0 || weight.isNaN() || weight.isInfinite()) throw new Exception(eLabel + "Invalid weight: " + weight);
+        int index = items.size() + 1;
+        if (index >= tree.length) {
+            double[] grown = new double[tree.length * 2];
+            System.arraycopy(tree, 0, grown, 0, tree.length);
+            tree = grown;
+        }
+        // A new last node covers (index - lowbit(index), index], sum the existing part of that range
+        tree[index] = weight + prefixSum(index - 1) - prefixSum(index - (index & -index));
+        items.add(item);
+        weights.add(weight);
+        size++;
+    }
+
+    /**
+     * Retrieve an item from this queue structure based on the weighted algorithm, do not remove from this queue
+     *
+     * @return The item, null if the queue is empty
+     */
+    public T peek () {
+        int index = select();
+        return (index < 0) ? null : items.get(index);
+    }
+
+    /**
+     * Retrieve and remove an item from this queue structure based on the weighted algorithm
+     *
+     * @return The item, null if the queue is empty
+     */
+    public T getAndRemove () {
+        int index = select();
+        if (index < 0) return null;
+        T item = items.get(index);
+        update(index + 1, -weights.get(index));
+        weights.set(index, null);
+        items.set(index, null);
+        size--;
+        return item;
+    }
+
+    /**
+     * Get the number of items remaining in this queue structure
+     *
+     * @return The size
+     */
+    public int size () {
+        return size;
+    }
+
+    /**
+     * Sort an incoming list based the weight algorithm. List items must implement
+     * interface WeightedItem.
+     *
+     * @param toSort    The list of items to sort
+     * @return          The sorted list of the items passed in
+     * @throws Exception
+     */
+    public static <T> List <WeightedItem<T>> sort (List<WeightedItem<T>> toSort) throws Exception {
+        final String eLabel = "FenwickWeightedQueue.sort: ";
+        try {
+            List<WeightedItem<T>> returnList = new ArrayList<WeightedItem<T>>(toSort.size());
+            FenwickWeightedQueue<WeightedItem<T>> weightedQueue = new FenwickWeightedQueue<WeightedItem<T>>();
+            for (WeightedItem<T> item : toSort) {
+                weightedQueue.add(item.getWeight(), item);
+            }
+            while (weightedQueue.size() > 0) {
+                returnList.add(weightedQueue.getAndRemove());
+            }
+            return returnList;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * @return The list index of the selected item, -1 if empty
+     */
+    private int select () {
+        if (size < 1) return -1;
+        int n = items.size();
+        double total = prefixSum(n);
+        if (total > 0) {
+            // Descend the tree to the first index whose prefix sum exceeds the draw
+            double remaining = ThreadLocalRandom.current().nextDouble() * total;
+            int position = 0;
+            for (int step = Integer.highestOneBit(n); step > 0; step >>= 1) {
+                if (position + step <= n && tree[position + step] <= remaining) {
+                    position += step;
+                    remaining -= tree[position];
+                }
+            }
+            if (position < n && weights.get(position) != null && weights.get(position) > 0) return position;
+        }
+        // Only zero weights remain (or rounding error drift), take the first positive, else first remaining item
+        int firstRemaining = -1;
+        for (int i = 0; i < n; i++) {
+            if (weights.get(i) == null) continue;
+            if (weights.get(i) > 0) return i;
+            if (firstRemaining < 0) firstRemaining = i;
+        }
+        return firstRemaining;
+    }
+
+    private double prefixSum (int index) {
+        double sum = 0;
+        for (; index > 0; index -= index & -index) sum += tree[index];
+        return sum;
+    }
+
+    private void update (int index, double delta) {
+        for (int n = items.size(); index <= n; index += index & -index) tree[index] += delta;
+    }
+
+    // One based, tree[0] is unused
+    private double[] tree = new double[16];
+    private final List<T> items = new ArrayList<T>();
+    private final List<Double> weights = new ArrayList<Double>();
+    private int size = 0;
+}
@@ -41,6 +41,9 @@ import java.util.ArrayList;
  * thread safe. Since this is intended to run on a a single thread...we can avoid locking
  * for now, and gain a bit of performance if any.
  *
+ * The peek and getAndRemove methods are O(n). Please see AliasWeightedSampler for O(1), thread safe
+ * selection from a fixed set of items and FenwickWeightedQueue for O(log n) selection and removal.
+ *
  */
 public class WeightedQueue <T> {
     /**
@@ -130,15 +133,8 @@ public class WeightedQueue <T> {
     public static <T> List <WeightedItem<T>> sort (List<WeightedItem<T>> toSort) throws Exception {
         final String eLabel = "WeightedQueue.sort: ";
         try {
-            List<WeightedItem<T>> returnList = new ArrayList<WeightedItem<T>>();
-            WeightedQueue<WeightedItem<T>> weightedQueue = new WeightedQueue<WeightedItem<T>>();
-            for (WeightedItem<T> item : toSort) {
-                weightedQueue.add(item.getWeight(), item);
-            }
-            while (weightedQueue.size() > 0) {
-                returnList.add(weightedQueue.getAndRemove());
-            }
-            return returnList;
+            // Same distribution, in O(n log n) rather than O(n^2)
+            return FenwickWeightedQueue.sort(toSort);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
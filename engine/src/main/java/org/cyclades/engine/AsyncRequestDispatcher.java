@@ -0,0 +1,429 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.apache.log4j.Logger;
+
+/**
+ * Run CycladesEngine.processRequest on an engine owned executor, releasing the container thread for
+ * the duration of the request. This relies on Servlet 3 asynchronous processing (AsyncContext), which
+ * is looked up reflectively so the engine still compiles and runs against the Servlet 2.4 API. The
+ * servlet must also be declared async supported (Servlet 3.0 deployment descriptor). Whenever
+ * asynchronous processing is not available for a request, dispatch returns false and the caller is
+ * expected to process the request synchronously, as before.
+ *
+ * Once a request times out (or the container reports an error for it) its AsyncContext is completed
+ * with an error status and anything the worker still writes to the response fails, which is how the
+ * worker learns that it has been cancelled. The worker is deliberately not interrupted: interrupting a
+ * thread blocked in NIO closes the channel, which may be shared with other requests (i.e. pooled
+ * sockets, mapped log files). Requests still queued when the dispatcher is destroyed are completed
+ * with SC_SERVICE_UNAVAILABLE.
+ */
+class AsyncRequestDispatcher {
+
+    static Logger logger = Logger.getLogger(AsyncRequestDispatcher.class);
+
+    /**
+     * Constructor
+     *
+     * @param engine    The engine to process the requests with
+     * @param threads   The maximum number of requests processed concurrently
+     * @param queueSize The number of requests allowed to wait for a thread, beyond this requests are processed
+     *                  on the container thread
+     * @param timeout   The AsyncContext timeout in milliseconds, zero or less means no timeout
+     * @throws Exception
+     */
+    AsyncRequestDispatcher (CycladesEngine engine, int threads, int queueSize, long timeout) throws Exception {
+        final String eLabel = "AsyncRequestDispatcher.AsyncRequestDispatcher: ";
+        try {
+            this.engine = engine;
+            this.timeout = timeout;
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+                        @Override
+                        public Thread newThread (Runnable runnable) {
+                            Thread thread = new Thread(runnable, "cyclades-async-request-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            this.executor = executor;
+            this.ownsExecutor = true;
+            this.asyncSupport = servletAsyncSupport;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Constructor, run the requests on a shared executor (i.e. the engine's virtual thread execution service)
+     *
+     * @param engine    The engine to process the requests with
+     * @param executor  The executor to run the requests on, it will not be shut down by this class
+     * @param timeout   The AsyncContext timeout in milliseconds, zero or less means no timeout
+     */
+    AsyncRequestDispatcher (CycladesEngine engine, ExecutorService executor, long timeout) {
+        this(engine, executor, timeout, servletAsyncSupport);
+    }
+
+    /**
+     * Constructor, run the requests on a shared executor using the given asynchronous processing API
+     *
+     * @param engine        The engine to process the requests with
+     * @param executor      The executor to run the requests on, it will not be shut down by this class
+     * @param timeout       The AsyncContext timeout in milliseconds, zero or less means no timeout
+     * @param asyncSupport  The asynchronous processing API, null if not available
+     */
+    AsyncRequestDispatcher (CycladesEngine engine, ExecutorService executor, long timeout, AsyncSupport asyncSupport) {
+        this.engine = engine;
+        this.timeout = timeout;
+        this.executor = executor;
+        this.ownsExecutor = false;
+        this.asyncSupport = asyncSupport;
+    }
+
+    /**
+     * Process this request asynchronously, if possible
+     *
+     * @param request
+     * @param response
+     * @return true if the request has been taken over, false if the caller needs to process it
+     * @throws Exception
+     */
+    boolean dispatch (final HttpServletRequest request, final HttpServletResponse response) throws Exception {
+        final String eLabel = "AsyncRequestDispatcher.dispatch: ";
+        if (asyncSupport == null || !((Boolean)asyncSupport.isAsyncSupportedMethod.invoke(request))) return false;
+        final AsyncTask task;
+        try {
+            Object asyncContext = asyncSupport.startAsyncMethod.invoke(request);
+            asyncSupport.setTimeoutMethod.invoke(asyncContext, timeout);
+            task = new AsyncTask(request, response, asyncContext);
+            asyncSupport.addListenerMethod.invoke(asyncContext, Proxy.newProxyInstance(
+                    asyncSupport.asyncListenerClass.getClassLoader(), new Class<?>[]{asyncSupport.asyncListenerClass}, task));
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+        pending.add(task);
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Saturated (or shutting down), fall back to the container thread for this one
+            task.run();
+        }
+        return true;
+    }
+
+    /**
+     * Process one request on a worker thread
+     *
+     * @param request
+     * @param response  The guarded response, writes fail once the request is finished
+     * @throws Exception
+     */
+    void process (HttpServletRequest request, HttpServletResponse response) throws Exception {
+        engine.processRequest(request, response);
+    }
+
+    /**
+     * Stop accepting requests, wait a while for the requests being processed and fail the ones still queued
+     */
+    void destroy () {
+        if (ownsExecutor) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                    // Drop the queued requests only, running workers are left to finish (no interrupt, see above)
+                    List<Runnable> drained = new ArrayList<Runnable>();
+                    ((ThreadPoolExecutor)executor).getQueue().drainTo(drained);
+                    if (!drained.isEmpty()) logger.warn("AsyncRequestDispatcher.destroy: Failing queued requests: " + drained.size());
+                }
+            } catch (InterruptedException e) {
+                ((ThreadPoolExecutor)executor).getQueue().clear();
+                Thread.currentThread().interrupt();
+            }
+        }
+        // Tasks that never started, drained from our executor or still queued on a shared one
+        for (AsyncTask task : pending) {
+            pending.remove(task);
+            task.finish(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * One asynchronously processed request, also its (proxied) AsyncListener
+     */
+    private class AsyncTask implements Runnable, InvocationHandler {
+
+        AsyncTask (HttpServletRequest request, HttpServletResponse response, Object asyncContext) {
+            this.request = request;
+            this.response = response;
+            this.asyncContext = asyncContext;
+        }
+
+        @Override
+        public void run () {
+            final String eLabel = "AsyncRequestDispatcher.AsyncTask.run: ";
+            pending.remove(this);
+            if (isFinished()) return;
+            try {
+                process(request, new GuardedResponse(response, this));
+            } catch (Exception e) {
+                if (!isFinished()) {
+                    logger.error(eLabel + e.getMessage(), e);
+                    finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                finish(0);
+            }
+        }
+
+        /**
+         * AsyncListener callbacks: finish the request when the container times the request out or reports an error
+         */
+        @Override
+        public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if (method.getName().equals("equals")) return proxy == args[0];
+                if (method.getName().equals("hashCode")) return System.identityHashCode(proxy);
+                return toString();
+            }
+            if (method.getName().equals("onTimeout")) {
+                pending.remove(this);
+                logger.warn("AsyncRequestDispatcher: Request timed out after " + timeout + "ms: " + request.getRequestURI());
+                finish(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            } else if (method.getName().equals("onError")) {
+                pending.remove(this);
+                finish(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            }
+            return null;
+        }
+
+        synchronized boolean isFinished () {
+            return finished;
+        }
+
+        /**
+         * Complete the AsyncContext, once. The worker (if still running) can no longer write to the response.
+         *
+         * @param errorStatus The status to send if the response is not yet committed, 0 for none
+         */
+        void finish (int errorStatus) {
+            final String eLabel = "AsyncRequestDispatcher.AsyncTask.finish: ";
+            synchronized (this) {
+                if (finished) return;
+                finished = true;
+            }
+            if (errorStatus > 0) {
+                try {
+                    if (!response.isCommitted()) response.sendError(errorStatus);
+                } catch (Exception e) {}
+            }
+            try {
+                asyncSupport.completeMethod.invoke(asyncContext);
+            } catch (Exception e) {
+                logger.error(eLabel + e);
+            }
+        }
+
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final Object asyncContext;
+        private boolean finished = false;
+    }
+
+    /**
+     * The response as seen by the worker, nothing reaches the container's response once the task is finished
+     */
+    private static class GuardedResponse extends HttpServletResponseWrapper {
+
+        GuardedResponse (HttpServletResponse response, AsyncTask task) {
+            super(response);
+            this.task = task;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream () throws IOException {
+            check();
+            if (outputStream == null) {
+                final ServletOutputStream target = super.getOutputStream();
+                outputStream = new ServletOutputStream() {
+                    @Override
+                    public void write (int b) throws IOException {
+                        synchronized (task) {
+                            check();
+                            target.write(b);
+                        }
+                    }
+
+                    @Override
+                    public void write (byte[] b, int off, int len) throws IOException {
+                        synchronized (task) {
+                            check();
+                            target.write(b, off, len);
+                        }
+                    }
+
+                    @Override
+                    public void flush () throws IOException {
+                        synchronized (task) {
+                            check();
+                            target.flush();
+                        }
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public void sendError (int sc) throws IOException {
+            synchronized (task) {
+                check();
+                super.sendError(sc);
+            }
+        }
+
+        @Override
+        public void sendError (int sc, String msg) throws IOException {
+            synchronized (task) {
+                check();
+                super.sendError(sc, msg);
+            }
+        }
+
+        @Override
+        public void setStatus (int sc) {
+            synchronized (task) {
+                if (!task.finished) super.setStatus(sc);
+            }
+        }
+
+        @Override
+        public void setContentType (String type) {
+            synchronized (task) {
+                if (!task.finished) super.setContentType(type);
+            }
+        }
+
+        @Override
+        public void setHeader (String name, String value) {
+            synchronized (task) {
+                if (!task.finished) super.setHeader(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader (String name, String value) {
+            synchronized (task) {
+                if (!task.finished) super.addHeader(name, value);
+            }
+        }
+
+        private void check () throws IOException {
+            if (task.isFinished()) throw new IOException("Request timed out or failed, the response is closed");
+        }
+
+        private final AsyncTask task;
+        private ServletOutputStream outputStream = null;
+    }
+
+    /**
+     * The Servlet 3 asynchronous processing methods, resolved reflectively
+     */
+    static class AsyncSupport {
+
+        /**
+         * Resolve the asynchronous processing methods against this request type
+         *
+         * @param requestClass  The request type, declaring isAsyncSupported() and startAsync()
+         * @throws Exception    If asynchronous processing is not available
+         */
+        AsyncSupport (Class<?> requestClass) throws Exception {
+            isAsyncSupportedMethod = requestClass.getMethod("isAsyncSupported");
+            startAsyncMethod = requestClass.getMethod("startAsync");
+            Class<?> asyncContextClass = startAsyncMethod.getReturnType();
+            setTimeoutMethod = asyncContextClass.getMethod("setTimeout", long.class);
+            completeMethod = asyncContextClass.getMethod("complete");
+            Method addListener = null;
+            for (Method method : asyncContextClass.getMethods()) {
+                if (method.getName().equals("addListener") && method.getParameterTypes().length == 1) addListener = method;
+            }
+            if (addListener == null) throw new NoSuchMethodException(asyncContextClass.getName() + ".addListener");
+            addListenerMethod = addListener;
+            asyncListenerClass = addListener.getParameterTypes()[0];
+        }
+
+        final Method isAsyncSupportedMethod;
+        final Method startAsyncMethod;
+        final Method setTimeoutMethod;
+        final Method completeMethod;
+        final Method addListenerMethod;
+        final Class<?> asyncListenerClass;
+    }
+
+    private static AsyncSupport servletAsyncSupport = null;
+    static {
+        try {
+            // Resolved against the container's Servlet API at runtime
+            servletAsyncSupport = new AsyncSupport(ServletRequest.class);
+        } catch (Exception e) {
+            logger.info("Servlet 3 asynchronous processing not available: " + e);
+        }
+    }
+
+    private final CycladesEngine engine;
+    private final long timeout;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final AsyncSupport asyncSupport;
+    private final Set<AsyncTask> pending = Collections.newSetFromMap(new ConcurrentHashMap<AsyncTask, Boolean>());
+    private static final int SHUTDOWN_SECONDS = 10;
+}
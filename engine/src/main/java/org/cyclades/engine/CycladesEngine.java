@@ -32,7 +32,6 @@ import java.io.DataOutputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import javax.servlet.ServletConfig;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -198,13 +197,10 @@ public class CycladesEngine {
             StringBuilder sb = new StringBuilder();
             sb.append("<CENTER><table border=\"1\">");
             sb.append("<tr><th>Nyxlet Name</th><th>RESTful Request Dispatch Setting</th><th>Active</th></tr>");
-            Set<String> keySet = NyxletRepository.getStaticInstance().keys();
-            Nyxlet nyxlet;
             String active;
             int i = 0;
-            for (String key : keySet) {
+            for (Nyxlet nyxlet : NyxletRepository.getStaticInstance().nyxlets()) {
                 i++;
-                nyxlet = NyxletRepository.getStaticInstance().getNyxlet(key);
                 active = (nyxlet.isActive()) ? "true" : "<p style=\"color:red\">false</p>";
                 sb.append("<tr><td>").append(nyxlet.getName()).append("</td><td>").append(nyxlet.getRRDString());
                 sb.append("</td><td>").append(active).append("</td></tr>");
@@ -219,11 +215,10 @@ public class CycladesEngine {
     public void listNyxletsBuildInfo (StringBuilder sb) throws CycladesException {
         try {
             sb.append("<BR><CENTER><H2>Nyxlet Build Information</CENTER><BR>");
-            Set<String> keySet = NyxletRepository.getStaticInstance().keys();
             sb.append("<CENTER><table border=\"1\">");
             sb.append("<tr><th>Property Name</th><th>PropertyValue</th></tr>");
-            for (String key : keySet) {
-                listNyxletBuildInfo(NyxletRepository.getStaticInstance().getNyxlet(key), sb);
+            for (Nyxlet nyxlet : NyxletRepository.getStaticInstance().nyxlets()) {
+                listNyxletBuildInfo(nyxlet, sb);
             }
             sb.append("</table></CENTER></H2>");
         } catch (Exception ex) {
@@ -254,15 +249,12 @@ public class CycladesEngine {
             StringBuilder sb = new StringBuilder();
             sb.append("<CENTER><table border=\"1\">");
             sb.append("<tr><th>Nyxlet Name</th><th>RESTful Request Dispatch Setting</th><th>Healthy</th><th>Active</th></tr>");
-            Set<?> keySet = NyxletRepository.getStaticInstance().keys();
-            Nyxlet nyxlet;
             int i = 0;
             boolean isHealthy;
             String healthString;
             String active;
-            for (Object key : keySet) {
+            for (Nyxlet nyxlet : NyxletRepository.getStaticInstance().nyxlets()) {
                 i++;
-                nyxlet = NyxletRepository.getStaticInstance().getNyxlet(key);
                 try {
                     isHealthy = nyxlet.isHealthy();
                 } catch (Exception ex) {
@@ -284,12 +276,9 @@ public class CycladesEngine {
 
     public String getSystemHealth () throws CycladesException {
         try {
-            Set<?> keySet = NyxletRepository.getStaticInstance().keys();
-            Nyxlet nyxlet;
             int unhealthy = 0;
             int inactive = 0;
-            for (Object key : keySet) {
-                nyxlet = NyxletRepository.getStaticInstance().getNyxlet(key);
+            for (Nyxlet nyxlet : NyxletRepository.getStaticInstance().nyxlets()) {
                 if (!nyxlet.getHealth()) unhealthy++;
                 if (!nyxlet.isActive()) inactive++;
             }
@@ -342,6 +331,13 @@ public class CycladesEngine {
         } catch (Exception ex) {
             logger.error(ex);
         }
+
+        // Shut down the engine execution service, after everything that may have been using it
+        try {
+            engineContext.destroy();
+        } catch (Exception ex) {
+            logger.error(ex);
+        }
     } // end of destroy()
 
     /**
@@ -354,6 +350,7 @@ public class CycladesEngine {
     public void processRequest (HttpServletRequest request, HttpServletResponse response) throws CycladesException {
         DataInputStream  dis = null;
         DataOutputStream dos = null;
+        boolean requestEntered = false;
         //logger.debug("INCOMING REQUEST FOR ENGINE");
         try {
             Object nyxletDelegateKey = null;
@@ -365,6 +362,13 @@ public class CycladesEngine {
             }
 
             dos = new DataOutputStream(response.getOutputStream());
+            // Reject the request while the Nyxlets are being reloaded, they are being destroyed or are not initialized yet
+            if (!NyxletRepository.getStaticInstance().enterRequest()) {
+                this.writeError(dos, ResponseCodeEnum.SERVICE_INACTIVE.getCode(), "Nyxlets are being reloaded, try again later",
+                        HttpServletResponse.SC_SERVICE_UNAVAILABLE, response);
+                return;
+            }
+            requestEntered = true;
             Nyxlet nyxlet    = null;
             byte[] commandCollectiveResponse = null;
             NyxletSession sessionDelegate  = new NyxletSession(request, response, dis, dos);
@@ -450,6 +454,7 @@ public class CycladesEngine {
             try { dos.flush(); } catch (Exception ignore) { }
             try { dos.close(); } catch (Exception ignore) { }
             try { dis.close(); } catch (Exception ignore) { }
+            if (requestEntered) try { NyxletRepository.getStaticInstance().exitRequest(); } catch (Exception ignore) { }
         }
     } // end of processRequest(...)
 
@@ -491,9 +496,17 @@ public class CycladesEngine {
     private void writeError (final DataOutputStream dos, final short status,
                              final String msg,           final HttpServletResponse response)
         throws CycladesException
+    {
+        writeError(dos, status, msg, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, response);
+    } // end of writeError(...)
+
+    private void writeError (final DataOutputStream dos, final short status,
+                             final String msg,           final int httpStatus,
+                             final HttpServletResponse response)
+        throws CycladesException
     {
         try {
-            response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            response.setStatus(httpStatus);
             dos.writeShort(Definitions.CYCLADES_ENGINE_ERROR_RESPONSE);
             dos.writeShort(status);
             dos.writeUTF(msg);
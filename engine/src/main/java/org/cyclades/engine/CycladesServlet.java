@@ -80,6 +80,18 @@ public class CycladesServlet extends HttpServlet {
         try {
             hostName = java.net.InetAddress.getLocalHost().getHostName();
             this.engine = new CycladesEngine(config, servletBase);
+            // Optional asynchronous request processing, disabled unless a thread count is configured
+            String asyncThreads = config.getInitParameter(Definitions.ASYNC_PROCESSING_THREADS);
+            if (asyncThreads != null && Integer.parseInt(asyncThreads) > 0) {
+                String asyncQueueSize = config.getInitParameter(Definitions.ASYNC_PROCESSING_QUEUE_SIZE);
+                String asyncTimeout = config.getInitParameter(Definitions.ASYNC_PROCESSING_TIMEOUT);
+                long timeout = (asyncTimeout == null) ? 0 : Long.parseLong(asyncTimeout);
+                // With virtual threads there is no need for a dedicated (bounded) pool
+                this.asyncRequestDispatcher = (CycladesEngine.getEngineContext().isVirtualExecutionService()) ?
+                        new AsyncRequestDispatcher(this.engine, CycladesEngine.getEngineContext().getExecutionService(), timeout) :
+                        new AsyncRequestDispatcher(this.engine, Integer.parseInt(asyncThreads),
+                            (asyncQueueSize == null) ? 256 : Integer.parseInt(asyncQueueSize), timeout);
+            }
             this.startDate = System.currentTimeMillis();
         } catch (Exception ex) {
             throw new ServletException(ex.getMessage(), ex);
@@ -89,6 +101,7 @@ public class CycladesServlet extends HttpServlet {
     @Override
     public void destroy () {
         try {
+            if (asyncRequestDispatcher != null) asyncRequestDispatcher.destroy();
             engine.destroy();
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
@@ -114,6 +127,7 @@ public class CycladesServlet extends HttpServlet {
         throws ServletException, IOException
     {
         try {
+            if (asyncRequestDispatcher != null && asyncRequestDispatcher.dispatch(request, response)) return;
             this.engine.processRequest(request, response);
         } catch (Exception ex) {
             logger.error(ex.getMessage(), ex);
@@ -299,6 +313,7 @@ public class CycladesServlet extends HttpServlet {
     } // end of enum Action
 
     private CycladesEngine engine = null;
+    private AsyncRequestDispatcher asyncRequestDispatcher = null;
     private long startDate = -1;
     private String hostName;
     private Properties buildProperties = new Properties();
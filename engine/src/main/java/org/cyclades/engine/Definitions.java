@@ -48,4 +48,11 @@ public class Definitions {
     public static final String ISOLATED_CLASS_LOADER            = "isolated";
     public static final String COLLECTIVE_CLASS_LOADER          = "collective";
     public static final String SERVICE_REGISTRY                 = "nyxletRegistry";
+    public static final String ASYNC_PROCESSING_THREADS         = "asyncProcessingThreads";
+    public static final String ASYNC_PROCESSING_QUEUE_SIZE      = "asyncProcessingQueueSize";
+    public static final String ASYNC_PROCESSING_TIMEOUT         = "asyncProcessingTimeout";
+    public static final String EXECUTION_SERVICE                = "executionService";
+    public static final String EXECUTION_SERVICE_THREADS        = "executionServiceThreads";
+    public static final String PLATFORM_EXECUTION_SERVICE       = "platform";
+    public static final String VIRTUAL_EXECUTION_SERVICE        = "virtual";
 }
@@ -29,7 +29,17 @@ package org.cyclades.engine;
 
 import java.net.InetAddress;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.ServletConfig;
 import org.cyclades.engine.auth.api.AuthDelegate;
 import org.cyclades.engine.logging.LoggingEnum;
@@ -40,6 +50,8 @@ import org.apache.log4j.Logger;
 
 public class EngineContext {
 
+    static Logger logger = Logger.getLogger(EngineContext.class);
+
     public EngineContext(AuthDelegate authDelegate, ServletConfig servletConfig,
             String applicationBaseDirectory, boolean minimizeMemoryFootprint,
             int debugMode) throws Exception {
@@ -54,11 +66,68 @@ public class EngineContext {
             String notificationLoggerString = servletConfig.getInitParameter(NOTIFICATION_LOGGER);
             this.notificationLogger = Logger.getLogger((notificationLoggerString != null) ? notificationLoggerString : DEFAULT_NOTIFICATION_LOGGER);
             this.hostName = getHostName();
+            String executionServiceThreads = servletConfig.getInitParameter(Definitions.EXECUTION_SERVICE_THREADS);
+            this.executionServiceThreads = (executionServiceThreads == null) ? DEFAULT_EXECUTION_SERVICE_THREADS : Integer.parseInt(executionServiceThreads);
+            this.executionService = createVirtualExecutionService(servletConfig.getInitParameter(Definitions.EXECUTION_SERVICE));
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
     }
 
+    /**
+     * Create the engine wide execution service if it is to be backed by virtual threads. "virtual" creates a virtual
+     * thread per task executor (Java 21+), which lets blocking I/O scale past the platform thread count. Anything
+     * else, or a JVM without virtual threads, results in a bounded pool of platform threads, created when the
+     * execution service is first used.
+     *
+     * @param type      The execution service type, "platform" (default) or "virtual"
+     * @return ExecutorService, or null for a platform thread pool
+     */
+    private ExecutorService createVirtualExecutionService (String type) {
+        if (type != null && type.trim().equalsIgnoreCase(Definitions.VIRTUAL_EXECUTION_SERVICE)) {
+            try {
+                // Looked up reflectively, the engine is still built for older Java versions
+                ExecutorService virtualExecutionService = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                this.virtualExecutionService = true;
+                logger.info("Engine execution service: virtual threads");
+                return virtualExecutionService;
+            } catch (Exception e) {
+                logger.warn("Virtual threads not available, using platform threads for the engine execution service: " + e);
+            }
+        }
+        logger.info("Engine execution service: " + executionServiceThreads + " platform threads");
+        return null;
+    }
+
+    /**
+     * A bounded pool of platform threads that runs tasks on the submitting thread once saturated, and rejects
+     * them once shut down
+     *
+     * @param threads   The number of platform threads
+     * @return ExecutorService
+     */
+    private static ExecutorService createPlatformExecutionService (int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread (Runnable runnable) {
+                        Thread thread = new Thread(runnable, "cyclades-engine-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution (Runnable runnable, ThreadPoolExecutor executor) {
+                        // Never drop a task silently, whoever waits on its Future would wait forever
+                        if (executor.isShutdown()) throw new RejectedExecutionException("The engine execution service is shut down");
+                        runnable.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private void extractNotificationEmailData (String data) throws Exception {
         final String eLabel = "EngineContext.extractNotificationEmailData: ";
         try {
@@ -140,6 +209,46 @@ public class EngineContext {
         return this.nyxletToTargetMap.get(nyxlet);
     }
 
+    /**
+     * The engine wide execution service, for work that blocks on I/O (see the "executionService" configuration parameter).
+     * This is shut down by the engine, do not shut it down. Unless it is backed by virtual threads, it is a bounded
+     * pool that runs tasks on the calling thread when saturated, do not submit long running (i.e. looping) tasks to it.
+     *
+     * @return ExecutorService
+     */
+    public synchronized ExecutorService getExecutionService () {
+        if (this.executionService == null) {
+            if (this.destroyed) throw new RejectedExecutionException("The engine execution service is shut down");
+            this.executionService = createPlatformExecutionService(this.executionServiceThreads);
+        }
+        return this.executionService;
+    }
+
+    /**
+     * Is the engine wide execution service backed by virtual threads? If so, it is unbounded and cheap to block on,
+     * and can replace dedicated (bounded) thread pools.
+     *
+     * @return true if virtual threads are in use
+     */
+    public boolean isVirtualExecutionService () {
+        return this.virtualExecutionService;
+    }
+
+    public synchronized void destroy () {
+        this.destroyed = true;
+        if (this.executionService == null) return;
+        this.executionService.shutdown();
+        try {
+            if (this.executionService.awaitTermination(EXECUTION_SERVICE_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Fail the tasks that never started rather than leaving their Futures incomplete
+        for (Runnable runnable : this.executionService.shutdownNow()) {
+            if (runnable instanceof Future) ((Future<?>)runnable).cancel(false);
+        }
+    }
+
     public void sendNotification (LoggingEnum level, String message) throws Exception {
         if (notificationLogger != null) notificationLogger.log(level.getLog4jLevel(), message);
         StringBuilder sb = new StringBuilder("NOTIFICATION:[");
@@ -191,6 +300,12 @@ public class EngineContext {
     private LoggingEnum notificationLevel;
     private final String hostName;
     private final Logger notificationLogger;
+    private ExecutorService executionService;
+    private int executionServiceThreads;
+    private boolean virtualExecutionService = false;
+    private boolean destroyed = false;
+    private static final int DEFAULT_EXECUTION_SERVICE_THREADS = 64;
+    private static final long EXECUTION_SERVICE_SHUTDOWN_SECONDS = 10;
     public static final String NOTIFICATION_EMAIL_DATA      = "notificationEmailData";
     public static final String NOTIFICATION_LOGGER          = "notificationLogger";
     public static final String DEFAULT_NOTIFICATION_LOGGER  = "notify";
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Typed view of a NyxletSession's Map Channel, with support for large values held outside of the heap.
+ *
+ * Values are stored in the underlying Map under the name of their Key, so typed and untyped
+ * (NyxletSession.getMapChannelObject etc.) access see the same entries.
+ *
+ * Large values, e.g. resources handed from one chained handler to the next, can be held as direct
+ * (putDirect) or memory mapped (putMapped) ByteBuffers, which neither inflate the heap nor have to be
+ * traced by the garbage collector. These buffers are accounted for (getOffHeapBytes) and dropped
+ * from the Map Channel when the orchestration ends (release). Their memory is returned once they are
+ * garbage collected, never explicitly, so a reference kept after release stays valid.
+ */
+public class MapChannel {
+
+    /**
+     * A typed Map Channel key
+     *
+     * @param <T> The type of the value stored under the key
+     */
+    public static class Key<T> {
+
+        public Key (String name, Class<T> type) {
+            this.name = name;
+            this.type = type;
+        }
+
+        public String getName () {
+            return name;
+        }
+
+        public Class<T> getType () {
+            return type;
+        }
+
+        @Override
+        public String toString () {
+            return name;
+        }
+
+        private final String name;
+        private final Class<T> type;
+    }
+
+    public MapChannel () {
+        this(new Hashtable<Object, Object>());
+    }
+
+    public MapChannel (Map<Object, Object> map) {
+        this.map = map;
+    }
+
+    /**
+     * @return the untyped Map backing this Map Channel
+     */
+    public Map<Object, Object> getMap () {
+        return map;
+    }
+
+    public <T> void put (Key<T> key, T value) {
+        map.put(key.getName(), value);
+    }
+
+    /**
+     * Get the value stored under the key
+     *
+     * @param key The key
+     * @return The value, null if there is none
+     * @throws ClassCastException if the value is not of the key's type
+     */
+    public <T> T get (Key<T> key) {
+        return key.getType().cast(map.get(key.getName()));
+    }
+
+    public <T> T remove (Key<T> key) {
+        return key.getType().cast(map.remove(key.getName()));
+    }
+
+    public boolean containsKey (Key<?> key) {
+        return map.containsKey(key.getName());
+    }
+
+    /**
+     * Read the InputStream into a direct (off heap) ByteBuffer and store it under the key
+     *
+     * @param key           The key
+     * @param inputStream   The data, read to the end but not closed
+     * @param sizeHint      The expected number of bytes, or a value less than 1 if unknown
+     * @return The buffer stored, positioned at 0 and limited to the data read
+     * @throws Exception
+     */
+    public ByteBuffer putDirect (Key<ByteBuffer> key, InputStream inputStream, int sizeHint) throws Exception {
+        final String eLabel = "MapChannel.putDirect: ";
+        ByteBuffer buffer = null;
+        try {
+            buffer = ByteBuffer.allocateDirect((sizeHint > 0) ? sizeHint : DEFAULT_DIRECT_CAPACITY);
+            byte[] chunk = new byte[COPY_CHUNK_SIZE];
+            int read;
+            while ((read = inputStream.read(chunk)) != -1) {
+                if (buffer.remaining() < read) {
+                    long grownCapacity = Math.max((long)buffer.capacity() << 1, (long)buffer.position() + read);
+                    if (grownCapacity > Integer.MAX_VALUE) throw new Exception("Value too large for a ByteBuffer");
+                    ByteBuffer grown = ByteBuffer.allocateDirect((int)grownCapacity);
+                    buffer.flip();
+                    grown.put(buffer);
+                    buffer = grown;
+                }
+                buffer.put(chunk, 0, read);
+            }
+            buffer.flip();
+            track(buffer);
+            put(key, buffer);
+            return buffer;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Map the file read only and store the mapping under the key. The file contents are paged in by the
+     * operating system as they are read and are never copied onto the heap.
+     *
+     * @param key   The key
+     * @param file  The file to map
+     * @return The buffer stored
+     * @throws Exception
+     */
+    public ByteBuffer putMapped (Key<ByteBuffer> key, File file) throws Exception {
+        final String eLabel = "MapChannel.putMapped: ";
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            // The mapping stays valid after the channel is closed
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
+            track(buffer);
+            put(key, buffer);
+            return buffer;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        } finally {
+            try { randomAccessFile.close(); } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * @return the number of bytes currently held off heap by this Map Channel
+     */
+    public synchronized long getOffHeapBytes () {
+        return offHeapBytes;
+    }
+
+    /**
+     * @return the number of bytes currently held off heap by all Map Channels
+     */
+    public static long getTotalOffHeapBytes () {
+        return totalOffHeapBytes.get();
+    }
+
+    /**
+     * Remove all off heap values from the Map Channel. Called when the outermost orchestration using the Map
+     * Channel ends (see NyxletSession.enterOrchestration), the memory is returned when the buffers are garbage
+     * collected. Other values are left alone.
+     */
+    public void release () {
+        List<ByteBuffer> toRelease;
+        synchronized (this) {
+            if (buffers.isEmpty()) return;
+            toRelease = buffers;
+            buffers = new ArrayList<ByteBuffer>();
+            totalOffHeapBytes.addAndGet(-offHeapBytes);
+            offHeapBytes = 0;
+        }
+        synchronized (map) {
+            // Identity check, the value may have been replaced by something else since
+            List<Object> keys = new ArrayList<Object>();
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                for (ByteBuffer buffer : toRelease) {
+                    if (entry.getValue() == buffer) keys.add(entry.getKey());
+                }
+            }
+            for (Object key : keys) map.remove(key);
+        }
+    }
+
+    private synchronized void track (ByteBuffer buffer) {
+        buffers.add(buffer);
+        offHeapBytes += buffer.capacity();
+        totalOffHeapBytes.addAndGet(buffer.capacity());
+    }
+
+    private final Map<Object, Object> map;
+    private List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+    private long offHeapBytes = 0;
+    private static final AtomicLong totalOffHeapBytes = new AtomicLong();
+    private static final int DEFAULT_DIRECT_CAPACITY = 64 * 1024;
+    private static final int COPY_CHUNK_SIZE = 16 * 1024;
+}
@@ -27,6 +27,8 @@
  *******************************************************************************/
 package org.cyclades.engine;
 
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.Map;
 import java.util.List;
 import javax.xml.transform.dom.DOMSource;
@@ -35,6 +37,7 @@ import org.cyclades.engine.util.MapHelper;
 import org.cyclades.xml.parser.api.XMLGeneratedObject;
 import org.json.JSONObject;
 import org.json.JSONArray;
+import org.json.JSONTokener;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
@@ -50,6 +53,16 @@ public enum MetaTypeEnum {
             }
         }
 
+        public Object createObjectFromMeta (InputStream metaStream) throws Exception {
+            final String eLabel = "MetaTypeEnum.createObjectFromMeta(JSON, InputStream): ";
+            try {
+                // JSONTokener pulls characters from the stream as it parses, the meta is never held as a String
+                return new JSONObject(new JSONTokener(new InputStreamReader(metaStream)));
+            } catch (Exception e) {
+                throw new Exception(eLabel + e);
+            }
+        }
+
         public String createMetaFromObject (Object object) throws Exception {
             final String eLabel = "MetaTypeEnum.createMetaFromObject(JSON): ";
             try {
@@ -91,6 +104,15 @@ public enum MetaTypeEnum {
             }
         }
 
+        public Object createObjectFromMeta (InputStream metaStream) throws Exception {
+            final String eLabel = "MetaTypeEnum.createObjectFromMeta(XML, InputStream): ";
+            try {
+                return (new GenericXMLObject(metaStream)).getRootElement();
+            } catch (Exception e) {
+                throw new Exception(eLabel + e);
+            }
+        }
+
         public String createMetaFromObject (Object object) throws Exception {
             final String eLabel = "MetaTypeEnum.createMetaFromObject(JSON): ";
             try {
@@ -124,6 +146,16 @@ public enum MetaTypeEnum {
 
     public abstract Object createObjectFromMeta (String meta) throws Exception;
 
+    /**
+     * Create the meta object by parsing the InputStream directly, without first reading it into
+     * a String. Use this for request bodies, which may be large.
+     *
+     * @param metaStream    The InputStream to parse the meta object from
+     * @return the meta object
+     * @throws Exception
+     */
+    public abstract Object createObjectFromMeta (InputStream metaStream) throws Exception;
+
     public abstract String createMetaFromObject (Object object) throws Exception;
 
     public abstract Map<String, String> getMapFromMeta (Object metaObject, String[] totalParameters) throws Exception;
@@ -37,6 +37,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import org.apache.log4j.Logger;
 import org.cyclades.engine.adapter.HttpServletRequestAdapter;
 import org.cyclades.engine.adapter.HttpServletResponseAdapter;
@@ -44,9 +45,9 @@ import org.cyclades.engine.auth.api.AuthDelegate;
 import org.cyclades.engine.exception.AuthException;
 import org.cyclades.engine.logging.LoggingEnum;
 import org.cyclades.engine.nyxlet.templates.xstroma.OrchestrationTypeEnum;
+import org.cyclades.engine.stroma.ChainingPort;
 import org.cyclades.engine.util.MapHelper;
 import com.google.common.collect.Maps;
-import com.google.common.io.ByteStreams;
 
 public class NyxletSession {
 
@@ -68,12 +69,51 @@ public class NyxletSession {
         this.outputStream = os;
     }
 
+    /**
+     * Create a new NyxletSession that shares the request, map channel and authorization state of this session,
+     * but writes to its own OutputStream and carries its own per-request state. This is used to dispatch
+     * independent service requests of a composed orchestration concurrently. HttpServletResponse is not thread
+     * safe, so the forked session gets its own HttpServletResponseAdapter. The status and content type set on it
+     * are recorded there, for the caller to apply to the response of this session.
+     *
+     * @param outputStream  The OutputStream the forked session will write its response to
+     * @return              The forked NyxletSession
+     * @throws Exception
+     */
+    public NyxletSession fork (OutputStream outputStream) throws Exception {
+        final String eLabel = "NyxletSession.fork: ";
+        try {
+            NyxletSession forkedSession = new NyxletSession(this.request, new HttpServletResponseAdapter(outputStream), this.inputStream, outputStream);
+            forkedSession.metaTypeEnum = this.getMetaTypeEnum();
+            forkedSession.responseMetaTypeEnum = this.getResponseMetaTypeEnum();
+            forkedSession.rawResponse = this.rawResponse;
+            forkedSession.mapChannel = this.mapChannel;
+            forkedSession.typedMapChannel = this.getTypedMapChannel();
+            forkedSession.ownsMapChannel = false;
+            forkedSession.authDelegateObject = this.authDelegateObject;
+            forkedSession.isRRDRequest = this.isRRDRequest;
+            forkedSession.orchestrationTypeEnum = this.orchestrationTypeEnum;
+            return forkedSession;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
     private void loadDataObject () throws Exception {
         final String eLabel = "NyxletSession.loadDataObject: ";
         try {
             String meta = this.request.getParameter(DATA_PARAMETER);
-            if (meta == null && inputStream != null) meta = new String(ByteStreams.toByteArray(inputStream));
-            if (meta != null && !meta.isEmpty()) this.dataObject = this.getMetaTypeEnum().createObjectFromMeta(meta);
+            if (meta != null) {
+                if (!meta.isEmpty()) this.dataObject = this.getMetaTypeEnum().createObjectFromMeta(meta);
+            } else if (inputStream != null) {
+                // Parse straight from the request body, avoiding intermediate byte[] and String copies of large payloads
+                PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream);
+                int firstByte = pushbackInputStream.read();
+                if (firstByte != -1) {
+                    pushbackInputStream.unread(firstByte);
+                    this.dataObject = this.getMetaTypeEnum().createObjectFromMeta(pushbackInputStream);
+                }
+            }
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -141,6 +181,30 @@ public class NyxletSession {
         }
     }
 
+    /**
+     * Hand out the request body for incremental parsing, instead of materializing it via getDataObject.
+     * This is only possible if the data object has not been loaded or set yet, and the body (rather than
+     * the "data" parameter) is its source. The caller takes over the stream, getDataObject will not see
+     * what has been consumed from it.
+     *
+     * @return InputStream positioned at the start of the non empty body, null if not applicable
+     * @throws Exception
+     */
+    public InputStream getUnparsedDataInputStream () throws Exception {
+        final String eLabel = "NyxletSession.getUnparsedDataInputStream: ";
+        try {
+            if (this.dataObject != null || this.inputStream == null || this.hasData()) return null;
+            PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream);
+            this.inputStream = pushbackInputStream;
+            int firstByte = pushbackInputStream.read();
+            if (firstByte == -1) return null;
+            pushbackInputStream.unread(firstByte);
+            return pushbackInputStream;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
     public void setDataObject (Object dataObject) throws Exception {
         this.dataObject = dataObject;
         this.metaTypeEnum = MetaTypeEnum.detectMetaTypeEnum(dataObject);
@@ -364,12 +428,43 @@ public class NyxletSession {
 
     public void setMapChannel (Map<Object, Object> map) {
         this.mapChannel = map;
+        // The Map Channel belongs to whoever created it
+        this.ownsMapChannel = false;
     }
 
     public Map<Object, Object> getMapChannel () {
         return this.mapChannel;
     }
 
+    /**
+     * Get the typed view of the Map Channel, see MapChannel
+     *
+     * @return MapChannel backed by the current Map Channel
+     */
+    public synchronized MapChannel getTypedMapChannel () {
+        if (this.typedMapChannel == null || this.typedMapChannel.getMap() != this.mapChannel) {
+            this.typedMapChannel = new MapChannel(this.mapChannel);
+        }
+        return this.typedMapChannel;
+    }
+
+    /**
+     * Mark the start of an X-STROMA orchestration on this session. Orchestrations nest, as a service of an
+     * orchestration may be a service broker itself, and each call must be followed by a call to
+     * exitOrchestration() when the orchestration ends.
+     *
+     * @return true if this is the outermost orchestration of the session that created the Map Channel, only then
+     *          may the off heap values of the Map Channel be released when the orchestration ends. Forked sessions
+     *          and sessions handed a Map Channel (setMapChannel) share it with an orchestration still running.
+     */
+    public synchronized boolean enterOrchestration () {
+        return (orchestrationDepth++ == 0 && ownsMapChannel);
+    }
+
+    public synchronized void exitOrchestration () {
+        orchestrationDepth--;
+    }
+
     public void raiseOrchestrationFault (String orchestrationFaultMessage) {
         this.orchestrationFault = true;
         this.orchestrationFaultMessage = orchestrationFaultMessage;
@@ -419,11 +514,29 @@ public class NyxletSession {
     }
 
     public void setPortData (byte[] port) {
-        this.portData = port;
+        this.port = (port == null) ? null : new ChainingPort(port);
     }
 
+    /**
+     * Get a copy of the port data, see getPort to access it without copying
+     *
+     * @return byte[], null if there is no port data
+     */
     public byte[] getPortData () {
-        return this.portData;
+        return (this.port == null) ? null : this.port.toByteArray();
+    }
+
+    public void setPort (ChainingPort port) {
+        this.port = port;
+    }
+
+    /**
+     * Get the output of the previous step of a chained orchestration
+     *
+     * @return ChainingPort, null if there is no port data
+     */
+    public ChainingPort getPort () {
+        return this.port;
     }
 
     public NyxletSession setInputStream (InputStream inputStream) {
@@ -468,6 +581,27 @@ public class NyxletSession {
         this.isRRDRequest = isRRDRequest;
     }
 
+    /**
+     * Set the RRD URI parameters already extracted for the given Nyxlet while dispatching this request
+     *
+     * @param nyxlet                The Nyxlet the parameters were extracted for
+     * @param RRDURIParameterMap    The extracted parameters
+     */
+    public void setRRDURIParameterMap (Object nyxlet, Map<String, List<String>> RRDURIParameterMap) {
+        this.RRDURIParameterMapOwner = nyxlet;
+        this.RRDURIParameterMap = RRDURIParameterMap;
+    }
+
+    /**
+     * Get the RRD URI parameters already extracted for the given Nyxlet while dispatching this request
+     *
+     * @param nyxlet    The Nyxlet requesting the parameters
+     * @return the extracted parameters, null if none were extracted for this Nyxlet
+     */
+    public Map<String, List<String>> getRRDURIParameterMap (Object nyxlet) {
+        return (nyxlet == RRDURIParameterMapOwner) ? RRDURIParameterMap : null;
+    }
+
     public void setOrchestrationTypeEnum (OrchestrationTypeEnum orchestrationTypeEnum) {
         this.orchestrationTypeEnum = orchestrationTypeEnum;
     }
@@ -500,13 +634,18 @@ public class NyxletSession {
     private MetaTypeEnum metaTypeEnum = null;
     private MetaTypeEnum responseMetaTypeEnum = null;
     private Map<Object, Object> mapChannel = new Hashtable<Object, Object>();
-    private byte[] portData = null;
+    private MapChannel typedMapChannel = null;
+    private boolean ownsMapChannel = true;
+    private int orchestrationDepth = 0;
+    private ChainingPort port = null;
     private boolean orchestrationFault = false;
     private String orchestrationFaultMessage;
     private Object authDelegateObject;
     private boolean chainsForward = false;
     private boolean isLastBoolean = true;
     private boolean isRRDRequest = false;
+    private Object RRDURIParameterMapOwner = null;
+    private Map<String, List<String>> RRDURIParameterMap = null;
     private OrchestrationTypeEnum orchestrationTypeEnum = OrchestrationTypeEnum.NONE;
     private long durationStart = System.currentTimeMillis();
     private Boolean durationRequested = null;
@@ -55,7 +55,7 @@ public class HttpServletResponseAdapter implements HttpServletResponse {
         return new PrintWriter(this.os);
     }
 
-    public String getContentType() {return null;}
+    public String getContentType() {return this.contentType;}
     public void setCharacterEncoding(String charset) {}
     public void addCookie(Cookie arg0) {}
     public void addDateHeader(String arg0, long arg1) {}
@@ -72,8 +72,8 @@ public class HttpServletResponseAdapter implements HttpServletResponse {
     public void setDateHeader(String arg0, long arg1) {}
     public void setHeader(String arg0, String arg1) {}
     public void setIntHeader(String arg0, int arg1) {}
-    public void setStatus(int arg0, String arg1) {}
-    public void setStatus(int arg0) {}
+    public void setStatus(int arg0, String arg1) {this.status = arg0;}
+    public void setStatus(int arg0) {this.status = arg0;}
     public void flushBuffer() throws IOException {}
     public int getBufferSize() {return 0;}
     public String getCharacterEncoding() {return null;}
@@ -83,8 +83,15 @@ public class HttpServletResponseAdapter implements HttpServletResponse {
     public void resetBuffer() {}
     public void setBufferSize(int arg0) {}
     public void setContentLength(int arg0) {}
-    public void setContentType(String arg0) {}
+    public void setContentType(String arg0) {this.contentType = arg0;}
     public void setLocale(Locale arg0) {}
 
+    /**
+     * @return The status set on this response, 0 if none has been set
+     */
+    public int getStatus() {return this.status;}
+
     private ServletOutputStreamAdapter os;
+    private String contentType = null;
+    private int status = 0;
 }
@@ -60,6 +60,20 @@ public abstract class Nyxlet {
     public Nyxlet () throws Exception { }
 
     public static Nyxlet valueOf(final Node xmlNode, final ClassLoader classLoader, final Properties buildProperties) throws XMLParserException {
+        return valueOf(xmlNode, classLoader, buildProperties, true);
+    }
+
+    /**
+     * Create a Nyxlet from its manifest entry
+     *
+     * @param xmlNode           The "nyxlet" element of the manifest
+     * @param classLoader       The class loader to load the Nyxlet with
+     * @param buildProperties   The build properties of the Nyxlet
+     * @param initialize        Call init(), if false the caller is responsible for initializing the Nyxlet
+     * @return The Nyxlet
+     * @throws XMLParserException
+     */
+    public static Nyxlet valueOf(final Node xmlNode, final ClassLoader classLoader, final Properties buildProperties, final boolean initialize) throws XMLParserException {
         XMLGeneratedObject xmlo = null;
         Nyxlet nyxlet = null;
         try {
@@ -87,7 +101,7 @@ public abstract class Nyxlet {
                 }
             }
             // IMPORTANT: Initialize this command AFTER attributes are loaded...
-            nyxlet.init();
+            if (initialize) nyxlet.init();
             if (rrdString != null) nyxlet.setRRDString(rrdString);
             return nyxlet;
         } catch (Exception ex) {
@@ -221,6 +235,16 @@ public abstract class Nyxlet {
      *
      * Every field must be specified, the URI mapping can be empty.
      *
+     * Instead of overriding this method, a Nyxlet can declare its match declaratively by appending an optional fourth
+     * field, the RRD match template, to the "rrd" attribute. The template is an optional comma separated list of HTTP
+     * methods followed by a URI template, where each URI part is either a literal, "*" (matches any single URI part)
+     * or a trailing "**" (matches any remaining URI parts). Here is an example:
+     *
+     * rrd="mytargetrestfulservices|/action/key1|100|GET,POST /items/*"
+     *
+     * Templates are compiled into an index when the Nyxlet is loaded, and this method is never called for Nyxlets
+     * that declare one.
+     *
      * RRD mode is activated when one of the following occurs:
      * - the HTTP Header "rrd" is present
      * - the HTTP Query Parameter "rrd" is present
@@ -241,7 +265,10 @@ public abstract class Nyxlet {
     public Map<String, List<String>> getRRDURIParameterMap (NyxletSession nyxletSession) throws Exception {
         final String eLabel = "Nyxlet.getRRDURIParameterMap";
         try {
-            Map<String, List<String>> returnMap = new HashMap<String, List<String>>();
+            // Already extracted when this Nyxlet was matched by its RRD match template?
+            Map<String, List<String>> returnMap = nyxletSession.getRRDURIParameterMap(this);
+            if (returnMap != null) return returnMap;
+            returnMap = new HashMap<String, List<String>>();
             if (RRDURIToParameterKeyMapping == null) return returnMap;
             String webServiceRequest = nyxletSession.getRequestPathInfo();
             if (webServiceRequest != null && webServiceRequest.length() > 1) returnMap = MapHelper.parameterMapFromURI(webServiceRequest, 1, RRDURIToParameterKeyMapping);
@@ -284,11 +311,10 @@ public abstract class Nyxlet {
     /**
      * Get the RRD (RESTful Request Dispatch) string associated with this object. This can be null,
      * meaning this service cannot be invoked by RRD. If it is not null...it should be in the format
-     * of [RRD Key]|[priority] ...so an example would look like:
+     * of [RRD Key]|[URI mapping]|[priority] or [RRD Key]|[URI mapping]|[priority]|[RRD match template]
+     * ...so an example would look like:
      *
-     * "mygroupkey_a|3 or" simply "mygroupkey_a"
-     *
-     * If no priority is specified, a default value will be assigned
+     * "mygroupkey_a|/name|3" or "mygroupkey_a|/name|3|GET /hello/*"
      *
      * @return the rrdString in its entirety
      */
@@ -299,11 +325,31 @@ public abstract class Nyxlet {
     public void setRRDString (String rrdString) throws Exception {
         this.rrdString = rrdString;
         String[] fields = rrdString.split("[|]");
-        if (fields.length != 3) throw new Exception("Invalid RRD format, should be \"[group]|[uri_part_mapping]|[priority]\"");
+        if (fields.length != 3 && fields.length != 4) throw new Exception("Invalid RRD format, should be \"[group]|[uri_part_mapping]|[priority]\" " +
+                "or \"[group]|[uri_part_mapping]|[priority]|[match_template]\"");
         if (!fields[1].isEmpty()) {
             String[] uriParts = fields[1].split("[/]");
             if (uriParts.length > 1) RRDURIToParameterKeyMapping = Arrays.copyOfRange(uriParts, 1, uriParts.length);
         }
+        if (fields.length == 4 && !fields[3].trim().isEmpty()) RRDMatchTemplate = fields[3].trim();
+    }
+
+    /**
+     * Get the RRD match template declared as the optional fourth field of the RRD string
+     *
+     * @return the RRD match template, null if this Nyxlet relies on isRRDMatch(...)
+     */
+    public String getRRDMatchTemplate () {
+        return this.RRDMatchTemplate;
+    }
+
+    /**
+     * Get the parameter keys the RRD URI parts are mapped to, in URI part order
+     *
+     * @return the parameter keys, null if there is no URI mapping
+     */
+    public String[] getRRDURIToParameterKeyMapping () {
+        return this.RRDURIToParameterKeyMapping;
     }
 
     public static EngineContext getEngineContext () {
@@ -345,6 +391,7 @@ public abstract class Nyxlet {
     private String name = null;
     private String rrdString = null;
     private String[] RRDURIToParameterKeyMapping = null;
+    private String RRDMatchTemplate = null;
     private volatile boolean active = true;
     private volatile boolean healthy = true;
     private Properties buildProperties;
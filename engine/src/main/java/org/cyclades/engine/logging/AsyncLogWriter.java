@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.logging;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.log4j.Logger;
+
+/**
+ * A LogWriterInterface implementation that does not block the calling thread on disk I/O. Entries are
+ * placed on a bounded, lock free queue and written by a single writer thread in batches (group commit),
+ * flushing once enough bytes are pending or the flush interval has passed. Roll over to a new file
+ * follows the same date format rules as LogWriter.
+ *
+ * If the queue is full the entry is dropped rather than blocking the caller, see getDroppedCount.
+ */
+public class AsyncLogWriter implements LogWriterInterface {
+
+    public AsyncLogWriter (String logDirectory, String logFileName, String dateFormat) throws Exception {
+        this(logDirectory, logFileName, dateFormat, DEFAULT_QUEUE_CAPACITY, DEFAULT_FLUSH_BYTES, DEFAULT_FLUSH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param logDirectory          The directory to write the log files to
+     * @param logFileName           The base name of the log files, the formatted date is appended
+     * @param dateFormat            The SimpleDateFormat pattern, a new file is started whenever the formatted date changes
+     * @param queueCapacity         The maximum number of entries waiting to be written, beyond this entries are dropped
+     * @param flushBytes            Flush once this many bytes (chars) have been written since the last flush
+     * @param flushIntervalMillis   Flush at least this often while entries are being written
+     * @throws Exception
+     */
+    public AsyncLogWriter (String logDirectory, String logFileName, String dateFormat, int queueCapacity,
+            int flushBytes, long flushIntervalMillis) throws Exception {
+        final String eLabel = "AsyncLogWriter.AsyncLogWriter: ";
+        try {
+            this.logDirectory = logDirectory;
+            this.logFileName = logFileName;
+            this.simpleDate = new SimpleDateFormat(dateFormat);
+            this.queueCapacity = queueCapacity;
+            this.flushBytes = flushBytes;
+            this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+            File directory = new File(logDirectory);
+            if (!directory.exists()) {
+                if (!directory.mkdirs()) {
+                    throw new Exception("Could not create directory: " + logDirectory);
+                }
+            }
+            // Append to log files on startup
+            makeLogFile(simpleDate.format(new Date()), true);
+            writerThread = new Thread(new Runnable() {
+                @Override
+                public void run () {
+                    drain();
+                }
+            }, "cyclades-log-writer-" + logFileName);
+            writerThread.setDaemon(true);
+            writerThread.start();
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public void write (String message) throws Exception {
+        enqueue(message);
+    }
+
+    @Override
+    public void writeLine (String message) throws Exception {
+        enqueue(message + "\n");
+    }
+
+    @Override
+    public void writeDatedLine (String message, String delimeter) throws Exception {
+        // Time stamped by the caller, not when it is eventually written
+        StringBuilder sb = new StringBuilder();
+        sb.append(System.currentTimeMillis());
+        sb.append(delimeter);
+        sb.append(message);
+        sb.append("\n");
+        enqueue(sb.toString());
+    }
+
+    /**
+     * Stop accepting entries, write out everything queued so far and close the file
+     *
+     * @throws Exception
+     */
+    @Override
+    public void close () throws Exception {
+        final String eLabel = "AsyncLogWriter.close: ";
+        try {
+            closed = true;
+            LockSupport.unpark(writerThread);
+            writerThread.join(CLOSE_TIMEOUT_MILLIS);
+            if (droppedCount.get() > 0) logError(eLabel + "Entries dropped (queue full): " + droppedCount.get() + " " + logFileName);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * @return The number of entries currently waiting to be written
+     */
+    public int getQueuedCount () {
+        return queuedCount.get();
+    }
+
+    /**
+     * @return The number of entries dropped so far because the queue was full
+     */
+    public long getDroppedCount () {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return The number of entries written so far
+     */
+    public long getWrittenCount () {
+        return writtenCount.get();
+    }
+
+    public void setLogger (Logger logger) {
+        this.logger = logger;
+    }
+
+    private void enqueue (String entry) throws Exception {
+        if (closed) throw new Exception("AsyncLogWriter.enqueue: Writer closed: " + logFileName);
+        if (queuedCount.incrementAndGet() > queueCapacity) {
+            queuedCount.decrementAndGet();
+            droppedCount.incrementAndGet();
+            return;
+        }
+        queue.offer(entry);
+        // Only pay for the wake up if the writer thread has nothing else to do
+        if (writerIdle) LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * The writer thread loop: write whatever is queued, flush on the size/time thresholds and park while idle
+     */
+    private void drain () {
+        final String eLabel = "AsyncLogWriter.drain: ";
+        long lastFlush = System.nanoTime();
+        int unflushed = 0;
+        String entry;
+        while (true) {
+            try {
+                boolean wasClosed = closed;
+                if ((entry = queue.poll()) != null) {
+                    checkAndRollNewFileIfNecessary();
+                    do {
+                        queuedCount.decrementAndGet();
+                        writer.write(entry);
+                        writtenCount.incrementAndGet();
+                        unflushed += entry.length();
+                        if (unflushed >= flushBytes) {
+                            writer.flush();
+                            unflushed = 0;
+                            lastFlush = System.nanoTime();
+                        }
+                    } while ((entry = queue.poll()) != null);
+                }
+                if (unflushed > 0 && (System.nanoTime() - lastFlush >= flushIntervalNanos || wasClosed)) {
+                    writer.flush();
+                    unflushed = 0;
+                    lastFlush = System.nanoTime();
+                }
+                if (wasClosed && queue.isEmpty()) break;
+                writerIdle = true;
+                // Re-check after publishing the idle flag, an entry may have been queued without an unpark
+                if (queue.isEmpty() && !closed) LockSupport.parkNanos(this, flushIntervalNanos);
+                writerIdle = false;
+            } catch (Exception e) {
+                logError(eLabel + e);
+                if (closed) break;
+                // Do not spin on a persistent I/O error
+                LockSupport.parkNanos(this, flushIntervalNanos);
+            }
+        }
+        try {
+            writer.close();
+        } catch (Exception e) {
+            logError(eLabel + e);
+        }
+    }
+
+    private void makeLogFile (String dateString, boolean appendToFile) throws Exception {
+        final String eLabel = "AsyncLogWriter.makeLogFile: ";
+        try {
+            logToDateString = dateString;
+            writerFile = new File(logDirectory, logFileName + "." + logToDateString);
+            if (!writerFile.exists()) {
+                if (!writerFile.createNewFile()) {
+                    throw new Exception("Failed to create data file: " + writerFile.getName());
+                }
+            }
+            writer = new BufferedWriter(new FileWriter(writerFile, appendToFile), WRITE_BUFFER_SIZE);
+        } catch (Exception e){
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Only called from the writer thread, once per batch...so neither the SimpleDateFormat nor the writer need guarding
+     */
+    private void checkAndRollNewFileIfNecessary () throws Exception {
+        final String eLabel = "AsyncLogWriter.checkAndRollNewFileIfNecessary: ";
+        try {
+            String currentDateString = simpleDate.format(new Date());
+            if (!currentDateString.equals(logToDateString)) {
+                try {
+                    writer.close();
+                } catch (Exception e) {
+                    logError(eLabel + e + "Error closing: " + writerFile.getName());
+                }
+                // Start from the beginning when rolling over as to clear an old file if one exists
+                makeLogFile(currentDateString, false);
+            }
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    private void logError (String message) {
+        if (logger != null) {
+            logger.error(message);
+        } else {
+            System.out.println(message);
+        }
+    }
+
+    private File writerFile;
+    private String logToDateString;
+    private final String logDirectory;
+    private final String logFileName;
+    private final SimpleDateFormat simpleDate;
+    private BufferedWriter writer = null;
+    private final int queueCapacity;
+    private final int flushBytes;
+    private final long flushIntervalNanos;
+    private final Thread writerThread;
+    private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<String>();
+    private final AtomicInteger queuedCount = new AtomicInteger();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private volatile boolean writerIdle = false;
+    private volatile boolean closed = false;
+    private volatile Logger logger = null;
+    public static final int DEFAULT_QUEUE_CAPACITY          = 65536;
+    public static final int DEFAULT_FLUSH_BYTES             = 64 * 1024;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS  = 200;
+    private static final int WRITE_BUFFER_SIZE              = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS          = 10000;
+}
@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.logging;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.apache.log4j.Logger;
+
+/**
+ * A LogWriterInterface implementation that writes into pre-allocated, memory mapped segment files. Entries are
+ * encoded (UTF-8) straight into the mapped buffer, so writing a line is a memory copy rather than a write
+ * system call. Files are named [logFileName].[date].[segment] and are rolled when the formatted date changes
+ * (as with LogWriter) and when a segment is full. Rolled and closed segments are truncated to the data
+ * actually written.
+ *
+ * Data reaches the file when the operating system writes back the mapped pages (or on roll/close), not on
+ * every entry. A segment left behind by a crash may therefore end in unused, zero filled space.
+ */
+public class MappedLogWriter implements LogWriterInterface {
+
+    public MappedLogWriter (String logDirectory, String logFileName, String dateFormat) throws Exception {
+        this(logDirectory, logFileName, dateFormat, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param logDirectory  The directory to write the log files to
+     * @param logFileName   The base name of the log files, the formatted date and segment number are appended
+     * @param dateFormat    The SimpleDateFormat pattern, a new file is started whenever the formatted date changes
+     * @param segmentSize   The size in bytes of each pre-allocated segment file
+     * @throws Exception
+     */
+    public MappedLogWriter (String logDirectory, String logFileName, String dateFormat, int segmentSize) throws Exception {
+        final String eLabel = "MappedLogWriter.MappedLogWriter: ";
+        try {
+            this.logDirectory = logDirectory;
+            this.logFileName = logFileName;
+            this.simpleDate = new SimpleDateFormat(dateFormat);
+            this.segmentSize = segmentSize;
+            this.encoder = Charset.forName("UTF-8").newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+            File directory = new File(logDirectory);
+            if (!directory.exists()) {
+                if (!directory.mkdirs()) {
+                    throw new Exception("Could not create directory: " + logDirectory);
+                }
+            }
+            // Append to the last segment of the current date on startup
+            logToDateString = simpleDate.format(new Date());
+            nextDateCheckMillis = System.currentTimeMillis() + DATE_CHECK_INTERVAL_MILLIS;
+            segment = 0;
+            while (segmentFile(logToDateString, segment + 1).exists()) segment++;
+            mapSegment(true);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public synchronized void write (String message) throws Exception {
+        final String eLabel = "MappedLogWriter.write: ";
+        try {
+            prepare(message.length());
+            put(message);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public synchronized void writeLine (String message) throws Exception {
+        final String eLabel = "MappedLogWriter.writeLine: ";
+        try {
+            prepare(message.length() + 1);
+            put(message);
+            putByte(NEW_LINE);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public synchronized void writeDatedLine (String message, String delimeter) throws Exception {
+        final String eLabel = "MappedLogWriter.writeDatedLine: ";
+        try {
+            prepare(MAX_LONG_DIGITS + delimeter.length() + message.length() + 1);
+            putLong(System.currentTimeMillis());
+            put(delimeter);
+            put(message);
+            putByte(NEW_LINE);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public synchronized void close () throws Exception {
+        final String eLabel = "MappedLogWriter.close: ";
+        try {
+            closeSegment();
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    public void setLogger (Logger logger) {
+        this.logger = logger;
+    }
+
+    /**
+     * Roll over if the date changed, or if an entry of this many chars may not fit in the current segment. An
+     * entry only spans segments if it is larger than a whole segment.
+     */
+    private void prepare (int chars) throws Exception {
+        if (buffer == null) throw new Exception("Writer closed: " + logFileName);
+        long now = System.currentTimeMillis();
+        if (now >= nextDateCheckMillis) {
+            // Formatting the date on every entry is not free, the formatted value changes at most once per second anyway
+            nextDateCheckMillis = now + DATE_CHECK_INTERVAL_MILLIS;
+            String currentDateString = simpleDate.format(new Date(now));
+            if (!currentDateString.equals(logToDateString)) {
+                closeSegment();
+                logToDateString = currentDateString;
+                // Start from the beginning when rolling over as to clear old files if they exist
+                for (int i = 0; segmentFile(logToDateString, i).exists(); i++) segmentFile(logToDateString, i).delete();
+                segment = 0;
+                mapSegment(false);
+                return;
+            }
+        }
+        // Worst case of 3 bytes per char (UTF-8)
+        if (buffer.position() > 0 && buffer.remaining() < (long)chars * 3) nextSegment();
+    }
+
+    private void put (String chars) throws Exception {
+        CharBuffer in = CharBuffer.wrap(chars);
+        encoder.reset();
+        CoderResult result;
+        while ((result = encoder.encode(in, buffer, true)).isOverflow()) nextSegment();
+        if (result.isError()) result.throwException();
+        while (encoder.flush(buffer).isOverflow()) nextSegment();
+    }
+
+    private void putByte (byte b) throws Exception {
+        if (!buffer.hasRemaining()) nextSegment();
+        buffer.put(b);
+    }
+
+    private void putLong (long value) throws Exception {
+        // Encoded backwards into a scratch array, avoiding Long.toString
+        int start = MAX_LONG_DIGITS;
+        boolean negative = value < 0;
+        do {
+            scratch[--start] = (byte)('0' + Math.abs(value % 10));
+            value /= 10;
+        } while (value != 0);
+        if (negative) scratch[--start] = '-';
+        if (buffer.remaining() < MAX_LONG_DIGITS - start) nextSegment();
+        buffer.put(scratch, start, MAX_LONG_DIGITS - start);
+    }
+
+    private void nextSegment () throws Exception {
+        closeSegment();
+        segment++;
+        mapSegment(false);
+    }
+
+    private void mapSegment (boolean append) throws Exception {
+        randomAccessFile = new RandomAccessFile(segmentFile(logToDateString, segment), "rw");
+        long existing = (append) ? randomAccessFile.length() : 0;
+        if (existing >= segmentSize) {
+            // Nothing left to append to...move on to a fresh segment
+            randomAccessFile.close();
+            segment++;
+            randomAccessFile = new RandomAccessFile(segmentFile(logToDateString, segment), "rw");
+            existing = 0;
+        }
+        if (existing == 0) randomAccessFile.setLength(0);
+        randomAccessFile.setLength(segmentSize);
+        buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.position((int)existing);
+    }
+
+    private void closeSegment () throws Exception {
+        if (buffer == null) return;
+        int written = buffer.position();
+        buffer.force();
+        buffer = null;
+        try {
+            randomAccessFile.getChannel().truncate(written);
+        } catch (Exception e) {
+            if (logger != null) logger.error("MappedLogWriter.closeSegment: " + e);
+        } finally {
+            randomAccessFile.close();
+            randomAccessFile = null;
+        }
+    }
+
+    private File segmentFile (String dateString, int segment) {
+        return new File(logDirectory, logFileName + "." + dateString + "." + segment);
+    }
+
+    private final String logDirectory;
+    private final String logFileName;
+    private final SimpleDateFormat simpleDate;
+    private final int segmentSize;
+    private final CharsetEncoder encoder;
+    private final byte[] scratch = new byte[MAX_LONG_DIGITS];
+    private String logToDateString;
+    private long nextDateCheckMillis;
+    private int segment;
+    private RandomAccessFile randomAccessFile;
+    private MappedByteBuffer buffer;
+    private Logger logger = null;
+    public static final int DEFAULT_SEGMENT_SIZE            = 64 * 1024 * 1024;
+    private static final long DATE_CHECK_INTERVAL_MILLIS    = 1000;
+    private static final int MAX_LONG_DIGITS                = 20;
+    private static final byte NEW_LINE                      = '\n';
+}
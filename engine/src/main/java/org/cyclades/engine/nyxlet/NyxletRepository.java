@@ -32,9 +32,14 @@ import java.io.InputStream;
 import java.io.File;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
@@ -52,6 +57,21 @@ import org.w3c.dom.NodeList;
 import com.google.common.io.ByteStreams;
 import com.google.common.base.Strings;
 
+/**
+ * The repository of loaded Nyxlets. The Nyxlets, the RRD store and the class loader they were loaded with are
+ * held in an immutable snapshot that is published through a single atomic reference. Lookups simply read the
+ * current snapshot and never block, while (re)loading builds a complete new snapshot off to the side and swaps it
+ * in atomically once every Nyxlet has been initialized. Traffic is therefore never exposed to a partially loaded
+ * repository.
+ *
+ * A reload hands over in stages, so the previous and the new Nyxlets never run side by side (two sets of broker
+ * consumers, two log writers on the same files...). The new Nyxlets are first loaded without being initialized,
+ * a failure here leaves the previous snapshot in service untouched. New requests are then rejected (see
+ * enterRequest()) and the requests in flight are given time to finish on the previous Nyxlets. An empty snapshot
+ * is published before the previous Nyxlets are destroyed, so a destroyed Nyxlet is never reachable through the
+ * repository. The new Nyxlets are then initialized and published. Should that fail, fresh instances of the
+ * previous Nyxlets are created from the same classes and configuration and published instead.
+ */
 public class NyxletRepository {
 
     static Logger logger = Logger.getLogger(NyxletRepository.class);
@@ -63,240 +83,419 @@ public class NyxletRepository {
         return nyxletRepository.get();
     }
 
+    public Set<String> keys () {
+        return this.snapshot.get().nyxletRepositoryMap.keySet();
+    }
+
     /**
-     * No need to synchronize this...as it is called from within a synchronization mechanism
+     * Get all of the Nyxlets currently loaded. Unlike iterating keys() and calling getNyxlet(...) for each key,
+     * the Nyxlets returned here are guaranteed to be from the same load, even if a reload happens concurrently.
      *
-     * @param jarPath
-     * @throws Exception
+     * @return The Nyxlets currently loaded
      */
-    private void loadNyxletFile(final File nyxlet) throws Exception {
-        final String jarPath = nyxlet.getAbsolutePath();
-        final String nyxlet_file_name = Strings.nullToEmpty(nyxlet.getName()).trim();
-        final String implied_nyxlet_name;
-        try {
-            implied_nyxlet_name = nyxlet_file_name.substring(0, nyxlet_file_name.length() - 7);
-        } catch(IndexOutOfBoundsException ex) {
-            throw new Exception("Invalid nyxlet file name '"+jarPath+"'");
-        }
-        XMLGeneratedObject xmlo = null;
-        JarFile jarFile = null;
+    public Collection<Nyxlet> nyxlets () {
+        return this.snapshot.get().nyxletRepositoryMap.values();
+    }
+
+    public Nyxlet getNyxlet(Object key) {
+        return this.snapshot.get().nyxletRepositoryMap.get(key);
+    }
+
+    public Nyxlet getNyxletRRD (String RRDCategory, NyxletSession sessionDelegate) throws Exception {
+        final String eLabel = "NyxletRepository.getNyxletRRD: ";
         try {
-            jarFile = new JarFile(jarPath);
-            xmlo = new GenericXMLObject(this.getManifestXMLString(jarFile));
-            Element rootElement = xmlo.getRootElement();
-            if (rootElement == null) throw new XMLParserException("Root element is null");
-            NodeList nyxletList = rootElement.getElementsByTagName("nyxlet");
-            if (nyxletList.getLength() < 1) {
-                throw new Exception("\"nyxlet\" element is not defined in manifest!");
-            }
-            final Node nyxletXMLNode = nyxletList.item(0);
-            String name = XMLComparitor.getAttributeOrError(nyxletXMLNode, "name");
-            if( name == null ) {
-                throw new Exception("Invalid nyxlet_manifest.xml in '"+jarPath+"'");
-            }
-            if( !name.equals(implied_nyxlet_name) ) {
-                throw new Exception("In '"+jarPath+"' declared nyxlet name '"+name+"' does not match with nyxlet file name.");
-            }
-            Properties properties = Jar.attributesToProperties(Jar.getJarManifestMainAttributes(jarFile, JAR_MANIFEST));
-            jarFile.close();
-            jarFile = null;
-            this.addNyxlet(Nyxlet.valueOf(nyxletXMLNode, this.loadLibrary(jarPath), properties));
-        } finally {
-            if( xmlo != null ) { xmlo.cleanUp(); }
-            if( jarFile != null ) { jarFile.close(); }
+            // The RRD store of a snapshot is never modified once published, no need to lock for the search algorithm
+            return this.snapshot.get().RRDStore.getServiceModuleMatch(RRDCategory, sessionDelegate);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
         }
-    } // end of loadNyxletFile(...)
+    }
+
+    /**
+     * Mark the start of a request to the loaded Nyxlets. A reload waits for the requests that have been started
+     * to finish before it destroys the Nyxlets they may be using. A call returning true must be followed by a call
+     * to exitRequest() when the request is done.
+     *
+     * @return false if the Nyxlets are being reloaded, the request should then be rejected
+     */
+    public boolean enterRequest () {
+        // Count first, then check: a reload either sees this request or this request sees the reload
+        activeRequests.incrementAndGet();
+        if (acceptingRequests) return true;
+        activeRequests.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Mark the end of a request started with enterRequest()
+     */
+    public void exitRequest () {
+        activeRequests.decrementAndGet();
+    }
+
+    /**
+     * See documentation for reloadNyxletFiles(String[], boolean, boolean, long), waiting up to
+     * DEFAULT_DRAIN_TIMEOUT_MS for the requests in flight to finish.
+     */
+    public int reloadNyxletFiles (String[] nyxletDirectories, final boolean failOnError, final boolean isolatedClassLoader)
+        throws Exception
+    {
+        return reloadNyxletFiles(nyxletDirectories, failOnError, isolatedClassLoader, DEFAULT_DRAIN_TIMEOUT_MS);
+    }
 
     /**
-     * Load the library part of the Nyxlet file. Please note that the
-     * Class Loading scheme will be either Collective or Isolated based on the
-     * variable "globalClassLoader" not being null or being null...respectively.
+     * Load all of the Nyxlet files from the given directories, replacing the Nyxlets currently loaded. The
+     * previously loaded Nyxlets remain in service until the new ones have all been loaded. New requests are
+     * then rejected until the reload is done, and the previous Nyxlets are destroyed once the requests in
+     * flight have finished (or drainTimeoutInMS has passed) and before the new ones are initialized. If loading
+     * fails the previously loaded Nyxlets remain in service, if initializing the new ones fails the previous
+     * Nyxlets are started again.
      *
-     * XXX - No need to synchronize, called locally from synchronized method
+     * See documentation for loadNyxletFiles(...)
      *
-     * @param jarPath   Path to the jar file to load
-     * @return The Class Loader to use for the service module
-     * @throws Exception
+     * @param drainTimeoutInMS  The longest time to wait for the requests in flight to finish
      */
-    private ClassLoader loadLibrary (String jarPath) throws Exception {
-        File file = new File(jarPath);
-        if (!file.exists()) {
-            throw new Exception("File "+file.getName()+" does not exist.");
+    public synchronized int reloadNyxletFiles (String[] nyxletDirectories, final boolean failOnError, final boolean isolatedClassLoader,
+            long drainTimeoutInMS) throws Exception
+    {
+        Snapshot previousSnapshot = this.snapshot.get();
+        SnapshotBuilder snapshotBuilder = stageNyxletFiles(nyxletDirectories, failOnError, isolatedClassLoader);
+        acceptingRequests = false;
+        try {
+            awaitActiveRequests(drainTimeoutInMS);
+            // Hand over: the previous Nyxlets release what they hold (consumers, files...) before the new ones start,
+            // lookups find no Nyxlets at all in the meantime rather than destroyed ones
+            this.snapshot.set(emptySnapshot());
+            try { destroy(previousSnapshot); } catch (Exception ex) {}
+            try {
+                Snapshot loadedSnapshot = snapshotBuilder.build(failOnError);
+                this.snapshot.set(loadedSnapshot);
+                return loadedSnapshot.nyxletRepositoryMap.size();
+            } catch (Exception ex) {
+                logger.error("Reload failed, restarting the previously loaded Nyxlets: " + ex, ex);
+                this.snapshot.set(SnapshotBuilder.restore(previousSnapshot).build(false));
+                throw ex;
+            }
+        } finally {
+            acceptingRequests = true;
         }
-        URL[] URLArray = { new URL("file", null, jarPath) };
-        if (this.globalClassLoader == null) {
-            return new DeferredDelegationURLClassLoader(URLArray, this.getClass().getClassLoader());
+    }
+
+    private void awaitActiveRequests (long drainTimeoutInMS) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + drainTimeoutInMS;
+        while (activeRequests.get() > 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                logger.warn("Reloading with " + activeRequests.get() + " requests still in flight after " + drainTimeoutInMS + "ms");
+                return;
+            }
+            Thread.sleep(DRAIN_POLL_MS);
         }
-        this.globalClassLoader = new URLClassLoader(URLArray, this.globalClassLoader);
-        return this.globalClassLoader;
-    } // end of loadLibrary(...)
+    }
 
     /**
-     * No need to synchronize, called locally from a synchronized method
+     * Load all of the Nyxlets files from the given directories
      *
-     * @param nyxlet
+     * @param nyxletDirectories
+     * @param failOnError
+     * @param isolatedClassLoader
+     * @return number of loaded Nyxlet libraries
      * @throws Exception
      */
-    private void addNyxlet(final Nyxlet nyxlet) throws Exception {
-        this.nyxletRepositoryMap.put(nyxlet.getName(), nyxlet);
-        if (nyxlet.getRRDString() != null) {
-            this.RRDStore.addServiceModule(nyxlet);
-        }
-    } // end of addNyxlet(...)
+    public synchronized int loadNyxletFiles(final String[] nyxletDirectories,
+                                            final boolean failOnError,
+                                            final boolean isolatedClassLoader)
+        throws Exception
+    {
+        // Build the new snapshot off to the side...let GC take care of the previous copy when all clients are done with it
+        Snapshot loadedSnapshot = stageNyxletFiles(nyxletDirectories, failOnError, isolatedClassLoader).build(failOnError);
+        this.snapshot.set(loadedSnapshot);
+        return loadedSnapshot.nyxletRepositoryMap.size();
+    }
 
     /**
-     * No need to synchronize, called locally from a synchronized method
+     * Load the Nyxlets of the given directories without initializing them
      *
-     * @param jarFile
-     * @return the Nyxlet Manifest as a String
+     * @return The SnapshotBuilder holding the loaded Nyxlets
      * @throws Exception
      */
-    private String getManifestXMLString (JarFile jarFile) throws Exception {
-        final String eLabel = "NyxletRepository.getManifestXMLString: ";
-        InputStream jarInputStream = null;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            JarEntry jarEntry = (JarEntry)jarFile.getEntry(NYXLET_MANIFEST);
-            if (jarEntry == null) {
-                throw new Exception("Could not locate " + NYXLET_MANIFEST  + " in jar file");
+    private static SnapshotBuilder stageNyxletFiles (final String[] nyxletDirectories, final boolean failOnError, final boolean isolatedClassLoader)
+        throws Exception
+    {
+        SnapshotBuilder snapshotBuilder = new SnapshotBuilder(isolatedClassLoader);
+        File libDirectory;
+        File[] fileList;
+        for (String nyxletDirectory : nyxletDirectories) {
+            if (nyxletDirectory.startsWith("http")) {
+                logger.info("Skipping Nyxlet load of http URL (used to load properties only): " + nyxletDirectory);
+                continue;
+            }
+            libDirectory = new File(nyxletDirectory);
+            if (!libDirectory.exists()) {
+                throw new Exception("Directory " + nyxletDirectories + " does not exist!");
+            }
+            if (!libDirectory.isDirectory()) {
+                throw new Exception("Path " + nyxletDirectories + " is a file and not a directory!");
+            }
+            if( logger.isInfoEnabled() ) {
+                logger.info("Loading nyxlets from "+libDirectory.getAbsolutePath());
+            }
+            fileList = libDirectory.listFiles();
+            for (int i = 0; i < fileList.length; i++) {
+                try {
+                    if (fileList[i].getName().endsWith(NYXLET_SUFFIX)) {
+                        snapshotBuilder.loadNyxletFile(fileList[i]);
+                    }
+                } catch (Exception ex) {
+                    // Nothing has been initialized yet, so there is nothing to destroy
+                    if (failOnError) {
+                        throw ex;
+                    }
+                    logger.error(ex, ex);
+                }
             }
-            jarInputStream = jarFile.getInputStream(jarEntry);
-            return new String(ByteStreams.toByteArray(jarInputStream));
-        } catch (Exception e) {
-            throw new Exception(eLabel + e);
-        } finally {
-            try { jarInputStream.close(); } catch (Exception e) {};
-            try { baos.close(); } catch (Exception e) {};
         }
-
+        return snapshotBuilder;
     }
 
-    public synchronized Set<String> keys () {
-        return this.nyxletRepositoryMap.keySet();
+    public int size () {
+        return this.snapshot.get().nyxletRepositoryMap.size();
     }
 
-    public synchronized Nyxlet getNyxlet(Object key) {
-        return this.nyxletRepositoryMap.get(key);
+    /**
+     * Life cycle support
+     *
+     * @throws Exception
+     */
+    public synchronized void destroy () throws Exception {
+        destroy(this.snapshot.get());
     }
 
-    public Nyxlet getNyxletRRD (String RRDCategory, NyxletSession sessionDelegate) throws Exception {
-        final String eLabel = "NyxletRepository.getNyxletRRD: ";
-        try {
-            // Detecting a service module may be very expensive...we should not synchronize on
-            // this entire task...as it can lock up other service accesses...which would be quite bad.
-            // Let's lock up on getting the actual RRD mechanism (in case of reload)...then release the intrinsic lock for
-            // the search algorithm
-            RESTfulDispatchServiceDelegateStrategy RRDStorePointer = this.getRRDStore(); // This is calling a synchronized method!
-            // Get the service module from the RRD mechanism and return here. From this point on, this need not be synchronized.
-            return RRDStorePointer.getServiceModuleMatch(RRDCategory, sessionDelegate);
-        } catch (Exception e) {
-            throw new Exception(eLabel + e);
+    private static void destroy (Snapshot snapshot) throws Exception {
+        // Destroy them all, even if one fails
+        Exception failure = null;
+        for (Nyxlet nyxlet : snapshot.nyxletRepositoryMap.values()) {
+            try {
+                nyxlet.destroy();
+            } catch (Exception ex) {
+                logger.error(ex, ex);
+                if (failure == null) failure = ex;
+            }
         }
+        if (failure != null) throw failure;
     }
 
-    private synchronized RESTfulDispatchServiceDelegateStrategy getRRDStore () {
-        return this.RRDStore;
+    private static Snapshot emptySnapshot () {
+        return new Snapshot(new HashMap<String, Nyxlet>(), new RESTfulDispatchServiceDelegateStrategy(), null, new HashMap<String, NyxletDefinition>());
     }
 
+    /**
+     * An immutable, fully loaded state of the repository
+     */
+    private static final class Snapshot {
+        Snapshot (Map<String, Nyxlet> nyxletRepositoryMap, RESTfulDispatchServiceDelegateStrategy RRDStore, ClassLoader globalClassLoader,
+                Map<String, NyxletDefinition> nyxletDefinitionMap) {
+            this.nyxletRepositoryMap = Collections.unmodifiableMap(nyxletRepositoryMap);
+            this.RRDStore = RRDStore;
+            this.globalClassLoader = globalClassLoader;
+            this.nyxletDefinitionMap = Collections.unmodifiableMap(nyxletDefinitionMap);
+        }
 
-    /** See documentation for loadNyxletFiles(...) */
-    public synchronized int reloadNyxletFiles (String[] nyxletDirectories, final boolean failOnError, final boolean isolatedClassLoader)
-        throws Exception
-    {
-        this.destroy();
-        return this.loadNyxletFiles(nyxletDirectories, failOnError, isolatedClassLoader);
+        final Map<String, Nyxlet> nyxletRepositoryMap;
+        final RESTfulDispatchServiceDelegateStrategy RRDStore;
+        final ClassLoader globalClassLoader;
+        // What the Nyxlets were created from, to start them again should a reload fail
+        final Map<String, NyxletDefinition> nyxletDefinitionMap;
     }
 
     /**
-     * Load all of the Nyxlets files from the given directories
-     *
-     * @param nyxletDirectories
-     * @param failOnError
-     * @param isolatedClassLoader
-     * @return number of loaded Nyxlet libraries
-     * @throws Exception
+     * The manifest entry, class loader and build properties a Nyxlet is created from
      */
-    public synchronized int loadNyxletFiles(final String[] nyxletDirectories,
-                                            final boolean failOnError,
-                                            final boolean isolatedClassLoader)
-        throws Exception
-    {
-        try {
-            // let GC take care of the previous copy when all clients are done with it
-            this.nyxletRepositoryMap = new ConcurrentHashMap<String, Nyxlet>();
-            // Do the same with the RRDStore
-            this.RRDStore = new RESTfulDispatchServiceDelegateStrategy();
-            // Null this out here to start from scratch
-            this.globalClassLoader = null;
+    private static final class NyxletDefinition {
+        NyxletDefinition (Node nyxletXMLNode, ClassLoader classLoader, Properties properties) {
+            this.nyxletXMLNode = nyxletXMLNode;
+            this.classLoader = classLoader;
+            this.properties = properties;
+        }
+
+        Nyxlet newInstance () throws Exception {
+            return Nyxlet.valueOf(this.nyxletXMLNode, this.classLoader, this.properties, false);
+        }
+
+        final Node nyxletXMLNode;
+        final ClassLoader classLoader;
+        final Properties properties;
+    }
+
+    /**
+     * Accumulates the state of a load in progress. This is only ever used by the loading thread, and is never
+     * visible to lookups until build() publishes it as a Snapshot.
+     */
+    private static final class SnapshotBuilder {
+        SnapshotBuilder (boolean isolatedClassLoader) {
             // If this is  Collective class loading...initialize the global class loader to flag this state
             if (!isolatedClassLoader) {
-                this.globalClassLoader = this.getClass().getClassLoader();
+                this.globalClassLoader = NyxletRepository.class.getClassLoader();
             }
-            int loadedLibraryCount = 0;
-            File libDirectory;
-            File[] fileList;
-            for (String nyxletDirectory : nyxletDirectories) {
-                if (nyxletDirectory.startsWith("http")) {
-                    logger.info("Skipping Nyxlet load of http URL (used to load properties only): " + nyxletDirectory);
-                    continue;
-                }
-                libDirectory = new File(nyxletDirectory);
-                if (!libDirectory.exists()) {
-                    throw new Exception("Directory " + nyxletDirectories + " does not exist!");
+        }
+
+        private void loadNyxletFile(final File nyxlet) throws Exception {
+            final String jarPath = nyxlet.getAbsolutePath();
+            final String nyxlet_file_name = Strings.nullToEmpty(nyxlet.getName()).trim();
+            final String implied_nyxlet_name;
+            try {
+                implied_nyxlet_name = nyxlet_file_name.substring(0, nyxlet_file_name.length() - 7);
+            } catch(IndexOutOfBoundsException ex) {
+                throw new Exception("Invalid nyxlet file name '"+jarPath+"'");
+            }
+            XMLGeneratedObject xmlo = null;
+            JarFile jarFile = null;
+            try {
+                jarFile = new JarFile(jarPath);
+                xmlo = new GenericXMLObject(getManifestXMLString(jarFile));
+                Element rootElement = xmlo.getRootElement();
+                if (rootElement == null) throw new XMLParserException("Root element is null");
+                NodeList nyxletList = rootElement.getElementsByTagName("nyxlet");
+                if (nyxletList.getLength() < 1) {
+                    throw new Exception("\"nyxlet\" element is not defined in manifest!");
                 }
-                if (!libDirectory.isDirectory()) {
-                    throw new Exception("Path " + nyxletDirectories + " is a file and not a directory!");
+                final Node nyxletXMLNode = nyxletList.item(0);
+                String name = XMLComparitor.getAttributeOrError(nyxletXMLNode, "name");
+                if( name == null ) {
+                    throw new Exception("Invalid nyxlet_manifest.xml in '"+jarPath+"'");
                 }
-                if( logger.isInfoEnabled() ) {
-                    logger.info("Loading nyxlets from "+libDirectory.getAbsolutePath());
+                if( !name.equals(implied_nyxlet_name) ) {
+                    throw new Exception("In '"+jarPath+"' declared nyxlet name '"+name+"' does not match with nyxlet file name.");
                 }
-                fileList = libDirectory.listFiles();
-                for (int i = 0; i < fileList.length; i++) {
-                    try {
-                        if (fileList[i].getName().endsWith(NYXLET_SUFFIX)) {
-                            this.loadNyxletFile(fileList[i]);
-                            loadedLibraryCount++;
-                        }
-                    } catch (Exception ex) {
-                        if (failOnError) {
-                            throw ex;
+                Properties properties = Jar.attributesToProperties(Jar.getJarManifestMainAttributes(jarFile, JAR_MANIFEST));
+                jarFile.close();
+                jarFile = null;
+                this.addNyxlet(name, new NyxletDefinition(nyxletXMLNode, this.loadLibrary(jarPath), properties));
+            } finally {
+                if( xmlo != null ) { xmlo.cleanUp(); }
+                if( jarFile != null ) { jarFile.close(); }
+            }
+        } // end of loadNyxletFile(...)
+
+        /**
+         * Load the library part of the Nyxlet file. Please note that the
+         * Class Loading scheme will be either Collective or Isolated based on the
+         * variable "globalClassLoader" not being null or being null...respectively.
+         *
+         * @param jarPath   Path to the jar file to load
+         * @return The Class Loader to use for the service module
+         * @throws Exception
+         */
+        private ClassLoader loadLibrary (String jarPath) throws Exception {
+            File file = new File(jarPath);
+            if (!file.exists()) {
+                throw new Exception("File "+file.getName()+" does not exist.");
+            }
+            URL[] URLArray = { new URL("file", null, jarPath) };
+            if (this.globalClassLoader == null) {
+                return new DeferredDelegationURLClassLoader(URLArray, NyxletRepository.class.getClassLoader());
+            }
+            this.globalClassLoader = new URLClassLoader(URLArray, this.globalClassLoader);
+            return this.globalClassLoader;
+        } // end of loadLibrary(...)
+
+        /**
+         * Create (but do not initialize) the Nyxlet
+         */
+        private void addNyxlet(final String name, final NyxletDefinition nyxletDefinition) throws Exception {
+            this.stagedNyxletMap.put(name, nyxletDefinition.newInstance());
+            this.nyxletDefinitionMap.put(name, nyxletDefinition);
+        } // end of addNyxlet(...)
+
+        /**
+         * Initialize the loaded Nyxlets
+         *
+         * @param failOnError   Fail if a Nyxlet fails to initialize (destroying the ones already initialized),
+         *                      otherwise leave it out
+         * @return The Snapshot of the initialized Nyxlets
+         * @throws Exception
+         */
+        private Snapshot build (boolean failOnError) throws Exception {
+            Map<String, Nyxlet> nyxletRepositoryMap = new HashMap<String, Nyxlet>();
+            Map<String, NyxletDefinition> initializedDefinitionMap = new HashMap<String, NyxletDefinition>();
+            RESTfulDispatchServiceDelegateStrategy RRDStore = new RESTfulDispatchServiceDelegateStrategy();
+            for (Map.Entry<String, Nyxlet> entry : this.stagedNyxletMap.entrySet()) {
+                Nyxlet nyxlet = entry.getValue();
+                try {
+                    nyxlet.init();
+                    nyxletRepositoryMap.put(entry.getKey(), nyxlet);
+                    initializedDefinitionMap.put(entry.getKey(), this.nyxletDefinitionMap.get(entry.getKey()));
+                    if (nyxlet.getRRDString() != null) {
+                        RRDStore.addServiceModule(nyxlet);
+                    }
+                } catch (Exception ex) {
+                    // Try and destroy any resources created, fail silently
+                    try { nyxlet.destroy(); } catch (Exception e) {}
+                    if (failOnError) {
+                        // Nothing has been published, so nothing is "partly" working
+                        for (Nyxlet initialized : nyxletRepositoryMap.values()) {
+                            try { initialized.destroy(); } catch (Exception e) {}
                         }
-                        logger.error(ex, ex);
+                        throw new Exception("Failed to initialize Nyxlet " + entry.getKey() + ": " + ex, ex);
                     }
+                    logger.error(ex, ex);
                 }
             }
-            return loadedLibraryCount;
-        } catch (Exception ex) {
-            // Destroy any resources already created, fail silently
-            try { destroy(); } catch (Exception e) {}
-            // Clear out the repository so nothing is "partly" working
-            this.nyxletRepositoryMap.clear();
-            // Do the same with the RRDStore
-            this.RRDStore.clear();
-            throw ex;
+            return new Snapshot(nyxletRepositoryMap, RRDStore, this.globalClassLoader, initializedDefinitionMap);
+        }
+
+        /**
+         * @param snapshot  A Snapshot
+         * @return A SnapshotBuilder holding new (not initialized) instances of the Nyxlets of the Snapshot
+         */
+        private static SnapshotBuilder restore (Snapshot snapshot) {
+            SnapshotBuilder snapshotBuilder = new SnapshotBuilder(true);
+            snapshotBuilder.globalClassLoader = snapshot.globalClassLoader;
+            for (Map.Entry<String, NyxletDefinition> entry : snapshot.nyxletDefinitionMap.entrySet()) {
+                try {
+                    snapshotBuilder.addNyxlet(entry.getKey(), entry.getValue());
+                } catch (Exception ex) {
+                    logger.error(ex, ex);
+                }
+            }
+            return snapshotBuilder;
         }
-    }
 
-    public synchronized int size () {
-        return this.nyxletRepositoryMap.size();
+        private final Map<String, Nyxlet> stagedNyxletMap               = new LinkedHashMap<String, Nyxlet>();
+        private final Map<String, NyxletDefinition> nyxletDefinitionMap = new HashMap<String, NyxletDefinition>();
+        private ClassLoader globalClassLoader                           = null;
     }
 
     /**
-     * Life cycle support
-     *
+     * @param jarFile
+     * @return the Nyxlet Manifest as a String
      * @throws Exception
      */
-    public synchronized void destroy () throws Exception {
-        final NyxletRepository ndr = NyxletRepository.getStaticInstance();
-        for (Object key : ndr.keys()) {
-            ndr.getNyxlet(key).destroy();
+    private static String getManifestXMLString (JarFile jarFile) throws Exception {
+        final String eLabel = "NyxletRepository.getManifestXMLString: ";
+        InputStream jarInputStream = null;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            JarEntry jarEntry = (JarEntry)jarFile.getEntry(NYXLET_MANIFEST);
+            if (jarEntry == null) {
+                throw new Exception("Could not locate " + NYXLET_MANIFEST  + " in jar file");
+            }
+            jarInputStream = jarFile.getInputStream(jarEntry);
+            return new String(ByteStreams.toByteArray(jarInputStream));
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        } finally {
+            try { jarInputStream.close(); } catch (Exception e) {};
+            try { baos.close(); } catch (Exception e) {};
         }
+
     }
 
     private static AtomicReference<NyxletRepository> nyxletRepository     = new AtomicReference<NyxletRepository>(null);
-    private ConcurrentHashMap<String, Nyxlet> nyxletRepositoryMap         = new ConcurrentHashMap<String, Nyxlet>();
-    private RESTfulDispatchServiceDelegateStrategy RRDStore               = new RESTfulDispatchServiceDelegateStrategy();
-    private ClassLoader globalClassLoader                                 = null;
+    private final AtomicReference<Snapshot> snapshot                      = new AtomicReference<Snapshot>(emptySnapshot());
+    private final AtomicInteger activeRequests                            = new AtomicInteger();
+    private volatile boolean acceptingRequests                            = true;
+    public static final long DEFAULT_DRAIN_TIMEOUT_MS = 30000;
+    private static final long DRAIN_POLL_MS         = 10;
     private static final String NYXLET_MANIFEST = "nyxlet_manifest.xml";
     private static final String JAR_MANIFEST    = "META-INF/MANIFEST.MF";
     private static final String NYXLET_SUFFIX   = ".nyxlet";
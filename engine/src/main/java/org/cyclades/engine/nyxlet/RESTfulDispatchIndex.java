@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.util.MapHelper;
+
+/**
+ * The compiled RRD (RESTful Request Dispatch) index of a single RRD category. Nyxlets declaring an RRD match
+ * template are compiled into a URI part trie, so a request resolves its target Nyxlet and extracts its RRD URI
+ * parameters from a single split of the request path. Nyxlets without a template are still matched by calling
+ * Nyxlet.isRRDMatch(...), and both kinds keep the priority order of the category.
+ *
+ * Instances are immutable once constructed.
+ */
+class RESTfulDispatchIndex {
+
+    RESTfulDispatchIndex (Iterable<RESTfulDispatchServiceModuleWrapper> prioritizedModules) throws Exception {
+        int order = 0;
+        List<IndexEntry> fallbackList = new ArrayList<IndexEntry>();
+        for (RESTfulDispatchServiceModuleWrapper wrapper : prioritizedModules) {
+            String template = wrapper.getServiceModule().getRRDMatchTemplate();
+            if (template == null) {
+                fallbackList.add(new IndexEntry(wrapper.getServiceModule(), order++, null));
+            } else {
+                addTemplate(template, wrapper.getServiceModule(), order++);
+            }
+        }
+        fallbackEntries = fallbackList.toArray(new IndexEntry[fallbackList.size()]);
+    }
+
+    /**
+     * Get the highest priority Nyxlet of this category matching the request
+     *
+     * @param sessionDelegate   The session delegate wrapping the request data structures
+     * @return the matching Nyxlet, null if there is no match
+     * @throws Exception
+     */
+    Nyxlet getServiceModuleMatch (NyxletSession sessionDelegate) throws Exception {
+        IndexEntry templateMatch = null;
+        String[] URIParts = null;
+        if (hasTemplates) {
+            String path = sessionDelegate.getRequestPathInfo();
+            URIParts = (path == null) ? new String[0] : path.split("[/]");
+            templateMatch = root.match(URIParts, 1, sessionDelegate.getRequestMethod(), null);
+        }
+        // Nyxlets relying on isRRDMatch(...) that have priority over the template match still need to be asked
+        for (IndexEntry entry : fallbackEntries) {
+            if (templateMatch != null && entry.order > templateMatch.order) break;
+            if (entry.nyxlet.isRRDMatch(sessionDelegate)) return entry.nyxlet;
+        }
+        if (templateMatch == null) return null;
+        String[] keys = templateMatch.nyxlet.getRRDURIToParameterKeyMapping();
+        sessionDelegate.setRRDURIParameterMap(templateMatch.nyxlet, (keys == null) ? new HashMap<String, List<String>>() :
+            MapHelper.parameterMapFromArray(URIParts, 1, keys));
+        return templateMatch.nyxlet;
+    }
+
+    private void addTemplate (String template, Nyxlet nyxlet, int order) throws Exception {
+        String[] fields = template.trim().split("\\s+");
+        if (fields.length > 2) throw new Exception("Invalid RRD match template, should be \"[METHOD,...] [uri_template]\": " + template);
+        Set<String> methods = null;
+        if (fields.length == 2) {
+            methods = new HashSet<String>();
+            for (String method : fields[0].split("[,]")) {
+                if (!method.trim().isEmpty()) methods.add(method.trim().toUpperCase());
+            }
+        }
+        String[] templateParts = fields[fields.length - 1].split("[/]");
+        IndexNode node = root;
+        for (int i = 1; i < templateParts.length; i++) {
+            if (templateParts[i].equals(MATCH_REMAINING)) {
+                if (i != templateParts.length - 1) throw new Exception("\"" + MATCH_REMAINING + "\" must be the last part of a RRD match template: " + template);
+                node.remainingEntries.add(new IndexEntry(nyxlet, order, methods));
+                hasTemplates = true;
+                return;
+            }
+            node = node.child(templateParts[i]);
+        }
+        node.entries.add(new IndexEntry(nyxlet, order, methods));
+        hasTemplates = true;
+    }
+
+    private static class IndexNode {
+        IndexNode child (String URIPart) {
+            if (URIPart.equals(MATCH_ANY)) {
+                if (wildcardChild == null) wildcardChild = new IndexNode();
+                return wildcardChild;
+            }
+            IndexNode node = literalChildren.get(URIPart);
+            if (node == null) {
+                node = new IndexNode();
+                literalChildren.put(URIPart, node);
+            }
+            return node;
+        }
+
+        /**
+         * Find the highest priority (lowest order) entry matching the URI parts starting at index
+         */
+        IndexEntry match (String[] URIParts, int index, String method, IndexEntry best) {
+            best = IndexEntry.best(remainingEntries, method, best);
+            if (index >= URIParts.length) return IndexEntry.best(entries, method, best);
+            IndexNode node = literalChildren.get(URIParts[index]);
+            if (node != null) best = node.match(URIParts, index + 1, method, best);
+            if (wildcardChild != null) best = wildcardChild.match(URIParts, index + 1, method, best);
+            return best;
+        }
+
+        private final Map<String, IndexNode> literalChildren = new HashMap<String, IndexNode>();
+        private IndexNode wildcardChild = null;
+        private final List<IndexEntry> entries = new ArrayList<IndexEntry>();
+        private final List<IndexEntry> remainingEntries = new ArrayList<IndexEntry>();
+    }
+
+    private static class IndexEntry {
+        IndexEntry (Nyxlet nyxlet, int order, Set<String> methods) {
+            this.nyxlet = nyxlet;
+            this.order = order;
+            this.methods = methods;
+        }
+
+        boolean matchesMethod (String method) {
+            return (methods == null || (method != null && methods.contains(method.toUpperCase())));
+        }
+
+        static IndexEntry best (List<IndexEntry> candidates, String method, IndexEntry best) {
+            for (IndexEntry candidate : candidates) {
+                if ((best == null || candidate.order < best.order) && candidate.matchesMethod(method)) best = candidate;
+            }
+            return best;
+        }
+
+        final Nyxlet nyxlet;
+        final int order;
+        final Set<String> methods;
+    }
+
+    private final IndexNode root = new IndexNode();
+    private final IndexEntry[] fallbackEntries;
+    private boolean hasTemplates = false;
+    private static final String MATCH_ANY       = "*";
+    private static final String MATCH_REMAINING = "**";
+}
@@ -42,19 +42,16 @@ public class RESTfulDispatchServiceDelegateStrategy {
         if (list == null) list = new BinarySortedListFacade<RESTfulDispatchServiceModuleWrapper>();
         list.add(serviceModuleWrapper);
         serviceModuleCategoryMap.put(serviceModuleWrapper.getRRDCategory(), list);
+        // Recompile the category, this only happens at load time
+        serviceModuleCategoryIndexMap.put(serviceModuleWrapper.getRRDCategory(), new RESTfulDispatchIndex(list));
     }
 
     public Nyxlet getServiceModuleMatch (String RRDCategory, NyxletSession sessionDelegate)  throws Exception {
         final String eLabel = "RESTfulDispatchServiceModuleStrategy.getServiceModuleMatch: ";
         try {
-            BinarySortedListFacade<RESTfulDispatchServiceModuleWrapper> list = serviceModuleCategoryMap.get(RRDCategory);
-            if (list == null) throw new Exception("No match for RRD Category: " + RRDCategory);
-            for (RESTfulDispatchServiceModuleWrapper wrapper : list) {
-                if (wrapper.getServiceModule().isRRDMatch(sessionDelegate)) {
-                    return wrapper.getServiceModule();
-                }
-            }
-            return null;
+            RESTfulDispatchIndex index = serviceModuleCategoryIndexMap.get(RRDCategory);
+            if (index == null) throw new Exception("No match for RRD Category: " + RRDCategory);
+            return index.getServiceModuleMatch(sessionDelegate);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -62,42 +59,9 @@ public class RESTfulDispatchServiceDelegateStrategy {
 
     public void clear () {
         serviceModuleCategoryMap.clear();
+        serviceModuleCategoryIndexMap.clear();
     }
 
     private Map<String, BinarySortedListFacade<RESTfulDispatchServiceModuleWrapper>> serviceModuleCategoryMap = new HashMap<String, BinarySortedListFacade<RESTfulDispatchServiceModuleWrapper>>();
-}
-
-class RESTfulDispatchServiceModuleWrapper implements Comparable<RESTfulDispatchServiceModuleWrapper> {
-    public RESTfulDispatchServiceModuleWrapper (Nyxlet serviceModule)  throws Exception {
-        this.serviceModule = serviceModule;
-        String[] fields = serviceModule.getRRDString().split("[|]");
-        if (fields.length != 3) throw new Exception("Invalid RRD format, should be \"[group]|[uri_part_mapping]|[priority]\"");
-        RRDCategory =  fields[0].trim();
-        priority = Integer.parseInt(fields[2]);
-    }
-
-    @Override
-        public int compareTo(RESTfulDispatchServiceModuleWrapper o) {
-        if (getPriority() > ((RESTfulDispatchServiceModuleWrapper)o).getPriority()) {
-            return 1;
-        } else if (getPriority() < ((RESTfulDispatchServiceModuleWrapper)o).getPriority()) {
-            return -1;
-        } else {
-            return 0;
-        }
-    }
-
-    public Nyxlet getServiceModule () {
-        return serviceModule;
-    }
-    public String getRRDCategory () {
-        return RRDCategory;
-    }
-    public int getPriority () {
-        return priority;
-    }
-
-    private Nyxlet serviceModule;
-    private String RRDCategory;
-    private int priority = 100;
+    private Map<String, RESTfulDispatchIndex> serviceModuleCategoryIndexMap = new HashMap<String, RESTfulDispatchIndex>();
 }
@@ -28,7 +28,9 @@
 package org.cyclades.engine.nyxlet.templates.stroma;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
@@ -36,12 +38,16 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.Map.Entry;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
 import org.cyclades.engine.ResponseCodeEnum;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.exception.CycladesException;
+import org.cyclades.engine.logging.AsyncLogWriter;
 import org.cyclades.engine.logging.LogWriter;
 import org.cyclades.engine.logging.LogWriterInterface;
+import org.cyclades.engine.logging.MappedLogWriter;
 import org.cyclades.engine.logging.LoggingEnum;
 import org.cyclades.engine.logging.LoggingDelegate;
 import org.cyclades.engine.nyxlet.templates.stroma.actionhandler.ActionHandler;
@@ -103,7 +109,12 @@ public abstract class STROMANyxlet extends Nyxlet {
             handler = getActionHandler(action);
             if (handler == null) throw new Exception("Unknown action specified: " + action);
             if (handler.getFieldValidators().size() > 0) processFieldValidators(handler.getFieldValidators().validate(nyxletSession, mergedBaseParameters));
-            handler.handle(nyxletSession, mergedBaseParameters, new STROMAResponseWriter(getName(), nyxletSession, this));
+            Long cacheTTL = responseCacheTTLs.get(action);
+            if (cacheTTL != null && responseCacheable(nyxletSession, handler)) {
+                handleCached(nyxletSession, mergedBaseParameters, handler, action, cacheTTL);
+            } else {
+                handler.handle(nyxletSession, mergedBaseParameters, new STROMAResponseWriter(getName(), nyxletSession, this));
+            }
         } catch (Exception e) {
             logError(eLabel + e);
             try {
@@ -126,6 +137,83 @@ public abstract class STROMANyxlet extends Nyxlet {
         }
     } // end of process(...)
 
+    /**
+     * Requests whose response depends on more than the action and parameters are not cached, nor are
+     * requests that have side effects on the orchestration (chaining forward). This includes requests
+     * carrying a data object (the key only covers its parameters) and requests carrying caller credentials:
+     * ActionHandlers authorize inside handle, which a cache hit would skip.
+     */
+    private boolean responseCacheable (NyxletSession nyxletSession, ActionHandler handler) throws Exception {
+        return !handler.ignoreSTROMAParameters() && !nyxletSession.chainsForward() && nyxletSession.getPort() == null &&
+                !nyxletSession.durationRequested() && !nyxletSession.orchestrationFaultRaised() &&
+                nyxletSession.getDataObject() == null && !carriesCredentials(nyxletSession);
+    }
+
+    private boolean carriesCredentials (NyxletSession nyxletSession) {
+        if (nyxletSession.getAuthDelegateObject() != null) return true;
+        HttpServletRequest request = nyxletSession.getHttpServletRequest();
+        if (request == null) return false;
+        Cookie[] cookies = request.getCookies();
+        return request.getHeader("Authorization") != null || request.getUserPrincipal() != null ||
+                (cookies != null && cookies.length > 0);
+    }
+
+    private void handleCached (NyxletSession nyxletSession, Map<String, List<String>> mergedBaseParameters, ActionHandler handler,
+            String action, long cacheTTL) throws Exception {
+        final String eLabel = "STROMANyxlet.handleCached: ";
+        try {
+            String key = STROMAResponseCache.createKey(getName(), action, nyxletSession.getDataContentType() + "|" +
+                    nyxletSession.rawResponseRequested() + "|" + nyxletSession.serviceAgentRequested(), mergedBaseParameters);
+            byte[] response = responseCache.get(key);
+            if (response != null) {
+                nyxletSession.getOutputStream().write(response);
+                return;
+            }
+            OutputStream liveOutputStream = nyxletSession.getOutputStream();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                nyxletSession.setOutputStream(baos);
+                handler.handle(nyxletSession, mergedBaseParameters, new STROMAResponseWriter(getName(), nyxletSession, this));
+            } finally {
+                nyxletSession.setOutputStream(liveOutputStream);
+            }
+            response = baos.toByteArray();
+            liveOutputStream.write(response);
+            // Only successful responses are cached
+            if (!nyxletSession.orchestrationFaultRaised()) responseCache.put(key, response, cacheTTL);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    private void loadResponseCache () throws Exception {
+        final String eLabel = "STROMANyxlet.loadResponseCache: ";
+        try {
+            String ttl;
+            long cacheTTL;
+            for (Map.Entry<String, Object> entry : actionHandlers.entrySet()) {
+                ttl = this.externalProperties.getProperty("ResponseCache." + entry.getKey() + ".ttl");
+                cacheTTL = (ttl != null) ? Long.parseLong(ttl.trim()) : ((ActionHandler)entry.getValue()).getResponseCacheTTL();
+                if (cacheTTL > 0) responseCacheTTLs.put(entry.getKey(), cacheTTL);
+            }
+            if (responseCacheTTLs.isEmpty()) return;
+            responseCache = new STROMAResponseCache(
+                    Integer.parseInt(this.externalProperties.getProperty("ResponseCache.maxEntries", String.valueOf(STROMAResponseCache.DEFAULT_MAX_ENTRIES))),
+                    Long.parseLong(this.externalProperties.getProperty("ResponseCache.maxBytes", String.valueOf(STROMAResponseCache.DEFAULT_MAX_BYTES))),
+                    Integer.parseInt(this.externalProperties.getProperty("ResponseCache.maxEntryBytes", String.valueOf(STROMAResponseCache.DEFAULT_MAX_ENTRY_BYTES))));
+            logInfo(eLabel + "Response cache enabled for actions: " + responseCacheTTLs.keySet());
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * @return The response cache of this Nyxlet, null if no action is cacheable
+     */
+    public STROMAResponseCache getResponseCache () {
+        return responseCache;
+    }
+
     private ActionHandler getActionHandler (String actionHandlerString) {
         if (actionHandlerString == null) return null;
         Object handler = this.actionHandlers.get(actionHandlerString);
@@ -229,14 +317,30 @@ public abstract class STROMANyxlet extends Nyxlet {
             Enumeration keySet = props.keys();
             String writerName;
             String[] writerFields;
-            LogWriter writer;
+            LogWriterInterface writer;
+            String writerType;
             while (keySet.hasMoreElements()) {
                 writerName = (String)keySet.nextElement();
                 writerFields = ((String)props.get(writerName)).split("\\|");
-                if (writerFields.length != 3) {
+                if (writerFields.length != 3 && writerFields.length != 4) {
                     throw new Exception("Invalid LogWriter entry, parse error: " + writerName);
                 }
-                writer = new LogWriter(getEngineContext().getCanonicalEngineDirectoryPath(writerFields[0]), writerFields[1], writerFields[2]);
+                // Optional fourth field: the writer type, "sync" (default), "async" or "mapped"
+                writerType = (writerFields.length == 4) ? writerFields[3].trim() : LOG_WRITER_TYPE_SYNC;
+                if (writerType.equalsIgnoreCase(LOG_WRITER_TYPE_SYNC)) {
+                    writer = new LogWriter(getEngineContext().getCanonicalEngineDirectoryPath(writerFields[0]), writerFields[1], writerFields[2]);
+                } else if (writerType.equalsIgnoreCase(LOG_WRITER_TYPE_ASYNC)) {
+                    String prefix = "LogWriter." + writerName + ".";
+                    writer = new AsyncLogWriter(getEngineContext().getCanonicalEngineDirectoryPath(writerFields[0]), writerFields[1], writerFields[2],
+                            Integer.parseInt(this.externalProperties.getProperty(prefix + "queueCapacity", String.valueOf(AsyncLogWriter.DEFAULT_QUEUE_CAPACITY))),
+                            Integer.parseInt(this.externalProperties.getProperty(prefix + "flushBytes", String.valueOf(AsyncLogWriter.DEFAULT_FLUSH_BYTES))),
+                            Long.parseLong(this.externalProperties.getProperty(prefix + "flushIntervalMillis", String.valueOf(AsyncLogWriter.DEFAULT_FLUSH_INTERVAL_MILLIS))));
+                } else if (writerType.equalsIgnoreCase(LOG_WRITER_TYPE_MAPPED)) {
+                    writer = new MappedLogWriter(getEngineContext().getCanonicalEngineDirectoryPath(writerFields[0]), writerFields[1], writerFields[2],
+                            Integer.parseInt(this.externalProperties.getProperty("LogWriter." + writerName + ".segmentSize", String.valueOf(MappedLogWriter.DEFAULT_SEGMENT_SIZE))));
+                } else {
+                    throw new Exception("Invalid LogWriter entry, unknown writer type: " + writerName + " " + writerType);
+                }
                 this.logWriterMap.put(writerName, writer);
             }
         } catch (Exception e) {
@@ -362,6 +466,9 @@ public abstract class STROMANyxlet extends Nyxlet {
             } else {
                 this.loadActionHandlers(aValue);
             }
+
+            // Response cache, only if there are cacheable actions
+            this.loadResponseCache();
         } catch (Exception ex) {
             logError(eLabel + ex);
             throw new CycladesException(ex.getMessage(), ex);
@@ -370,6 +477,7 @@ public abstract class STROMANyxlet extends Nyxlet {
 
     @Override
     public void destroy () throws CycladesException {
+        if (responseCache != null) responseCache.invalidate();
         try {
             this.destroyActionHandlers();
         } catch (Exception ex) {
@@ -521,10 +629,15 @@ public abstract class STROMANyxlet extends Nyxlet {
     private Map<String, LogWriterInterface> logWriterMap = new HashMap<String, LogWriterInterface>();
     private Map<String, LoggingDelegate> loggingDelegateMap = new HashMap<String, LoggingDelegate>();
     private XProperties externalProperties = new XProperties();
+    private Map<String, Long> responseCacheTTLs = new HashMap<String, Long>();
+    private STROMAResponseCache responseCache = null;
     public static final String ACTION_HANDLERS          = "actionHandlers";
     public static final String LOG_WRITERS              = "logWriters";
     public static final String LOGGING_DELEGATES        = "loggingDelegates";
     public static final String EXTERNAL_PROPERTIES      = "externalProperties";
     public static final String DEFAULT_LOGGING_DELEGATE = "general";
     public static final String SUPPLEMENTAL_PROPERTIES  = "supplementalProperties";
+    public static final String LOG_WRITER_TYPE_SYNC     = "sync";
+    public static final String LOG_WRITER_TYPE_ASYNC    = "async";
+    public static final String LOG_WRITER_TYPE_MAPPED   = "mapped";
 }
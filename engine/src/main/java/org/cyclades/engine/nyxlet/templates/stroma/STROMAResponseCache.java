@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.stroma;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A bounded cache of fully rendered STROMA response envelopes, keyed by service, action and request parameters.
+ * Entries expire after their TTL and the least recently used entries are evicted once either the entry
+ * count or the total byte size exceeds its limit. Instances are thread safe.
+ */
+public class STROMAResponseCache {
+
+    public STROMAResponseCache (int maxEntries, long maxBytes, int maxEntryBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    /**
+     * Build a cache key. The parameters are sorted so that the order in which they were
+     * received does not matter.
+     *
+     * @param serviceName   The name of the service
+     * @param action        The action requested
+     * @param variant       Anything else that changes the rendered response (content type, raw etc...)
+     * @param parameters    The merged base parameters of the request
+     * @return The cache key
+     */
+    public static String createKey (String serviceName, String action, String variant, Map<String, List<String>> parameters) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(serviceName).append(KEY_SEPARATOR).append(action).append(KEY_SEPARATOR).append(variant);
+        if (parameters != null) {
+            for (Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>>(parameters).entrySet()) {
+                sb.append(KEY_SEPARATOR).append(entry.getKey()).append('=');
+                if (entry.getValue() == null) continue;
+                for (String value : entry.getValue()) {
+                    // Length prefix, so values containing separators can not collide
+                    sb.append(value.length()).append(':').append(value);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Get the rendered response for this key
+     *
+     * @param key The cache key
+     * @return The response bytes, or null if not present or expired
+     */
+    public synchronized byte[] get (String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (entry.expires <= System.currentTimeMillis()) {
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.data;
+    }
+
+    /**
+     * Add a rendered response. Responses larger than the maximum entry size are not cached.
+     *
+     * @param key           The cache key
+     * @param data          The response bytes, must not be modified afterwards
+     * @param ttlMillis     Time to live in milliseconds
+     * @return true if cached
+     */
+    public synchronized boolean put (String key, byte[] data, long ttlMillis) {
+        if (ttlMillis <= 0 || data.length > maxEntryBytes || data.length > maxBytes) return false;
+        remove(key);
+        entries.put(key, new Entry(data, System.currentTimeMillis() + ttlMillis));
+        bytes += data.length;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().getValue().data.length;
+            iterator.remove();
+            evictions++;
+        }
+        return true;
+    }
+
+    /**
+     * Remove all entries, typically when the Nyxlet is reloaded or destroyed
+     */
+    public synchronized void invalidate () {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void remove (String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) bytes -= entry.data.length;
+    }
+
+    public synchronized int size () {
+        return entries.size();
+    }
+
+    public synchronized long getBytes () {
+        return bytes;
+    }
+
+    public synchronized long getHits () {
+        return hits;
+    }
+
+    public synchronized long getMisses () {
+        return misses;
+    }
+
+    public synchronized long getEvictions () {
+        return evictions;
+    }
+
+    public synchronized long getExpirations () {
+        return expirations;
+    }
+
+    private static class Entry {
+        Entry (byte[] data, long expires) {
+            this.data = data;
+            this.expires = expires;
+        }
+        final byte[] data;
+        final long expires;
+    }
+
+    // Access ordered, the eldest entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private final int maxEntryBytes;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private static final char KEY_SEPARATOR = '|';
+    public static final int DEFAULT_MAX_ENTRIES         = 1024;
+    public static final long DEFAULT_MAX_BYTES          = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRY_BYTES     = 256 * 1024;
+}
@@ -123,6 +123,22 @@ public abstract class ActionHandler {
         return false;
     }
 
+    /**
+     * Subclasses may override this method to declare that the responses of this ActionHandler can be
+     * cached by the parent Nyxlet for the number of milliseconds returned. The response is cached by service, action
+     * and request parameters, so only ActionHandlers whose responses depend on nothing else (pure reads)
+     * should do this. A cached response is served without calling handle, so any authorization done there is
+     * skipped: requests carrying a data object or caller credentials (an auth delegate object, an Authorization
+     * header, a user principal or cookies) are therefore never cached. Credentials passed as request parameters
+     * are part of the key, a response cached for them is served to callers with the same parameters until it
+     * expires. This can also be set, or overridden, by the external property "ResponseCache.[action].ttl".
+     *
+     * @return The time to live of a cached response in milliseconds, 0 (default) to disable caching
+     */
+    public long getResponseCacheTTL () {
+        return 0;
+    }
+
     public STROMANyxlet getParentNyxlet () {
         return parentNyxlet;
     }
@@ -28,6 +28,7 @@
 package org.cyclades.engine.nyxlet.templates.stroma.actionhandler;
 
 import org.cyclades.engine.nyxlet.templates.stroma.STROMANyxlet;
+import org.cyclades.engine.stroma.ChainingPort;
 import org.cyclades.engine.stroma.STROMAResponse;
 import org.cyclades.engine.stroma.STROMAResponseWriter;
 import org.cyclades.engine.NyxletSession;
@@ -95,15 +96,31 @@ public abstract class ChainableActionHandler extends ActionHandler {
      */
     public abstract boolean isSTROMAResponseCompatible (STROMAResponse stromaResponse) throws Exception;
 
+    /**
+     * Method called with the output of the previous step of the chain (see event behavior in getMapChannelKeys comments). The
+     * default implementation parses the port data into a STROMAResponse and calls handleSTROMAResponse. Override this to work on
+     * the raw port data instead (ChainingPort.getInputStream, ChainingPort.getByteBuffer), in which case it is never parsed
+     * unless ChainingPort.getSTROMAResponse is called.
+     *
+     * @param sessionDelegate
+     * @param baseParameters
+     * @param stromaResponseWriter
+     * @param port The port data, may be null if there is none
+     * @throws Exception
+     */
+    public void handlePort (NyxletSession sessionDelegate, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter, ChainingPort port) throws Exception {
+        STROMAResponse stromaResponse = (port == null) ? null : port.getSTROMAResponse(sessionDelegate.getMetaTypeEnum());
+        stromaResponse = (stromaResponse == null) ? null : ((isSTROMAResponseCompatible(stromaResponse)) ? stromaResponse : null);
+        handleSTROMAResponse(sessionDelegate, baseParameters, stromaResponseWriter, stromaResponse);
+    }
+
     public void handle (NyxletSession nyxletSession, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter) throws Exception {
         final String eLabel = "ChainableActionHandler.handle: ";
         try {
             if (containsMapChannelKeys(nyxletSession, getMapChannelKeyTargets(nyxletSession))) {
                 handleMapChannel(nyxletSession, baseParameters, stromaResponseWriter);
             } else {
-                STROMAResponse stromaResponse = STROMAResponse.fromBytes(nyxletSession.getMetaTypeEnum(), nyxletSession.getPortData());
-                stromaResponse = (stromaResponse == null) ? null : ((isSTROMAResponseCompatible(stromaResponse)) ? stromaResponse : null);
-                handleSTROMAResponse(nyxletSession, baseParameters, stromaResponseWriter, stromaResponse);
+                handlePort(nyxletSession, baseParameters, stromaResponseWriter, nyxletSession.getPort());
             }
         } catch (Exception e) {
             handleException(nyxletSession, stromaResponseWriter, eLabel, e);
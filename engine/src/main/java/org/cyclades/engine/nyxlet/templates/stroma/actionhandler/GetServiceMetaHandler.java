@@ -33,6 +33,7 @@ import javax.xml.stream.XMLStreamWriter;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.nyxlet.templates.stroma.STROMANyxlet;
+import org.cyclades.engine.nyxlet.templates.stroma.STROMAResponseCache;
 import org.cyclades.engine.stroma.STROMAResponseWriter;
 
 public class GetServiceMetaHandler extends ActionHandler {
@@ -47,8 +48,11 @@ public class GetServiceMetaHandler extends ActionHandler {
         try {
             stromaResponseWriter.addResponseParameter(Nyxlet.SERVICE_AGENT, getParentNyxlet().getServiceAgentAttribute());
             Map<Object, Object> buildProperties = getParentNyxlet().getBuildProperties();
-            if (buildProperties != null && (!baseParameters.containsKey(BUILD_INFO) || parameterAsBoolean(BUILD_INFO, baseParameters, false))) {
-                XMLStreamWriter streamWriter = stromaResponseWriter.getXMLStreamWriter();
+            boolean writeBuildInfo = (buildProperties != null && (!baseParameters.containsKey(BUILD_INFO) || parameterAsBoolean(BUILD_INFO, baseParameters, false)));
+            STROMAResponseCache responseCache = getParentNyxlet().getResponseCache();
+            if (!writeBuildInfo && responseCache == null) return;
+            XMLStreamWriter streamWriter = stromaResponseWriter.getXMLStreamWriter();
+            if (writeBuildInfo) {
                 streamWriter.writeStartElement(BUILD_INFO);
                 for (Map.Entry<Object, Object> mapEntry : buildProperties.entrySet()) {
                     streamWriter.writeStartElement("parameter");
@@ -58,6 +62,16 @@ public class GetServiceMetaHandler extends ActionHandler {
                 }
                 streamWriter.writeEndElement();
             }
+            if (responseCache != null) {
+                streamWriter.writeStartElement(RESPONSE_CACHE);
+                streamWriter.writeAttribute("entries", String.valueOf(responseCache.size()));
+                streamWriter.writeAttribute("bytes", String.valueOf(responseCache.getBytes()));
+                streamWriter.writeAttribute("hits", String.valueOf(responseCache.getHits()));
+                streamWriter.writeAttribute("misses", String.valueOf(responseCache.getMisses()));
+                streamWriter.writeAttribute("evictions", String.valueOf(responseCache.getEvictions()));
+                streamWriter.writeAttribute("expirations", String.valueOf(responseCache.getExpirations()));
+                streamWriter.writeEndElement();
+            }
         } catch (Exception e) {
             getParentNyxlet().logStackTrace(e);
             handleException(nyxletSession, stromaResponseWriter, eLabel, e);
@@ -66,6 +80,7 @@ public class GetServiceMetaHandler extends ActionHandler {
         }
     }
 
-    private static final String BUILD_INFO = "buildinfo";
+    private static final String BUILD_INFO      = "buildinfo";
+    private static final String RESPONSE_CACHE  = "responsecache";
 
 }
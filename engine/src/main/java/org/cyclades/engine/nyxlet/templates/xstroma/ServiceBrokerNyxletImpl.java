@@ -27,14 +27,21 @@
  *******************************************************************************/
 package org.cyclades.engine.nyxlet.templates.xstroma;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import org.json.JSONObject;
+import org.json.JSONTokener;
 import org.w3c.dom.Node;
 import org.cyclades.engine.ResponseCodeEnum;
 import org.cyclades.engine.exception.AuthException;
 import org.cyclades.engine.exception.CycladesException;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.PayloadStreamingMessageProducer;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.api.RawMessageProducer;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.api.StreamingMessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.XSTROMAMessagePayload;
 import org.cyclades.engine.nyxlet.templates.xstroma.target.ConsumerTarget;
 import org.cyclades.engine.nyxlet.templates.xstroma.target.ProducerTarget;
 import org.cyclades.engine.MetaTypeEnum;
@@ -169,34 +176,48 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
         try {
             nyxletSession.setResponseContentType(nyxletSession.getDataContentType());
             String metaString = nyxletSession.getParameter(DATA_PARAMETER);
-            if (metaString == null && nyxletSession.getInputStream() != null) metaString = new String(ByteStreams.toByteArray(nyxletSession.getInputStream()));
-            if (metaString == null || metaString.isEmpty()) {
+            // The request body is not read here, it is streamed to the producer (or read once by engageProducerTarget)
+            InputStream dataInputStream = null;
+            if (metaString == null && nyxletSession.getInputStream() != null) {
+                PushbackInputStream pushbackInputStream = new PushbackInputStream(nyxletSession.getInputStream());
+                int firstByte = pushbackInputStream.read();
+                if (firstByte != -1) {
+                    pushbackInputStream.unread(firstByte);
+                    dataInputStream = pushbackInputStream;
+                }
+            }
+            if (dataInputStream == null && (metaString == null || metaString.isEmpty())) {
                 throw new Exception("Error, parameter \"data\" not detected");
             }/* else if (nyxletSession.getActionString() != null) {
                 throw new Exception("Error, parameter \"action\" not allowed by this service.");
             }*/
             ProducerTarget producerTarget = validateAndGetProducerTarget(nyxletSession, target);
-            StringBuilder messagePayload = new StringBuilder();
+            StringBuilder head = new StringBuilder();
+            StringBuilder tail = new StringBuilder();
             Map<String, List<String>> requestParameters = nyxletSession.getParameterMap();
             if (!allowXSTROMAMessageTargets) requestParameters.remove(TARGET);
             if (producerTarget.forwardAuthData()) requestParameters.putAll(producerTarget.getAuthDataMap(nyxletSession));
             if (nyxletSession.getMetaTypeEnum().equals(MetaTypeEnum.JSON)) {
                 // Object at index 0 is the base-parameters (minus the data), object at index 1 is the data
                 requestParameters.remove(NyxletSession.DATA_PARAMETER);
-                messagePayload.append("{\"").append(BASE_PARAMETERS).append("\":");
-                messagePayload.append(MapHelper.parameterMapToJSON(requestParameters));
-                messagePayload.append(",\"").append(DATA_PARAMETER).append("\":");
-                messagePayload.append(metaString);
-                messagePayload.append("}");
+                head.append("{\"").append(BASE_PARAMETERS).append("\":");
+                head.append(MapHelper.parameterMapToJSON(requestParameters));
+                head.append(",\"").append(DATA_PARAMETER).append("\":");
+                tail.append("}");
             } else {
-                messagePayload.append("<x-stroma>");
-                messagePayload.append(metaString);
-                messagePayload.append("<").append(BASE_PARAMETERS).append(">");
+                head.append("<x-stroma>");
+                tail.append("<").append(BASE_PARAMETERS).append(">");
                 requestParameters.remove(NyxletSession.DATA_PARAMETER);
-                messagePayload.append(MapHelper.parameterMapToXML(requestParameters, "parameters"));
-                messagePayload.append("</").append(BASE_PARAMETERS).append("></x-stroma>");
+                tail.append(MapHelper.parameterMapToXML(requestParameters, "parameters"));
+                tail.append("</").append(BASE_PARAMETERS).append("></x-stroma>");
+            }
+            XSTROMAMessagePayload messagePayload;
+            if (dataInputStream != null) {
+                messagePayload = new XSTROMAMessagePayload(head.toString().getBytes(), dataInputStream, tail.toString().getBytes());
+            } else {
+                messagePayload = new XSTROMAMessagePayload(head.toString().getBytes(), metaString.getBytes(), tail.toString().getBytes());
             }
-            engageProducerTarget(nyxletSession, producerTarget, messagePayload.toString(), requestParameters);
+            engageProducerTarget(nyxletSession, producerTarget, messagePayload, requestParameters);
         } catch (Exception e) {
             logStackTrace(e);
             // Let's make sure these fields are set to null so we don't misrepresent this response
@@ -219,6 +240,21 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
         return producerTarget;
     }
 
+    private void engageProducerTarget(NyxletSession nyxletSession, ProducerTarget producerTarget, XSTROMAMessagePayload messagePayload,
+            Map<String, List<String>> requestParameters) throws Exception {
+        final String eLabel = "ServiceBrokerNyxlet.engageProducerTarget(Payload): ";
+        try {
+            if (producerTarget.getMessageProducer() instanceof PayloadStreamingMessageProducer) {
+                // Stream the message, its size does not matter here
+                ((PayloadStreamingMessageProducer)producerTarget.getMessageProducer()).sendMessage(messagePayload, requestParameters, nyxletSession.getOutputStream());
+            } else {
+                engageProducerTarget(nyxletSession, producerTarget, new String(messagePayload.toByteArray()), requestParameters);
+            }
+        } catch (Exception e) {
+           throw new Exception(eLabel + e);
+        }
+    }
+
     private void engageProducerTarget(NyxletSession nyxletSession, ProducerTarget producerTarget, String messagePayload, Map<String, List<String>> requestParameters) throws Exception {
         final String eLabel = "ServiceBrokerNyxlet.engageProducerTarget: ";
         try {
@@ -297,9 +333,26 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
         return nyxletSession;
     }
 
-    @SuppressWarnings("unchecked")
     public NyxletSession processXSTROMAMessagePayloads(OutputStream out, List<String> messageList, MetaTypeEnum metaTypeEnum) throws Exception {
-        final String eLabel = "ServiceBrokerNyxlet.processXSTROMAMessagePayloads: ";
+        return processMergedMessagePayloads(out, messageList, metaTypeEnum, "ServiceBrokerNyxlet.processXSTROMAMessagePayloads: ");
+    }
+
+    /**
+     * Process X-STROMA messages as one merged request, as processXSTROMAMessagePayloads does, parsing the UTF-8
+     * encoded messages directly rather than from Strings. Message consumers that receive bytes should call this.
+     *
+     * @param out           The OutputStream to write the response
+     * @param messageList   The UTF-8 encoded X-STROMA messages, all in the format given by metaTypeEnum
+     * @param metaTypeEnum  The format of the messages
+     * @return              The NyxletSession object created by calling this method (may be ignored)
+     * @throws Exception
+     */
+    public NyxletSession processXSTROMAMessagePayloadBytes(OutputStream out, List<byte[]> messageList, MetaTypeEnum metaTypeEnum) throws Exception {
+        return processMergedMessagePayloads(out, messageList, metaTypeEnum, "ServiceBrokerNyxlet.processXSTROMAMessagePayloadBytes: ");
+    }
+
+    @SuppressWarnings("unchecked")
+    private NyxletSession processMergedMessagePayloads(OutputStream out, List<?> messageList, MetaTypeEnum metaTypeEnum, final String eLabel) throws Exception {
         NyxletSession nyxletSession = null;
         try {
             Map<String, List<String>>requestParameters;
@@ -308,9 +361,10 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
             nyxletSession = new NyxletSession(request, response, request.getInputStream(), response.getOutputStream());
             int currentMessageCount = 0;
             int messageTotal = messageList.size() - 1;
-            for (String messageString : messageList) {
+            for (Object message : messageList) {
                 if (metaTypeEnum.equals(MetaTypeEnum.XML)) {
-                    GenericXMLObject xmlObject = new GenericXMLObject(messageString);
+                    GenericXMLObject xmlObject = (message instanceof byte[]) ?
+                            new GenericXMLObject(new ByteArrayInputStream((byte[])message)) : new GenericXMLObject((String)message);
                     requestParameters = MapHelper.parameterMapFromMetaObject(((Node)XMLComparitor.getMatchingChildNodes(xmlObject.getRootElement(), BASE_PARAMETERS).firstElement()).getChildNodes());
                     requestParameters.put(NyxletSession.DATA_PARAMETER, new ArrayList<String>(Arrays.asList("")));
                     requestParameters.put(MERGE_COUNT, new ArrayList<String>(Arrays.asList(String.valueOf(currentMessageCount++))));
@@ -318,7 +372,8 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
                     request.setParameterMap(MapHelper.arrayParameterMapFromParameterMap(requestParameters));
                     nyxletSession.setDataObject(((Node)XMLComparitor.getMatchingChildNodes(xmlObject.getRootElement(), DATA_PARAMETER).firstElement()));
                 } else {
-                    JSONObject jsonObject = new JSONObject(messageString);
+                    JSONObject jsonObject = (message instanceof byte[]) ?
+                            new JSONObject(new JSONTokener(new InputStreamReader(new ByteArrayInputStream((byte[])message), "UTF-8"))) : new JSONObject((String)message);
                     requestParameters = MapHelper.parameterMapFromMetaObject(jsonObject.getJSONArray(BASE_PARAMETERS));
                     requestParameters.put(NyxletSession.DATA_PARAMETER, new ArrayList<String>(Arrays.asList("")));
                     requestParameters.put(MERGE_COUNT, new ArrayList<String>(Arrays.asList(String.valueOf(currentMessageCount++))));
@@ -336,7 +391,8 @@ public class ServiceBrokerNyxletImpl extends XSTROMANyxlet {
                 if (producerTarget == null || producerTarget.isLocal()) {
                     processXSTROMARequest(nyxletSession);
                 } else {
-                    engageProducerTarget(nyxletSession, producerTarget, messageString, requestParameters);
+                    engageProducerTarget(nyxletSession, producerTarget, (message instanceof byte[]) ? new String((byte[])message, "UTF-8") : (String)message,
+                            requestParameters);
                 }
             }
         } catch (Exception e) {
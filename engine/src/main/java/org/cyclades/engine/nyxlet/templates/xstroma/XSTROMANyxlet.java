@@ -27,23 +27,45 @@
  *******************************************************************************/
 package org.cyclades.engine.nyxlet.templates.xstroma;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.http.HttpServletResponse;
 import org.cyclades.engine.MetaTypeEnum;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.ResponseCodeEnum;
+import org.cyclades.engine.adapter.HttpServletResponseAdapter;
 import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.exception.CycladesException;
 import org.cyclades.engine.nyxlet.NyxletRepository;
 import org.cyclades.engine.nyxlet.templates.stroma.STROMANyxlet;
+import org.cyclades.engine.stroma.ChainingPort;
 import org.cyclades.engine.stroma.STROMAResponseWriter;
 import org.cyclades.engine.stroma.xstroma.XSTROMAResponseWriter;
 import org.cyclades.engine.util.SendMail;
+import org.cyclades.io.StreamUtils;
+import org.cyclades.io.ViewableByteArrayOutputStream;
 import org.cyclades.xml.comparitor.XMLComparitor;
+import org.cyclades.xml.parser.XMLStreamElementReader;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.w3c.dom.Node;
@@ -81,7 +103,7 @@ public class XSTROMANyxlet extends STROMANyxlet {
         OutputStream liveOutputStream = sessionDelegate.getOutputStream();
         OutputStream workingOutputStream = null;
         XSTROMAResponseWriter xstromaResponseWriter = new XSTROMAResponseWriter(getName(), sessionDelegate, this);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ChainBuffers chainBuffers = new ChainBuffers();
         boolean async = false;
         String notificationList = null;
         String transData = sessionDelegate.getTransactionDataString();
@@ -89,6 +111,8 @@ public class XSTROMANyxlet extends STROMANyxlet {
         int mergeCount = -1;
         int mergeTotal = -1;
         boolean moreToMerge = false;
+        XMLStreamElementReader xmlRequestReader = null;
+        final boolean releaseMapChannel = sessionDelegate.enterOrchestration();
         try {
             String mergeCountString = sessionDelegate.getParameter(MERGE_COUNT);
             String mergeTotalString = sessionDelegate.getParameter(MERGE_TOTAL);
@@ -109,12 +133,23 @@ public class XSTROMANyxlet extends STROMANyxlet {
                 }
             }
             sessionDelegate.setResponseContentType(sessionDelegate.getDataContentType());
-            if (sessionDelegate.getDataObject() == null) {
+            // An XML request body that has not been materialized yet is pulled one "request" element at a time,
+            // instead of building a DOM of the whole orchestration up front. It is buffered and checked to be well
+            // formed first (without building nodes), so a body that is malformed further on is still rejected before
+            // any of its requests runs, as with the DOM path.
+            InputStream xmlRequestInputStream = (sessionDelegate.getMetaTypeEnum().equals(MetaTypeEnum.XML)) ?
+                    sessionDelegate.getUnparsedDataInputStream() : null;
+            if (xmlRequestInputStream != null) {
+                byte[] xmlRequestBody = StreamUtils.toByteArray(xmlRequestInputStream);
+                XMLStreamElementReader.validate(new ByteArrayInputStream(xmlRequestBody));
+                xmlRequestInputStream = new ByteArrayInputStream(xmlRequestBody);
+            }
+            if (xmlRequestInputStream == null && sessionDelegate.getDataObject() == null) {
                 throw new Exception("Error, no data detected");
             } /*else if (sessionDelegate.getActionString() != null) {
                 throw new Exception("Error, parameter \"action\" not allowed in this nyxlet.");
             }*/
-            Object metaObject = sessionDelegate.getDataObject();
+            Object metaObject = (xmlRequestInputStream == null) ? sessionDelegate.getDataObject() : null;
             String chainingMode = sessionDelegate.getParameter(CHAINING_MODE);
             boolean chainServiceRequests = (chainingMode != null && chainingMode.equalsIgnoreCase("true"));
             sessionDelegate.setOrchestrationTypeEnum((chainServiceRequests) ? OrchestrationTypeEnum.CHAINED_ORCHESTRATION : OrchestrationTypeEnum.COMPOSED_ORCHESTRATION);
@@ -124,6 +159,13 @@ public class XSTROMANyxlet extends STROMANyxlet {
             if ((respestOrchestrationFaultString != null && respestOrchestrationFaultString.equalsIgnoreCase("true")) || chainServiceRequests) {
                 respectOrchestrationFault = true;
             }
+            // Nested orchestrations already running on a parallel orchestration thread are dispatched serially,
+            // blocking a bounded pool on work queued behind itself would deadlock it
+            boolean parallel = (!chainServiceRequests && parallelOrchestrationExecutor != null &&
+                    !(Thread.currentThread() instanceof ParallelOrchestrationThread) &&
+                    sessionDelegate.getParameter(PARALLEL_MODE) != null && sessionDelegate.getParameter(PARALLEL_MODE).equalsIgnoreCase("true"));
+            List<String> parallelServiceNames = new ArrayList<String>();
+            List<Object> parallelRequestMetas = new ArrayList<Object>();
             async = (sessionDelegate.getParameter(ASYNC) != null &&
                      sessionDelegate.getParameter(ASYNC).equalsIgnoreCase("true"));
             if (!async && !chainServiceRequests) liveOutputStream = xstromaResponseWriter.getOutputStream();
@@ -133,7 +175,7 @@ public class XSTROMANyxlet extends STROMANyxlet {
                 liveOutputStream = new OutputStream (){ @Override public void write ( int b ){}};
                 notificationList = sessionDelegate.getParameter(NOTIFICATION_LIST);
             }
-            workingOutputStream = (chainServiceRequests) ? baos : liveOutputStream;
+            workingOutputStream = (chainServiceRequests) ? chainBuffers.current : liveOutputStream;
             String serviceName;
             if (sessionDelegate.getMetaTypeEnum().equals(MetaTypeEnum.JSON)) {
                 JSONArray requests = ((JSONObject)metaObject).getJSONArray(REQUESTS_ATTRIBUTE);
@@ -141,10 +183,15 @@ public class XSTROMANyxlet extends STROMANyxlet {
                 for (int i = 0; i < requests.length(); i++) {
                     serviceName = requests.getJSONObject(i).getString(SERVICE_ATTRIBUTE);
                     requestMeta = requests.getJSONObject(i).getJSONObject(META_ATTRIBUTE);
+                    if (parallel) {
+                        parallelServiceNames.add(serviceName);
+                        parallelRequestMetas.add(requestMeta);
+                        continue;
+                    }
                     if (chainServiceRequests) {
                         sessionDelegate.setChainsForward(true);
-                        sessionDelegate.setPortData(baos.toByteArray());
-                        baos.reset();
+                        sessionDelegate.setPort(chainBuffers.swap());
+                        workingOutputStream = chainBuffers.current;
                         if ((i == requests.length() - 1) && !moreToMerge) {
                             sessionDelegate.setChainsForward(false);
                             workingOutputStream = liveOutputStream;
@@ -165,27 +212,42 @@ public class XSTROMANyxlet extends STROMANyxlet {
                     if (sessionDelegate.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON) && !chainServiceRequests && ((i < requests.length() - 1) || moreToMerge)) workingOutputStream.write(",".getBytes());
                 }
             } else if (sessionDelegate.getMetaTypeEnum().equals(MetaTypeEnum.XML)) {
-                Vector<Node> requestsElements = XMLComparitor.getMatchingChildNodes((Node)metaObject, REQUESTS_ATTRIBUTE);
-                if (requestsElements.size() < 1) throw new Exception("No \"requests\" element found");
-                Vector<Node> requestElements = XMLComparitor.getMatchingChildNodes(requestsElements.firstElement(), REQUEST_ATTRIBUTE);
+                XMLRequestElements requestElements;
+                if (xmlRequestInputStream != null) {
+                    xmlRequestReader = new XMLStreamElementReader(xmlRequestInputStream, REQUESTS_ATTRIBUTE, REQUEST_ATTRIBUTE);
+                    requestElements = new XMLRequestElements(xmlRequestReader);
+                } else {
+                    Node requestsElement = XMLComparitor.getFirstMatchingChildNode((Node)metaObject, REQUESTS_ATTRIBUTE);
+                    if (requestsElement == null) throw new Exception("No \"requests\" element found");
+                    requestElements = new XMLRequestElements(XMLComparitor.getMatchingChildNodes(requestsElement, REQUEST_ATTRIBUTE).iterator());
+                }
                 Node requestElement;
+                boolean lastRequest;
                 final String malformedRequestError = "Malformed service request...field missing: ";
-                for (int i = 0; i < requestElements.size(); i++) {
-                    requestElement = requestElements.get(i);
+                while (requestElements.hasNext()) {
+                    requestElement = requestElements.next();
+                    lastRequest = !requestElements.hasNext();
                     serviceName = XMLComparitor.getAttribute(requestElement, SERVICE_ATTRIBUTE);
                     if (serviceName == null || serviceName.isEmpty()) {
                         throw new Exception(malformedRequestError + SERVICE_ATTRIBUTE);
                     }
+                    if (parallel) {
+                        // DOM implementations are not thread safe, even for reads...hand each worker its own copy. Streamed
+                        // request elements are already detached, each rooted in its own Document.
+                        parallelServiceNames.add(serviceName);
+                        parallelRequestMetas.add((xmlRequestReader != null) ? requestElement : requestElement.cloneNode(true));
+                        continue;
+                    }
                     if (chainServiceRequests) {
                         sessionDelegate.setChainsForward(true);
-                        sessionDelegate.setPortData(baos.toByteArray());
-                        baos.reset();
-                        if ((i == requestElements.size() - 1) && !moreToMerge) {
+                        sessionDelegate.setPort(chainBuffers.swap());
+                        workingOutputStream = chainBuffers.current;
+                        if (lastRequest && !moreToMerge) {
                             sessionDelegate.setChainsForward(false);
                             workingOutputStream = liveOutputStream;
                         }
                     }
-                    if ((i < requestElements.size() - 1) || moreToMerge) {
+                    if (!lastRequest || moreToMerge) {
                         sessionDelegate.setIsLast(false);
                     } else {
                         sessionDelegate.setIsLast(true);
@@ -197,11 +259,15 @@ public class XSTROMANyxlet extends STROMANyxlet {
                         }
                         break;
                     }
-                    if (sessionDelegate.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON) && !chainServiceRequests && ((i < requestElements.size() - 1) || moreToMerge)) workingOutputStream.write(",".getBytes());
+                    if (sessionDelegate.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON) && !chainServiceRequests && (!lastRequest || moreToMerge)) workingOutputStream.write(",".getBytes());
                 }
             } else {
                 throw new Exception("Undefined meta type: " + metaObject.getClass().getName());
             }
+            if (parallel) {
+                this.dispatchNyxletRequestsInParallel(parallelServiceNames, parallelRequestMetas, sessionDelegate, workingOutputStream,
+                        moreToMerge, respectOrchestrationFault);
+            }
             if (!async && !chainServiceRequests) {
                 xstromaResponseWriter.writeOrchestrationFault(sessionDelegate.orchestrationFaultRaised() && respectOrchestrationFault);
                 xstromaResponseWriter.done();
@@ -215,13 +281,15 @@ public class XSTROMANyxlet extends STROMANyxlet {
             new STROMAResponseWriter(this.getName(), sessionDelegate, this).writeErrorResponse((e instanceof CycladesException) ? ((CycladesException)e).getCode() : ResponseCodeEnum.GENERAL_ERROR.getCode(),
                     eLabel + e);
         } finally {
-            try {
-                baos.close();
-            } catch (Exception e) {}
+            if (xmlRequestReader != null) xmlRequestReader.close();
             try {
                 sessionDelegate.setOutputStream(liveOutputStream);
                 // XXX - redundant close: liveOutputStream.close();
             } catch (Exception e) {}
+            // Off heap values handed between the services of this orchestration are no longer needed, unless an
+            // enclosing orchestration is still running with the same Map Channel
+            sessionDelegate.exitOrchestration();
+            if (releaseMapChannel) sessionDelegate.getTypedMapChannel().release();
             try {
                 if (!emailDisabled && notificationList != null) {
                     StringBuilder sb = new StringBuilder(NyxletSession.TRANSACTION_DATA_PARAMETER);
@@ -234,7 +302,7 @@ public class XSTROMANyxlet extends STROMANyxlet {
         }
     }
 
-    private boolean dispatchNyxletRequest(String requestName, Object requestMeta, NyxletSession nyxletSession) throws Exception {
+    boolean dispatchNyxletRequest(String requestName, Object requestMeta, NyxletSession nyxletSession) throws Exception {
         final String eLabel = "XSTROMANyxlet.dispatchNxletRequest: ";
         try {
             // Clear items that we don't want to carry over from a previous Nyxlet's session, then let "process" populate them
@@ -263,6 +331,158 @@ public class XSTROMANyxlet extends STROMANyxlet {
         return nyxletSession.orchestrationFaultRaised();
     }
 
+    /**
+     * Dispatch the independent service requests of a composed orchestration concurrently on this Nyxlet's
+     * parallel orchestration executor. Each request is run against its own forked NyxletSession and buffer, and
+     * the buffered responses are then written to the OutputStream in the original request order. If
+     * orchestration faults are respected, the responses are written up to and including the first one that
+     * failed, and any requests still in flight are cancelled. The whole orchestration must complete within
+     * the parallel orchestration timeout. The status and content type the services set on their forked sessions
+     * are applied to the response of the X-STROMA request once all is done, the last one set (in request order)
+     * winning as it would when dispatching serially.
+     *
+     * @param serviceNames              The names of the services to dispatch, in request order
+     * @param requestMetas              The request meta objects, in request order
+     * @param sessionDelegate           The NyxletSession of the X-STROMA request
+     * @param outputStream              The OutputStream to write the ordered responses to
+     * @param moreToMerge               true if more responses will follow this orchestration (merging)
+     * @param respectOrchestrationFault true if processing should halt on the first orchestration fault
+     * @throws Exception
+     */
+    void dispatchNyxletRequestsInParallel (List<String> serviceNames, List<Object> requestMetas, NyxletSession sessionDelegate,
+            OutputStream outputStream, boolean moreToMerge, boolean respectOrchestrationFault) throws Exception {
+        final String eLabel = "XSTROMANyxlet.dispatchNyxletRequestsInParallel: ";
+        List<Future<NyxletSession>> futures = new ArrayList<Future<NyxletSession>>(serviceNames.size());
+        List<ByteArrayOutputStream> buffers = new ArrayList<ByteArrayOutputStream>(serviceNames.size());
+        try {
+            for (int i = 0; i < serviceNames.size(); i++) {
+                final String serviceName = serviceNames.get(i);
+                final Object requestMeta = requestMetas.get(i);
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                final NyxletSession forkedSession = sessionDelegate.fork(buffer);
+                forkedSession.setIsLast((i == serviceNames.size() - 1) && !moreToMerge);
+                buffers.add(buffer);
+                futures.add(parallelOrchestrationExecutor.submit(new Callable<NyxletSession>() {
+                    public NyxletSession call () throws Exception {
+                        dispatchNyxletRequest(serviceName, requestMeta, forkedSession);
+                        return forkedSession;
+                    }
+                }));
+            }
+            NyxletSession forkedSession;
+            HttpServletResponseAdapter forkedResponse;
+            int status = 0;
+            String contentType = null;
+            long deadline = System.currentTimeMillis() + parallelOrchestrationTimeoutInMS;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    forkedSession = futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch (ExecutionException e) {
+                    throw new Exception(eLabel + e.getCause());
+                } catch (TimeoutException e) {
+                    throw new Exception(eLabel + "Timed out waiting for the response of service: " + serviceNames.get(i));
+                } catch (CancellationException e) {
+                    throw new Exception(eLabel + "Request cancelled, the broker is shutting down: " + serviceNames.get(i));
+                }
+                buffers.get(i).writeTo(outputStream);
+                buffers.set(i, null);
+                forkedResponse = (HttpServletResponseAdapter)forkedSession.getHttpServletResponse();
+                if (forkedResponse.getStatus() > 0) status = forkedResponse.getStatus();
+                if (forkedResponse.getContentType() != null) contentType = forkedResponse.getContentType();
+                if (forkedSession.orchestrationFaultRaised() && respectOrchestrationFault) {
+                    sessionDelegate.raiseOrchestrationFault(forkedSession.getOrchestrationFaultMessage());
+                    break;
+                }
+                if (sessionDelegate.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON) && ((i < futures.size() - 1) || moreToMerge)) outputStream.write(",".getBytes());
+            }
+            if (status > 0) sessionDelegate.setResponseStatus(status);
+            if (contentType != null) sessionDelegate.setResponseContentType(contentType);
+        } finally {
+            for (Future<NyxletSession> future : futures) future.cancel(true);
+        }
+    }
+
+    private ThreadPoolExecutor createParallelOrchestrationExecutor (int threads, int queueSize) {
+        final String threadNamePrefix = getName() + "-parallel-orchestration-";
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, PARALLEL_ORCHESTRATION_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+                    public Thread newThread (Runnable r) {
+                        Thread t = new ParallelOrchestrationThread(r, threadNamePrefix + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    public void rejectedExecution (Runnable r, ThreadPoolExecutor executor) {
+                        // Fail rather than drop the request once shut down, nothing would ever complete its Future
+                        if (executor.isShutdown()) throw new RejectedExecutionException("The parallel orchestration executor is shut down");
+                        // Once saturated, run the request on the calling thread...this bounds the work queued per broker
+                        r.run();
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * The output buffers of a chained orchestration. Each step writes to "current" while the next step reads
+     * the previous step's output straight from the other buffer through a ChainingPort, so nothing is copied.
+     */
+    private static class ChainBuffers {
+
+        /**
+         * Hand the output written to "current" over as a port and switch "current" to the other, emptied, buffer
+         *
+         * @return ChainingPort viewing the output written so far
+         */
+        ChainingPort swap () {
+            ChainingPort port = new ChainingPort(current.getView());
+            ViewableByteArrayOutputStream previous = current;
+            current = (other == null) ? new ViewableByteArrayOutputStream() : other;
+            current.reset();
+            other = previous;
+            return port;
+        }
+
+        ViewableByteArrayOutputStream current = new ViewableByteArrayOutputStream();
+        private ViewableByteArrayOutputStream other = null;
+    }
+
+    /**
+     * The "request" elements of an XML orchestration, either pulled incrementally from the request body or
+     * taken from an already materialized DOM
+     */
+    private static class XMLRequestElements {
+
+        XMLRequestElements (XMLStreamElementReader streamReader) {
+            this.streamReader = streamReader;
+            this.domIterator = null;
+        }
+
+        XMLRequestElements (Iterator<Node> domIterator) {
+            this.streamReader = null;
+            this.domIterator = domIterator;
+        }
+
+        boolean hasNext () throws Exception {
+            return (streamReader != null) ? streamReader.hasNext() : domIterator.hasNext();
+        }
+
+        Node next () throws Exception {
+            return (streamReader != null) ? streamReader.next() : domIterator.next();
+        }
+
+        private final XMLStreamElementReader streamReader;
+        private final Iterator<Node> domIterator;
+    }
+
+    private static class ParallelOrchestrationThread extends Thread {
+        ParallelOrchestrationThread (Runnable r, String name) {
+            super(r, name);
+        }
+    }
+
     @Override
     public void init () throws CycladesException {
         final String eLabel = "XSTROMANyxlet.init: ";
@@ -273,6 +493,18 @@ public class XSTROMANyxlet extends STROMANyxlet {
             emailFrom = (getExternalProperties().containsKey(EMAIL_FROM)) ? getExternalProperties().getProperty(EMAIL_FROM) : "cyclades@" + java.net.InetAddress.getLocalHost().getHostName();
             emailSubject = (getExternalProperties().containsKey(EMAIL_SUBJECT)) ?
                     getExternalProperties().getProperty(EMAIL_SUBJECT) : "Cyclades X-STROMA Response Status: " + java.net.InetAddress.getLocalHost().getHostName();
+            parallelOrchestrationTimeoutInMS = Long.parseLong(getExternalProperties().getProperty(PARALLEL_ORCHESTRATION_TIMEOUT,
+                    PARALLEL_ORCHESTRATION_TIMEOUT_DEFAULT)) * 1000;
+            if (getEngineContext() != null && getEngineContext().isVirtualExecutionService()) {
+                // Unbounded and cheap to block on, nested orchestrations can not starve it either
+                parallelOrchestrationExecutor = getEngineContext().getExecutionService();
+                ownsParallelOrchestrationExecutor = false;
+            } else {
+                parallelOrchestrationExecutor = createParallelOrchestrationExecutor(
+                        Integer.parseInt(getExternalProperties().getProperty(PARALLEL_ORCHESTRATION_THREADS, PARALLEL_ORCHESTRATION_THREADS_DEFAULT)),
+                        Integer.parseInt(getExternalProperties().getProperty(PARALLEL_ORCHESTRATION_QUEUE_SIZE, PARALLEL_ORCHESTRATION_QUEUE_SIZE_DEFAULT)));
+                ownsParallelOrchestrationExecutor = true;
+            }
         } catch (Exception e) {
             throw new CycladesException(eLabel + e);
         }
@@ -280,17 +512,46 @@ public class XSTROMANyxlet extends STROMANyxlet {
 
     @Override
     public void destroy () throws CycladesException {
+        if (parallelOrchestrationExecutor != null && ownsParallelOrchestrationExecutor) {
+            // Let the requests already accepted finish, then cancel whatever is left so that no one waits on it forever
+            parallelOrchestrationExecutor.shutdown();
+            try {
+                if (!parallelOrchestrationExecutor.awaitTermination(PARALLEL_ORCHESTRATION_SHUTDOWN_SECONDS, TimeUnit.SECONDS)) {
+                    cancel(parallelOrchestrationExecutor.shutdownNow());
+                }
+            } catch (InterruptedException e) {
+                cancel(parallelOrchestrationExecutor.shutdownNow());
+                Thread.currentThread().interrupt();
+            }
+        }
         super.destroy();
     }
 
+    private static void cancel (List<Runnable> drainedTasks) {
+        for (Runnable task : drainedTasks) {
+            if (task instanceof Future) ((Future<?>)task).cancel(false);
+        }
+    }
+
     private boolean emailDisabled;
     private String emailSMTPHost;
     private String emailFrom;
     private String emailSubject;
+    private ExecutorService parallelOrchestrationExecutor;
+    private boolean ownsParallelOrchestrationExecutor = false;
+    private long parallelOrchestrationTimeoutInMS;
     private final static String EMAIL_DISABLED                              = "emailDisabled";
     private final static String EMAIL_SMTP_HOST                             = "emailSMTPHost";
     private final static String EMAIL_FROM                                  = "emailFrom";
     private final static String EMAIL_SUBJECT                               = "emailSubject";
+    private final static String PARALLEL_ORCHESTRATION_THREADS              = "parallelOrchestrationThreads";
+    private final static String PARALLEL_ORCHESTRATION_THREADS_DEFAULT      = "16";
+    private final static String PARALLEL_ORCHESTRATION_QUEUE_SIZE           = "parallelOrchestrationQueueSize";
+    private final static String PARALLEL_ORCHESTRATION_QUEUE_SIZE_DEFAULT   = "256";
+    private final static String PARALLEL_ORCHESTRATION_TIMEOUT              = "parallelOrchestrationTimeoutSeconds";
+    private final static String PARALLEL_ORCHESTRATION_TIMEOUT_DEFAULT      = "300";
+    private final static long PARALLEL_ORCHESTRATION_KEEP_ALIVE_SECONDS     = 60;
+    private final static long PARALLEL_ORCHESTRATION_SHUTDOWN_SECONDS       = 10;
     // Attribute names
     private final static String SERVICE_ATTRIBUTE                           = "service";
     private final static String META_ATTRIBUTE                              = "data";
@@ -299,6 +560,7 @@ public class XSTROMANyxlet extends STROMANyxlet {
     public final static String RESPECT_ORCHESTRATION_FAULT_ATTRIBUTE        = "enable-orchestration-fault";
     private final static String CHAINING_MODE                               = "chain";
     private final static String ASYNC                                       = "asynchronous";
+    private final static String PARALLEL_MODE                               = "parallel";
     private final static String NOTIFICATION_LIST                           = "notify";
     public final static String MERGE_COUNT                                  = "merge-count";
     public final static String MERGE_TOTAL                                  = "merge-total";
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.xstroma.message.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.cyclades.io.StreamUtils;
+
+/**
+ * A X-STROMA message whose data is streamed: the envelope before the data (head), the data itself and the
+ * envelope after it (tail). This lets a ServiceBrokerNyxlet forward a request body to a producer without holding
+ * the whole message in memory.
+ *
+ * XXX - The data can be read only once, by exactly one of getInputStream, writeTo or toByteArray
+ */
+public class XSTROMAMessagePayload {
+
+    public XSTROMAMessagePayload (byte[] head, InputStream data, byte[] tail) {
+        this.head = head;
+        this.data = data;
+        this.tail = tail;
+    }
+
+    public XSTROMAMessagePayload (byte[] head, byte[] data, byte[] tail) {
+        this(head, new ByteArrayInputStream(data), tail);
+    }
+
+    /**
+     * @return The whole message as an InputStream. Closing it does not close the data InputStream.
+     * @throws IllegalStateException If the message has already been read
+     */
+    public InputStream getInputStream () {
+        consume();
+        return new SequenceInputStream(new ByteArrayInputStream(head), new SequenceInputStream(new NonClosingInputStream(data),
+                new ByteArrayInputStream(tail)));
+    }
+
+    /**
+     * Write the whole message
+     *
+     * @param out The OutputStream to write to
+     * @throws Exception
+     */
+    public void writeTo (OutputStream out) throws Exception {
+        final String eLabel = "XSTROMAMessagePayload.writeTo: ";
+        try {
+            consume();
+            out.write(head);
+            StreamUtils.write(data, out, BUFFER_SIZE);
+            out.write(tail);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Read the whole message into memory, for producers that need it in one piece
+     *
+     * @return The whole message
+     * @throws Exception
+     */
+    public byte[] toByteArray () throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(head.length + tail.length + BUFFER_SIZE);
+        writeTo(baos);
+        return baos.toByteArray();
+    }
+
+    private void consume () {
+        if (!consumed.compareAndSet(false, true)) throw new IllegalStateException("The message has already been read");
+    }
+
+    private static class NonClosingInputStream extends FilterInputStream {
+        NonClosingInputStream (InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public void close () {
+        }
+    }
+
+    private final byte[] head;
+    private final InputStream data;
+    private final byte[] tail;
+    private final AtomicBoolean consumed = new AtomicBoolean(false);
+    private static final int BUFFER_SIZE = 8192;
+}
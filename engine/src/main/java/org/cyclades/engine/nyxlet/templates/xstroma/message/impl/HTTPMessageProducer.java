@@ -33,32 +33,83 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
 import org.cyclades.engine.nyxlet.templates.xstroma.ServiceBrokerNyxletImpl;
-import org.cyclades.engine.nyxlet.templates.xstroma.message.api.StreamingMessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.PayloadStreamingMessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.XSTROMAMessagePayload;
+import org.cyclades.io.HTTPTransport;
+import org.cyclades.io.PooledHTTPTransport;
 import org.cyclades.io.ResourceRequestUtils;
+import org.cyclades.io.URLConnectionHTTPTransport;
 import com.google.common.io.ByteStreams;
 
-public class HTTPMessageProducer implements StreamingMessageProducer {
+public class HTTPMessageProducer implements PayloadStreamingMessageProducer {
 
     public void init(Map<String, String> initializationMap) throws Exception {
         if (!initializationMap.containsKey(URI_CONFIG_PARAMETER)) throw new Exception("Initialization parameter missing: " + URI_CONFIG_PARAMETER);
         StringBuilder builder = new StringBuilder(initializationMap.get(URI_CONFIG_PARAMETER));
         builder.append("?").append(ServiceBrokerNyxletImpl.XSTROMA_MESSAGE);
         accessURL = builder.toString();
+        httpTransport = createHTTPTransport(initializationMap);
+        defaultConnectionTimeout = initializationMap.containsKey(CONNECTION_TIMEOUT) ? Integer.parseInt(initializationMap.get(CONNECTION_TIMEOUT)) : 0;
+        defaultReadTimeout = initializationMap.containsKey(READ_TIMEOUT) ? Integer.parseInt(initializationMap.get(READ_TIMEOUT)) : 0;
+    }
+
+    /**
+     * Create the HTTPTransport described by the initialization parameters: "transport" ("urlconnection" by default,
+     * or "pooled"), and for a pooled transport "max-connections" (per host) and "keep-alive" (milliseconds
+     * an idle connection is kept)
+     *
+     * @param initializationMap The initialization parameters of the producer
+     * @return The HTTPTransport
+     * @throws Exception
+     */
+    public static HTTPTransport createHTTPTransport (Map<String, String> initializationMap) throws Exception {
+        String transport = initializationMap.get(TRANSPORT);
+        if (transport == null || transport.equalsIgnoreCase(TRANSPORT_URL_CONNECTION)) {
+            return new URLConnectionHTTPTransport();
+        } else if (transport.equalsIgnoreCase(TRANSPORT_POOLED)) {
+            return new PooledHTTPTransport(
+                    initializationMap.containsKey(MAX_CONNECTIONS) ? Integer.parseInt(initializationMap.get(MAX_CONNECTIONS)) : PooledHTTPTransport.DEFAULT_MAX_CONNECTIONS_PER_HOST,
+                    initializationMap.containsKey(KEEP_ALIVE) ? Long.parseLong(initializationMap.get(KEEP_ALIVE)) : PooledHTTPTransport.DEFAULT_KEEP_ALIVE_MS);
+        }
+        throw new Exception("Unknown transport: " + transport);
     }
 
     public void sendMessage (String message, Map<String, List<String>> attributeMap, OutputStream os) throws Exception {
         final String eLabel = "HTTPMessageProducer.sendMessage: ";
         InputStream is = null;
         try {
-            int connectionTimeout = (attributeMap.containsKey(CONNECTION_TIMEOUT)) ? Integer.parseInt(attributeMap.get(CONNECTION_TIMEOUT).get(0)) : 0;
-            int readTimeout = (attributeMap.containsKey(READ_TIMEOUT)) ? Integer.parseInt(attributeMap.get(READ_TIMEOUT).get(0)) : 0;
-            is = ResourceRequestUtils.getInputStream(accessURL, message.getBytes(), headerProperties, connectionTimeout, readTimeout);
+            int connectionTimeout = (attributeMap.containsKey(CONNECTION_TIMEOUT)) ? Integer.parseInt(attributeMap.get(CONNECTION_TIMEOUT).get(0)) : defaultConnectionTimeout;
+            int readTimeout = (attributeMap.containsKey(READ_TIMEOUT)) ? Integer.parseInt(attributeMap.get(READ_TIMEOUT).get(0)) : defaultReadTimeout;
+            is = ResourceRequestUtils.getInputStream(httpTransport, accessURL, message.getBytes(), headerProperties, connectionTimeout, readTimeout);
+            ByteStreams.copy(is, os);
+        } catch (Exception e) {
+            e.printStackTrace();
+            throw new Exception(eLabel + e);
+        } finally {
+            try { is.close(); } catch (Exception e) {}
+        }
+    }
+
+    public void sendMessage (XSTROMAMessagePayload payload, Map<String, List<String>> attributeMap, OutputStream os) throws Exception {
+        final String eLabel = "HTTPMessageProducer.sendMessage(XSTROMAMessagePayload): ";
+        InputStream is = null;
+        InputStream payloadInputStream = null;
+        try {
+            int connectionTimeout = (attributeMap.containsKey(CONNECTION_TIMEOUT)) ? Integer.parseInt(attributeMap.get(CONNECTION_TIMEOUT).get(0)) : defaultConnectionTimeout;
+            int readTimeout = (attributeMap.containsKey(READ_TIMEOUT)) ? Integer.parseInt(attributeMap.get(READ_TIMEOUT).get(0)) : defaultReadTimeout;
+            if (accessURL.toLowerCase().startsWith("http")) {
+                payloadInputStream = payload.getInputStream();
+                is = httpTransport.executeStreaming(accessURL, null, payloadInputStream, headerProperties, connectionTimeout, readTimeout);
+            } else {
+                is = ResourceRequestUtils.getInputStreamFile(accessURL);
+            }
             ByteStreams.copy(is, os);
         } catch (Exception e) {
             e.printStackTrace();
             throw new Exception(eLabel + e);
         } finally {
             try { is.close(); } catch (Exception e) {}
+            try { payloadInputStream.close(); } catch (Exception e) {}
         }
     }
 
@@ -67,6 +118,7 @@ public class HTTPMessageProducer implements StreamingMessageProducer {
     }
 
     public void destroy() throws Exception {
+        if (httpTransport != null) httpTransport.close();
     }
 
     public boolean isHealthy () throws Exception {
@@ -74,9 +126,17 @@ public class HTTPMessageProducer implements StreamingMessageProducer {
     }
 
     private String accessURL;
+    private HTTPTransport httpTransport;
+    private int defaultConnectionTimeout;
+    private int defaultReadTimeout;
     public static final String CONNECTION_TIMEOUT   = "connection-timeout";
     public static final String READ_TIMEOUT         = "read-timeout";
     public static final String URI_CONFIG_PARAMETER = "uri";
+    public static final String TRANSPORT            = "transport";
+    public static final String MAX_CONNECTIONS      = "max-connections";
+    public static final String KEEP_ALIVE           = "keep-alive";
+    public static final String TRANSPORT_POOLED             = "pooled";
+    public static final String TRANSPORT_URL_CONNECTION     = "urlconnection";
     private static final Map<String, String> headerProperties;
     static {
         headerProperties = new HashMap<String, String>();
@@ -30,21 +30,55 @@ package org.cyclades.engine.nyxlet.templates.xstroma.message.impl;
 import java.io.OutputStream;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.cyclades.engine.EngineContext;
 import org.cyclades.engine.MetaTypeEnum;
 import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.nyxlet.templates.xstroma.ServiceBrokerNyxletImpl;
 import org.cyclades.engine.nyxlet.templates.xstroma.XSTROMANyxlet;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.api.StreamingMessageProducer;
 import org.cyclades.engine.stroma.STROMAResponseWriter;
 import org.cyclades.engine.stroma.xstroma.XSTROMAResponseWriter;
+import org.cyclades.io.HTTPTransport;
 import org.cyclades.io.ResourceRequestUtils;
-import org.cyclades.io.StreamUtils;
 
+/**
+ * Sends the message to every "uri" parameter and merges the responses, in order. By default the requests are
+ * made one after the other. With a "concurrency" greater than 1 (initialization or request parameter), up to that
+ * many requests are in flight at once on the engine execution service, each bounded by "request-timeout"
+ * (milliseconds), which also bounds the connection and read timeouts of the request. The responses are still
+ * written in the order of the "uri" parameters, and an orchestration fault still stops the broadcast, although
+ * requests already in flight to later URIs will have been sent.
+ */
 public class HTTPRepeatingMessageProducer implements StreamingMessageProducer {
 
+    public HTTPRepeatingMessageProducer () {
+        this(null);
+    }
+
+    /**
+     * @param fanoutExecutor The ExecutorService to make concurrent requests on, null for the engine execution service
+     */
+    HTTPRepeatingMessageProducer (ExecutorService fanoutExecutor) {
+        this.fanoutExecutor = fanoutExecutor;
+    }
+
     public void init(Map<String, String> initializationMap) throws Exception {
         queryParameters = new StringBuilder("?").append(ServiceBrokerNyxletImpl.XSTROMA_MESSAGE).toString();
+        httpTransport = HTTPMessageProducer.createHTTPTransport(initializationMap);
+        defaultConnectionTimeout = initializationMap.containsKey(CONNECTION_TIMEOUT) ? Integer.parseInt(initializationMap.get(CONNECTION_TIMEOUT)) : 0;
+        defaultReadTimeout = initializationMap.containsKey(READ_TIMEOUT) ? Integer.parseInt(initializationMap.get(READ_TIMEOUT)) : 0;
+        defaultConcurrency = initializationMap.containsKey(CONCURRENCY) ? Integer.parseInt(initializationMap.get(CONCURRENCY)) : 1;
+        defaultRequestTimeout = initializationMap.containsKey(REQUEST_TIMEOUT) ? Long.parseLong(initializationMap.get(REQUEST_TIMEOUT)) : DEFAULT_REQUEST_TIMEOUT;
     }
 
     public void sendMessage (String message, Map<String, List<String>> attributeMap, OutputStream os) throws Exception {
@@ -53,29 +87,59 @@ public class HTTPRepeatingMessageProducer implements StreamingMessageProducer {
         XSTROMAResponseWriter writer = new XSTROMAResponseWriter("servicebroker", ns);
         try {
             if (!attributeMap.containsKey(URI_PARAMETER)) throw new Exception("Requires parameter parameter: " + URI_PARAMETER);
-            int connectionTimeout = (attributeMap.containsKey(CONNECTION_TIMEOUT)) ? Integer.parseInt(attributeMap.get(CONNECTION_TIMEOUT).get(0)) : 0;
-            int readTimeout = (attributeMap.containsKey(READ_TIMEOUT)) ? Integer.parseInt(attributeMap.get(READ_TIMEOUT).get(0)) : 0;
-            String responseString;
+            int connectionTimeout = (attributeMap.containsKey(CONNECTION_TIMEOUT)) ? Integer.parseInt(attributeMap.get(CONNECTION_TIMEOUT).get(0)) : defaultConnectionTimeout;
+            int readTimeout = (attributeMap.containsKey(READ_TIMEOUT)) ? Integer.parseInt(attributeMap.get(READ_TIMEOUT).get(0)) : defaultReadTimeout;
+            int concurrency = (attributeMap.containsKey(CONCURRENCY)) ? Integer.parseInt(attributeMap.get(CONCURRENCY).get(0)) : defaultConcurrency;
+            long requestTimeout = (attributeMap.containsKey(REQUEST_TIMEOUT)) ? Long.parseLong(attributeMap.get(REQUEST_TIMEOUT).get(0)) : defaultRequestTimeout;
+            if (requestTimeout <= 0) requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+            boolean respectOrchestrationFault = attributeMap.containsKey(XSTROMANyxlet.RESPECT_ORCHESTRATION_FAULT_ATTRIBUTE);
+            List<String> uris = attributeMap.get(URI_PARAMETER);
+            byte[] payload = message.getBytes();
             OutputStream writeTo = writer.getOutputStream();
-            int i = 0;
-            for (String uri : attributeMap.get(URI_PARAMETER)) {
-                if (i++ > 0 && ns.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON)) writeTo.write(",".getBytes());
-                writer.addResponseParameter(URI_PARAMETER, uri);
-                try {
-                    responseString = new String(ResourceRequestUtils.getData(uri + queryParameters, message.getBytes(), headerProperties, StreamUtils.DEFAULT_BUFFER_SIZE,
-                        connectionTimeout, readTimeout));
-                    writeTo.write(responseString.getBytes());
-                    if (responseString.contains(XSTROMAResponseWriter.ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE)) {
-                        writer.addResponseParameter("error", uri);
-                        break;
+            byte[] response;
+            Exception exception;
+            ExecutorService executor = (concurrency > 1 && uris.size() > 1) ? getFanoutExecutor() : null;
+            if (executor == null) {
+                for (int i = 0; i < uris.size(); i++) {
+                    response = null;
+                    exception = null;
+                    try {
+                        response = request(uris.get(i), payload, connectionTimeout, readTimeout);
+                    } catch (Exception e) {
+                        exception = e;
                     }
-                } catch (Exception e) {
-                    // We caught an exception...let's print it out and bail
-                    new STROMAResponseWriter("servicebroker", ns).writeErrorResponse(1, e.toString());
-                    writer.addResponseParameter("error", new StringBuilder(uri).append(" " ).append(e.toString()).toString());
-                    if (attributeMap.containsKey(XSTROMANyxlet.RESPECT_ORCHESTRATION_FAULT_ATTRIBUTE)) break;
-                    continue;
+                    if (!writeResult(ns, writer, writeTo, i, uris.get(i), response, exception, respectOrchestrationFault)) break;
                 }
+                return;
+            }
+            // A request must not outlive its timeout, cancelling its Future can not interrupt a blocking socket read
+            connectionTimeout = (connectionTimeout > 0) ? (int)Math.min(connectionTimeout, requestTimeout) : (int)requestTimeout;
+            readTimeout = (readTimeout > 0) ? (int)Math.min(readTimeout, requestTimeout) : (int)requestTimeout;
+            // Keep up to "concurrency" requests in flight, consuming the results in order
+            LinkedList<Future<byte[]>> inFlight = new LinkedList<Future<byte[]>>();
+            int next = 0;
+            try {
+                while (next < uris.size() && inFlight.size() < concurrency) inFlight.add(submit(executor, uris.get(next++), payload, connectionTimeout, readTimeout));
+                Future<byte[]> future;
+                for (int i = 0; i < uris.size(); i++) {
+                    future = inFlight.removeFirst();
+                    response = null;
+                    exception = null;
+                    try {
+                        response = future.get(requestTimeout, TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        future.cancel(true);
+                        exception = new Exception("Request timed out after " + requestTimeout + "ms");
+                    } catch (CancellationException e) {
+                        exception = new Exception("Request cancelled, the engine is shutting down");
+                    } catch (ExecutionException e) {
+                        exception = (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+                    }
+                    if (!writeResult(ns, writer, writeTo, i, uris.get(i), response, exception, respectOrchestrationFault)) break;
+                    if (next < uris.size()) inFlight.add(submit(executor, uris.get(next++), payload, connectionTimeout, readTimeout));
+                }
+            } finally {
+                for (Future<byte[]> remaining : inFlight) remaining.cancel(true);
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -85,11 +149,68 @@ public class HTTPRepeatingMessageProducer implements StreamingMessageProducer {
         }
     }
 
+    private byte[] request (String uri, byte[] payload, int connectionTimeout, int readTimeout) throws Exception {
+        return ResourceRequestUtils.getData(httpTransport, uri + queryParameters, payload, headerProperties, connectionTimeout, readTimeout);
+    }
+
+    /**
+     * @return The ExecutorService for concurrent requests, null if there is none (outside of the engine)
+     */
+    private ExecutorService getFanoutExecutor () {
+        if (fanoutExecutor != null) return fanoutExecutor;
+        EngineContext engineContext = Nyxlet.getEngineContext();
+        return (engineContext != null) ? engineContext.getExecutionService() : null;
+    }
+
+    private Future<byte[]> submit (ExecutorService executor, final String uri, final byte[] payload, final int connectionTimeout, final int readTimeout) {
+        return executor.submit(new Callable<byte[]>() {
+            public byte[] call () throws Exception {
+                return request(uri, payload, connectionTimeout, readTimeout);
+            }
+        });
+    }
+
+    /**
+     * Write the result of one URI to the merged response
+     *
+     * @return false if no more results should be written
+     */
+    private boolean writeResult (NyxletSession ns, XSTROMAResponseWriter writer, OutputStream writeTo, int index, String uri, byte[] response,
+            Exception exception, boolean respectOrchestrationFault) throws Exception {
+        if (index > 0 && ns.getResponseMetaTypeEnum().equals(MetaTypeEnum.JSON)) writeTo.write(",".getBytes());
+        writer.addResponseParameter(URI_PARAMETER, uri);
+        if (exception == null) {
+            writeTo.write(response);
+            if (contains(response, ORCHESTRATION_FAULT_BYTES)) {
+                writer.addResponseParameter("error", uri);
+                return false;
+            }
+            return true;
+        }
+        // We caught an exception...let's print it out and bail
+        new STROMAResponseWriter("servicebroker", ns).writeErrorResponse(1, exception.toString());
+        writer.addResponseParameter("error", new StringBuilder(uri).append(" " ).append(exception.toString()).toString());
+        return !respectOrchestrationFault;
+    }
+
+    private static boolean contains (byte[] data, byte[] target) {
+        outer:
+        for (int i = 0; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+
     public String sendMessage (String message, Map<String, List<String>> attributeMap) throws Exception {
         throw new UnsupportedOperationException("Please use the sendMessage implementation from StreamingMessageProducer");
     }
 
     public void destroy() throws Exception {
+        // The fan-out requests run on an ExecutorService this producer does not own
+        if (httpTransport != null) httpTransport.close();
     }
 
     public boolean isHealthy () throws Exception {
@@ -97,9 +218,19 @@ public class HTTPRepeatingMessageProducer implements StreamingMessageProducer {
     }
 
     private String queryParameters;
+    private HTTPTransport httpTransport;
+    private int defaultConnectionTimeout;
+    private int defaultReadTimeout;
+    private int defaultConcurrency;
+    private long defaultRequestTimeout;
+    private final ExecutorService fanoutExecutor;
     public static final String CONNECTION_TIMEOUT   = "connection-timeout";
     public static final String READ_TIMEOUT         = "read-timeout";
     public static final String URI_PARAMETER        = "uri";
+    public static final String CONCURRENCY          = "concurrency";
+    public static final String REQUEST_TIMEOUT      = "request-timeout";
+    public static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+    private static final byte[] ORCHESTRATION_FAULT_BYTES = XSTROMAResponseWriter.ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE.getBytes();
     private static final Map<String, String> headerProperties;
     static {
         headerProperties = new HashMap<String, String>();
@@ -0,0 +1,316 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.xstroma.message.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.MessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.StreamingMessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.target.ProducerTarget;
+import org.cyclades.engine.stroma.xstroma.XSTROMAResponseWriter;
+
+/**
+ * A MessageProducer that spreads messages over a group of other producer targets (by target name), selecting
+ * by weight, least outstanding requests or EWMA latency. Targets that fail "failure_threshold" consecutive times
+ * are ejected for "ejection_time" milliseconds (passive health checking). If every target is ejected, all of them
+ * are used again rather than failing every request.
+ *
+ * Initialization parameters:
+ *
+ * targets:             Comma separated target names, each optionally followed by ":weight" (default weight 1)
+ * strategy:            "weighted" (default), "least_outstanding" or "ewma"
+ * failure_threshold:   Consecutive failures before a target is ejected (default 3)
+ * ejection_time:       Milliseconds an ejected target is left out (default 30000)
+ * failover:            If "true" (default), a failed message is sent to the next target, as long as no part of the
+ *                      response has been written yet. Set to "false" for targets that are not safe to resend to.
+ * probe_share:         "ewma" only, the share of messages (0 to 1, default 0.02) sent to a target picked at random.
+ *                      A target's latency is only measured when it is used, without these probes a target that was
+ *                      slow once would never be selected again and never get the chance to recover.
+ *
+ * The member targets are resolved by ProducerTarget.loadTargets and keep their own life cycle.
+ */
+public class LoadBalancingMessageProducer implements StreamingMessageProducer {
+
+    public void init (Map<String, String> initializationMap) throws Exception {
+        final String eLabel = "LoadBalancingMessageProducer.init: ";
+        try {
+            if (!initializationMap.containsKey(TARGETS_PARAMETER)) throw new Exception("Initialization parameter missing: " + TARGETS_PARAMETER);
+            String[] fields;
+            double weight;
+            for (String target : initializationMap.get(TARGETS_PARAMETER).split(",")) {
+                if (target.trim().isEmpty()) continue;
+                fields = target.split(":");
+                weight = (fields.length > 1) ? Double.parseDouble(fields[1].trim()) : 1.0;
+                if (!(weight > 0) || Double.isInfinite(weight)) throw new Exception("Invalid weight for target: " + target);
+                members.add(new Member(fields[0].trim(), weight));
+            }
+            if (members.isEmpty()) throw new Exception("No targets specified");
+            String value = initializationMap.get(STRATEGY_PARAMETER);
+            if (value == null || value.equalsIgnoreCase(STRATEGY_WEIGHTED)) {
+                strategy = STRATEGY_WEIGHTED;
+            } else if (value.equalsIgnoreCase(STRATEGY_LEAST_OUTSTANDING)) {
+                strategy = STRATEGY_LEAST_OUTSTANDING;
+            } else if (value.equalsIgnoreCase(STRATEGY_EWMA)) {
+                strategy = STRATEGY_EWMA;
+            } else {
+                throw new Exception("Unknown strategy: " + value);
+            }
+            value = initializationMap.get(FAILURE_THRESHOLD_PARAMETER);
+            if (value != null) failureThreshold = Integer.parseInt(value);
+            value = initializationMap.get(EJECTION_TIME_PARAMETER);
+            if (value != null) ejectionTime = Long.parseLong(value);
+            value = initializationMap.get(FAILOVER_PARAMETER);
+            if (value != null) failover = value.equalsIgnoreCase("true");
+            value = initializationMap.get(PROBE_SHARE_PARAMETER);
+            if (value != null) probeShare = Double.parseDouble(value);
+            if (!(probeShare >= 0 && probeShare <= 1)) throw new Exception("Invalid " + PROBE_SHARE_PARAMETER + ": " + value);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Resolve the member targets by name, called once all producer targets are loaded
+     *
+     * @param targetsMap The producer targets by name
+     * @throws Exception
+     */
+    public void resolveTargets (Map<String, ProducerTarget> targetsMap) throws Exception {
+        final String eLabel = "LoadBalancingMessageProducer.resolveTargets: ";
+        try {
+            ProducerTarget target;
+            for (Member member : members) {
+                target = targetsMap.get(member.name);
+                if (target == null) throw new Exception("Target does not exist: " + member.name);
+                if (target.isLocal() || target.getMessageProducer() == null) throw new Exception("Local targets can not be load balanced: " + member.name);
+                if (target.getMessageProducer() instanceof LoadBalancingMessageProducer) throw new Exception("Load balancing targets can not be nested: " + member.name);
+                member.producer = target.getMessageProducer();
+            }
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    public void sendMessage (String message, Map<String, List<String>> attributeMap, OutputStream os) throws Exception {
+        final String eLabel = "LoadBalancingMessageProducer.sendMessage: ";
+        List<Member> tried = new ArrayList<Member>();
+        Exception lastException = null;
+        Member member;
+        CountingOutputStream countingOutputStream;
+        long start;
+        while ((member = select(tried)) != null) {
+            tried.add(member);
+            countingOutputStream = new CountingOutputStream(os);
+            member.outstanding.incrementAndGet();
+            start = System.nanoTime();
+            try {
+                if (member.producer instanceof StreamingMessageProducer) {
+                    ((StreamingMessageProducer)member.producer).sendMessage(message, attributeMap, countingOutputStream);
+                } else {
+                    String response = member.producer.sendMessage(message, attributeMap);
+                    if (response == null) {
+                        new XSTROMAResponseWriter("servicebroker", new NyxletSession(attributeMap, null, countingOutputStream)).writeResponse("");
+                    } else {
+                        countingOutputStream.write(response.getBytes());
+                    }
+                }
+                member.succeeded(System.nanoTime() - start);
+                return;
+            } catch (Exception e) {
+                member.failed(failureThreshold, ejectionTime);
+                lastException = e;
+                // Once part of a response is written it can not be taken back
+                if (!failover || countingOutputStream.count > 0) break;
+            } finally {
+                member.outstanding.decrementAndGet();
+            }
+        }
+        throw new Exception(eLabel + lastException);
+    }
+
+    public String sendMessage (String message, Map<String, List<String>> attributeMap) throws Exception {
+        throw new UnsupportedOperationException("Please use the sendMessage implementation from StreamingMessageProducer");
+    }
+
+    /**
+     * Select the next target, skipping the ones already tried
+     *
+     * @param tried The targets already tried for this message
+     * @return The target, null if there are no more
+     */
+    private Member select (List<Member> tried) {
+        long now = System.currentTimeMillis();
+        List<Member> candidates = new ArrayList<Member>(members.size());
+        for (Member member : members) {
+            if (!tried.contains(member) && member.ejectedUntil <= now) candidates.add(member);
+        }
+        if (candidates.isEmpty()) {
+            // Everything left is ejected, better to try than to fail outright
+            for (Member member : members) {
+                if (!tried.contains(member)) candidates.add(member);
+            }
+            if (candidates.isEmpty()) return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (strategy.equals(STRATEGY_WEIGHTED)) {
+            double total = 0;
+            for (Member member : candidates) total += member.weight;
+            double draw = random.nextDouble() * total;
+            for (Member member : candidates) {
+                if (draw < member.weight) return member;
+                draw -= member.weight;
+            }
+            return candidates.get(candidates.size() - 1);
+        }
+        // Probe, so the latency of every target keeps being measured
+        if (strategy.equals(STRATEGY_EWMA) && candidates.size() > 1 && random.nextDouble() < probeShare) {
+            return candidates.get(random.nextInt(candidates.size()));
+        }
+        // Lowest score wins, start at a random offset so ties are spread out
+        int offset = random.nextInt(candidates.size());
+        Member selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        Member member;
+        double score;
+        for (int i = 0; i < candidates.size(); i++) {
+            member = candidates.get((i + offset) % candidates.size());
+            score = (member.outstanding.get() + 1) / member.weight;
+            if (strategy.equals(STRATEGY_EWMA)) score *= member.latencyEWMA + 1;
+            if (score < selectedScore) {
+                selected = member;
+                selectedScore = score;
+            }
+        }
+        return selected;
+    }
+
+    public void destroy () throws Exception {
+        // The member targets are destroyed as targets of their own
+    }
+
+    /**
+     * @return true if at least one target is not ejected and healthy
+     */
+    public boolean isHealthy () throws Exception {
+        long now = System.currentTimeMillis();
+        for (Member member : members) {
+            if (member.ejectedUntil <= now && member.producer != null && member.producer.isHealthy()) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString () {
+        StringBuilder sb = new StringBuilder(strategy).append(" [");
+        for (int i = 0; i < members.size(); i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(members.get(i));
+        }
+        return sb.append("]").toString();
+    }
+
+    private static class Member {
+
+        Member (String name, double weight) {
+            this.name = name;
+            this.weight = weight;
+        }
+
+        void succeeded (long nanos) {
+            consecutiveFailures.set(0);
+            // Not atomic, an occasional lost update does not matter for an average
+            latencyEWMA += EWMA_WEIGHT * ((nanos / 1000000.0) - latencyEWMA);
+        }
+
+        void failed (int failureThreshold, long ejectionTime) {
+            if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                consecutiveFailures.set(0);
+                ejectedUntil = System.currentTimeMillis() + ejectionTime;
+            }
+        }
+
+        @Override
+        public String toString () {
+            return new StringBuilder(name).append(":").append(weight).append(" outstanding=").append(outstanding.get())
+                    .append(" latency=").append((long)latencyEWMA).append("ms").append((ejectedUntil > System.currentTimeMillis()) ? " ejected" : "").toString();
+        }
+
+        final String name;
+        final double weight;
+        MessageProducer producer;
+        final AtomicInteger outstanding = new AtomicInteger();
+        final AtomicInteger consecutiveFailures = new AtomicInteger();
+        volatile double latencyEWMA = 0;
+        volatile long ejectedUntil = 0;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        CountingOutputStream (OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write (int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long count = 0;
+    }
+
+    private final List<Member> members = new ArrayList<Member>();
+    private String strategy;
+    private int failureThreshold = 3;
+    private long ejectionTime = 30000;
+    private boolean failover = true;
+    private double probeShare = 0.02;
+    private static final double EWMA_WEIGHT                 = 0.2;
+    public static final String TARGETS_PARAMETER            = "targets";
+    public static final String STRATEGY_PARAMETER           = "strategy";
+    public static final String FAILURE_THRESHOLD_PARAMETER  = "failure_threshold";
+    public static final String EJECTION_TIME_PARAMETER      = "ejection_time";
+    public static final String FAILOVER_PARAMETER           = "failover";
+    public static final String PROBE_SHARE_PARAMETER        = "probe_share";
+    public static final String STRATEGY_WEIGHTED            = "weighted";
+    public static final String STRATEGY_LEAST_OUTSTANDING   = "least_outstanding";
+    public static final String STRATEGY_EWMA                = "ewma";
+}
@@ -37,6 +37,7 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.cyclades.engine.nyxlet.templates.xstroma.ServiceBrokerNyxletImpl;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.api.MessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.impl.LoadBalancingMessageProducer;
 import org.cyclades.engine.util.MapHelper;
 import org.cyclades.engine.NyxletSession;
 
@@ -165,6 +166,10 @@ public class ProducerTarget {
      * 
      * {"target":"localhost","aliases":["sample_alias_1","sample_alias_2"]}
      *
+     * Load balancing across other targets (by name):
+     *
+     * {"target":"cluster","class":"org.cyclades.engine.nyxlet.templates.xstroma.message.impl.LoadBalancingMessageProducer","target_init_data":{"targets":"node_1:2,node_2","strategy":"least_outstanding"}}
+     *
      * @param producerJSONObjectTargets JSONObject list of targets
      * @param producerJSONObjectTargetAliases JSONObject list of target aliases
      * @return map of ProducerTargets
@@ -196,6 +201,12 @@ public class ProducerTarget {
                 }
                 targetsMap.put(target.getString("target"), new ProducerTarget(targetauthenticationData, forwardUserData, className, targetInitJSONObject, isLocal, service));
             }
+            // Resolve load balancing targets, now that every target they can refer to is loaded
+            for (ProducerTarget producerTarget : targetsMap.values()) {
+                if (producerTarget.getMessageProducer() instanceof LoadBalancingMessageProducer) {
+                    ((LoadBalancingMessageProducer)producerTarget.getMessageProducer()).resolveTargets(targetsMap);
+                }
+            }
             // Load producer target aliases
             String targetName;
             JSONArray targetAliasArray;
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.stroma;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.cyclades.engine.MetaTypeEnum;
+
+/**
+ * The output of the previous step of a chained orchestration, as handed to the next step.
+ *
+ * This is a read only view of the previous step's output, no copy of it is made and it is only
+ * parsed into a STROMAResponse if asked for. The view is valid for the duration of the step it is
+ * handed to, the underlying buffer is reused for later steps. Use toByteArray to keep the data
+ * beyond that.
+ */
+public class ChainingPort {
+
+    public ChainingPort (ByteBuffer data) {
+        this.data = data.slice().asReadOnlyBuffer();
+    }
+
+    public ChainingPort (byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * @return the number of bytes in the port
+     */
+    public int size () {
+        return data.limit();
+    }
+
+    public boolean isEmpty () {
+        return (data.limit() == 0);
+    }
+
+    /**
+     * Get a read only view of the port data
+     *
+     * @return ByteBuffer positioned at 0, independent of any other view
+     */
+    public ByteBuffer getByteBuffer () {
+        return data.duplicate();
+    }
+
+    /**
+     * Get an InputStream over the port data
+     *
+     * @return InputStream, independent of any other view
+     */
+    public InputStream getInputStream () {
+        return new ByteBufferInputStream(data.duplicate());
+    }
+
+    /**
+     * Get a copy of the port data
+     *
+     * @return byte[]
+     */
+    public byte[] toByteArray () {
+        byte[] copy = new byte[data.limit()];
+        data.duplicate().get(copy);
+        return copy;
+    }
+
+    /**
+     * Parse the port data as a STROMAResponse, parsing happens once on the first call
+     *
+     * @param metaTypeEnum  The meta type of the port data
+     * @return the STROMAResponse, null if the port is empty
+     * @throws Exception
+     */
+    public STROMAResponse getSTROMAResponse (MetaTypeEnum metaTypeEnum) throws Exception {
+        final String eLabel = "ChainingPort.getSTROMAResponse: ";
+        try {
+            if (isEmpty()) return null;
+            if (stromaResponse == null || stromaResponseMetaTypeEnum != metaTypeEnum) {
+                stromaResponse = new STROMAResponse(metaTypeEnum.createObjectFromMeta(getInputStream()));
+                stromaResponseMetaTypeEnum = metaTypeEnum;
+            }
+            return stromaResponse;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        ByteBufferInputStream (ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read () throws IOException {
+            return (buffer.hasRemaining()) ? (buffer.get() & 0xFF) : -1;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public int available () throws IOException {
+            return buffer.remaining();
+        }
+
+        private final ByteBuffer buffer;
+    }
+
+    private final ByteBuffer data;
+    private STROMAResponse stromaResponse = null;
+    private MetaTypeEnum stromaResponseMetaTypeEnum = null;
+}
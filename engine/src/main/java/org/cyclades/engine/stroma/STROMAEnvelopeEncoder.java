@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.stroma;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.json.JSONObject;
+
+/**
+ * Byte level encoder for the STROMA/X-STROMA response envelope (error-code, service, action,
+ * transaction-data, duration etc.).
+ *
+ * The response writers used to write every token of the envelope as its own String, each one
+ * turned into a fresh byte array and pushed to the OutputStream separately. Here the constant
+ * parts of the envelope are encoded once (see "fragment") and the envelope is assembled in a
+ * reusable per thread byte buffer, with the dynamic values escaped straight into that buffer. The
+ * assembled bytes then go to the OutputStream in a single write.
+ *
+ * The output is byte for byte what the previous String based code produced: JSON values are
+ * quoted exactly like JSONObject.quote, XML values are escaped exactly like
+ * StringEscapeUtils.escapeXml and text is encoded with the platform default charset, as
+ * String.getBytes() did.
+ *
+ * Obtain an encoder with "getEncoder" and hand its contents off with "writeTo" before the thread
+ * asks for the encoder again, it is reset on every call to "getEncoder".
+ */
+public class STROMAEnvelopeEncoder {
+
+    /**
+     * Get this thread's encoder, empty
+     *
+     * @return STROMAEnvelopeEncoder
+     */
+    public static STROMAEnvelopeEncoder getEncoder () {
+        STROMAEnvelopeEncoder encoder = encoderThreadLocal.get();
+        if (encoder == null) {
+            encoder = new STROMAEnvelopeEncoder();
+            encoderThreadLocal.set(encoder);
+        } else {
+            encoder.reset();
+        }
+        return encoder;
+    }
+
+    /**
+     * Pre encode a constant envelope fragment
+     *
+     * @param fragment The constant text
+     * @return The encoded bytes
+     */
+    public static byte[] fragment (String fragment) {
+        return fragment.getBytes();
+    }
+
+    /**
+     * Append a pre encoded fragment
+     *
+     * @param fragment Bytes obtained from "fragment"
+     * @return this
+     */
+    public STROMAEnvelopeEncoder append (byte[] fragment) {
+        ensureCapacity(fragment.length);
+        System.arraycopy(fragment, 0, buffer, count, fragment.length);
+        count += fragment.length;
+        return this;
+    }
+
+    /**
+     * Append a value as is, no escaping
+     *
+     * @param value The value to append
+     * @return this
+     */
+    public STROMAEnvelopeEncoder append (String value) {
+        if (!ASCII_COMPATIBLE) return append(value.getBytes());
+        final int length = value.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer[count++] = (byte)c;
+            } else {
+                i = appendNonASCII(value, i, false) - 1;
+                ensureCapacity(length - i);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append a decimal number
+     *
+     * @param value The value to append
+     * @return this
+     */
+    public STROMAEnvelopeEncoder append (long value) {
+        if (value < 0 || !ASCII_COMPATIBLE) return append(String.valueOf(value));
+        ensureCapacity(MAX_LONG_DIGITS);
+        int digits = 1;
+        for (long remaining = value / 10; remaining > 0; remaining /= 10) digits++;
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte)('0' + (value % 10));
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    /**
+     * Append a value as a quoted JSON string, identical to what JSONObject.quote produces
+     *
+     * @param value The value to quote, null is quoted as an empty string
+     * @return this
+     */
+    public STROMAEnvelopeEncoder appendJSONQuoted (String value) {
+        if (!ASCII_COMPATIBLE) return append(JSONObject.quote(value));
+        ensureCapacity(2);
+        buffer[count++] = '"';
+        if (value != null) {
+            final int length = value.length();
+            char previous;
+            char c = 0;
+            for (int i = 0; i < length; i++) {
+                previous = c;
+                c = value.charAt(i);
+                // Worst case is a \\uXXXX escape
+                ensureCapacity(7);
+                switch (c) {
+                case '\\':
+                case '"':
+                    buffer[count++] = '\\';
+                    buffer[count++] = (byte)c;
+                    break;
+                case '/':
+                    if (previous == '<') buffer[count++] = '\\';
+                    buffer[count++] = '/';
+                    break;
+                case '\b':
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'b';
+                    break;
+                case '\t':
+                    buffer[count++] = '\\';
+                    buffer[count++] = 't';
+                    break;
+                case '\n':
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'n';
+                    break;
+                case '\f':
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'f';
+                    break;
+                case '\r':
+                    buffer[count++] = '\\';
+                    buffer[count++] = 'r';
+                    break;
+                default:
+                    if (isJSONUnicodeEscaped(c)) {
+                        buffer[count++] = '\\';
+                        buffer[count++] = 'u';
+                        buffer[count++] = HEX_DIGITS[(c >> 12) & 0xF];
+                        buffer[count++] = HEX_DIGITS[(c >> 8) & 0xF];
+                        buffer[count++] = HEX_DIGITS[(c >> 4) & 0xF];
+                        buffer[count++] = HEX_DIGITS[c & 0xF];
+                    } else if (c < 0x80) {
+                        buffer[count++] = (byte)c;
+                    } else {
+                        i = appendNonASCII(value, i, true) - 1;
+                        c = value.charAt(i);
+                    }
+                }
+            }
+        }
+        ensureCapacity(1);
+        buffer[count++] = '"';
+        return this;
+    }
+
+    /**
+     * Append a value escaped for XML, identical to what StringEscapeUtils.escapeXml produces
+     *
+     * @param value The value to escape
+     * @return this
+     */
+    public STROMAEnvelopeEncoder appendXMLEscaped (String value) {
+        if (!ASCII_COMPATIBLE) return append(StringEscapeUtils.escapeXml(value));
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                append(XML_QUOT);
+                break;
+            case '&':
+                append(XML_AMP);
+                break;
+            case '<':
+                append(XML_LT);
+                break;
+            case '>':
+                append(XML_GT);
+                break;
+            case '\'':
+                append(XML_APOS);
+                break;
+            default:
+                if (c > 0x7F) {
+                    // Numeric character reference, one per UTF-16 unit
+                    ensureCapacity(2);
+                    buffer[count++] = '&';
+                    buffer[count++] = '#';
+                    append((long)c);
+                    ensureCapacity(1);
+                    buffer[count++] = ';';
+                } else {
+                    ensureCapacity(1);
+                    buffer[count++] = (byte)c;
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Write the contents of this encoder to the OutputStream and reset it
+     *
+     * @param outputStream The target OutputStream
+     * @throws IOException
+     */
+    public void writeTo (OutputStream outputStream) throws IOException {
+        try {
+            if (count > 0) outputStream.write(buffer, 0, count);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * @return The number of bytes currently held
+     */
+    public int size () {
+        return count;
+    }
+
+    private void reset () {
+        count = 0;
+        // Do not let an occasional huge envelope (e.g. a long error message) pin memory to the thread
+        if (buffer.length > MAX_RETAINED_CAPACITY) buffer = new byte[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Append the run of non ASCII characters starting at "start" that do not need escaping. Only this
+     * run goes through the platform charset, keeping surrogate pairs together.
+     *
+     * @return The index after the run
+     */
+    private int appendNonASCII (String value, int start, boolean json) {
+        int end = start + 1;
+        while (end < value.length()) {
+            char c = value.charAt(end);
+            if (c < 0x80 || (json && isJSONUnicodeEscaped(c))) break;
+            end++;
+        }
+        append(value.substring(start, end).getBytes());
+        return end;
+    }
+
+    private static boolean isJSONUnicodeEscaped (char c) {
+        return (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100'));
+    }
+
+    private void ensureCapacity (int additional) {
+        if (count + additional <= buffer.length) return;
+        byte[] grown = new byte[Math.max(buffer.length << 1, count + additional)];
+        System.arraycopy(buffer, 0, grown, 0, count);
+        buffer = grown;
+    }
+
+    private static boolean isASCIICompatible () {
+        final String ascii = " !\"#&'/0123456789:;<=>ABCXYZ[\\]abcxyz{}";
+        byte[] encoded = ascii.getBytes();
+        if (encoded.length != ascii.length()) return false;
+        for (int i = 0; i < encoded.length; i++) {
+            if (encoded[i] != ascii.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+    private static final int MAX_LONG_DIGITS = 19;
+    private static final boolean ASCII_COMPATIBLE = isASCIICompatible();
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+    private static final byte[] XML_QUOT = fragment("&quot;");
+    private static final byte[] XML_AMP = fragment("&amp;");
+    private static final byte[] XML_LT = fragment("&lt;");
+    private static final byte[] XML_GT = fragment("&gt;");
+    private static final byte[] XML_APOS = fragment("&apos;");
+    private static final ThreadLocal<STROMAEnvelopeEncoder> encoderThreadLocal = new ThreadLocal<STROMAEnvelopeEncoder>();
+}
@@ -30,7 +30,6 @@ package org.cyclades.engine.stroma;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Vector;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.util.MapHelper;
 import org.w3c.dom.Node;
@@ -67,9 +66,8 @@ public class STROMARequestParameterAggregate {
             Object baseParameters = null;
             switch (nyxletSession.getMetaTypeEnum()) {
             case XML:
-                @SuppressWarnings("unchecked")
-                Vector<Node> results = XMLComparitor.getMatchingChildNodes((Node)nyxletSession.getDataObject(), BASE_PARAMETERS);
-                if (results.size() > 0) baseParameters = results.firstElement().getChildNodes();
+                Node parametersNode = XMLComparitor.getFirstMatchingChildNode((Node)nyxletSession.getDataObject(), BASE_PARAMETERS);
+                if (parametersNode != null) baseParameters = parametersNode.getChildNodes();
                 break;
             case JSON:
                 try {
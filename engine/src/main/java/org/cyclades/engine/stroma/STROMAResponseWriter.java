@@ -33,14 +33,13 @@ import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import javax.xml.stream.XMLOutputFactory;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.codehaus.jettison.badgerfish.BadgerFishXMLStreamWriter;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.util.MapHelper;
+import org.cyclades.xml.XMLFactories;
 import org.cyclades.xml.XXMLStreamWriter;
-import org.json.JSONObject;
 
 public class STROMAResponseWriter {
 
@@ -148,9 +147,7 @@ public class STROMAResponseWriter {
         try {
             checkAndSetResponseInFlight();
             if (isXML) {
-                final XMLOutputFactory f = XMLOutputFactory.newInstance();
-                f.setProperty("javax.xml.stream.isRepairingNamespaces", Boolean.TRUE);
-                xxmlStreamWriter = new XXMLStreamWriter(f.createXMLStreamWriter(outputStream));
+                xxmlStreamWriter = new XXMLStreamWriter(XMLFactories.getXMLOutputFactory().createXMLStreamWriter(outputStream));
                 writeXMLResponsePreMeta(null, 0);
             } else {
                 isJSONStreamWriter = true;
@@ -305,52 +302,23 @@ public class STROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeJSONResponsePreMeta: ";
         try {
             if (rawResponseRequested) return;
-            write("{\"");
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
             // Error needs to be first (optimal and predictable error peeking)
-            write(ERROR_CODE_ATTRIBUTE);
             if (error < 1) {
-                write("\":\"0\",\"");
+                encoder.append(JSON_NO_ERROR_SERVICE);
             } else {
-                write("\":\"");
-                write(String.valueOf(error));
-                write("\",\"");
-                write(ERROR_MESSAGE_ATTRIBUTE);
-                write("\":");
-                write(JSONObject.quote(content));
-                write(",\"");
+                encoder.append(JSON_ERROR_CODE).append(error).append(JSON_ERROR_MESSAGE).appendJSONQuoted(content).append(JSON_ERROR_SERVICE);
             }
-            write(SERVICE_ATTRIBUTE);
-            write("\":\"");
-            write(serviceName);
-            write("\""); 
+            encoder.append(serviceName).append(JSON_END_QUOTE);
             // Do not print out this field if null
-            if (serviceAgent != null) {
-                write(",\"");
-                write(NyxletSession.SERVICE_AGENT_PARAMETER);
-                write("\":");
-                write(JSONObject.quote(serviceAgent));
-            }
+            if (serviceAgent != null) encoder.append(JSON_SERVICE_AGENT).appendJSONQuoted(serviceAgent);
             // Do not print out this field if null
-            if (action != null) {
-                write(",\"");
-                write(ACTION_ATTRIBUTE);
-                write("\":\"");
-                write(action);
-                write("\"");
-            }
+            if (action != null) encoder.append(JSON_ACTION).append(action).append(JSON_END_QUOTE);
             // Do not print out this field if null
-            if (transactionData != null) {
-                write(",\"");
-                write(TRANSACTION_DATA_ATTRIBUTE);
-                write("\":");
-                write(JSONObject.quote(transactionData));
-            }
-            if (error < 1) {
-                write(",\"");
-                write(DATA_ATTRIBUTE);
-                write("\":");
-                // XXX - content would go here
-            }
+            if (transactionData != null) encoder.append(JSON_TRANSACTION_DATA).appendJSONQuoted(transactionData);
+            // XXX - content would go after this
+            if (error < 1) encoder.append(JSON_DATA);
+            encoder.writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -360,20 +328,10 @@ public class STROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeJSONResponsePostMeta: ";
         try {
             if (rawResponseRequested) return;
-            if (responseParameterMap != null) {
-                write(",\"");
-                write(PARAMETERS_ATTRIBUTE);
-                write("\":");
-                write(MapHelper.parameterMapToJSON(responseParameterMap));
-            }
-            if (durationRequested) {
-                write(",\"");
-                write(DURATION_ATTRIBUTE);
-                write("\":\"");
-                write(String.valueOf((System.currentTimeMillis() - durationStart)));
-                write("\"");
-            }
-            write("}");
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            if (responseParameterMap != null) encoder.append(JSON_PARAMETERS).append(MapHelper.parameterMapToJSON(responseParameterMap));
+            if (durationRequested) encoder.append(JSON_DURATION).append(System.currentTimeMillis() - durationStart).append(JSON_END_QUOTE);
+            encoder.append(JSON_END_OBJECT).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -383,26 +341,25 @@ public class STROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeXMLResponsePreMeta: ";
         try {
             if (rawResponseRequested) return;
-            write("<");
-            write(RESPONSE_ATTRIBUTE);
-            write(" ");
-            writeXMLAttribute(SERVICE_ATTRIBUTE, serviceName, true);
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            encoder.append(XML_SERVICE).appendXMLEscaped(serviceName).append(XML_END_ATTRIBUTE);
+            // These attribute values have always been escaped twice, keep the output as it was
             if (serviceAgent != null) {
-                writeXMLAttribute(NyxletSession.SERVICE_AGENT_PARAMETER, StringEscapeUtils.escapeXml(serviceAgent), true);
+                encoder.append(XML_SERVICE_AGENT).appendXMLEscaped(StringEscapeUtils.escapeXml(serviceAgent)).append(XML_END_ATTRIBUTE);
             }
             if (action != null) {
-                writeXMLAttribute(ACTION_ATTRIBUTE, action, true);
+                encoder.append(XML_ACTION).appendXMLEscaped(action).append(XML_END_ATTRIBUTE);
             }
             if (transactionData != null) {
-                writeXMLAttribute(TRANSACTION_DATA_ATTRIBUTE, StringEscapeUtils.escapeXml(transactionData), true);
+                encoder.append(XML_TRANSACTION_DATA).appendXMLEscaped(StringEscapeUtils.escapeXml(transactionData)).append(XML_END_ATTRIBUTE);
             }
             if (error < 1) {
-                writeXMLAttribute(ERROR_CODE_ATTRIBUTE, "0", false);
+                encoder.append(XML_NO_ERROR);
             } else {
-                writeXMLAttribute(ERROR_MESSAGE_ATTRIBUTE, StringEscapeUtils.escapeXml(content), true);
-                writeXMLAttribute(ERROR_CODE_ATTRIBUTE, String.valueOf(error), false);
+                encoder.append(XML_ERROR_MESSAGE).appendXMLEscaped(StringEscapeUtils.escapeXml(content)).append(XML_END_ATTRIBUTE);
+                encoder.append(XML_ERROR_CODE).append(error).append(XML_END_START_TAG);
             }
-            write(">");
+            encoder.writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -412,32 +369,14 @@ public class STROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeXMLResponsePostMeta: ";
         try {
             if (rawResponseRequested) return;
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
             if (responseParameterMap != null) {
-                write("<"); write(PARAMETERS_ATTRIBUTE); write(">");
-                write(MapHelper.parameterMapToXML(responseParameterMap, "parameter"));
-                write("</"); write(PARAMETERS_ATTRIBUTE); write(">");
+                encoder.append(XML_PARAMETERS_START).append(MapHelper.parameterMapToXML(responseParameterMap, "parameter")).append(XML_PARAMETERS_END);
             }
             if (durationRequested) {
-                write("<"); write(DURATION_ATTRIBUTE); write(" ");
-                writeXMLAttribute("val", String.valueOf((System.currentTimeMillis() - durationStart)), false);
-                write("/>");
+                encoder.append(XML_DURATION).append(System.currentTimeMillis() - durationStart).append(XML_END_EMPTY_TAG);
             }
-            write("</");
-            write(RESPONSE_ATTRIBUTE);
-            write(">");
-        } catch (Exception e) {
-            throw new Exception(eLabel + e);
-        }
-    }
-
-    private void writeXMLAttribute (String name, String value, boolean withSpaceAfter) throws Exception {
-        final String eLabel = "STROMAResponseWriter.writeXMLAttribute: ";
-        try {
-            write(name);
-            write("=\"");
-            write(StringEscapeUtils.escapeXml(value));
-            write("\"");
-            if (withSpaceAfter) write(" ");
+            encoder.append(XML_RESPONSE_END).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -475,5 +414,32 @@ public class STROMAResponseWriter {
     private final static String TRANSACTION_DATA_ATTRIBUTE  = "transaction-data";
     private final static String PARAMETERS_ATTRIBUTE        = "parameters";
     private final static String DURATION_ATTRIBUTE          = "duration";
+    // Pre encoded envelope fragments, see STROMAEnvelopeEncoder
+    private final static byte[] JSON_NO_ERROR_SERVICE       = STROMAEnvelopeEncoder.fragment("{\"" + ERROR_CODE_ATTRIBUTE + "\":\"0\",\"" + SERVICE_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_ERROR_CODE             = STROMAEnvelopeEncoder.fragment("{\"" + ERROR_CODE_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_ERROR_MESSAGE          = STROMAEnvelopeEncoder.fragment("\",\"" + ERROR_MESSAGE_ATTRIBUTE + "\":");
+    private final static byte[] JSON_ERROR_SERVICE          = STROMAEnvelopeEncoder.fragment(",\"" + SERVICE_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_SERVICE_AGENT          = STROMAEnvelopeEncoder.fragment(",\"" + NyxletSession.SERVICE_AGENT_PARAMETER + "\":");
+    private final static byte[] JSON_ACTION                 = STROMAEnvelopeEncoder.fragment(",\"" + ACTION_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_TRANSACTION_DATA       = STROMAEnvelopeEncoder.fragment(",\"" + TRANSACTION_DATA_ATTRIBUTE + "\":");
+    private final static byte[] JSON_DATA                   = STROMAEnvelopeEncoder.fragment(",\"" + DATA_ATTRIBUTE + "\":");
+    private final static byte[] JSON_PARAMETERS             = STROMAEnvelopeEncoder.fragment(",\"" + PARAMETERS_ATTRIBUTE + "\":");
+    private final static byte[] JSON_DURATION               = STROMAEnvelopeEncoder.fragment(",\"" + DURATION_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_END_QUOTE              = STROMAEnvelopeEncoder.fragment("\"");
+    private final static byte[] JSON_END_OBJECT             = STROMAEnvelopeEncoder.fragment("}");
+    private final static byte[] XML_SERVICE                 = STROMAEnvelopeEncoder.fragment("<" + RESPONSE_ATTRIBUTE + " " + SERVICE_ATTRIBUTE + "=\"");
+    private final static byte[] XML_SERVICE_AGENT           = STROMAEnvelopeEncoder.fragment(NyxletSession.SERVICE_AGENT_PARAMETER + "=\"");
+    private final static byte[] XML_ACTION                  = STROMAEnvelopeEncoder.fragment(ACTION_ATTRIBUTE + "=\"");
+    private final static byte[] XML_TRANSACTION_DATA        = STROMAEnvelopeEncoder.fragment(TRANSACTION_DATA_ATTRIBUTE + "=\"");
+    private final static byte[] XML_ERROR_MESSAGE           = STROMAEnvelopeEncoder.fragment(ERROR_MESSAGE_ATTRIBUTE + "=\"");
+    private final static byte[] XML_ERROR_CODE              = STROMAEnvelopeEncoder.fragment(ERROR_CODE_ATTRIBUTE + "=\"");
+    private final static byte[] XML_NO_ERROR                = STROMAEnvelopeEncoder.fragment(ERROR_CODE_ATTRIBUTE + "=\"0\">");
+    private final static byte[] XML_END_ATTRIBUTE           = STROMAEnvelopeEncoder.fragment("\" ");
+    private final static byte[] XML_END_START_TAG           = STROMAEnvelopeEncoder.fragment("\">");
+    private final static byte[] XML_END_EMPTY_TAG           = STROMAEnvelopeEncoder.fragment("\"/>");
+    private final static byte[] XML_PARAMETERS_START        = STROMAEnvelopeEncoder.fragment("<" + PARAMETERS_ATTRIBUTE + ">");
+    private final static byte[] XML_PARAMETERS_END          = STROMAEnvelopeEncoder.fragment("</" + PARAMETERS_ATTRIBUTE + ">");
+    private final static byte[] XML_DURATION                = STROMAEnvelopeEncoder.fragment("<" + DURATION_ATTRIBUTE + " val=\"");
+    private final static byte[] XML_RESPONSE_END            = STROMAEnvelopeEncoder.fragment("</" + RESPONSE_ATTRIBUTE + ">");
     
 }
@@ -35,8 +35,8 @@ import java.util.Map;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.stroma.STROMAEnvelopeEncoder;
 import org.cyclades.engine.util.MapHelper;
-import org.json.JSONObject;
 
 public class XSTROMAResponseWriter {
 
@@ -160,29 +160,11 @@ public class XSTROMAResponseWriter {
         final String eLabel = "XSTROMAResponseWriter.writeJSONResponsePreMeta: ";
         if (omitPrefix) return;
         try {
-            write("{\"");
-            write(ERROR_CODE_ATTRIBUTE);
-            write("\":\"0\",\"");
-            write(SERVICE_ATTRIBUTE);
-            write("\":\"");
-            write(serviceName);
-            write("\",\"");
-            if (serviceAgent != null) {
-                write(NyxletSession.SERVICE_AGENT_PARAMETER);
-                write("\":");
-                write(JSONObject.quote(serviceAgent));
-                write(",\"");
-            }
-            if (transactionData != null) {
-                write(TRANSACTION_DATA_ATTRIBUTE);
-                write("\":");
-                write(JSONObject.quote(transactionData));
-                write(",\"");
-            }
-            write(DATA_ATTRIBUTE);
-            write("\":{\"");
-            write(RESPONSES_ATTRIBUTE);
-            write("\":[");
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            encoder.append(JSON_SERVICE).append(serviceName).append(JSON_END_VALUE);
+            if (serviceAgent != null) encoder.append(JSON_SERVICE_AGENT).appendJSONQuoted(serviceAgent).append(JSON_NEXT_KEY);
+            if (transactionData != null) encoder.append(JSON_TRANSACTION_DATA).appendJSONQuoted(transactionData).append(JSON_NEXT_KEY);
+            encoder.append(JSON_RESPONSES).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -192,26 +174,12 @@ public class XSTROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeJSONResponsePostMeta: ";
         if (omitSuffix) return;
         try {
-            write("]}");
-            if (writeOrchestrationFault) {
-                write(",\"");
-                write(ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE);
-                write("\":\"true\"");
-            }
-            if (responseParameterMap != null) {
-                write(",\"");
-                write(PARAMETERS_ATTRIBUTE);
-                write("\":");
-                write(MapHelper.parameterMapToJSON(responseParameterMap));
-            }
-            if (durationRequested) {
-                write(",\"");
-                write(DURATION_ATTRIBUTE);
-                write("\":\"");
-                write(String.valueOf((System.currentTimeMillis() - durationStart)));
-                write("\"");
-            }
-            write("}");
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            encoder.append(JSON_END_RESPONSES);
+            if (writeOrchestrationFault) encoder.append(JSON_ORCHESTRATION_FAULT);
+            if (responseParameterMap != null) encoder.append(JSON_PARAMETERS).append(MapHelper.parameterMapToJSON(responseParameterMap));
+            if (durationRequested) encoder.append(JSON_DURATION).append(System.currentTimeMillis() - durationStart).append(JSON_END_QUOTE);
+            encoder.append(JSON_END_OBJECT).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -221,18 +189,16 @@ public class XSTROMAResponseWriter {
         final String eLabel = "XSTROMAResponseWriter.writeXMLResponsePreMeta: ";
         if (omitPrefix) return;
         try {
-            write("<");
-            write(RESPONSE_ATTRIBUTE);
-            write(" ");
-            writeXMLAttribute(SERVICE_ATTRIBUTE, serviceName, true);
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            encoder.append(XML_SERVICE).appendXMLEscaped(serviceName).append(XML_END_ATTRIBUTE);
+            // These attribute values have always been escaped twice, keep the output as it was
             if (serviceAgent != null) {
-                writeXMLAttribute(NyxletSession.SERVICE_AGENT_PARAMETER, StringEscapeUtils.escapeXml(serviceAgent), true);
+                encoder.append(XML_SERVICE_AGENT).appendXMLEscaped(StringEscapeUtils.escapeXml(serviceAgent)).append(XML_END_ATTRIBUTE);
             }
             if (transactionData != null) {
-                writeXMLAttribute(TRANSACTION_DATA_ATTRIBUTE, StringEscapeUtils.escapeXml(transactionData), true);
+                encoder.append(XML_TRANSACTION_DATA).appendXMLEscaped(StringEscapeUtils.escapeXml(transactionData)).append(XML_END_ATTRIBUTE);
             }
-            writeXMLAttribute(ERROR_CODE_ATTRIBUTE, "0", false);
-            write(">");
+            encoder.append(XML_NO_ERROR).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -242,37 +208,15 @@ public class XSTROMAResponseWriter {
         final String eLabel = "STROMAResponseWriter.writeXMLResponsePostMeta: ";
         if (omitSuffix) return;
         try {
-            if (writeOrchestrationFault) {
-                write("<");
-                write(ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE);
-                write("/>");
-            }
+            STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+            if (writeOrchestrationFault) encoder.append(XML_ORCHESTRATION_FAULT);
             if (responseParameterMap != null) {
-                write("<"); write(PARAMETERS_ATTRIBUTE); write(">");
-                write(MapHelper.parameterMapToXML(responseParameterMap, "parameter"));
-                write("</"); write(PARAMETERS_ATTRIBUTE); write(">");
+                encoder.append(XML_PARAMETERS_START).append(MapHelper.parameterMapToXML(responseParameterMap, "parameter")).append(XML_PARAMETERS_END);
             }
             if (durationRequested) {
-                write("<"); write(DURATION_ATTRIBUTE); write(" ");
-                writeXMLAttribute("val", String.valueOf((System.currentTimeMillis() - durationStart)), false);
-                write("/>");
+                encoder.append(XML_DURATION).append(System.currentTimeMillis() - durationStart).append(XML_END_EMPTY_TAG);
             }
-            write("</");
-            write(RESPONSE_ATTRIBUTE);
-            write(">");
-        } catch (Exception e) {
-            throw new Exception(eLabel + e);
-        }
-    }
-
-    private void writeXMLAttribute (String name, String value, boolean withSpaceAfter) throws Exception {
-        final String eLabel = "STROMAResponseWriter.writeXMLAttribute: ";
-        try {
-            write(name);
-            write("=\"");
-            write(StringEscapeUtils.escapeXml(value));
-            write("\"");
-            if (withSpaceAfter) write(" ");
+            encoder.append(XML_RESPONSE_END).writeTo(outputStream);
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
@@ -321,5 +265,29 @@ public class XSTROMAResponseWriter {
     private final static String PARAMETERS_ATTRIBUTE                        = "parameters";
     private final static String DURATION_ATTRIBUTE                          = "duration";
     private final static String TRANSACTION_DATA_ATTRIBUTE                  = "transaction-data";
+    // Pre encoded envelope fragments, see STROMAEnvelopeEncoder
+    private final static byte[] JSON_SERVICE                                = STROMAEnvelopeEncoder.fragment("{\"" + ERROR_CODE_ATTRIBUTE + "\":\"0\",\"" + SERVICE_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_END_VALUE                              = STROMAEnvelopeEncoder.fragment("\",\"");
+    private final static byte[] JSON_NEXT_KEY                               = STROMAEnvelopeEncoder.fragment(",\"");
+    private final static byte[] JSON_SERVICE_AGENT                          = STROMAEnvelopeEncoder.fragment(NyxletSession.SERVICE_AGENT_PARAMETER + "\":");
+    private final static byte[] JSON_TRANSACTION_DATA                       = STROMAEnvelopeEncoder.fragment(TRANSACTION_DATA_ATTRIBUTE + "\":");
+    private final static byte[] JSON_RESPONSES                              = STROMAEnvelopeEncoder.fragment(DATA_ATTRIBUTE + "\":{\"" + RESPONSES_ATTRIBUTE + "\":[");
+    private final static byte[] JSON_END_RESPONSES                          = STROMAEnvelopeEncoder.fragment("]}");
+    private final static byte[] JSON_ORCHESTRATION_FAULT                    = STROMAEnvelopeEncoder.fragment(",\"" + ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE + "\":\"true\"");
+    private final static byte[] JSON_PARAMETERS                             = STROMAEnvelopeEncoder.fragment(",\"" + PARAMETERS_ATTRIBUTE + "\":");
+    private final static byte[] JSON_DURATION                               = STROMAEnvelopeEncoder.fragment(",\"" + DURATION_ATTRIBUTE + "\":\"");
+    private final static byte[] JSON_END_QUOTE                              = STROMAEnvelopeEncoder.fragment("\"");
+    private final static byte[] JSON_END_OBJECT                             = STROMAEnvelopeEncoder.fragment("}");
+    private final static byte[] XML_SERVICE                                 = STROMAEnvelopeEncoder.fragment("<" + RESPONSE_ATTRIBUTE + " " + SERVICE_ATTRIBUTE + "=\"");
+    private final static byte[] XML_SERVICE_AGENT                           = STROMAEnvelopeEncoder.fragment(NyxletSession.SERVICE_AGENT_PARAMETER + "=\"");
+    private final static byte[] XML_TRANSACTION_DATA                        = STROMAEnvelopeEncoder.fragment(TRANSACTION_DATA_ATTRIBUTE + "=\"");
+    private final static byte[] XML_NO_ERROR                                = STROMAEnvelopeEncoder.fragment(ERROR_CODE_ATTRIBUTE + "=\"0\">");
+    private final static byte[] XML_END_ATTRIBUTE                           = STROMAEnvelopeEncoder.fragment("\" ");
+    private final static byte[] XML_END_EMPTY_TAG                           = STROMAEnvelopeEncoder.fragment("\"/>");
+    private final static byte[] XML_ORCHESTRATION_FAULT                     = STROMAEnvelopeEncoder.fragment("<" + ORCHESTRATION_FAULT_ENCOUNTERED_ATTRIBUTE + "/>");
+    private final static byte[] XML_PARAMETERS_START                        = STROMAEnvelopeEncoder.fragment("<" + PARAMETERS_ATTRIBUTE + ">");
+    private final static byte[] XML_PARAMETERS_END                          = STROMAEnvelopeEncoder.fragment("</" + PARAMETERS_ATTRIBUTE + ">");
+    private final static byte[] XML_DURATION                                = STROMAEnvelopeEncoder.fragment("<" + DURATION_ATTRIBUTE + " val=\"");
+    private final static byte[] XML_RESPONSE_END                            = STROMAEnvelopeEncoder.fragment("</" + RESPONSE_ATTRIBUTE + ">");
     
 }
@@ -0,0 +1,300 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread safe, bounded cache that can be shared across request threads without a global lock.
+ *
+ * Entries are spread over independently locked segments, each of which evicts in least recently
+ * used order, so eviction is LRU per segment (approximately LRU overall). Segments are only split off while each
+ * keeps at least MIN_SEGMENT_WEIGHT, so a small cache (under twice that) is a single, exact LRU. The cache is bounded by the total
+ * weight of its entries, which is the entry count unless a Weigher is given. Entries can optionally expire a fixed
+ * time after they were written or last accessed.
+ *
+ * Simple usage (a drop in for a synchronized LRUCache):
+ *
+ * ConcurrentCache<String, Object> cache = new ConcurrentCache<String, Object>(maxEntries);
+ */
+public class ConcurrentCache<K, V> {
+
+    /**
+     * Computes the weight of an entry, for caches bounded by something other than the entry count
+     */
+    public interface Weigher<K, V> {
+        /**
+         * @return The weight of this entry, must not be negative
+         */
+        public long weigh (K key, V value);
+    }
+
+    public ConcurrentCache (int maxEntries) {
+        this(maxEntries, null, DEFAULT_CONCURRENCY_LEVEL, 0, 0);
+    }
+
+    /**
+     * @param maxWeight                 The maximum total weight of the entries
+     * @param weigher                   The entry Weigher, null to weigh every entry as 1
+     * @param concurrencyLevel          The maximum number of segments to use, rounded up to a power of two (fewer are
+     *                                  used for small caches)
+     * @param expireAfterWriteMillis    Expire entries this long after they were written, 0 to disable
+     * @param expireAfterAccessMillis   Expire entries this long after they were last accessed, 0 to disable
+     */
+    public ConcurrentCache (long maxWeight, Weigher<? super K, ? super V> weigher, int concurrencyLevel,
+            long expireAfterWriteMillis, long expireAfterAccessMillis) {
+        if (maxWeight < 1) throw new IllegalArgumentException("maxWeight must be greater than 0: " + maxWeight);
+        this.weigher = weigher;
+        this.expireAfterWriteMillis = expireAfterWriteMillis;
+        this.expireAfterAccessMillis = expireAfterAccessMillis;
+        int segmentCount = 1;
+        // Small segments evict almost at random, only split while each segment keeps MIN_SEGMENT_WEIGHT
+        while (segmentCount < concurrencyLevel && segmentCount * 2L * MIN_SEGMENT_WEIGHT <= maxWeight) segmentCount <<= 1;
+        segmentMask = segmentCount - 1;
+        segments = new ArrayList<Segment>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments.add(new Segment((maxWeight / segmentCount) + ((i < maxWeight % segmentCount) ? 1 : 0)));
+        }
+    }
+
+    public V get (K key) {
+        return segmentFor(key).get(key);
+    }
+
+    /**
+     * Add an entry. An entry heavier than its segment can hold is not cached.
+     *
+     * @return true if cached
+     */
+    public boolean put (K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        return segmentFor(key).put(key, value);
+    }
+
+    public V remove (K key) {
+        return segmentFor(key).remove(key);
+    }
+
+    public boolean containsKey (K key) {
+        return (get(key) != null);
+    }
+
+    public void clear () {
+        for (Segment segment : segments) segment.clear();
+    }
+
+    public int size () {
+        int size = 0;
+        for (Segment segment : segments) size += segment.size();
+        return size;
+    }
+
+    public long getWeight () {
+        long weight = 0;
+        for (Segment segment : segments) weight += segment.getWeight();
+        return weight;
+    }
+
+    public long getHits () {
+        return hits.get();
+    }
+
+    public long getMisses () {
+        return misses.get();
+    }
+
+    public long getEvictions () {
+        return evictions.get();
+    }
+
+    public long getExpirations () {
+        return expirations.get();
+    }
+
+    int getSegmentCount () {
+        return segments.size();
+    }
+
+    private Segment segmentFor (Object key) {
+        // Spread the hash, so keys with poor low bits still use all segments
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return segments.get(hash & segmentMask);
+    }
+
+    private long weigh (K key, V value) {
+        if (weigher == null) return 1;
+        long weight = weigher.weigh(key, value);
+        if (weight < 0) throw new IllegalArgumentException("Negative weight for key: " + key);
+        return weight;
+    }
+
+    private class Segment {
+
+        Segment (long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        V get (K key) {
+            lock.lock();
+            try {
+                Entry<V> entry = entries.get(key);
+                if (entry == null) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                long now = System.currentTimeMillis();
+                if (isExpired(entry, now)) {
+                    removeEntry(key);
+                    expirations.incrementAndGet();
+                    misses.incrementAndGet();
+                    return null;
+                }
+                entry.accessed = now;
+                hits.incrementAndGet();
+                return entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        boolean put (K key, V value) {
+            long entryWeight = weigh(key, value);
+            lock.lock();
+            try {
+                removeEntry(key);
+                if (entryWeight > maxWeight) return false;
+                long now = System.currentTimeMillis();
+                entries.put(key, new Entry<V>(value, entryWeight, now));
+                weight += entryWeight;
+                Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+                Entry<V> eldest;
+                while (weight > maxWeight && iterator.hasNext()) {
+                    eldest = iterator.next().getValue();
+                    weight -= eldest.weight;
+                    iterator.remove();
+                    if (isExpired(eldest, now)) {
+                        expirations.incrementAndGet();
+                    } else {
+                        evictions.incrementAndGet();
+                    }
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        V remove (K key) {
+            lock.lock();
+            try {
+                Entry<V> entry = removeEntry(key);
+                return (entry == null) ? null : entry.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void clear () {
+            lock.lock();
+            try {
+                entries.clear();
+                weight = 0;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        int size () {
+            lock.lock();
+            try {
+                return entries.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getWeight () {
+            lock.lock();
+            try {
+                return weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private Entry<V> removeEntry (K key) {
+            Entry<V> entry = entries.remove(key);
+            if (entry != null) weight -= entry.weight;
+            return entry;
+        }
+
+        private boolean isExpired (Entry<V> entry, long now) {
+            return (expireAfterWriteMillis > 0 && now - entry.written >= expireAfterWriteMillis) ||
+                    (expireAfterAccessMillis > 0 && now - entry.accessed >= expireAfterAccessMillis);
+        }
+
+        // Access ordered, the eldest entry is the least recently used
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maxWeight;
+        private long weight = 0;
+    }
+
+    private static class Entry<V> {
+        Entry (V value, long weight, long written) {
+            this.value = value;
+            this.weight = weight;
+            this.written = written;
+            this.accessed = written;
+        }
+        final V value;
+        final long weight;
+        final long written;
+        long accessed;
+    }
+
+    private final List<Segment> segments;
+    private final int segmentMask;
+    private final Weigher<? super K, ? super V> weigher;
+    private final long expireAfterWriteMillis;
+    private final long expireAfterAccessMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    public static final int MIN_SEGMENT_WEIGHT = 16;
+}
@@ -27,6 +27,7 @@
  *******************************************************************************/
 package org.cyclades.engine.util;
 
+import java.io.InputStream;
 import org.cyclades.xml.parser.api.XMLGeneratedObject;
 
 public class GenericXMLObject extends XMLGeneratedObject {
@@ -35,6 +36,11 @@ public class GenericXMLObject extends XMLGeneratedObject {
         super(XML);
     }
 
+    public GenericXMLObject (InputStream XML) throws Exception {
+        super((String)null);
+        parseFromInputStream(XML);
+    }
+
     public void populate () {
         // NO OP
     }
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.util;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+
+/**
+ * Runs tasks concurrently, except that tasks with equal keys run one at a time, in the order they were submitted.
+ *
+ * Keys are hashed onto a fixed number of lanes, each lane running its tasks serially on the backing Executor. Tasks
+ * with different keys may share a lane, and then also run one after the other. Tasks with a null key are spread
+ * over the lanes in turn. The queue of each lane is unbounded, callers should bound the number of tasks in flight
+ * (for example with a message prefetch limit).
+ */
+public class KeyedSerialExecutor {
+
+    static Logger logger = Logger.getLogger(KeyedSerialExecutor.class);
+
+    /**
+     * Create an instance running on its own pool of daemon threads, one per lane
+     *
+     * @param lanes         The number of lanes, the maximum concurrency
+     * @param threadName    The prefix of the thread names
+     */
+    public KeyedSerialExecutor (int lanes, final String threadName) {
+        this(lanes, createThreadPool(lanes, threadName), true);
+    }
+
+    /**
+     * Create an instance running on the given Executor, which is not shut down by this instance
+     *
+     * @param lanes     The number of lanes, the maximum concurrency
+     * @param executor  The Executor to run the lanes on
+     */
+    public KeyedSerialExecutor (int lanes, Executor executor) {
+        this(lanes, executor, false);
+    }
+
+    private KeyedSerialExecutor (int lanes, Executor executor, boolean ownsExecutor) {
+        if (lanes < 1) throw new IllegalArgumentException("lanes must be greater than 0: " + lanes);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) this.lanes[i] = new Lane();
+    }
+
+    /**
+     * Run a task after every task submitted earlier with an equal key
+     *
+     * @param key   The ordering key, null if the task need not be ordered
+     * @param task  The task to run
+     */
+    public void execute (Object key, Runnable task) {
+        if (shutdown) throw new IllegalStateException("Executor has been shut down");
+        int index = (key == null) ? nextLane.getAndIncrement() : spread(key.hashCode());
+        lanes[(index & Integer.MAX_VALUE) % lanes.length].add(task);
+    }
+
+    /**
+     * Stop accepting tasks, queued tasks that have not started are discarded
+     */
+    public void shutdown () {
+        shutdown = true;
+        for (Lane lane : lanes) lane.tasks.clear();
+        if (ownsExecutor) ((ExecutorService)executor).shutdown();
+    }
+
+    /**
+     * @return The number of tasks waiting to run
+     */
+    public int getQueuedTasks () {
+        int queued = 0;
+        for (Lane lane : lanes) queued += lane.tasks.size();
+        return queued;
+    }
+
+    public int getLanes () {
+        return lanes.length;
+    }
+
+    private static int spread (int hash) {
+        // As in HashMap, so keys differing only in their high bits do not share a lane
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        return hash ^ (hash >>> 7) ^ (hash >>> 4);
+    }
+
+    private static ExecutorService createThreadPool (int threads, final String threadName) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+            public Thread newThread (Runnable r) {
+                Thread t = new Thread(r, threadName + "-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    private class Lane implements Runnable {
+
+        void add (Runnable task) {
+            tasks.offer(task);
+            schedule();
+        }
+
+        private void schedule () {
+            if (!scheduled.compareAndSet(false, true)) return;
+            try {
+                executor.execute(this);
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+
+        public void run () {
+            try {
+                Runnable task;
+                // Yield the thread after a while, in case the Executor is shared
+                for (int i = 0; i < MAX_TASKS_PER_RUN && (task = tasks.poll()) != null; i++) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        logger.error("KeyedSerialExecutor.Lane.run: Task failed", t);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                if (!tasks.isEmpty() && !shutdown) schedule();
+            }
+        }
+
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    }
+
+    private final Executor executor;
+    private final boolean ownsExecutor;
+    private final Lane[] lanes;
+    private final AtomicInteger nextLane = new AtomicInteger();
+    private volatile boolean shutdown = false;
+    private static final int MAX_TASKS_PER_RUN = 64;
+}
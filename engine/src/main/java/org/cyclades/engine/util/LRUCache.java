@@ -33,6 +33,8 @@ import java.util.Map;
 /**
  * For a thread safe implementations, please instantiate as the following:
  * Collections.synchronizedMap(new LRUCache(maxLRUCacheSize));
+ *
+ * Caches shared across request threads should use ConcurrentCache instead, which does not need a global lock.
  */
 @SuppressWarnings("serial")
 public class LRUCache<K, V> extends LinkedHashMap<K, V> {
@@ -0,0 +1,73 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.io;
+
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * A means of making HTTP requests. Implementations must be thread safe.
+ */
+public interface HTTPTransport {
+
+    /**
+     * Make a HTTP request and return the response body
+     *
+     * @param URLString                 The URL to connect to
+     * @param method                    The HTTP method, defaults to POST if data is not null, GET otherwise
+     * @param data                      The data to send, null for none
+     * @param headerProperties          Any HTTP headers to include, null is acceptable
+     * @param connectionTimeoutInMS     Connection timeout in milliseconds, 0 for none
+     * @param readTimeoutInMS           Read timeout in milliseconds, 0 for none
+     * @return                          InputStream of the response body XXX - must close this in the calling code
+     * @throws Exception                If the request fails, or the response code is 400 or higher
+     */
+    public InputStream execute (String URLString, String method, byte[] data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception;
+
+    /**
+     * Make a HTTP request, streaming the data with chunked transfer encoding, and return the response body. The
+     * data is read once and not buffered, so a failed request can not be resent with the same InputStream.
+     *
+     * @param URLString                 The URL to connect to
+     * @param method                    The HTTP method, defaults to POST
+     * @param data                      The data to send, read to the end but not closed
+     * @param headerProperties          Any HTTP headers to include, null is acceptable
+     * @param connectionTimeoutInMS     Connection timeout in milliseconds, 0 for none
+     * @param readTimeoutInMS           Read timeout in milliseconds, 0 for none
+     * @return                          InputStream of the response body XXX - must close this in the calling code
+     * @throws Exception                If the request fails, or the response code is 400 or higher
+     */
+    public InputStream executeStreaming (String URLString, String method, InputStream data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception;
+
+    /**
+     * Release any resources (connections) held by this transport
+     */
+    public void close ();
+}
@@ -0,0 +1,556 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * HTTP/1.1 transport with an explicit keep-alive connection pool per host (scheme, host and port).
+ *
+ * - At most maxConnectionsPerHost connections are in use per host at any time, further requests wait for one
+ *   (up to the connection timeout, or DEFAULT_CONNECTION_WAIT_MS if none is given)
+ * - A connection is returned to the pool once the response InputStream is closed, as long as the response was
+ *   read to the end (or is small enough to drain) and the server did not ask to close it
+ * - Idle connections are discarded after keepAliveInMS, keep this below the server's keep-alive timeout
+ * - A request that fails on a pooled connection while it is being written, or that the server closes without sending
+ *   a single byte of response, is retried once on a new connection, since the server may have closed the idle
+ *   connection in the meantime. Any other failure (a read timeout for instance) is not retried, as the server may
+ *   already be processing the request. Streamed (chunked) requests can not be retried, so a pooled connection is
+ *   checked before one is sent on it instead
+ * - HTTPS server certificates are verified, including the host name
+ *
+ * Requests are not pipelined, as servers and proxies commonly do not support it for POST requests. The JVM proxy
+ * settings and redirects are not honoured, use URLConnectionHTTPTransport if these are needed.
+ */
+public class PooledHTTPTransport implements HTTPTransport {
+
+    public PooledHTTPTransport () {
+        this(DEFAULT_MAX_CONNECTIONS_PER_HOST, DEFAULT_KEEP_ALIVE_MS);
+    }
+
+    /**
+     * @param maxConnectionsPerHost The maximum number of connections in use per host
+     * @param keepAliveInMS         How long an idle connection is kept in the pool
+     */
+    public PooledHTTPTransport (int maxConnectionsPerHost, long keepAliveInMS) {
+        if (maxConnectionsPerHost < 1) throw new IllegalArgumentException("maxConnectionsPerHost must be greater than 0: " + maxConnectionsPerHost);
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.keepAliveInMS = keepAliveInMS;
+    }
+
+    /**
+     * @return A shared transport with default settings, for clients that do not manage their own
+     */
+    public static PooledHTTPTransport getDefault () {
+        return defaultTransport;
+    }
+
+    public InputStream execute (String URLString, String method, byte[] data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        final String eLabel = "PooledHTTPTransport.execute: ";
+        try {
+            return execute(URLString, (method != null) ? method : (data != null) ? "POST" : "GET", data, null, headerProperties, connectionTimeoutInMS, readTimeoutInMS);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e + " " + URLString);
+        }
+    }
+
+    public InputStream executeStreaming (String URLString, String method, InputStream data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        final String eLabel = "PooledHTTPTransport.executeStreaming: ";
+        try {
+            return execute(URLString, (method != null) ? method : "POST", null, data, headerProperties, connectionTimeoutInMS, readTimeoutInMS);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e + " " + URLString);
+        }
+    }
+
+    private InputStream execute (String URLString, String method, byte[] data, InputStream streamData, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        HostPool pool = null;
+        boolean acquired = false;
+        try {
+            if (closed) throw new Exception("Transport is closed");
+            URL url = new URL(URLString);
+            boolean secure;
+            if (url.getProtocol().equalsIgnoreCase("http")) {
+                secure = false;
+            } else if (url.getProtocol().equalsIgnoreCase("https")) {
+                secure = true;
+            } else {
+                throw new Exception("Unsupported protocol: " + url.getProtocol());
+            }
+            int port = (url.getPort() > 0) ? url.getPort() : url.getDefaultPort();
+            String hostKey = new StringBuilder(url.getProtocol().toLowerCase()).append("://").append(url.getHost().toLowerCase()).append(":").append(port).toString();
+            pool = pools.get(hostKey);
+            if (pool == null) {
+                HostPool newPool = new HostPool(url.getHost(), port, secure, maxConnectionsPerHost);
+                pool = pools.putIfAbsent(hostKey, newPool);
+                if (pool == null) pool = newPool;
+            }
+            if (!pool.permits.tryAcquire((connectionTimeoutInMS > 0) ? connectionTimeoutInMS : DEFAULT_CONNECTION_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                throw new Exception("Timed out waiting for a connection, all " + maxConnectionsPerHost + " are in use");
+            }
+            acquired = true;
+            byte[] request = createRequestHead(url, method, data, (streamData != null), headerProperties);
+            Connection connection;
+            boolean streamStarted = false;
+            boolean written;
+            while (true) {
+                written = false;
+                connection = pool.poll(keepAliveInMS, (streamData != null));
+                boolean reused = (connection != null);
+                if (!reused) connection = pool.open(connectionTimeoutInMS);
+                try {
+                    connection.socket.setSoTimeout(readTimeoutInMS);
+                    connection.out.write(request);
+                    if (data != null) connection.out.write(data);
+                    if (streamData != null) {
+                        streamStarted = true;
+                        writeChunked(streamData, connection.out);
+                    }
+                    connection.out.flush();
+                    written = true;
+                    Response response = readResponseHead(connection.in, method);
+                    InputStream responseInputStream = new ResponseInputStream(connection, pool, response);
+                    acquired = false;   // Released by the ResponseInputStream from here on
+                    if (response.status >= 400) {
+                        try { responseInputStream.close(); } catch (Exception e) {}
+                        throw new Exception("Server returned HTTP response code: " + response.status);
+                    }
+                    return responseInputStream;
+                } catch (IOException e) {
+                    connection.close();
+                    // Streamed data can not be sent twice. Once the request is written it may be processed, so only a
+                    // connection the server closed without responding at all is safe to retry.
+                    if (!reused || streamStarted || (written && !(e instanceof NoResponseException))) throw e;
+                    // Stale pooled connection, the server has closed it...try once more on a new one
+                    staleRetries.incrementAndGet();
+                } catch (RuntimeException e) {
+                    // i.e. a malformed status line or Content-Length, the connection is in an unknown state
+                    connection.close();
+                    throw e;
+                }
+            }
+        } catch (Exception e) {
+            if (acquired) pool.permits.release();
+            throw e;
+        }
+    }
+
+    private static void writeChunked (InputStream data, OutputStream out) throws IOException {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = data.read(buffer)) != -1) {
+            if (read == 0) continue;
+            out.write(Integer.toHexString(read).getBytes("ISO-8859-1"));
+            out.write(CRLF);
+            out.write(buffer, 0, read);
+            out.write(CRLF);
+        }
+        out.write(LAST_CHUNK);
+    }
+
+    private byte[] createRequestHead (URL url, String method, byte[] data, boolean chunked, Map<String, String> headerProperties) throws Exception {
+        StringBuilder sb = new StringBuilder(256);
+        String file = url.getFile();
+        sb.append(method).append(' ').append((file == null || file.isEmpty()) ? "/" : file).append(" HTTP/1.1\r\n");
+        sb.append("Host: ").append(url.getHost());
+        if (url.getPort() > 0) sb.append(':').append(url.getPort());
+        sb.append("\r\n");
+        if (headerProperties != null) {
+            String name;
+            for (Map.Entry<String, String> header : headerProperties.entrySet()) {
+                name = header.getKey();
+                // Framing headers are managed here
+                if (name.equalsIgnoreCase("Host") || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("Connection") ||
+                        name.equalsIgnoreCase("Transfer-Encoding")) continue;
+                sb.append(name).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        if (data != null || chunked) {
+            if (chunked) {
+                sb.append("Transfer-Encoding: chunked\r\n");
+            } else {
+                sb.append("Content-Length: ").append(data.length).append("\r\n");
+            }
+            if (headerProperties == null || !containsKeyIgnoreCase(headerProperties, "Content-Type")) sb.append("Content-Type: application/x-www-form-urlencoded\r\n");
+        } else if (!method.equals("GET") && !method.equals("HEAD")) {
+            sb.append("Content-Length: 0\r\n");
+        }
+        sb.append("Connection: keep-alive\r\n\r\n");
+        return sb.toString().getBytes("ISO-8859-1");
+    }
+
+    private static boolean containsKeyIgnoreCase (Map<String, String> map, String key) {
+        for (String mapKey : map.keySet()) {
+            if (mapKey.equalsIgnoreCase(key)) return true;
+        }
+        return false;
+    }
+
+    private static Response readResponseHead (InputStream in, String method) throws IOException {
+        Response response = new Response();
+        String statusLine;
+        boolean receivedBytes = false;
+        while (true) {
+            statusLine = readLine(in);
+            if (statusLine == null) {
+                if (!receivedBytes) throw new NoResponseException();
+                throw new EOFException("Connection closed before a response was received");
+            }
+            receivedBytes = true;
+            if (statusLine.isEmpty()) continue;
+            String[] fields = statusLine.split(" ", 3);
+            if (fields.length < 2 || !fields[0].startsWith("HTTP/")) throw new IOException("Invalid status line: " + statusLine);
+            response.status = Integer.parseInt(fields[1].trim());
+            response.http11 = fields[0].equals("HTTP/1.1");
+            response.headers.clear();
+            String line;
+            int colon;
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                colon = line.indexOf(':');
+                if (colon > 0) response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+            if (line == null) throw new EOFException("Connection closed while reading the response headers");
+            // Skip interim responses (100 Continue etc...)
+            if (response.status >= 200 || response.status == 101) break;
+        }
+        String connectionHeader = response.headers.get("connection");
+        response.keepAlive = (response.http11) ? !"close".equalsIgnoreCase(connectionHeader) : "keep-alive".equalsIgnoreCase(connectionHeader);
+        if ("HEAD".equalsIgnoreCase(method) || response.status == 204 || response.status == 304) {
+            response.contentLength = 0;
+        } else if (response.headers.containsKey("transfer-encoding") && !response.headers.get("transfer-encoding").equalsIgnoreCase("identity")) {
+            response.chunked = true;
+        } else if (response.headers.containsKey("content-length")) {
+            response.contentLength = Long.parseLong(response.headers.get("content-length"));
+        } else {
+            // Delimited by the connection closing, this connection can not be reused
+            response.contentLength = -1;
+            response.keepAlive = false;
+        }
+        return response;
+    }
+
+    private static String readLine (InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+            if (line.size() > MAX_LINE_LENGTH) throw new IOException("Line too long");
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    /**
+     * Close all pooled connections, connections in use are closed when their response is closed
+     */
+    public void close () {
+        closed = true;
+        for (HostPool pool : pools.values()) pool.clear();
+    }
+
+    public long getConnectionsOpened () {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused () {
+        return connectionsReused.get();
+    }
+
+    public long getStaleRetries () {
+        return staleRetries.get();
+    }
+
+    private class HostPool {
+
+        HostPool (String host, int port, boolean secure, int maxConnections) {
+            this.host = host;
+            this.port = port;
+            this.secure = secure;
+            this.permits = new Semaphore(maxConnections, true);
+        }
+
+        Connection poll (long keepAliveInMS, boolean checkStale) {
+            Connection connection;
+            long now = System.currentTimeMillis();
+            while ((connection = idle.poll()) != null) {
+                if (now - connection.lastUsed < keepAliveInMS && !connection.socket.isClosed() && !(checkStale && connection.isStale())) {
+                    connectionsReused.incrementAndGet();
+                    return connection;
+                }
+                connection.close();
+            }
+            return null;
+        }
+
+        Connection open (int connectionTimeoutInMS) throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                socket.connect(new InetSocketAddress(host, port), connectionTimeoutInMS);
+                if (secure) {
+                    SSLSocket sslSocket = (SSLSocket)((SSLSocketFactory)SSLSocketFactory.getDefault()).createSocket(socket, host, port, true);
+                    socket = sslSocket;
+                    // Verify the certificate is for this host, the default SSLSocketFactory does not
+                    SSLParameters sslParameters = sslSocket.getSSLParameters();
+                    sslParameters.setEndpointIdentificationAlgorithm("HTTPS");
+                    sslSocket.setSSLParameters(sslParameters);
+                    sslSocket.setSoTimeout(connectionTimeoutInMS);
+                    sslSocket.startHandshake();
+                }
+            } catch (IOException e) {
+                try { socket.close(); } catch (Exception ex) {}
+                throw e;
+            }
+            connectionsOpened.incrementAndGet();
+            return new Connection(socket);
+        }
+
+        void release (Connection connection, boolean reusable) {
+            if (reusable && !closed) {
+                connection.lastUsed = System.currentTimeMillis();
+                idle.offer(connection);
+            } else {
+                connection.close();
+            }
+            permits.release();
+            if (closed) clear();
+        }
+
+        void clear () {
+            Connection connection;
+            while ((connection = idle.poll()) != null) connection.close();
+        }
+
+        final String host;
+        final int port;
+        final boolean secure;
+        final Semaphore permits;
+        final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+    }
+
+    private static class Connection {
+
+        Connection (Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), StreamUtils.DEFAULT_BUFFER_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), StreamUtils.DEFAULT_BUFFER_SIZE);
+        }
+
+        /**
+         * Check whether the server has closed this idle connection, waiting at most a millisecond. Used before
+         * sending streamed data, which can not be retried on a new connection.
+         */
+        boolean isStale () {
+            try {
+                // Nothing should arrive on an idle connection, data or end of stream both make it unusable
+                if (in.available() > 0) return true;
+                socket.setSoTimeout(1);
+                in.read();
+                return true;
+            } catch (SocketTimeoutException e) {
+                return false;
+            } catch (IOException e) {
+                return true;
+            }
+        }
+
+        void close () {
+            try { socket.close(); } catch (Exception e) {}
+        }
+
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long lastUsed;
+    }
+
+    /**
+     * The connection was closed before any part of a response was received
+     */
+    private static class NoResponseException extends EOFException {
+
+        NoResponseException () {
+            super("Connection closed before a response was received");
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static class Response {
+        int status;
+        boolean http11;
+        boolean keepAlive;
+        boolean chunked = false;
+        long contentLength = -1;
+        final Map<String, String> headers = new HashMap<String, String>();
+    }
+
+    /**
+     * The response body, decoding the message framing. Closing this returns the connection to the pool, if possible.
+     */
+    private static class ResponseInputStream extends InputStream {
+
+        ResponseInputStream (Connection connection, HostPool pool, Response response) {
+            this.connection = connection;
+            this.pool = pool;
+            this.response = response;
+            this.remaining = (response.chunked) ? 0 : response.contentLength;
+            this.eof = (!response.chunked && response.contentLength == 0);
+        }
+
+        @Override
+        public int read () throws IOException {
+            int read = read(single, 0, 1);
+            return (read < 1) ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            if (released.get()) throw new IOException("Stream closed");
+            return readBody(b, off, len);
+        }
+
+        private int readBody (byte[] b, int off, int len) throws IOException {
+            if (eof) return -1;
+            if (len == 0) return 0;
+            if (response.chunked && remaining == 0) {
+                if (!nextChunk()) return -1;
+            }
+            int read;
+            if (remaining < 0) {
+                // Until the connection closes
+                read = connection.in.read(b, off, len);
+                if (read < 0) eof = true;
+                return read;
+            }
+            read = connection.in.read(b, off, (int)Math.min(len, remaining));
+            if (read < 0) throw new EOFException("Connection closed before the end of the response body");
+            remaining -= read;
+            if (remaining == 0 && !response.chunked) eof = true;
+            return read;
+        }
+
+        @Override
+        public int available () throws IOException {
+            if (eof || released.get()) return 0;
+            int available = connection.in.available();
+            return (remaining < 0) ? available : (int)Math.min(available, remaining);
+        }
+
+        private boolean nextChunk () throws IOException {
+            if (chunkRead) {
+                // CRLF at the end of the previous chunk
+                readLine(connection.in);
+            }
+            String line = readLine(connection.in);
+            if (line == null) throw new EOFException("Connection closed before the end of the chunked response body");
+            int extension = line.indexOf(';');
+            long size = Long.parseLong(((extension < 0) ? line : line.substring(0, extension)).trim(), 16);
+            chunkRead = true;
+            if (size == 0) {
+                // Trailers, up to the blank line
+                while ((line = readLine(connection.in)) != null && !line.isEmpty()) {}
+                eof = true;
+                return false;
+            }
+            remaining = size;
+            return true;
+        }
+
+        @Override
+        public void close () throws IOException {
+            if (!released.compareAndSet(false, true)) return;
+            boolean reusable = response.keepAlive && remaining >= 0;
+            if (reusable && !eof) {
+                // Drain what is left (if small) so the connection can be reused
+                try {
+                    byte[] buffer = new byte[1024];
+                    long drained = 0;
+                    int read;
+                    while (!eof && drained < MAX_DRAIN_BYTES && (read = readBody(buffer, 0, buffer.length)) >= 0) drained += read;
+                    reusable = eof;
+                } catch (Exception e) {
+                    reusable = false;
+                }
+            }
+            pool.release(connection, reusable);
+        }
+
+        private final Connection connection;
+        private final HostPool pool;
+        private final Response response;
+        private long remaining;
+        private boolean eof;
+        private boolean chunkRead = false;
+        private final byte[] single = new byte[1];
+        private final AtomicBoolean released = new AtomicBoolean(false);
+    }
+
+    private final ConcurrentHashMap<String, HostPool> pools = new ConcurrentHashMap<String, HostPool>();
+    private final int maxConnectionsPerHost;
+    private final long keepAliveInMS;
+    private volatile boolean closed = false;
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong staleRetries = new AtomicLong();
+    private static final PooledHTTPTransport defaultTransport = new PooledHTTPTransport();
+    private static final int MAX_LINE_LENGTH                = 65536;
+    private static final long MAX_DRAIN_BYTES               = 65536;
+    private static final int CHUNK_SIZE                     = 8192;
+    private static final byte[] CRLF                        = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK                  = {'0', '\r', '\n', '\r', '\n'};
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 20;
+    public static final long DEFAULT_KEEP_ALIVE_MS          = 15000;
+    public static final int DEFAULT_CONNECTION_WAIT_MS      = 60000;
+}
@@ -97,6 +97,33 @@ public class ResourceRequestUtils {
         }
     }
 
+    /**
+     * Get the InputStream of the response, making HTTP requests with the HTTPTransport given (for example a
+     * PooledHTTPTransport, to reuse connections) or simply reading from a file.
+     *
+     * @param transport                 The HTTPTransport to use for HTTP requests
+     * @param URLString                 URL to connect to
+     * @param data                      The data to send if this is a POST, set as null otherwise
+     * @param headerProperties          Header properties to set if applicable. Null is acceptable.
+     * @param connectionTimeoutInMS     Connection timeout in milliseconds
+     * @param readTimeoutInMS           Read timeout in milliseconds
+     * @return                          InputStream to read from. Make sure to close this in calling code
+     * @throws Exception
+     */
+    public static InputStream getInputStream (HTTPTransport transport, String URLString, byte[] data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        final String eLabel = "ResourceRequestUtils.getInputStream: ";
+        try {
+            if (URLString.toLowerCase().startsWith("http")) {
+                return transport.execute(URLString, null, data, headerProperties, connectionTimeoutInMS, readTimeoutInMS);
+            } else {
+                return getInputStreamFile(URLString);
+            }
+        } catch (Exception e) {
+            throw new Exception(eLabel + e + " " + URLString);
+        }
+    }
+
     /**
      * Get the InputStream from a HTTP response
      *
@@ -322,6 +349,21 @@ public class ResourceRequestUtils {
         }
     } // end of getData(...)
 
+    public static byte[] getData (HTTPTransport transport, String URLString, byte[] data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        InputStream is = null;
+        try {
+            is = getInputStream(transport, URLString, data, headerProperties, connectionTimeoutInMS, readTimeoutInMS);
+            return StreamUtils.toByteArray(is);
+        } catch (Exception e) {
+            throw new Exception(e + " " + URLString);
+        } finally {
+            try {
+                is.close();
+            } catch (Exception ignore) {}
+        }
+    } // end of getData(...)
+
     public static void main (String[] args) {
         if (args.length < 1) {
             System.out.println("cmd [-Dheaders] URI [POST data]");
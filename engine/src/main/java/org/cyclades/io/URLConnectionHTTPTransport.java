@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.io;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * HTTPTransport using HttpURLConnection, leaving connection reuse to the JVM keep-alive defaults
+ * (see the "http.keepAlive" and "http.maxConnections" system properties). This honours the JVM proxy settings
+ * and follows redirects.
+ */
+public class URLConnectionHTTPTransport implements HTTPTransport {
+
+    public InputStream execute (String URLString, String method, byte[] data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        final String eLabel = "URLConnectionHTTPTransport.execute: ";
+        OutputStream os = null;
+        try {
+            HttpURLConnection conn = (HttpURLConnection)new URL(URLString).openConnection();
+            if (connectionTimeoutInMS > 0) conn.setConnectTimeout(connectionTimeoutInMS);
+            if (readTimeoutInMS > 0) conn.setReadTimeout(readTimeoutInMS);
+            conn.setDoInput(true);
+            if (headerProperties != null) {
+                for (Map.Entry<String, String> header : headerProperties.entrySet()) {
+                    conn.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            conn.setRequestMethod((method != null) ? method : (data != null) ? "POST" : "GET");
+            if (data != null) {
+                conn.setDoOutput(true);
+                os = conn.getOutputStream();
+                os.write(data);
+                os.flush();
+            }
+            return conn.getInputStream();
+        } catch (Exception e) {
+            throw new Exception(eLabel + e + " " + URLString);
+        } finally {
+            try { os.close(); } catch (Exception e) {}
+        }
+    }
+
+    public InputStream executeStreaming (String URLString, String method, InputStream data, Map<String, String> headerProperties,
+            int connectionTimeoutInMS, int readTimeoutInMS) throws Exception {
+        final String eLabel = "URLConnectionHTTPTransport.executeStreaming: ";
+        OutputStream os = null;
+        try {
+            HttpURLConnection conn = (HttpURLConnection)new URL(URLString).openConnection();
+            if (connectionTimeoutInMS > 0) conn.setConnectTimeout(connectionTimeoutInMS);
+            if (readTimeoutInMS > 0) conn.setReadTimeout(readTimeoutInMS);
+            conn.setDoInput(true);
+            conn.setDoOutput(true);
+            // Do not let the connection buffer the whole body to compute its length
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+            if (headerProperties != null) {
+                for (Map.Entry<String, String> header : headerProperties.entrySet()) {
+                    conn.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            conn.setRequestMethod((method != null) ? method : "POST");
+            os = conn.getOutputStream();
+            StreamUtils.write(data, os, CHUNK_SIZE);
+            os.flush();
+            return conn.getInputStream();
+        } catch (Exception e) {
+            throw new Exception(eLabel + e + " " + URLString);
+        } finally {
+            try { os.close(); } catch (Exception e) {}
+        }
+    }
+
+    public void close () {
+    }
+
+    private static final int CHUNK_SIZE = 8192;
+}
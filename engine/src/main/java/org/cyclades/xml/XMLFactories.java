@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.xml;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Shared XML factories and per thread parser/transformer instances.
+ *
+ * Each DocumentBuilderFactory.newInstance, TransformerFactory.newInstance etc. call goes through a
+ * service provider lookup, which is by far the most expensive part of parsing a small request. The
+ * factories are looked up and configured once here. DocumentBuilder and Transformer instances are
+ * not thread safe, so one of each is kept per thread and reset before it is handed out.
+ *
+ * Callers must not hold on to a DocumentBuilder or Transformer obtained here beyond the operation
+ * at hand, another call on the same thread will reset it.
+ */
+public class XMLFactories {
+
+    /**
+     * Get this thread's DocumentBuilder, reset to its initial state
+     *
+     * @param namespaceAware Namespace aware builder (as used by XMLGeneratedObject) or not (as used by XMLComparitor)
+     * @return DocumentBuilder
+     * @throws Exception
+     */
+    public static DocumentBuilder getDocumentBuilder (boolean namespaceAware) throws Exception {
+        final String eLabel = "XMLFactories.getDocumentBuilder: ";
+        try {
+            ThreadLocal<DocumentBuilder> threadLocal = (namespaceAware) ? namespaceAwareDocumentBuilderThreadLocal : documentBuilderThreadLocal;
+            DocumentBuilder builder = threadLocal.get();
+            if (builder == null) {
+                DocumentBuilderFactory factory = (namespaceAware) ? namespaceAwareDocumentBuilderFactory : documentBuilderFactory;
+                // Factories are not guaranteed to be thread safe, this only happens once per thread
+                synchronized (factory) {
+                    builder = factory.newDocumentBuilder();
+                }
+                threadLocal.set(builder);
+            } else {
+                builder.reset();
+            }
+            return builder;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Get this thread's identity Transformer, reset to its initial state (i.e. no output properties set)
+     *
+     * @return Transformer
+     * @throws Exception
+     */
+    public static Transformer getTransformer () throws Exception {
+        final String eLabel = "XMLFactories.getTransformer: ";
+        try {
+            Transformer transformer = transformerThreadLocal.get();
+            if (transformer == null) {
+                synchronized (transformerFactory) {
+                    transformer = transformerFactory.newTransformer();
+                }
+                transformerThreadLocal.set(transformer);
+            } else {
+                transformer.reset();
+            }
+            return transformer;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    /**
+     * Get the shared XMLInputFactory. Configured once, creating readers from it is thread safe.
+     *
+     * @return XMLInputFactory
+     */
+    public static XMLInputFactory getXMLInputFactory () {
+        return xmlInputFactory;
+    }
+
+    /**
+     * Get the shared, namespace repairing XMLOutputFactory. Configured once, creating writers from it is thread safe.
+     *
+     * @return XMLOutputFactory
+     */
+    public static XMLOutputFactory getXMLOutputFactory () {
+        return xmlOutputFactory;
+    }
+
+    private static DocumentBuilderFactory newDocumentBuilderFactory (boolean namespaceAware) {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return factory;
+    }
+
+    private static XMLOutputFactory newXMLOutputFactory () {
+        XMLOutputFactory factory = XMLOutputFactory.newInstance();
+        factory.setProperty(XMLOutputFactory.IS_REPAIRING_NAMESPACES, Boolean.TRUE);
+        return factory;
+    }
+
+    private static final DocumentBuilderFactory documentBuilderFactory = newDocumentBuilderFactory(false);
+    private static final DocumentBuilderFactory namespaceAwareDocumentBuilderFactory = newDocumentBuilderFactory(true);
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory xmlOutputFactory = newXMLOutputFactory();
+    private static final ThreadLocal<DocumentBuilder> documentBuilderThreadLocal = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<DocumentBuilder> namespaceAwareDocumentBuilderThreadLocal = new ThreadLocal<DocumentBuilder>();
+    private static final ThreadLocal<Transformer> transformerThreadLocal = new ThreadLocal<Transformer>();
+}
@@ -28,17 +28,16 @@
 package org.cyclades.xml.comparitor;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.TransformerFactoryConfigurationError;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import org.xml.sax.InputSource;
 import java.io.StringReader;
 import java.io.StringWriter;
+import org.cyclades.xml.XMLFactories;
 import org.cyclades.xml.parser.XMLParserException;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
@@ -140,10 +139,8 @@ public class XMLComparitor {
             return null;
         }
         try {
-            // Get the factory
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            // Using factory get an instance of document builder
-            DocumentBuilder db = dbf.newDocumentBuilder();
+            // Get this thread's cached document builder
+            DocumentBuilder db = XMLFactories.getDocumentBuilder(false);
             // Parse using builder to get DOM representation of the XML file
             Document dom = db.parse(new InputSource(new StringReader(xml)));
             // Get the root element
@@ -166,10 +163,8 @@ public class XMLComparitor {
             return null;
         }
         try {
-            // Get the factory
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            // Using factory get an instance of document builder
-            DocumentBuilder db = dbf.newDocumentBuilder();
+            // Get this thread's cached document builder
+            DocumentBuilder db = XMLFactories.getDocumentBuilder(false);
             // Parse using builder to get DOM representation of the XML file
             Document dom = db.parse(xmlFile);
             // Get the root element
@@ -432,6 +427,26 @@ public class XMLComparitor {
         return nodeVector;
     }
 
+    /**
+     * Get the first child of this node matching this name, without collecting the rest
+     *
+     * @param node
+     * @param name
+     * @return Node, null if there is no match
+     * @throws XMLParserException
+     */
+    public static Node getFirstMatchingChildNode (Node node, String name) throws XMLParserException {
+        final String eLabel = "XMLComparitor.getFirstMatchingChildNode: ";
+        try {
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+                if (child.getNodeName().equals(name)) return child;
+            }
+            return null;
+        } catch (Exception e) {
+            throw new XMLParserException(eLabel + e);
+        }
+    }
+
     /**
      * Return the highest node of a list, based on its long value
      *
@@ -575,7 +590,12 @@ public class XMLComparitor {
     public static String nodeToString (Node node, boolean XMLDeclaration, boolean indent) 
             throws TransformerFactoryConfigurationError, TransformerException {
         StringWriter sw = new StringWriter();
-        Transformer t = TransformerFactory.newInstance().newTransformer();
+        Transformer t;
+        try {
+            t = XMLFactories.getTransformer();
+        } catch (Exception e) {
+            throw new TransformerException(e);
+        }
         t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, (XMLDeclaration) ? "no" : "yes");
         t.setOutputProperty(OutputKeys.INDENT, (indent) ? "yes" : "no");
         t.transform(new DOMSource(node), new StreamResult(sw));
@@ -0,0 +1,283 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.xml.parser;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import org.cyclades.xml.XMLFactories;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.Text;
+
+/**
+ * Incrementally read the repeating child elements of a container element directly below the
+ * document root, e.g. each "request" of an X-STROMA "requests" element:
+ *
+ * <data><requests><request .../><request .../></requests></data>
+ *
+ * The document is pulled with an XMLStreamReader, and only the matching element currently being
+ * handed out is materialized as a DOM subtree (rooted in its own Document). Everything else is
+ * skipped without building nodes, so memory use is bounded by the largest single element instead
+ * of the whole document.
+ *
+ * Instances are not thread safe, and the underlying InputStream is not closed by this class.
+ */
+public class XMLStreamElementReader {
+
+    /**
+     * Constructor
+     *
+     * @param is            The XML document to read
+     * @param containerName The name of the container element, a direct child of the document root
+     * @param elementName   The name of the elements to iterate, direct children of the container
+     * @throws XMLParserException
+     */
+    public XMLStreamElementReader (InputStream is, String containerName, String elementName) throws XMLParserException {
+        final String eLabel = "XMLStreamElementReader.XMLStreamElementReader: ";
+        try {
+            this.containerName = containerName;
+            this.elementName = elementName;
+            reader = XMLFactories.getXMLInputFactory().createXMLStreamReader(is);
+            seekContainer();
+        } catch (XMLParserException e) {
+            close();
+            throw e;
+        } catch (Exception e) {
+            close();
+            throw new XMLParserException(eLabel + e, e);
+        }
+    }
+
+    /**
+     * Is there another matching element? Non matching siblings are skipped.
+     *
+     * @return true if next() will return an element
+     * @throws XMLParserException
+     */
+    public boolean hasNext () throws XMLParserException {
+        final String eLabel = "XMLStreamElementReader.hasNext: ";
+        try {
+            if (positioned) return true;
+            if (exhausted) return false;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    if (elementName.equals(qualifiedName())) {
+                        positioned = true;
+                        return true;
+                    }
+                    skipElement();
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    // End of the container
+                    exhausted = true;
+                    return false;
+                default:
+                    break;
+                }
+            }
+            exhausted = true;
+            return false;
+        } catch (Exception e) {
+            throw new XMLParserException(eLabel + e, e);
+        }
+    }
+
+    /**
+     * Materialize the next matching element as a DOM subtree
+     *
+     * @return Element, the document element of its own Document
+     * @throws XMLParserException
+     */
+    public Element next () throws XMLParserException {
+        final String eLabel = "XMLStreamElementReader.next: ";
+        if (!hasNext()) throw new XMLParserException(eLabel + "No more \"" + elementName + "\" elements");
+        try {
+            positioned = false;
+            // Only borrowed for the moment, the Nyxlet handling the previous element may have used it in the meantime
+            Document document = XMLFactories.getDocumentBuilder(true).newDocument();
+            Element element = buildElement(document);
+            document.appendChild(element);
+            return element;
+        } catch (Exception e) {
+            exhausted = true;
+            throw new XMLParserException(eLabel + e, e);
+        }
+    }
+
+    /**
+     * Release the stream reader. The underlying InputStream is left open.
+     */
+    public void close () {
+        try {
+            if (reader != null) reader.close();
+        } catch (Exception e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Check that a whole document is well formed, pulling it without building any nodes. Use this to
+     * reject a malformed document before acting on the elements read from it.
+     *
+     * @param is    The XML document to check, not closed by this method
+     * @throws XMLParserException If the document is not well formed
+     */
+    public static void validate (InputStream is) throws XMLParserException {
+        final String eLabel = "XMLStreamElementReader.validate: ";
+        XMLStreamReader validationReader = null;
+        try {
+            validationReader = XMLFactories.getXMLInputFactory().createXMLStreamReader(is);
+            while (validationReader.hasNext()) validationReader.next();
+        } catch (Exception e) {
+            throw new XMLParserException(eLabel + e, e);
+        } finally {
+            try {
+                if (validationReader != null) validationReader.close();
+            } catch (Exception e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private void seekContainer () throws Exception {
+        final String eLabel = "XMLStreamElementReader.seekContainer: ";
+        while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {}
+        if (!reader.isStartElement()) throw new XMLParserException(eLabel + "No document element found");
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                if (containerName.equals(qualifiedName())) return;
+                skipElement();
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                // End of the document element
+                throw new XMLParserException(eLabel + "No \"" + containerName + "\" element found");
+            default:
+                break;
+            }
+        }
+        throw new XMLParserException(eLabel + "No \"" + containerName + "\" element found");
+    }
+
+    private void skipElement () throws Exception {
+        int depth = 1;
+        while (depth > 0) {
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                depth++;
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                depth--;
+                break;
+            default:
+                break;
+            }
+        }
+    }
+
+    private Element buildElement (Document document) throws Exception {
+        Element root = createElement(document);
+        Deque<Node> stack = new ArrayDeque<Node>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node current = stack.peek();
+            switch (reader.next()) {
+            case XMLStreamConstants.START_ELEMENT:
+                Element child = createElement(document);
+                current.appendChild(child);
+                stack.push(child);
+                break;
+            case XMLStreamConstants.END_ELEMENT:
+                stack.pop();
+                break;
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+            case XMLStreamConstants.ENTITY_REFERENCE:
+                // Parsers may split character data into several events, keep it as one Text node like DOM does
+                Node last = current.getLastChild();
+                if (last != null && last.getNodeType() == Node.TEXT_NODE) {
+                    ((Text)last).appendData(reader.getText());
+                } else {
+                    current.appendChild(document.createTextNode(reader.getText()));
+                }
+                break;
+            case XMLStreamConstants.CDATA:
+                current.appendChild(document.createCDATASection(reader.getText()));
+                break;
+            case XMLStreamConstants.COMMENT:
+                current.appendChild(document.createComment(reader.getText()));
+                break;
+            case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                current.appendChild(document.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                break;
+            default:
+                break;
+            }
+        }
+        return root;
+    }
+
+    private Element createElement (Document document) {
+        Element element = document.createElementNS(emptyToNull(reader.getNamespaceURI()), qualifiedName());
+        String prefix;
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            prefix = reader.getNamespacePrefix(i);
+            element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI,
+                    (prefix == null || prefix.isEmpty()) ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix,
+                    reader.getNamespaceURI(i));
+        }
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            prefix = reader.getAttributePrefix(i);
+            element.setAttributeNS(emptyToNull(reader.getAttributeNamespace(i)),
+                    (prefix == null || prefix.isEmpty()) ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i),
+                    reader.getAttributeValue(i));
+        }
+        return element;
+    }
+
+    private String qualifiedName () {
+        String prefix = reader.getPrefix();
+        return (prefix == null || prefix.isEmpty()) ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
+    }
+
+    private static String emptyToNull (String value) {
+        return (value == null || value.isEmpty()) ? null : value;
+    }
+
+    private final String containerName;
+    private final String elementName;
+    private XMLStreamReader reader;
+    private boolean positioned = false;
+    private boolean exhausted = false;
+}
@@ -28,14 +28,14 @@
 package org.cyclades.xml.parser.api;
 
 import java.io.File;
+import java.io.InputStream;
 import java.io.StringWriter;
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
 import org.xml.sax.InputSource;
 import java.io.StringReader;
+import org.cyclades.xml.XMLFactories;
 import org.cyclades.xml.parser.XMLParserException;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
@@ -79,11 +79,8 @@ public abstract class XMLGeneratedObject {
     public void parseFromString (String xmlString) throws XMLParserException {
         final String eLabel = "XMLGeneratedObject.parseFromString: ";
         try {
-            // Get the factory
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            // Using factory get an instance of document builder
-            DocumentBuilder db = dbf.newDocumentBuilder();
+            // Get this thread's cached (namespace aware) document builder
+            DocumentBuilder db = XMLFactories.getDocumentBuilder(true);
             // Parse using builder to get DOM representation of the XML file
             this.document = db.parse(new InputSource(new StringReader(xmlString)));
             // Get the root element
@@ -94,6 +91,26 @@ public abstract class XMLGeneratedObject {
 
     }
 
+    /**
+     * Load this DOM from the InputStream passed in...
+     *
+     * @param xmlInputStream
+     * @throws XMLParserException
+     */
+    public void parseFromInputStream (InputStream xmlInputStream) throws XMLParserException {
+        final String eLabel = "XMLGeneratedObject.parseFromInputStream: ";
+        try {
+            // Get this thread's cached (namespace aware) document builder
+            DocumentBuilder db = XMLFactories.getDocumentBuilder(true);
+            // Parse using builder to get DOM representation of the XML stream
+            this.document = db.parse(new InputSource(xmlInputStream));
+            // Get the root element
+            this.rootElement = document.getDocumentElement();
+        } catch (Exception e) {
+            throw new XMLParserException (eLabel + e);
+        }
+    }
+
     /**
      * Load this DOM from the file passed in...
      *
@@ -103,11 +120,8 @@ public abstract class XMLGeneratedObject {
     public void parseFromFile (File file) throws XMLParserException {
         final String eLabel = "XMLGeneratedObject.parseFromFile: ";
         try {
-            // Get the factory
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            dbf.setNamespaceAware(true);
-            // Using factory get an instance of document builder
-            DocumentBuilder db = dbf.newDocumentBuilder();
+            // Get this thread's cached (namespace aware) document builder
+            DocumentBuilder db = XMLFactories.getDocumentBuilder(true);
             // Parse using builder to get DOM representation of the XML file
             document = db.parse(file);
             // Get the root element
@@ -298,7 +312,7 @@ public abstract class XMLGeneratedObject {
     public static void writeToStreamResult (DOMSource domSource, StreamResult streamResult, boolean omitXMLDeclaration) throws Exception {
         final String eLabel = "XMLGeneratedObject.writeToStreamResult: ";
         try {
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            Transformer transformer = XMLFactories.getTransformer();
             if (omitXMLDeclaration) transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
             transformer.transform(domSource, streamResult);
         } catch (Exception e) {
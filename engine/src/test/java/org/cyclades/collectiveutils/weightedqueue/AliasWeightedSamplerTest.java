@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.collectiveutils.weightedqueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class AliasWeightedSamplerTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void distribution_test () throws Exception {
+        double[] weights = {1, 2, 3, 4, 0};
+        AliasWeightedSampler<Integer> sampler = new AliasWeightedSampler<Integer>(items(weights));
+        int[] counts = new int[weights.length];
+        int samples = 200000;
+        for (int i = 0; i < samples; i++) counts[sampler.peek()]++;
+        for (int i = 0; i < weights.length; i++) {
+            double expected = weights[i] / 10.0;
+            double actual = (double)counts[i] / samples;
+            if (Math.abs(expected - actual) > 0.01) errorCollector.addError(new AssertionError("Unexpected frequency for item " + i + ": " + actual + " expected: " + expected));
+        }
+        if (counts[4] != 0) errorCollector.addError(new AssertionError("Zero weight item selected"));
+        if (sampler.size() != weights.length || sampler.getItemAt(2) != 2) errorCollector.addError(new AssertionError("Items not kept in order"));
+    }
+
+    @Test
+    public void single_item_test () throws Exception {
+        AliasWeightedSampler<Integer> sampler = new AliasWeightedSampler<Integer>(items(new double[]{0.5}));
+        for (int i = 0; i < 100; i++) {
+            if (sampler.peek() != 0) errorCollector.addError(new AssertionError("Unexpected item"));
+        }
+    }
+
+    @Test
+    public void invalid_weights_test () throws Exception {
+        double[][] invalid = {{}, {0, 0}, {1, -1}, {1, Double.NaN}};
+        for (double[] weights : invalid) {
+            try {
+                new AliasWeightedSampler<Integer>(items(weights));
+                errorCollector.addError(new AssertionError("Expected Exception for weights of length " + weights.length));
+            } catch (Exception e) {
+                // Expected
+            }
+        }
+    }
+
+    static List<WeightedItem<Integer>> items (double[] weights) {
+        List<WeightedItem<Integer>> items = new ArrayList<WeightedItem<Integer>>();
+        for (int i = 0; i < weights.length; i++) items.add(new WeightedListEntry<Integer>(weights[i], i));
+        return items;
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.collectiveutils.weightedqueue;
+
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class FenwickWeightedQueueTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void peek_distribution_test () throws Exception {
+        double[] weights = {4, 3, 2, 1};
+        FenwickWeightedQueue<Integer> queue = new FenwickWeightedQueue<Integer>();
+        for (int i = 0; i < weights.length; i++) queue.add(weights[i], i);
+        // Remove and re-add, the tree must stay consistent
+        int removed = queue.getAndRemove();
+        queue.add(weights[removed], removed);
+        int[] counts = new int[weights.length];
+        int samples = 200000;
+        for (int i = 0; i < samples; i++) counts[queue.peek()]++;
+        for (int i = 0; i < weights.length; i++) {
+            double expected = weights[i] / 10.0;
+            double actual = (double)counts[i] / samples;
+            if (Math.abs(expected - actual) > 0.01) errorCollector.addError(new AssertionError("Unexpected frequency for item " + i + ": " + actual + " expected: " + expected));
+        }
+    }
+
+    @Test
+    public void remove_test () throws Exception {
+        FenwickWeightedQueue<Integer> queue = new FenwickWeightedQueue<Integer>();
+        int n = 1000;
+        for (int i = 0; i < n; i++) queue.add((double)(i % 7), i);
+        boolean[] seen = new boolean[n];
+        Integer item;
+        for (int i = 0; i < n; i++) {
+            item = queue.getAndRemove();
+            if (item == null || seen[item]) {
+                errorCollector.addError(new AssertionError("Item missing or returned twice: " + item));
+                return;
+            }
+            seen[item] = true;
+            // Zero weight items only come out once nothing else is left
+            if (i < n - (n / 7 + 1) && item % 7 == 0) errorCollector.addError(new AssertionError("Zero weight item removed early: " + item));
+        }
+        if (queue.size() != 0 || queue.getAndRemove() != null || queue.peek() != null) errorCollector.addError(new AssertionError("Queue not empty"));
+    }
+
+    @Test
+    public void sort_test () throws Exception {
+        double[] weights = {1, 2, 7};
+        List<WeightedItem<Integer>> items = AliasWeightedSamplerTest.items(weights);
+        int[] firstCounts = new int[weights.length];
+        int sorts = 50000;
+        List<WeightedItem<Integer>> sorted;
+        for (int i = 0; i < sorts; i++) {
+            sorted = WeightedQueue.sort(items);
+            if (sorted.size() != weights.length) {
+                errorCollector.addError(new AssertionError("Unexpected sorted size: " + sorted.size()));
+                return;
+            }
+            firstCounts[sorted.get(0).getItem()]++;
+        }
+        for (int i = 0; i < weights.length; i++) {
+            double expected = weights[i] / 10.0;
+            double actual = (double)firstCounts[i] / sorts;
+            if (Math.abs(expected - actual) > 0.015) errorCollector.addError(new AssertionError("Unexpected first place frequency for item " + i + ": " + actual + " expected: " + expected));
+        }
+    }
+
+    @Test
+    public void invalid_weight_test () throws Exception {
+        FenwickWeightedQueue<Integer> queue = new FenwickWeightedQueue<Integer>();
+        try {
+            queue.add(-1.0, 0);
+            errorCollector.addError(new AssertionError("Expected Exception for a negative weight"));
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
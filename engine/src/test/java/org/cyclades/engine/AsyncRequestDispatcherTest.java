@@ -0,0 +1,261 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class AsyncRequestDispatcherTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void dispatch_test () throws Exception {
+        AsyncRequestDispatcher dispatcher = new AsyncRequestDispatcher(null, executor, 5000, asyncSupport) {
+            @Override
+            void process (HttpServletRequest request, HttpServletResponse response) throws Exception {
+                response.getOutputStream().write("processed".getBytes());
+            }
+        };
+        FakeAsyncContext asyncContext = new FakeAsyncContext();
+        FakeResponse response = new FakeResponse();
+        if (!dispatcher.dispatch(request(true, asyncContext), response.proxy())) errorCollector.addError(new AssertionError("Request not dispatched"));
+        if (!asyncContext.completed.await(5, TimeUnit.SECONDS)) errorCollector.addError(new AssertionError("AsyncContext not completed"));
+        if (asyncContext.timeout != 5000) errorCollector.addError(new AssertionError("Timeout not set: " + asyncContext.timeout));
+        if (asyncContext.listener == null) errorCollector.addError(new AssertionError("AsyncListener not registered"));
+        if (!"processed".equals(response.output.toString())) errorCollector.addError(new AssertionError("Response not written: " + response.output));
+        if (response.errorStatus.get() != 0) errorCollector.addError(new AssertionError("Unexpected error status: " + response.errorStatus.get()));
+        if (asyncContext.completeCount.get() != 1) errorCollector.addError(new AssertionError("AsyncContext completed " + asyncContext.completeCount.get() + " times"));
+    }
+
+    @Test
+    public void not_supported_test () throws Exception {
+        AsyncRequestDispatcher dispatcher = new AsyncRequestDispatcher(null, executor, 0, asyncSupport);
+        FakeAsyncContext asyncContext = new FakeAsyncContext();
+        if (dispatcher.dispatch(request(false, asyncContext), new FakeResponse().proxy())) {
+            errorCollector.addError(new AssertionError("Request dispatched although the servlet is not async supported"));
+        }
+        dispatcher = new AsyncRequestDispatcher(null, executor, 0, null);
+        if (dispatcher.dispatch(request(true, asyncContext), new FakeResponse().proxy())) {
+            errorCollector.addError(new AssertionError("Request dispatched without asynchronous processing support"));
+        }
+        if (asyncContext.listener != null) errorCollector.addError(new AssertionError("Asynchronous processing started"));
+    }
+
+    @Test
+    public void timeout_test () throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> workerState = new AtomicReference<String>();
+        AsyncRequestDispatcher dispatcher = new AsyncRequestDispatcher(null, executor, 1000, asyncSupport) {
+            @Override
+            void process (HttpServletRequest request, HttpServletResponse response) throws Exception {
+                started.countDown();
+                release.await();
+                String state = (Thread.currentThread().isInterrupted()) ? "interrupted" : "running";
+                try {
+                    response.getOutputStream().write("late".getBytes());
+                    state += ", written";
+                } catch (IOException e) {
+                    state += ", write failed";
+                }
+                workerState.set(state);
+                done.countDown();
+            }
+        };
+        FakeAsyncContext asyncContext = new FakeAsyncContext();
+        FakeResponse response = new FakeResponse();
+        dispatcher.dispatch(request(true, asyncContext), response.proxy());
+        started.await(5, TimeUnit.SECONDS);
+        // The container times the request out while the worker is still busy
+        asyncContext.listener.onTimeout(null);
+        if (response.errorStatus.get() != HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            errorCollector.addError(new AssertionError("Timed out request not answered with 503: " + response.errorStatus.get()));
+        }
+        if (asyncContext.completeCount.get() != 1) errorCollector.addError(new AssertionError("Timed out request not completed"));
+        release.countDown();
+        done.await(5, TimeUnit.SECONDS);
+        // The worker is cancelled cooperatively: never interrupted, its writes fail
+        if (!"running, write failed".equals(workerState.get())) errorCollector.addError(new AssertionError("Unexpected worker state: " + workerState.get()));
+        if (response.output.size() != 0) errorCollector.addError(new AssertionError("Write reached the response after the timeout"));
+        executor.submit(new Runnable() { public void run () {} }).get(5, TimeUnit.SECONDS);
+        if (asyncContext.completeCount.get() != 1) errorCollector.addError(new AssertionError("AsyncContext completed " + asyncContext.completeCount.get() + " times"));
+    }
+
+    @Test
+    public void destroy_test () throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        AsyncRequestDispatcher dispatcher = new AsyncRequestDispatcher(null, executor, 0, asyncSupport) {
+            @Override
+            void process (HttpServletRequest request, HttpServletResponse response) throws Exception {
+                started.countDown();
+                release.await();
+            }
+        };
+        FakeAsyncContext runningContext = new FakeAsyncContext();
+        FakeAsyncContext queuedContext = new FakeAsyncContext();
+        FakeResponse queuedResponse = new FakeResponse();
+        dispatcher.dispatch(request(true, runningContext), new FakeResponse().proxy());
+        started.await(5, TimeUnit.SECONDS);
+        dispatcher.dispatch(request(true, queuedContext), queuedResponse.proxy());
+        // The executor is shared, destroy fails the queued request but leaves the running one alone
+        dispatcher.destroy();
+        if (queuedResponse.errorStatus.get() != HttpServletResponse.SC_SERVICE_UNAVAILABLE) {
+            errorCollector.addError(new AssertionError("Queued request not answered with 503: " + queuedResponse.errorStatus.get()));
+        }
+        if (queuedContext.completeCount.get() != 1) errorCollector.addError(new AssertionError("Queued request not completed"));
+        if (runningContext.completeCount.get() != 0) errorCollector.addError(new AssertionError("Running request completed by destroy"));
+        release.countDown();
+        if (!runningContext.completed.await(5, TimeUnit.SECONDS)) errorCollector.addError(new AssertionError("Running request not completed"));
+        executor.submit(new Runnable() { public void run () {} }).get(5, TimeUnit.SECONDS);
+        if (queuedContext.completeCount.get() != 1) errorCollector.addError(new AssertionError("Queued request completed " + queuedContext.completeCount.get() + " times"));
+    }
+
+    private static HttpServletRequest request (final boolean asyncSupported, final FakeAsyncContext asyncContext) {
+        return (HttpServletRequest)Proxy.newProxyInstance(AsyncRequestDispatcherTest.class.getClassLoader(),
+                new Class<?>[]{FakeAsyncRequest.class}, new InvocationHandler() {
+            @Override
+            public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("isAsyncSupported")) return asyncSupported;
+                if (method.getName().equals("startAsync")) return asyncContext;
+                if (method.getName().equals("getRequestURI")) return "/test";
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Servlet 3 shaped request, AsyncContext and AsyncListener (the engine compiles against Servlet 2.4)
+     */
+    public interface FakeAsyncRequest extends HttpServletRequest {
+        boolean isAsyncSupported ();
+        FakeAsyncContext startAsync ();
+    }
+
+    public interface FakeAsyncListener {
+        void onComplete (Object event);
+        void onTimeout (Object event);
+        void onError (Object event);
+        void onStartAsync (Object event);
+    }
+
+    public static class FakeAsyncContext {
+        public void setTimeout (long timeout) {
+            this.timeout = timeout;
+        }
+
+        public void complete () {
+            completeCount.incrementAndGet();
+            completed.countDown();
+        }
+
+        public void addListener (FakeAsyncListener listener) {
+            this.listener = listener;
+        }
+
+        volatile long timeout = -1;
+        volatile FakeAsyncListener listener = null;
+        final AtomicInteger completeCount = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(1);
+    }
+
+    private static class FakeResponse implements InvocationHandler {
+        HttpServletResponse proxy () {
+            return (HttpServletResponse)Proxy.newProxyInstance(AsyncRequestDispatcherTest.class.getClassLoader(),
+                    new Class<?>[]{HttpServletResponse.class}, this);
+        }
+
+        @Override
+        public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("getOutputStream")) return outputStream;
+            if (method.getName().equals("isCommitted")) return false;
+            if (method.getName().equals("sendError")) errorStatus.set((Integer)args[0]);
+            return null;
+        }
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final AtomicInteger errorStatus = new AtomicInteger();
+        private final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write (int b) throws IOException {
+                output.write(b);
+            }
+        };
+    }
+
+    private static AsyncRequestDispatcher.AsyncSupport asyncSupport;
+    static {
+        try {
+            asyncSupport = new AsyncRequestDispatcher.AsyncSupport(FakeAsyncRequest.class);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ExecutorService executor;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
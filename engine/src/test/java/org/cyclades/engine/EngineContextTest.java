@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class EngineContextTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void platform_execution_service_test () throws Exception {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put(Definitions.EXECUTION_SERVICE_THREADS, "1");
+        EngineContext engineContext = createEngineContext(initParameters);
+        try {
+            if (engineContext.isVirtualExecutionService()) errorCollector.addError(new AssertionError("Virtual execution service by default"));
+            final ExecutorService executionService = engineContext.getExecutionService();
+            if (executionService != engineContext.getExecutionService()) errorCollector.addError(new AssertionError("Execution service not shared"));
+            final CountDownLatch release = new CountDownLatch(1);
+            Future<?> blocking = executionService.submit(new Runnable() {
+                public void run () {
+                    try { release.await(); } catch (InterruptedException e) {}
+                }
+            });
+            // Fill the queue (4 per thread), the next task is run by the submitting thread
+            for (int i = 0; i < 4; i++) executionService.submit(new Runnable() { public void run () {} });
+            final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+            executionService.submit(new Runnable() {
+                public void run () {
+                    ranOn.set(Thread.currentThread());
+                }
+            });
+            if (ranOn.get() != Thread.currentThread()) errorCollector.addError(new AssertionError("Saturated execution service did not run the task on the caller: " + ranOn.get()));
+            release.countDown();
+            blocking.get(5, TimeUnit.SECONDS);
+        } finally {
+            engineContext.destroy();
+        }
+    }
+
+    @Test
+    public void destroy_test () throws Exception {
+        EngineContext engineContext = createEngineContext(new HashMap<String, String>());
+        ExecutorService executionService = engineContext.getExecutionService();
+        engineContext.destroy();
+        // Tasks submitted after destroy fail rather than being dropped
+        try {
+            executionService.submit(new Runnable() { public void run () {} });
+            errorCollector.addError(new AssertionError("Task accepted after destroy"));
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+        // Nothing to shut down if the execution service was never used, and it is not created afterwards
+        engineContext = createEngineContext(new HashMap<String, String>());
+        engineContext.destroy();
+        try {
+            engineContext.getExecutionService();
+            errorCollector.addError(new AssertionError("Execution service created after destroy"));
+        } catch (RejectedExecutionException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void virtual_execution_service_test () throws Exception {
+        Map<String, String> initParameters = new HashMap<String, String>();
+        initParameters.put(Definitions.EXECUTION_SERVICE, Definitions.VIRTUAL_EXECUTION_SERVICE);
+        EngineContext engineContext = createEngineContext(initParameters);
+        try {
+            // Virtual threads when the JVM has them, platform threads otherwise
+            boolean available = true;
+            try {
+                java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                available = false;
+            }
+            if (engineContext.isVirtualExecutionService() != available) errorCollector.addError(new AssertionError("Unexpected execution service type, virtual: " +
+                    engineContext.isVirtualExecutionService()));
+            if (!"ok".equals(engineContext.getExecutionService().submit(new java.util.concurrent.Callable<String>() {
+                public String call () { return "ok"; }
+            }).get(5, TimeUnit.SECONDS))) errorCollector.addError(new AssertionError("Task not run"));
+        } finally {
+            engineContext.destroy();
+        }
+    }
+
+    private static EngineContext createEngineContext (final Map<String, String> initParameters) throws Exception {
+        return new EngineContext(null, new ServletConfig() {
+            public String getServletName () {
+                return "cyclades";
+            }
+            public ServletContext getServletContext () {
+                return null;
+            }
+            public String getInitParameter (String name) {
+                return initParameters.get(name);
+            }
+            @SuppressWarnings("rawtypes")
+            public Enumeration getInitParameterNames () {
+                return Collections.enumeration(initParameters.keySet());
+            }
+        }, "/tmp", false, 0);
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class MapChannelTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void typed_key_test () throws Exception {
+        MapChannel.Key<String> key = new MapChannel.Key<String>("message", String.class);
+        MapChannel channel = new MapChannel();
+        channel.put(key, "hello");
+        if (!"hello".equals(channel.get(key))) errorCollector.addError(new AssertionError("Unexpected typed value: " + channel.get(key)));
+        if (!"hello".equals(channel.getMap().get("message"))) errorCollector.addError(new AssertionError("Typed value not visible through legacy String key"));
+        channel.getMap().put("message", Integer.valueOf(1));
+        try {
+            channel.get(key);
+            errorCollector.addError(new AssertionError("Expected ClassCastException for mismatched value type"));
+        } catch (ClassCastException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void direct_buffer_test () throws Exception {
+        byte[] data = new byte[10000];
+        for (int i = 0; i < data.length; i++) data[i] = (byte)i;
+        MapChannel.Key<ByteBuffer> key = new MapChannel.Key<ByteBuffer>("binary", ByteBuffer.class);
+        MapChannel channel = new MapChannel();
+        long totalBefore = MapChannel.getTotalOffHeapBytes();
+        // Small size hint, forces the buffer to grow
+        ByteBuffer buffer = channel.putDirect(key, new ByteArrayInputStream(data), 16);
+        if (!buffer.isDirect()) errorCollector.addError(new AssertionError("Buffer is not direct"));
+        if (buffer.remaining() != data.length) errorCollector.addError(new AssertionError("Unexpected buffer size: " + buffer.remaining()));
+        for (int i = 0; i < data.length; i++) {
+            if (buffer.get(buffer.position() + i) != data[i]) {
+                errorCollector.addError(new AssertionError("Unexpected byte at index " + i));
+                break;
+            }
+        }
+        if (channel.getOffHeapBytes() < data.length) errorCollector.addError(new AssertionError("Off heap bytes not accounted: " + channel.getOffHeapBytes()));
+        if (MapChannel.getTotalOffHeapBytes() - totalBefore != channel.getOffHeapBytes()) errorCollector.addError(new AssertionError("Total off heap bytes not accounted"));
+        channel.release();
+        if (channel.containsKey(key)) errorCollector.addError(new AssertionError("Released buffer still in channel"));
+        if (channel.getOffHeapBytes() != 0) errorCollector.addError(new AssertionError("Off heap bytes not reset: " + channel.getOffHeapBytes()));
+        if (MapChannel.getTotalOffHeapBytes() != totalBefore) errorCollector.addError(new AssertionError("Total off heap bytes not reset"));
+        // The memory is left to the garbage collector, a reference kept after release is still valid
+        if (buffer.get(buffer.position()) != data[0]) errorCollector.addError(new AssertionError("Buffer unusable after release"));
+    }
+
+    @Test
+    public void mapped_buffer_test () throws Exception {
+        File file = File.createTempFile("MapChannelTest", ".bin");
+        file.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            fos.write("mapped file contents".getBytes());
+        } finally {
+            fos.close();
+        }
+        MapChannel.Key<ByteBuffer> key = new MapChannel.Key<ByteBuffer>("binary", ByteBuffer.class);
+        MapChannel channel = new MapChannel();
+        channel.putMapped(key, file);
+        ByteBuffer buffer = channel.get(key);
+        byte[] read = new byte[buffer.remaining()];
+        buffer.duplicate().get(read);
+        if (!"mapped file contents".equals(new String(read))) errorCollector.addError(new AssertionError("Unexpected mapped contents: " + new String(read)));
+        // A value replaced by the caller must survive release
+        channel.getMap().put("binary", "replaced");
+        channel.release();
+        if (!"replaced".equals(channel.getMap().get("binary"))) errorCollector.addError(new AssertionError("Release removed a value it did not own"));
+        file.delete();
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -27,8 +27,10 @@
  *******************************************************************************/
 package org.cyclades.engine;
 
+import java.io.ByteArrayInputStream;
 import javax.xml.transform.dom.DOMSource;
 import org.cyclades.xml.parser.api.XMLGeneratedObject;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.Before;
@@ -70,6 +72,16 @@ public class MetaTypeEnumTest {
         if (!xmlStringBefore.equals(metaEnumXMLString)) errorCollector.addError(new AssertionError("[" + xmlStringBefore + "] does not equal [" + metaEnumXMLString + "]"));
     }
 
+    @Test
+    public void stream_meta_test () throws Exception {
+        String jsonStringBefore = "{\"parameters\":[{\"name\":\"a\",\"value\":\"1\"}],\"data\":{\"value\":\"some text value\"}}";
+        JSONObject jsonObject = (JSONObject)MetaTypeEnum.JSON.createObjectFromMeta(new ByteArrayInputStream(jsonStringBefore.getBytes()));
+        if (!new JSONObject(jsonStringBefore).toString().equals(jsonObject.toString())) errorCollector.addError(new AssertionError("[" + jsonStringBefore + "] does not equal [" + jsonObject + "]"));
+        String xmlStringBefore = "<root><value>some text value</value></root>";
+        String xmlStringAfter = MetaTypeEnum.XML.createMetaFromObject(MetaTypeEnum.XML.createObjectFromMeta(new ByteArrayInputStream(xmlStringBefore.getBytes())));
+        if (!xmlStringBefore.equals(xmlStringAfter)) errorCollector.addError(new AssertionError("[" + xmlStringBefore + "] does not equal [" + xmlStringAfter + "]"));
+    }
+
     @Rule
     public ErrorCollector errorCollector = new ErrorCollector();
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import org.cyclades.engine.adapter.HttpServletResponseAdapter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class NyxletSessionTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void fork_response_test () throws Exception {
+        NyxletSession session = new NyxletSession(new HashMap<String, List<String>>(), null, new ByteArrayOutputStream());
+        ByteArrayOutputStream forkedOutputStream = new ByteArrayOutputStream();
+        NyxletSession forkedSession = session.fork(forkedOutputStream);
+        // A forked session runs on another thread, it must never touch the response of the session it was forked from
+        if (forkedSession.getHttpServletResponse() == session.getHttpServletResponse()) {
+            errorCollector.addError(new AssertionError("Forked session shares the HttpServletResponse"));
+        }
+        forkedSession.setResponseStatus(500);
+        forkedSession.setResponseContentType("application/xml");
+        HttpServletResponseAdapter response = (HttpServletResponseAdapter)session.getHttpServletResponse();
+        if (response.getStatus() != 0 || response.getContentType() != null) errorCollector.addError(new AssertionError("Forked session changed the response"));
+        HttpServletResponseAdapter forkedResponse = (HttpServletResponseAdapter)forkedSession.getHttpServletResponse();
+        if (forkedResponse.getStatus() != 500) errorCollector.addError(new AssertionError("Status not recorded: " + forkedResponse.getStatus()));
+        if (!"application/xml".equals(forkedResponse.getContentType())) errorCollector.addError(new AssertionError("Content type not recorded: " + forkedResponse.getContentType()));
+        forkedResponse.getOutputStream().write("data".getBytes());
+        if (!"data".equals(forkedOutputStream.toString())) errorCollector.addError(new AssertionError("Forked response not written to the forked OutputStream"));
+    }
+
+    @Test
+    public void orchestration_owner_test () throws Exception {
+        NyxletSession session = new NyxletSession(new HashMap<String, List<String>>(), null, new ByteArrayOutputStream());
+        if (!session.enterOrchestration()) errorCollector.addError(new AssertionError("Outermost orchestration does not own the Map Channel"));
+        // Nested orchestrations and forked sessions share the Map Channel with the outermost orchestration
+        if (session.enterOrchestration()) errorCollector.addError(new AssertionError("Nested orchestration owns the Map Channel"));
+        session.exitOrchestration();
+        NyxletSession forkedSession = session.fork(new ByteArrayOutputStream());
+        if (forkedSession.enterOrchestration()) errorCollector.addError(new AssertionError("Forked session owns the Map Channel"));
+        forkedSession.exitOrchestration();
+        session.exitOrchestration();
+        if (!session.enterOrchestration()) errorCollector.addError(new AssertionError("Next orchestration does not own the Map Channel"));
+        session.exitOrchestration();
+        NyxletSession handedSession = new NyxletSession(new HashMap<String, List<String>>(), null, new ByteArrayOutputStream());
+        handedSession.setMapChannel(session.getMapChannel());
+        if (handedSession.enterOrchestration()) errorCollector.addError(new AssertionError("Session handed a Map Channel owns it"));
+        handedSession.exitOrchestration();
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.logging;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import com.google.common.io.Files;
+
+public class AsyncLogWriterTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logDirectory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : logDirectory.listFiles()) file.delete();
+        logDirectory.delete();
+    }
+
+    @Test
+    public void write_and_close_test () throws Exception {
+        AsyncLogWriter writer = new AsyncLogWriter(logDirectory.getAbsolutePath(), "test.log", "yyyyMMdd", 1000, 16, 10);
+        for (int i = 0; i < 100; i++) writer.writeLine("line " + i);
+        writer.writeDatedLine("dated", "|");
+        writer.close();
+        File[] files = logDirectory.listFiles();
+        if (files.length != 1) {
+            errorCollector.addError(new AssertionError("Expected one log file, found: " + files.length));
+            return;
+        }
+        List<String> lines = Files.readLines(files[0], Charset.defaultCharset());
+        if (lines.size() != 101) errorCollector.addError(new AssertionError("Expected 101 lines, found: " + lines.size()));
+        for (int i = 0; i < 100 && i < lines.size(); i++) {
+            if (!lines.get(i).equals("line " + i)) errorCollector.addError(new AssertionError("Out of order or corrupt: " + lines.get(i)));
+        }
+        if (lines.size() == 101 && !lines.get(100).endsWith("|dated")) errorCollector.addError(new AssertionError("Bad dated line: " + lines.get(100)));
+        if (writer.getWrittenCount() != 101) errorCollector.addError(new AssertionError("Written count: " + writer.getWrittenCount()));
+        if (writer.getQueuedCount() != 0) errorCollector.addError(new AssertionError("Queued count: " + writer.getQueuedCount()));
+        try {
+            writer.writeLine("after close");
+            errorCollector.addError(new AssertionError("Write after close accepted"));
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void drop_when_full_test () throws Exception {
+        AsyncLogWriter writer = new AsyncLogWriter(logDirectory.getAbsolutePath(), "test.log", "yyyyMMdd", 0, 16, 10);
+        writer.writeLine("dropped");
+        writer.close();
+        if (writer.getDroppedCount() != 1) errorCollector.addError(new AssertionError("Dropped count: " + writer.getDroppedCount()));
+        if (writer.getWrittenCount() != 0) errorCollector.addError(new AssertionError("Written count: " + writer.getWrittenCount()));
+    }
+
+    private File logDirectory;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+
+}
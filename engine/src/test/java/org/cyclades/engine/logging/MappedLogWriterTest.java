@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.logging;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import com.google.common.io.Files;
+
+public class MappedLogWriterTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        logDirectory = Files.createTempDir();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : logDirectory.listFiles()) file.delete();
+        logDirectory.delete();
+    }
+
+    @Test
+    public void segment_roll_test () throws Exception {
+        StringBuilder expected = new StringBuilder();
+        MappedLogWriter writer = new MappedLogWriter(logDirectory.getAbsolutePath(), "test.log", "yyyyMMdd", 64);
+        for (int i = 0; i < 20; i++) {
+            writer.writeLine("line " + i + " \u00e9");
+            expected.append("line ").append(i).append(" \u00e9\n");
+        }
+        writer.close();
+        // Re-open, appending to the last segment
+        writer = new MappedLogWriter(logDirectory.getAbsolutePath(), "test.log", "yyyyMMdd", 64);
+        writer.write("last");
+        expected.append("last");
+        writer.close();
+        String date = new SimpleDateFormat("yyyyMMdd").format(new Date());
+        StringBuilder actual = new StringBuilder();
+        File segmentFile;
+        for (int i = 0; (segmentFile = new File(logDirectory, "test.log." + date + "." + i)).exists(); i++) {
+            if (segmentFile.length() > 64) errorCollector.addError(new AssertionError("Segment too large: " + segmentFile.length()));
+            actual.append(Files.toString(segmentFile, Charset.forName("UTF-8")));
+        }
+        if (!expected.toString().equals(actual.toString())) {
+            errorCollector.addError(new AssertionError("[" + expected + "] does not equal [" + actual + "]"));
+        }
+        if (logDirectory.listFiles().length < 2) errorCollector.addError(new AssertionError("Segments not rolled"));
+    }
+
+    @Test
+    public void dated_line_test () throws Exception {
+        MappedLogWriter writer = new MappedLogWriter(logDirectory.getAbsolutePath(), "test.log", "yyyyMMdd");
+        long before = System.currentTimeMillis();
+        writer.writeDatedLine("message", "|");
+        writer.close();
+        String[] fields = Files.toString(logDirectory.listFiles()[0], Charset.forName("UTF-8")).split("[|]");
+        if (fields.length != 2 || Long.parseLong(fields[0]) < before || !fields[1].equals("message\n")) {
+            errorCollector.addError(new AssertionError("Bad dated line: " + fields[0]));
+        }
+    }
+
+    private File logDirectory;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+
+}
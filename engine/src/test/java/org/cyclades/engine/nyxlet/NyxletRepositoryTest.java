@@ -0,0 +1,268 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.exception.CycladesException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class NyxletRepositoryTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        events.clear();
+        observedRepository = null;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File directory : directories) {
+            for (File file : directory.listFiles()) file.delete();
+            directory.delete();
+        }
+        directories.clear();
+    }
+
+    @Test
+    public void reload_swap_test () throws Exception {
+        NyxletRepository repository = new NyxletRepository();
+        repository.loadNyxletFiles(new String[]{nyxletDirectory("1", false)}, true, false);
+        RecordingNyxlet previousA = (RecordingNyxlet)repository.getNyxlet("a");
+        RecordingNyxlet previousB = (RecordingNyxlet)repository.getNyxlet("b");
+        events.clear();
+        observedRepository = repository;
+        int loaded = repository.reloadNyxletFiles(new String[]{nyxletDirectory("2", false)}, true, false);
+        if (loaded != 2) errorCollector.addError(new AssertionError("Unexpected number of Nyxlets loaded: " + loaded));
+        for (Nyxlet nyxlet : repository.nyxlets()) {
+            if (!"2".equals(nyxlet.getAttribute("generation"))) errorCollector.addError(new AssertionError("Previous Nyxlet still in service: " + nyxlet.getName()));
+        }
+        if (!previousA.destroyed || !previousB.destroyed) errorCollector.addError(new AssertionError("Previous Nyxlets not destroyed"));
+        // The previous Nyxlets are destroyed before any new one is initialized
+        if (events.size() != 4 || !events.get(0).startsWith("destroy:1") || !events.get(1).startsWith("destroy:1")) {
+            errorCollector.addError(new AssertionError("Previous and new Nyxlets overlapped: " + events));
+        }
+        repository.destroy();
+    }
+
+    @Test
+    public void failed_load_test () throws Exception {
+        NyxletRepository repository = new NyxletRepository();
+        repository.loadNyxletFiles(new String[]{nyxletDirectory("1", false)}, true, false);
+        RecordingNyxlet previousA = (RecordingNyxlet)repository.getNyxlet("a");
+        String directory = nyxletDirectory("2", false);
+        writeFile(new File(directory, "broken.nyxlet"), null);
+        events.clear();
+        try {
+            repository.reloadNyxletFiles(new String[]{directory}, true, false);
+            errorCollector.addError(new AssertionError("Expected the reload to fail"));
+        } catch (Exception e) {}
+        if (repository.getNyxlet("a") != previousA) errorCollector.addError(new AssertionError("Previous snapshot replaced"));
+        if (previousA.destroyed) errorCollector.addError(new AssertionError("Previous Nyxlet destroyed"));
+        if (!events.isEmpty()) errorCollector.addError(new AssertionError("Nyxlets started or stopped: " + events));
+        repository.destroy();
+    }
+
+    @Test
+    public void failed_init_test () throws Exception {
+        NyxletRepository repository = new NyxletRepository();
+        repository.loadNyxletFiles(new String[]{nyxletDirectory("1", false)}, true, false);
+        RecordingNyxlet previousA = (RecordingNyxlet)repository.getNyxlet("a");
+        events.clear();
+        observedRepository = repository;
+        try {
+            repository.reloadNyxletFiles(new String[]{nyxletDirectory("2", true)}, true, false);
+            errorCollector.addError(new AssertionError("Expected the reload to fail"));
+        } catch (Exception e) {}
+        // The previous Nyxlets have been handed over, fresh instances of them are back in service
+        RecordingNyxlet restoredA = (RecordingNyxlet)repository.getNyxlet("a");
+        if (restoredA == null || restoredA == previousA || !"1".equals(restoredA.getAttribute("generation")) || !restoredA.initialized) {
+            errorCollector.addError(new AssertionError("Previous Nyxlets not restored: " + events));
+        }
+        if (repository.size() != 2) errorCollector.addError(new AssertionError("Unexpected number of Nyxlets: " + repository.size()));
+        if (!previousA.destroyed) errorCollector.addError(new AssertionError("Previous Nyxlet not destroyed"));
+        for (String event : events) {
+            if (event.startsWith("init:2") && !events.contains(event.replace("init:", "destroy:"))) errorCollector.addError(new AssertionError("New Nyxlet left running: " + event));
+            if (event.startsWith("reachable:")) errorCollector.addError(new AssertionError("Destroyed Nyxlet reachable: " + event));
+        }
+        repository.destroy();
+    }
+
+    @Test
+    public void drain_test () throws Exception {
+        final NyxletRepository repository = new NyxletRepository();
+        repository.loadNyxletFiles(new String[]{nyxletDirectory("1", false)}, true, false);
+        RecordingNyxlet previousA = (RecordingNyxlet)repository.getNyxlet("a");
+        final String directory = nyxletDirectory("2", false);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        if (!repository.enterRequest()) errorCollector.addError(new AssertionError("Request rejected"));
+        Thread reload = new Thread() {
+            @Override
+            public void run () {
+                try {
+                    repository.reloadNyxletFiles(new String[]{directory}, true, false, 10000);
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        };
+        reload.start();
+        Thread.sleep(200);
+        // The request in flight keeps the previous Nyxlets, new requests are rejected
+        if (previousA.destroyed) errorCollector.addError(new AssertionError("Nyxlet destroyed while a request was in flight"));
+        if (repository.getNyxlet("a") != previousA) errorCollector.addError(new AssertionError("Nyxlets replaced while a request was in flight"));
+        if (repository.enterRequest()) {
+            repository.exitRequest();
+            errorCollector.addError(new AssertionError("Request accepted during a reload"));
+        }
+        repository.exitRequest();
+        reload.join(10000);
+        if (failure.get() != null) errorCollector.addError(failure.get());
+        if (!previousA.destroyed) errorCollector.addError(new AssertionError("Previous Nyxlet not destroyed"));
+        if (!"2".equals(repository.getNyxlet("a").getAttribute("generation"))) errorCollector.addError(new AssertionError("New Nyxlets not published"));
+        if (!repository.enterRequest()) errorCollector.addError(new AssertionError("Request rejected after the reload"));
+        repository.exitRequest();
+        repository.destroy();
+    }
+
+    @Test
+    public void drain_timeout_test () throws Exception {
+        NyxletRepository repository = new NyxletRepository();
+        repository.loadNyxletFiles(new String[]{nyxletDirectory("1", false)}, true, false);
+        repository.enterRequest();
+        long start = System.currentTimeMillis();
+        repository.reloadNyxletFiles(new String[]{nyxletDirectory("2", false)}, true, false, 100);
+        if (System.currentTimeMillis() - start > 5000) errorCollector.addError(new AssertionError("Reload did not time out"));
+        if (!"2".equals(repository.getNyxlet("a").getAttribute("generation"))) errorCollector.addError(new AssertionError("New Nyxlets not published"));
+        repository.exitRequest();
+        repository.destroy();
+    }
+
+    /**
+     * Create a directory with the Nyxlets "a" and "b" of the given generation, "b" failing to initialize if requested
+     */
+    private String nyxletDirectory (String generation, boolean failB) throws Exception {
+        File directory = File.createTempFile("nyxlets", "");
+        directory.delete();
+        directory.mkdir();
+        directories.add(directory);
+        writeFile(new File(directory, "a.nyxlet"), manifest("a", generation, false));
+        writeFile(new File(directory, "b.nyxlet"), manifest("b", generation, failB));
+        return directory.getAbsolutePath();
+    }
+
+    private static String manifest (String name, String generation, boolean fail) {
+        return "<manifest><nyxlet name=\"" + name + "\" class=\"" + RecordingNyxlet.class.getName() + "\">" +
+                "<attribute name=\"generation\"><value>" + generation + "</value></attribute>" +
+                "<attribute name=\"fail\"><value>" + fail + "</value></attribute>" +
+                "</nyxlet></manifest>";
+    }
+
+    /**
+     * Write a Nyxlet file, with no nyxlet_manifest.xml if the manifest is null
+     */
+    private static void writeFile (File file, String manifest) throws Exception {
+        Manifest jarManifest = new Manifest();
+        jarManifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        JarOutputStream jos = new JarOutputStream(new FileOutputStream(file), jarManifest);
+        try {
+            if (manifest != null) {
+                jos.putNextEntry(new JarEntry("nyxlet_manifest.xml"));
+                jos.write(manifest.getBytes());
+                jos.closeEntry();
+            }
+        } finally {
+            jos.close();
+        }
+    }
+
+    public static class RecordingNyxlet extends Nyxlet {
+
+        public RecordingNyxlet () throws Exception {
+            super();
+        }
+
+        @Override
+        public byte[] process (NyxletSession sessionDelegate) throws CycladesException {
+            return null;
+        }
+
+        @Override
+        public void init () throws CycladesException {
+            events.add("init:" + getAttribute("generation") + ":" + getName());
+            // Nyxlets that have been destroyed must not be reachable while the new ones start
+            if (observedRepository != null) {
+                for (Nyxlet nyxlet : observedRepository.nyxlets()) {
+                    if (((RecordingNyxlet)nyxlet).destroyed) events.add("reachable:" + nyxlet.getAttribute("generation") + ":" + nyxlet.getName());
+                }
+            }
+            if ("true".equals(getAttribute("fail"))) throw new CycladesException("Failed to initialize");
+            initialized = true;
+        }
+
+        @Override
+        public void destroy () throws CycladesException {
+            events.add("destroy:" + getAttribute("generation") + ":" + getName());
+            destroyed = true;
+        }
+
+        volatile boolean initialized = false;
+        volatile boolean destroyed = false;
+    }
+
+    private static volatile NyxletRepository observedRepository = null;
+    private static final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final List<File> directories = new ArrayList<File>();
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
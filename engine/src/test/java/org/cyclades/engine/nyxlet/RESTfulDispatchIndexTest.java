@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.adapter.HttpServletRequestAdapter;
+import org.cyclades.engine.adapter.HttpServletResponseAdapter;
+import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.exception.CycladesException;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class RESTfulDispatchIndexTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        strategy = new RESTfulDispatchServiceDelegateStrategy();
+        strategy.addServiceModule(new TestNyxlet("items", "group|/action/id|100|GET /items/*", null));
+        strategy.addServiceModule(new TestNyxlet("items-post", "group|/action|100|POST /items", null));
+        strategy.addServiceModule(new TestNyxlet("everything", "group||500|/**", null));
+        strategy.addServiceModule(new TestNyxlet("legacy", "group||50", "legacy"));
+        strategy.addServiceModule(new TestNyxlet("legacy-late", "group||600", "late"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void templateMatch_test () throws Exception {
+        NyxletSession session = session("GET", "/items/42");
+        Nyxlet nyxlet = strategy.getServiceModuleMatch("group", session);
+        if (nyxlet == null || !nyxlet.getName().equals("items")) errorCollector.addError(new AssertionError("Expected \"items\" match: " + nyxlet));
+        Map<String, List<String>> parameters = nyxlet.getRRDURIParameterMap(session);
+        if (!parameters.get("action").get(0).equals("items")) errorCollector.addError(new AssertionError("Wrong action parameter: " + parameters));
+        if (!parameters.get("id").get(0).equals("42")) errorCollector.addError(new AssertionError("Wrong id parameter: " + parameters));
+        nyxlet = strategy.getServiceModuleMatch("group", session("POST", "/items"));
+        if (nyxlet == null || !nyxlet.getName().equals("items-post")) errorCollector.addError(new AssertionError("Expected \"items-post\" match: " + nyxlet));
+    }
+
+    @Test
+    public void priorityAndFallback_test () throws Exception {
+        // Lower priority template match, method does not match the higher priority templates
+        Nyxlet nyxlet = strategy.getServiceModuleMatch("group", session("DELETE", "/items/42"));
+        if (nyxlet == null || !nyxlet.getName().equals("everything")) errorCollector.addError(new AssertionError("Expected \"everything\" match: " + nyxlet));
+        // isRRDMatch(...) Nyxlet with a higher priority than any template
+        nyxlet = strategy.getServiceModuleMatch("group", session("GET", "/legacy/42"));
+        if (nyxlet == null || !nyxlet.getName().equals("legacy")) errorCollector.addError(new AssertionError("Expected \"legacy\" match: " + nyxlet));
+        // isRRDMatch(...) Nyxlet with a lower priority than a matching template is never reached
+        nyxlet = strategy.getServiceModuleMatch("group", session("GET", "/late"));
+        if (nyxlet == null || !nyxlet.getName().equals("everything")) errorCollector.addError(new AssertionError("Expected \"everything\" match: " + nyxlet));
+    }
+
+    private static NyxletSession session (final String method, final String pathInfo) {
+        HttpServletRequestAdapter request = new HttpServletRequestAdapter(new HashMap<String, String>(), new HashMap<String, String[]>(),
+                new HashMap<String, Object>(), null) {
+            @Override public String getMethod() {return method;}
+            @Override public String getPathInfo() {return pathInfo;}
+        };
+        return new NyxletSession(request, new HttpServletResponseAdapter(null), null, null);
+    }
+
+    private static class TestNyxlet extends Nyxlet {
+        TestNyxlet (String name, String rrdString, String matchURIPart) throws Exception {
+            setName(name);
+            setRRDString(rrdString);
+            this.matchURIPart = matchURIPart;
+        }
+
+        @Override
+        public boolean isRRDMatch (NyxletSession sessionDelegate) throws CycladesException {
+            return sessionDelegate.getRequestPathInfo().split("/")[1].equals(matchURIPart);
+        }
+
+        @Override public byte[] process (NyxletSession sessionDelegate) throws CycladesException {return null;}
+        @Override public void init () throws CycladesException {}
+        @Override public void destroy () throws CycladesException {}
+
+        private final String matchURIPart;
+    }
+
+    private RESTfulDispatchServiceDelegateStrategy strategy;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
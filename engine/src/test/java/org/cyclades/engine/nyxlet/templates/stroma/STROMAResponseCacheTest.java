@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.stroma;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class STROMAResponseCacheTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void key_test () throws Exception {
+        Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+        parameters.put("b", Arrays.asList("2"));
+        parameters.put("a", Arrays.asList("1"));
+        Map<String, List<String>> reordered = new LinkedHashMap<String, List<String>>();
+        reordered.put("a", Arrays.asList("1"));
+        reordered.put("b", Arrays.asList("2"));
+        String key = STROMAResponseCache.createKey("helloworld", "sayhello", "application/json", parameters);
+        if (!key.equals(STROMAResponseCache.createKey("helloworld", "sayhello", "application/json", reordered))) errorCollector.addError(new AssertionError("Parameter order changed the key"));
+        if (key.equals(STROMAResponseCache.createKey("helloworld", "sayhello", "application/xml", reordered))) errorCollector.addError(new AssertionError("Variant not part of the key"));
+        if (key.equals(STROMAResponseCache.createKey("helloworld", "saygoodbye", "application/json", reordered))) errorCollector.addError(new AssertionError("Action not part of the key"));
+        Map<String, List<String>> split = new HashMap<String, List<String>>();
+        split.put("a", Arrays.asList("1", "2"));
+        Map<String, List<String>> joined = new HashMap<String, List<String>>();
+        joined.put("a", Arrays.asList("12"));
+        if (STROMAResponseCache.createKey("s", "a", "v", split).equals(STROMAResponseCache.createKey("s", "a", "v", joined))) errorCollector.addError(new AssertionError("Multiple values collide with a joined value"));
+        if (!STROMAResponseCache.createKey("s", "a", "v", null).equals(STROMAResponseCache.createKey("s", "a", "v", new HashMap<String, List<String>>()))) errorCollector.addError(new AssertionError("Null and empty parameters differ"));
+    }
+
+    @Test
+    public void hit_miss_test () throws Exception {
+        STROMAResponseCache cache = new STROMAResponseCache(10, 1024, 1024);
+        if (cache.get("one") != null) errorCollector.addError(new AssertionError("Unexpected hit on empty cache"));
+        byte[] response = "{\"error-code\":\"0\"}".getBytes();
+        if (!cache.put("one", response, 60000)) errorCollector.addError(new AssertionError("Response not cached"));
+        if (cache.get("one") != response) errorCollector.addError(new AssertionError("Cached response not returned"));
+        if (cache.getHits() != 1 || cache.getMisses() != 1) errorCollector.addError(new AssertionError("Unexpected hits/misses: " + cache.getHits() + "/" + cache.getMisses()));
+        if (cache.put("two", response, 0)) errorCollector.addError(new AssertionError("Response cached without a TTL"));
+        if (cache.put("big", new byte[2048], 60000)) errorCollector.addError(new AssertionError("Response larger than the maximum entry size cached"));
+        if (cache.getBytes() != response.length) errorCollector.addError(new AssertionError("Unexpected byte count: " + cache.getBytes()));
+        cache.invalidate();
+        if (cache.size() != 0 || cache.getBytes() != 0 || cache.get("one") != null) errorCollector.addError(new AssertionError("Cache not invalidated"));
+    }
+
+    @Test
+    public void expiration_test () throws Exception {
+        STROMAResponseCache cache = new STROMAResponseCache(10, 1024, 1024);
+        cache.put("one", new byte[10], 1);
+        Thread.sleep(10);
+        if (cache.get("one") != null) errorCollector.addError(new AssertionError("Expired response returned"));
+        if (cache.getExpirations() != 1 || cache.size() != 0 || cache.getBytes() != 0) errorCollector.addError(new AssertionError("Expired response not removed"));
+    }
+
+    @Test
+    public void eviction_test () throws Exception {
+        // Entry count bound
+        STROMAResponseCache cache = new STROMAResponseCache(3, 1024, 1024);
+        cache.put("one", new byte[1], 60000);
+        cache.put("two", new byte[1], 60000);
+        cache.put("three", new byte[1], 60000);
+        // Touch "one", so "two" is the least recently used
+        cache.get("one");
+        cache.put("four", new byte[1], 60000);
+        if (cache.size() != 3 || cache.getEvictions() != 1) errorCollector.addError(new AssertionError("Unexpected size/evictions: " + cache.size() + "/" + cache.getEvictions()));
+        if (cache.get("two") != null) errorCollector.addError(new AssertionError("Least recently used entry not evicted"));
+        if (cache.get("one") == null) errorCollector.addError(new AssertionError("Recently used entry evicted"));
+        // Byte size bound
+        cache = new STROMAResponseCache(100, 100, 100);
+        for (int i = 0; i < 10; i++) {
+            cache.put("key" + i, new byte[30], 60000);
+        }
+        if (cache.getBytes() > 100 || cache.size() != 3) errorCollector.addError(new AssertionError("Byte bound not enforced: " + cache.getBytes() + "/" + cache.size()));
+        if (cache.get("key9") == null) errorCollector.addError(new AssertionError("Newest entry evicted"));
+        // Replacing an entry must not leak its size
+        cache.put("key9", new byte[10], 60000);
+        if (cache.getBytes() != 70) errorCollector.addError(new AssertionError("Unexpected byte count after replace: " + cache.getBytes()));
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.xstroma;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.cyclades.engine.NyxletSession;
+import org.cyclades.engine.nyxlet.templates.stroma.STROMANyxlet;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class XSTROMANyxletTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        interrupted.set(false);
+        nyxlet = new XSTROMANyxlet() {
+            /**
+             * Services are named "<response>:<delay in ms>", a response of "fault" raises an orchestration fault
+             */
+            @Override
+            boolean dispatchNyxletRequest (String requestName, Object requestMeta, NyxletSession nyxletSession) throws Exception {
+                String[] fields = requestName.split(":");
+                try {
+                    Thread.sleep(Long.parseLong(fields[1]));
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                    throw e;
+                }
+                nyxletSession.getOutputStream().write(("{" + fields[0] + "}").getBytes());
+                if (fields[0].equals("fault")) nyxletSession.raiseOrchestrationFault("fault");
+                return nyxletSession.orchestrationFaultRaised();
+            }
+        };
+        nyxlet.setName("servicebroker");
+        nyxlet.setAttribute(STROMANyxlet.EXTERNAL_PROPERTIES, "/nonexistent/servicebroker.properties");
+        nyxlet.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        nyxlet.destroy();
+    }
+
+    @Test
+    public void ordering_test () throws Exception {
+        // Complete in the reverse order of the requests
+        String response = dispatch(Arrays.asList("a:150", "b:100", "c:50", "d:0"), false, false, null);
+        if (!"{a},{b},{c},{d}".equals(response)) errorCollector.addError(new AssertionError("Responses out of order: " + response));
+    }
+
+    @Test
+    public void merge_framing_test () throws Exception {
+        // More responses will be merged after these, so the separator follows the last one too
+        String response = dispatch(Arrays.asList("a:20", "b:0"), true, false, null);
+        if (!"{a},{b},".equals(response)) errorCollector.addError(new AssertionError("Unexpected merge framing: " + response));
+        response = dispatch(Arrays.asList("a:0"), false, false, null);
+        if (!"{a}".equals(response)) errorCollector.addError(new AssertionError("Unexpected framing of a single response: " + response));
+    }
+
+    @Test
+    public void orchestration_fault_test () throws Exception {
+        AtomicReference<NyxletSession> session = new AtomicReference<NyxletSession>();
+        String response = dispatch(Arrays.asList("a:0", "fault:50", "c:5000"), false, true, session);
+        if (!"{a},{fault}".equals(response)) errorCollector.addError(new AssertionError("Responses not cut at the fault: " + response));
+        if (!session.get().orchestrationFaultRaised()) errorCollector.addError(new AssertionError("Orchestration fault not raised"));
+        Thread.sleep(100);
+        if (!interrupted.get()) errorCollector.addError(new AssertionError("Request in flight after the fault not cancelled"));
+        // Without respecting faults every response is returned
+        response = dispatch(Arrays.asList("a:0", "fault:0", "c:0"), false, false, null);
+        if (!"{a},{fault},{c}".equals(response)) errorCollector.addError(new AssertionError("Unexpected responses: " + response));
+    }
+
+    @Test
+    public void destroy_test () throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread thread = new Thread() {
+            @Override
+            public void run () {
+                try {
+                    dispatch(Arrays.asList("a:200", "b:200"), false, false, null);
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        thread.start();
+        Thread.sleep(50);
+        nyxlet.destroy();
+        thread.join(5000);
+        if (thread.isAlive()) errorCollector.addError(new AssertionError("Orchestration in flight during destroy never completed"));
+        if (failure.get() != null) errorCollector.addError(new AssertionError("Accepted requests not finished on destroy: " + failure.get()));
+        // Requests made after destroy fail instead of waiting forever
+        thread = new Thread() {
+            @Override
+            public void run () {
+                try {
+                    dispatch(Arrays.asList("a:0", "b:0"), false, false, null);
+                    failure.set(new AssertionError("Expected Exception after destroy"));
+                } catch (Throwable t) {
+                    // Expected
+                }
+            }
+        };
+        thread.start();
+        thread.join(5000);
+        if (thread.isAlive()) errorCollector.addError(new AssertionError("Orchestration after destroy never completed"));
+        if (failure.get() != null) errorCollector.addError(failure.get());
+    }
+
+    private String dispatch (List<String> serviceNames, boolean moreToMerge, boolean respectOrchestrationFault,
+            AtomicReference<NyxletSession> sessionReference) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NyxletSession session = new NyxletSession(new HashMap<String, List<String>>(), new ByteArrayInputStream(new byte[0]), out);
+        if (sessionReference != null) sessionReference.set(session);
+        nyxlet.dispatchNyxletRequestsInParallel(serviceNames, new ArrayList<Object>(serviceNames), session, out, moreToMerge,
+                respectOrchestrationFault);
+        return out.toString();
+    }
+
+    private XSTROMANyxlet nyxlet;
+    private final AtomicBoolean interrupted = new AtomicBoolean(false);
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.xstroma.message.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.cyclades.engine.nyxlet.templates.xstroma.XSTROMANyxlet;
+import org.cyclades.io.StubHTTPServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class HTTPRepeatingMessageProducerTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHTTPServer();
+        executor = Executors.newFixedThreadPool(8);
+        producer = new HTTPRepeatingMessageProducer(executor);
+        Map<String, String> initializationMap = new HashMap<String, String>();
+        initializationMap.put(HTTPRepeatingMessageProducer.CONCURRENCY, "4");
+        producer.init(initializationMap);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        producer.destroy();
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test
+    public void ordering_test () throws Exception {
+        // Complete in the reverse order of the requests
+        long start = System.currentTimeMillis();
+        String response = send(new HashMap<String, List<String>>(), "/respond/first/300", "/respond/second/200", "/respond/third/100", "/respond/fourth/0");
+        long elapsed = System.currentTimeMillis() - start;
+        assertInOrder(response, "first", "second", "third", "fourth");
+        if (elapsed >= 600) errorCollector.addError(new AssertionError("Requests not made concurrently: " + elapsed + "ms"));
+    }
+
+    @Test
+    public void timeout_test () throws Exception {
+        Map<String, List<String>> attributeMap = new HashMap<String, List<String>>();
+        attributeMap.put(HTTPRepeatingMessageProducer.REQUEST_TIMEOUT, Arrays.asList("200"));
+        long start = System.currentTimeMillis();
+        String response = send(attributeMap, "/respond/first/0", "/hang", "/respond/third/0");
+        long elapsed = System.currentTimeMillis() - start;
+        assertInOrder(response, "first", "timed out", "third");
+        if (elapsed >= 900) errorCollector.addError(new AssertionError("Request timeout not respected: " + elapsed + "ms"));
+        // The timed out request gave up its connection rather than waiting for the response
+        attributeMap.put(HTTPRepeatingMessageProducer.CONCURRENCY, Arrays.asList("2"));
+        assertInOrder(send(attributeMap, "/respond/again/0", "/respond/more/0"), "again", "more");
+    }
+
+    @Test
+    public void orchestration_fault_test () throws Exception {
+        String response = send(new HashMap<String, List<String>>(), "/respond/first/0", "/respond/orchestration-fault/50", "/respond/third/0");
+        assertInOrder(response, "first", "orchestration-fault");
+        if (response.contains("third")) errorCollector.addError(new AssertionError("Response written after an orchestration fault: " + response));
+        // A failed request stops the broadcast only if orchestration faults are respected
+        Map<String, List<String>> attributeMap = new HashMap<String, List<String>>();
+        response = send(attributeMap, "/respond/first/0", "/error", "/respond/third/0");
+        assertInOrder(response, "first", "500", "third");
+        attributeMap.put(XSTROMANyxlet.RESPECT_ORCHESTRATION_FAULT_ATTRIBUTE, Arrays.asList("true"));
+        response = send(attributeMap, "/respond/first/0", "/error", "/respond/third/0");
+        assertInOrder(response, "first", "500");
+        if (response.contains("third")) errorCollector.addError(new AssertionError("Response written after a failed request: " + response));
+    }
+
+    private String send (Map<String, List<String>> attributeMap, String... paths) throws Exception {
+        String[] uris = new String[paths.length];
+        for (int i = 0; i < paths.length; i++) uris[i] = "http://127.0.0.1:" + server.getPort() + paths[i];
+        attributeMap.put(HTTPRepeatingMessageProducer.URI_PARAMETER, Arrays.asList(uris));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        producer.sendMessage("{}", attributeMap, out);
+        // Just the merged responses, the response parameters that follow them repeat the URIs
+        String response = out.toString();
+        return (response.indexOf("\"parameters\"") > -1) ? response.substring(0, response.indexOf("\"parameters\"")) : response;
+    }
+
+    private void assertInOrder (String response, String... values) {
+        int index = -1;
+        for (String value : values) {
+            int next = response.indexOf(value, index + 1);
+            if (next <= index) {
+                errorCollector.addError(new AssertionError("\"" + value + "\" missing or out of order: " + response));
+                return;
+            }
+            index = next;
+        }
+    }
+
+    private StubHTTPServer server;
+    private ExecutorService executor;
+    private HTTPRepeatingMessageProducer producer;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
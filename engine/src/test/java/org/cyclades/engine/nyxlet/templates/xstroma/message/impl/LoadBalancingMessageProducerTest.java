@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.nyxlet.templates.xstroma.message.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.cyclades.engine.nyxlet.templates.xstroma.message.api.MessageProducer;
+import org.cyclades.engine.nyxlet.templates.xstroma.target.ProducerTarget;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class LoadBalancingMessageProducerTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        calls.clear();
+        failing.clear();
+        delays.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void weighted_test () throws Exception {
+        LoadBalancingMessageProducer producer = producer("node_1:3,node_2", "weighted", "node_1", "node_2");
+        int messages = 20000;
+        for (int i = 0; i < messages; i++) {
+            if (!send(producer).startsWith("node_")) errorCollector.addError(new AssertionError("Unexpected response"));
+        }
+        double fraction = (double)calls.get("node_1").get() / messages;
+        if (Math.abs(fraction - 0.75) > 0.02) errorCollector.addError(new AssertionError("Unexpected share for the heavier target: " + fraction));
+    }
+
+    @Test
+    public void ejection_test () throws Exception {
+        LoadBalancingMessageProducer producer = producer("node_1,node_2", "least_outstanding", "node_1", "node_2");
+        failing.put("node_1", Boolean.TRUE);
+        // Failover, every message must still be answered by node_2
+        for (int i = 0; i < 50; i++) {
+            if (!"node_2".equals(send(producer))) errorCollector.addError(new AssertionError("Message not failed over"));
+        }
+        // Three consecutive failures eject node_1, so it must have been tried only a few times
+        if (calls.get("node_1").get() > 3) errorCollector.addError(new AssertionError("Failing target not ejected: " + calls.get("node_1").get()));
+        if (!producer.isHealthy()) errorCollector.addError(new AssertionError("Producer unhealthy with a healthy target"));
+        // Everything ejected, targets are tried anyway
+        failing.put("node_2", Boolean.TRUE);
+        for (int i = 0; i < 3; i++) {
+            try {
+                send(producer);
+                errorCollector.addError(new AssertionError("Expected Exception with every target failing"));
+            } catch (Exception e) {
+                // Expected
+            }
+        }
+        if (producer.isHealthy()) errorCollector.addError(new AssertionError("Producer healthy with every target ejected"));
+        failing.clear();
+        if (send(producer) == null) errorCollector.addError(new AssertionError("Ejected targets not used as a last resort"));
+    }
+
+    @Test
+    public void ewma_recovery_test () throws Exception {
+        Map<String, String> init = new HashMap<String, String>();
+        init.put(LoadBalancingMessageProducer.PROBE_SHARE_PARAMETER, "0.1");
+        LoadBalancingMessageProducer producer = producer("node_1,node_2", "ewma", init, "node_1", "node_2");
+        // A single slow response from node_1
+        delays.put("node_1", 100L);
+        while (calls.get("node_1").get() == 0) send(producer);
+        delays.clear();
+        for (int i = 0; i < 2000; i++) send(producer);
+        // Probes bring the latency of node_1 back down, after which it takes its share again
+        int before = calls.get("node_1").get();
+        for (int i = 0; i < 1000; i++) send(producer);
+        int share = calls.get("node_1").get() - before;
+        if (share < 150) errorCollector.addError(new AssertionError("Target not recovered after a latency spike, messages: " + share));
+    }
+
+    @Test
+    public void no_failover_test () throws Exception {
+        Map<String, String> init = new HashMap<String, String>();
+        init.put(LoadBalancingMessageProducer.FAILOVER_PARAMETER, "false");
+        LoadBalancingMessageProducer producer = producer("node_1", "ewma", init, "node_1", "node_2");
+        failing.put("node_1", Boolean.TRUE);
+        try {
+            send(producer);
+            errorCollector.addError(new AssertionError("Expected Exception without failover"));
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void resolve_test () throws Exception {
+        try {
+            producer("node_1,node_3", "weighted", "node_1");
+            errorCollector.addError(new AssertionError("Expected Exception for an unknown target"));
+        } catch (Exception e) {
+            // Expected
+        }
+        try {
+            producer("node_1:-1", "weighted", "node_1");
+            errorCollector.addError(new AssertionError("Expected Exception for a negative weight"));
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    private static LoadBalancingMessageProducer producer (String targets, String strategy, String... names) throws Exception {
+        return producer(targets, strategy, new HashMap<String, String>(), names);
+    }
+
+    private static LoadBalancingMessageProducer producer (String targets, String strategy, Map<String, String> init, String... names) throws Exception {
+        Map<String, ProducerTarget> targetsMap = new HashMap<String, ProducerTarget>();
+        for (String name : names) {
+            targetsMap.put(name, new ProducerTarget(StubMessageProducer.class.getName(), new JSONObject().put("name", name)));
+            calls.put(name, new AtomicInteger());
+        }
+        init.put(LoadBalancingMessageProducer.TARGETS_PARAMETER, targets);
+        init.put(LoadBalancingMessageProducer.STRATEGY_PARAMETER, strategy);
+        LoadBalancingMessageProducer producer = new LoadBalancingMessageProducer();
+        producer.init(init);
+        producer.resolveTargets(targetsMap);
+        return producer;
+    }
+
+    private static String send (LoadBalancingMessageProducer producer) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        producer.sendMessage("{}", new HashMap<String, List<String>>(), baos);
+        return baos.toString();
+    }
+
+    public static class StubMessageProducer implements MessageProducer {
+
+        public void init (Map<String, String> initializationMap) throws Exception {
+            name = initializationMap.get("name");
+        }
+
+        public void destroy () throws Exception {
+        }
+
+        public String sendMessage (String message, Map<String, List<String>> attributeMap) throws Exception {
+            calls.get(name).incrementAndGet();
+            if (delays.containsKey(name)) Thread.sleep(delays.get(name));
+            if (failing.containsKey(name)) throw new Exception("Failing: " + name);
+            return name;
+        }
+
+        public boolean isHealthy () throws Exception {
+            return true;
+        }
+
+        private String name;
+    }
+
+    private static final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+    private static final Map<String, Boolean> failing = new ConcurrentHashMap<String, Boolean>();
+    private static final Map<String, Long> delays = new ConcurrentHashMap<String, Long>();
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
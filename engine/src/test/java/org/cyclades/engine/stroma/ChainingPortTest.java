@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.stroma;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.cyclades.engine.MetaTypeEnum;
+import org.cyclades.io.ViewableByteArrayOutputStream;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class ChainingPortTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void port_view_test () throws Exception {
+        String response = "{\"error-code\":\"0\",\"service\":\"helloworld\",\"action\":\"sayhello\",\"data\":{\"message\":\"Hello World!\"}}";
+        ViewableByteArrayOutputStream baos = new ViewableByteArrayOutputStream();
+        baos.write(response.getBytes());
+        ChainingPort port = new ChainingPort(baos.getView());
+        if (port.size() != response.length()) errorCollector.addError(new AssertionError("Unexpected port size: " + port.size()));
+        if (!response.equals(new String(port.toByteArray()))) errorCollector.addError(new AssertionError("Unexpected port data"));
+        ByteBuffer view = port.getByteBuffer();
+        if (!view.isReadOnly()) errorCollector.addError(new AssertionError("Port view is writable"));
+        view.get();
+        if (port.getByteBuffer().position() != 0) errorCollector.addError(new AssertionError("Port views are not independent"));
+        InputStream inputStream = port.getInputStream();
+        byte[] read = new byte[response.length() + 10];
+        int total = 0;
+        int chunk;
+        while ((chunk = inputStream.read(read, total, read.length - total)) > 0) total += chunk;
+        if (total != response.length() || !response.equals(new String(read, 0, total))) errorCollector.addError(new AssertionError("Unexpected InputStream data"));
+        STROMAResponse stromaResponse = port.getSTROMAResponse(MetaTypeEnum.JSON);
+        if (!"sayhello".equals(stromaResponse.getAction())) errorCollector.addError(new AssertionError("Unexpected action: " + stromaResponse.getAction()));
+        if (port.getSTROMAResponse(MetaTypeEnum.JSON) != stromaResponse) errorCollector.addError(new AssertionError("STROMAResponse parsed more than once"));
+        if (new ChainingPort(new byte[0]).getSTROMAResponse(MetaTypeEnum.JSON) != null) errorCollector.addError(new AssertionError("Empty port should yield no STROMAResponse"));
+        String xmlResponse = "<response service=\"helloworld\" action=\"sayhello\" error-code=\"0\"><message>Hello</message></response>";
+        stromaResponse = new ChainingPort(xmlResponse.getBytes()).getSTROMAResponse(MetaTypeEnum.XML);
+        if (!"helloworld".equals(stromaResponse.getServiceName())) errorCollector.addError(new AssertionError("Unexpected XML service: " + stromaResponse.getServiceName()));
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,145 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.stroma;
+
+import java.io.ByteArrayOutputStream;
+import org.apache.commons.lang.StringEscapeUtils;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class STROMAEnvelopeEncoderTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void json_quote_test () throws Exception {
+        STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+        for (String value : VALUES) {
+            encoder.appendJSONQuoted(value);
+            String expected = encoded(JSONObject.quote(value));
+            String actual = drain(encoder);
+            if (!expected.equals(actual)) errorCollector.addError(new AssertionError("JSON quoting mismatch: [" + expected + "] [" + actual + "]"));
+        }
+        encoder.appendJSONQuoted(null);
+        if (!JSONObject.quote(null).equals(drain(encoder))) errorCollector.addError(new AssertionError("JSON quoting mismatch for null"));
+    }
+
+    @Test
+    public void xml_escape_test () throws Exception {
+        STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+        for (String value : VALUES) {
+            encoder.appendXMLEscaped(value);
+            String expected = encoded(StringEscapeUtils.escapeXml(value));
+            String actual = drain(encoder);
+            if (!expected.equals(actual)) errorCollector.addError(new AssertionError("XML escaping mismatch: [" + expected + "] [" + actual + "]"));
+        }
+    }
+
+    @Test
+    public void raw_and_number_test () throws Exception {
+        STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+        for (String value : VALUES) {
+            encoder.append(value);
+            String actual = drain(encoder);
+            if (!encoded(value).equals(actual)) errorCollector.addError(new AssertionError("Raw append mismatch: [" + value + "] [" + actual + "]"));
+        }
+        long[] numbers = {0, 7, 10, 999, 1234567890123L, Long.MAX_VALUE, -42, Long.MIN_VALUE};
+        for (long number : numbers) {
+            encoder.append(number);
+            String actual = drain(encoder);
+            if (!String.valueOf(number).equals(actual)) errorCollector.addError(new AssertionError("Number mismatch: " + number + " [" + actual + "]"));
+        }
+    }
+
+    @Test
+    public void envelope_test () throws Exception {
+        byte[] start = STROMAEnvelopeEncoder.fragment("{\"service\":\"");
+        byte[] end = STROMAEnvelopeEncoder.fragment("\"}");
+        STROMAEnvelopeEncoder encoder = STROMAEnvelopeEncoder.getEncoder();
+        encoder.append(start).append("hello").append(end).append(start).append(42).append(end);
+        String expected = "{\"service\":\"hello\"}{\"service\":\"42\"}";
+        if (encoder.size() != expected.length()) errorCollector.addError(new AssertionError("Unexpected size: " + encoder.size()));
+        String actual = drain(encoder);
+        if (!expected.equals(actual)) errorCollector.addError(new AssertionError("Envelope mismatch: " + actual));
+        if (encoder.size() != 0) errorCollector.addError(new AssertionError("Encoder not reset after writeTo"));
+        if (STROMAEnvelopeEncoder.getEncoder() != encoder) errorCollector.addError(new AssertionError("Encoder not reused"));
+        // Larger than the retained buffer, must grow and come back empty
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 20000; i++) large.append("<&>\"'\u00e9");
+        encoder.appendXMLEscaped(large.toString());
+        actual = drain(encoder);
+        if (!StringEscapeUtils.escapeXml(large.toString()).equals(actual)) errorCollector.addError(new AssertionError("Large XML escaping mismatch"));
+    }
+
+    // Output must be what String.getBytes() produced for the same text, whatever the platform charset
+    private static String encoded (String value) {
+        return new String(value.getBytes());
+    }
+
+    private static String drain (STROMAEnvelopeEncoder encoder) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        encoder.writeTo(baos);
+        return new String(baos.toByteArray());
+    }
+
+    private static final String[] VALUES = {
+        "",
+        "plain",
+        "quote \" backslash \\ slash / </script>",
+        "controls \b\t\n\f\r \u0001 \u001f",
+        "xml <a href='x'>&amp;</a>",
+        "latin \u00e9\u00e8 \u0085 \u009f \u00a0",
+        "punctuation \u2013\u2028\u2029 \u20ac \u2100",
+        "cjk \u4e2d\u6587",
+        "surrogates \ud83d\ude00 end",
+        "\u00e9<\u00e9/\u00e9"
+    };
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
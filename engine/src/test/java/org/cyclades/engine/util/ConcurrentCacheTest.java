@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class ConcurrentCacheTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void lru_test () throws Exception {
+        ConcurrentCache<String, String> cache = new ConcurrentCache<String, String>(3, null, 1, 0, 0);
+        cache.put("one", "1");
+        cache.put("two", "2");
+        cache.put("three", "3");
+        // Touch "one", so "two" is the least recently used
+        cache.get("one");
+        cache.put("four", "4");
+        if (cache.size() != 3 || cache.getEvictions() != 1) errorCollector.addError(new AssertionError("Unexpected size/evictions: " + cache.size() + "/" + cache.getEvictions()));
+        if (cache.get("two") != null) errorCollector.addError(new AssertionError("Least recently used entry not evicted"));
+        if (!"1".equals(cache.get("one"))) errorCollector.addError(new AssertionError("Recently used entry evicted"));
+        if (cache.getHits() != 2 || cache.getMisses() != 1) errorCollector.addError(new AssertionError("Unexpected hits/misses: " + cache.getHits() + "/" + cache.getMisses()));
+        if (!"4".equals(cache.remove("four")) || cache.containsKey("four")) errorCollector.addError(new AssertionError("Entry not removed"));
+        cache.clear();
+        if (cache.size() != 0 || cache.getWeight() != 0) errorCollector.addError(new AssertionError("Cache not cleared"));
+    }
+
+    @Test
+    public void small_cache_lru_test () throws Exception {
+        // Below twice the minimum segment weight a cache is a single segment, evicting in exact LRU order
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(31);
+        if (cache.getSegmentCount() != 1) errorCollector.addError(new AssertionError("Small cache segmented: " + cache.getSegmentCount()));
+        for (int i = 0; i < 31; i++) cache.put(i, i);
+        for (int i = 0; i < 16; i++) cache.get(i);
+        for (int i = 31; i < 46; i++) cache.put(i, i);
+        for (int i = 0; i < 46; i++) {
+            boolean expected = (i < 16 || i >= 31);
+            if ((cache.get(i) != null) != expected) errorCollector.addError(new AssertionError("Entry " + i + " cached: " + !expected));
+        }
+        // Larger caches only split while each segment keeps the minimum weight
+        int[][] segmentCounts = {{32, 2}, {100, 4}, {256, 16}, {100000, 16}};
+        for (int[] segmentCount : segmentCounts) {
+            int count = new ConcurrentCache<Integer, Integer>(segmentCount[0]).getSegmentCount();
+            if (count != segmentCount[1]) errorCollector.addError(new AssertionError("Unexpected segments for " + segmentCount[0] + ": " + count));
+        }
+    }
+
+    @Test
+    public void segmented_bound_test () throws Exception {
+        ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(100);
+        for (int i = 0; i < 1000; i++) cache.put(i, i);
+        if (cache.size() > 100) errorCollector.addError(new AssertionError("Entry bound not enforced: " + cache.size()));
+        if (cache.getEvictions() != 1000 - cache.size()) errorCollector.addError(new AssertionError("Unexpected evictions: " + cache.getEvictions()));
+        // A tiny cache must still hold its entries
+        ConcurrentCache<Integer, Integer> tiny = new ConcurrentCache<Integer, Integer>(1);
+        tiny.put(1, 1);
+        if (tiny.get(1) == null) errorCollector.addError(new AssertionError("Single entry cache dropped its entry"));
+    }
+
+    @Test
+    public void weigher_test () throws Exception {
+        ConcurrentCache.Weigher<String, byte[]> weigher = new ConcurrentCache.Weigher<String, byte[]>() {
+            @Override
+            public long weigh (String key, byte[] value) {
+                return value.length;
+            }
+        };
+        ConcurrentCache<String, byte[]> cache = new ConcurrentCache<String, byte[]>(100, weigher, 1, 0, 0);
+        for (int i = 0; i < 10; i++) cache.put("key" + i, new byte[30]);
+        if (cache.getWeight() != 90 || cache.size() != 3) errorCollector.addError(new AssertionError("Weight bound not enforced: " + cache.getWeight() + "/" + cache.size()));
+        if (cache.put("big", new byte[101])) errorCollector.addError(new AssertionError("Entry heavier than the cache was cached"));
+        // Replacing an entry must not leak its weight
+        cache.put("key9", new byte[10]);
+        if (cache.getWeight() != 70) errorCollector.addError(new AssertionError("Unexpected weight after replace: " + cache.getWeight()));
+    }
+
+    @Test
+    public void expiration_test () throws Exception {
+        ConcurrentCache<String, String> afterWrite = new ConcurrentCache<String, String>(10, null, 1, 50, 0);
+        afterWrite.put("one", "1");
+        if (afterWrite.get("one") == null) errorCollector.addError(new AssertionError("Entry expired early"));
+        Thread.sleep(60);
+        if (afterWrite.get("one") != null) errorCollector.addError(new AssertionError("Entry did not expire after write"));
+        if (afterWrite.getExpirations() != 1 || afterWrite.size() != 0) errorCollector.addError(new AssertionError("Expired entry not removed"));
+        ConcurrentCache<String, String> afterAccess = new ConcurrentCache<String, String>(10, null, 1, 0, 200);
+        afterAccess.put("one", "1");
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(60);
+            if (afterAccess.get("one") == null) errorCollector.addError(new AssertionError("Accessed entry expired"));
+        }
+        Thread.sleep(250);
+        if (afterAccess.get("one") != null) errorCollector.addError(new AssertionError("Entry did not expire after access"));
+    }
+
+    @Test
+    public void concurrent_test () throws Exception {
+        final ConcurrentCache<Integer, Integer> cache = new ConcurrentCache<Integer, Integer>(500);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            final int offset = t;
+            threads.add(new Thread() {
+                @Override
+                public void run () {
+                    try {
+                        Integer value;
+                        for (int i = 0; i < 20000; i++) {
+                            int key = (i * 7 + offset) % 2000;
+                            value = cache.get(key);
+                            if (value == null) {
+                                cache.put(key, key);
+                            } else if (value.intValue() != key) {
+                                throw new AssertionError("Wrong value for key " + key + ": " + value);
+                            }
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        if (failure.get() != null) errorCollector.addError(failure.get());
+        if (cache.size() > 500 || cache.getWeight() != cache.size()) errorCollector.addError(new AssertionError("Inconsistent size/weight: " + cache.size() + "/" + cache.getWeight()));
+        if (cache.getHits() + cache.getMisses() != 8 * 20000) errorCollector.addError(new AssertionError("Lost statistics: " + (cache.getHits() + cache.getMisses())));
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
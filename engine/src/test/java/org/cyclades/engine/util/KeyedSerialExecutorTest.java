@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.engine.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class KeyedSerialExecutorTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void per_key_order_test () throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(4, "per-key-order-test");
+        try {
+            final int keys = 10;
+            final int tasksPerKey = 500;
+            final List<List<Integer>> results = new ArrayList<List<Integer>>();
+            for (int k = 0; k < keys; k++) results.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            final CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+            for (int i = 0; i < tasksPerKey; i++) {
+                for (int k = 0; k < keys; k++) {
+                    final int key = k;
+                    final int sequence = i;
+                    executor.execute("key" + k, new Runnable() {
+                        public void run () {
+                            results.get(key).add(sequence);
+                            done.countDown();
+                        }
+                    });
+                }
+            }
+            if (!done.await(10, TimeUnit.SECONDS)) errorCollector.addError(new AssertionError("Tasks not completed"));
+            for (int k = 0; k < keys; k++) {
+                List<Integer> result = results.get(k);
+                for (int i = 0; i < result.size(); i++) {
+                    if (result.get(i) != i) {
+                        errorCollector.addError(new AssertionError("Tasks for key" + k + " out of order at " + i + ": " + result.get(i)));
+                        break;
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrency_test () throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(4, "concurrency-test");
+        try {
+            // Unkeyed tasks spread over all the lanes, so all 4 must run at once to pass the barrier
+            final CountDownLatch started = new CountDownLatch(4);
+            final CountDownLatch done = new CountDownLatch(4);
+            final AtomicInteger failures = new AtomicInteger();
+            for (int i = 0; i < 4; i++) {
+                executor.execute(null, new Runnable() {
+                    public void run () {
+                        started.countDown();
+                        try {
+                            if (!started.await(5, TimeUnit.SECONDS)) failures.incrementAndGet();
+                        } catch (InterruptedException e) {
+                            failures.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+                });
+            }
+            if (!done.await(10, TimeUnit.SECONDS) || failures.get() > 0) errorCollector.addError(new AssertionError("Tasks did not run concurrently"));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void same_key_serial_test () throws Exception {
+        KeyedSerialExecutor executor = new KeyedSerialExecutor(8, "same-key-serial-test");
+        try {
+            final AtomicInteger running = new AtomicInteger();
+            final AtomicInteger maxRunning = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(50);
+            for (int i = 0; i < 50; i++) {
+                executor.execute("same", new Runnable() {
+                    public void run () {
+                        int now = running.incrementAndGet();
+                        if (now > maxRunning.get()) maxRunning.set(now);
+                        try { Thread.sleep(1); } catch (InterruptedException e) {}
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            if (!done.await(10, TimeUnit.SECONDS)) errorCollector.addError(new AssertionError("Tasks not completed"));
+            if (maxRunning.get() != 1) errorCollector.addError(new AssertionError("Tasks with the same key ran concurrently: " + maxRunning.get()));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class PooledHTTPTransportTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new StubHTTPServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    public void reuse_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            for (int i = 0; i < 50; i++) {
+                String response = request(transport, "/length", "hello " + i);
+                if (!("hello " + i).equals(response)) errorCollector.addError(new AssertionError("Unexpected response: " + response));
+            }
+            if (server.accepted.get() != 1) errorCollector.addError(new AssertionError("Connection not reused, connections: " + server.accepted.get()));
+            if (transport.getConnectionsReused() != 49) errorCollector.addError(new AssertionError("Unexpected reuse count: " + transport.getConnectionsReused()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void chunked_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            for (int i = 0; i < 3; i++) {
+                String response = request(transport, "/chunked", "abcdefg");
+                if (!"abcdefg".equals(response)) errorCollector.addError(new AssertionError("Unexpected chunked response: " + response));
+            }
+            if (server.accepted.get() != 1) errorCollector.addError(new AssertionError("Connection not reused after chunked responses: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void error_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            try {
+                request(transport, "/error", "data");
+                errorCollector.addError(new AssertionError("Expected Exception for an error response"));
+            } catch (Exception e) {
+                if (!e.toString().contains("500")) errorCollector.addError(new AssertionError("Response code not reported: " + e));
+            }
+            if (!"ok".equals(request(transport, "/length", "ok"))) errorCollector.addError(new AssertionError("Request after an error response failed"));
+            if (server.accepted.get() != 1) errorCollector.addError(new AssertionError("Connection not reused after an error response: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void malformed_response_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport(1, PooledHTTPTransport.DEFAULT_KEEP_ALIVE_MS);
+        try {
+            try {
+                request(transport, "/malformed", "data");
+                errorCollector.addError(new AssertionError("Expected Exception for a malformed response"));
+            } catch (Exception e) {}
+            Thread.sleep(100);
+            if (server.closed.get() != 1) errorCollector.addError(new AssertionError("Connection not closed after a malformed response"));
+            // The connection permit is given back
+            if (!"ok".equals(request(transport, "/length", "ok"))) errorCollector.addError(new AssertionError("Request after a malformed response failed"));
+            if (server.accepted.get() != 2) errorCollector.addError(new AssertionError("Connection reused after a malformed response: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void connection_close_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            request(transport, "/close", "one");
+            request(transport, "/length", "two");
+            if (server.accepted.get() != 2) errorCollector.addError(new AssertionError("Closed connection reused: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void stale_connection_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            // The server drops the connection after responding, without saying so
+            request(transport, "/drop", "one");
+            Thread.sleep(50);
+            String response = request(transport, "/length", "two");
+            if (!"two".equals(response)) errorCollector.addError(new AssertionError("Unexpected response after a stale connection: " + response));
+            if (transport.getStaleRetries() != 1) errorCollector.addError(new AssertionError("Stale connection not retried: " + transport.getStaleRetries()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void max_connections_test () throws Exception {
+        final PooledHTTPTransport transport = new PooledHTTPTransport(2, PooledHTTPTransport.DEFAULT_KEEP_ALIVE_MS);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        try {
+            for (int t = 0; t < 8; t++) {
+                threads.add(new Thread() {
+                    @Override
+                    public void run () {
+                        try {
+                            for (int i = 0; i < 5; i++) {
+                                if (!"slow".equals(request(transport, "/slow", "slow"))) throw new AssertionError("Unexpected response");
+                            }
+                        } catch (Throwable t) {
+                            failure.compareAndSet(null, t);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) thread.start();
+            for (Thread thread : threads) thread.join();
+            if (failure.get() != null) errorCollector.addError(failure.get());
+            if (server.accepted.get() > 2) errorCollector.addError(new AssertionError("Connection limit exceeded: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void streaming_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            StringBuilder data = new StringBuilder();
+            for (int i = 0; i < 5000; i++) data.append("streamed ").append(i);
+            for (int i = 0; i < 3; i++) {
+                String response = requestStreaming(transport, "/length", data.toString());
+                if (!data.toString().equals(response)) errorCollector.addError(new AssertionError("Unexpected streamed response, length: " + response.length()));
+            }
+            if (!"".equals(requestStreaming(transport, "/length", ""))) errorCollector.addError(new AssertionError("Unexpected response to an empty stream"));
+            if (server.accepted.get() != 1) errorCollector.addError(new AssertionError("Connection not reused for streamed requests: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void streaming_stale_connection_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            // A streamed request can not be retried, the dropped connection must be detected before it is used
+            request(transport, "/drop", "one");
+            Thread.sleep(50);
+            String response = requestStreaming(transport, "/length", "two");
+            if (!"two".equals(response)) errorCollector.addError(new AssertionError("Unexpected streamed response after a stale connection: " + response));
+            if (server.accepted.get() != 2) errorCollector.addError(new AssertionError("Stale connection used: " + server.accepted.get()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    @Test
+    public void read_timeout_not_retried_test () throws Exception {
+        PooledHTTPTransport transport = new PooledHTTPTransport();
+        try {
+            request(transport, "/length", "one");
+            // The request is written to the pooled connection and the server is processing it, sending it again
+            // would deliver it twice
+            try {
+                request(transport, "/hang", "two", 200);
+                errorCollector.addError(new AssertionError("Expected a read timeout"));
+            } catch (Exception e) {
+                if (!e.toString().contains("timed out")) errorCollector.addError(new AssertionError("Unexpected failure: " + e));
+            }
+            Thread.sleep(100);
+            if (server.hangs.get() != 1) errorCollector.addError(new AssertionError("Request sent more than once: " + server.hangs.get()));
+            if (transport.getStaleRetries() != 0) errorCollector.addError(new AssertionError("Read timeout retried: " + transport.getStaleRetries()));
+        } finally {
+            transport.close();
+        }
+    }
+
+    private String requestStreaming (PooledHTTPTransport transport, String path, String data) throws Exception {
+        InputStream is = null;
+        try {
+            is = transport.executeStreaming("http://127.0.0.1:" + server.getPort() + path, null, new ByteArrayInputStream(data.getBytes()), null, 5000, 5000);
+            return new String(StreamUtils.toByteArray(is));
+        } finally {
+            try { is.close(); } catch (Exception e) {}
+        }
+    }
+
+    private String request (PooledHTTPTransport transport, String path, String data) throws Exception {
+        return request(transport, path, data, 5000);
+    }
+
+    private String request (PooledHTTPTransport transport, String path, String data, int readTimeoutInMS) throws Exception {
+        InputStream is = null;
+        try {
+            is = transport.execute("http://127.0.0.1:" + server.getPort() + path, "POST", data.getBytes(), null, 5000, readTimeoutInMS);
+            return new String(StreamUtils.toByteArray(is));
+        } finally {
+            try { is.close(); } catch (Exception e) {}
+        }
+    }
+
+    private StubHTTPServer server;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}
@@ -0,0 +1,170 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal keep-alive HTTP server for tests, the path (the query string is ignored) selects how it responds:
+ *
+ * - /chunked: the request body as a chunked response
+ * - /error: a 500 response
+ * - /malformed: a response with a status line that is not valid
+ * - /close: the request body, then the connection is closed as announced by a "Connection: close" header
+ * - /drop: the request body, then the connection is closed without notice
+ * - /slow: the request body after 20ms
+ * - /hang: the request body after a second
+ * - /respond/[text]/[delay]: "text" after "delay" milliseconds
+ * - Anything else: the request body
+ */
+public class StubHTTPServer implements Runnable {
+
+    public StubHTTPServer () throws Exception {
+        serverSocket = new ServerSocket(0);
+        Thread thread = new Thread(this);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort () {
+        return serverSocket.getLocalPort();
+    }
+
+    public void run () {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                accepted.incrementAndGet();
+                Thread thread = new Thread() {
+                    @Override
+                    public void run () {
+                        serve(socket);
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (Exception e) {
+            // Closed
+        }
+    }
+
+    private void serve (Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = readLine(in)) != null) {
+                if (requestLine.isEmpty()) continue;
+                String path = requestLine.split(" ")[1];
+                if (path.indexOf('?') > -1) path = path.substring(0, path.indexOf('?'));
+                int contentLength = 0;
+                boolean chunked = false;
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    if (line.toLowerCase().startsWith("content-length:")) contentLength = Integer.parseInt(line.substring(15).trim());
+                    if (line.equalsIgnoreCase("transfer-encoding: chunked")) chunked = true;
+                }
+                byte[] body;
+                if (chunked) {
+                    ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+                    int size;
+                    while ((size = Integer.parseInt(readLine(in), 16)) > 0) {
+                        chunks.write(readFully(in, size));
+                        readLine(in);
+                    }
+                    readLine(in);
+                    body = chunks.toByteArray();
+                } else {
+                    body = readFully(in, contentLength);
+                }
+                if (path.equals("/chunked")) {
+                    String first = new String(body, 0, 3);
+                    String second = new String(body, 3, body.length - 3);
+                    out.write(("HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n" + Integer.toHexString(first.length()) + ";ext=1\r\n" + first + "\r\n" +
+                            Integer.toHexString(second.length()) + "\r\n" + second + "\r\n0\r\nTrailer: x\r\n\r\n").getBytes());
+                } else if (path.startsWith("/respond/")) {
+                    String[] fields = path.split("/");
+                    Thread.sleep(Long.parseLong(fields[3]));
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + fields[2].length() + "\r\n\r\n" + fields[2]).getBytes());
+                } else if (path.equals("/malformed")) {
+                    out.write("HTTP/1.1 2OO OK\r\nContent-Length: 2\r\n\r\nok".getBytes());
+                } else if (path.equals("/error")) {
+                    out.write("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 5\r\n\r\nerror".getBytes());
+                } else {
+                    if (path.equals("/slow")) Thread.sleep(20);
+                    if (path.equals("/hang")) {
+                        hangs.incrementAndGet();
+                        Thread.sleep(1000);
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Length: " + body.length + ((path.equals("/close")) ? "\r\nConnection: close" : "") + "\r\n\r\n").getBytes());
+                    out.write(body);
+                }
+                out.flush();
+                if (path.equals("/close") || path.equals("/drop")) break;
+            }
+        } catch (Exception e) {
+            // Connection done
+        } finally {
+            try { socket.close(); } catch (Exception e) {}
+            closed.incrementAndGet();
+        }
+    }
+
+    private static byte[] readFully (InputStream in, int length) throws Exception {
+        byte[] data = new byte[length];
+        int read = 0;
+        while (read < length) read += in.read(data, read, length - read);
+        return data;
+    }
+
+    private static String readLine (InputStream in) throws Exception {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    public void close () {
+        try { serverSocket.close(); } catch (Exception e) {}
+    }
+
+    private final ServerSocket serverSocket;
+    public final AtomicInteger accepted = new AtomicInteger();
+    public final AtomicInteger hangs = new AtomicInteger();
+    public final AtomicInteger closed = new AtomicInteger();
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.xml;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import org.cyclades.engine.util.GenericXMLObject;
+import org.cyclades.xml.comparitor.XMLComparitor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+
+public class XMLFactoriesTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void per_thread_reuse_test () throws Exception {
+        DocumentBuilder builder = XMLFactories.getDocumentBuilder(true);
+        if (builder != XMLFactories.getDocumentBuilder(true)) errorCollector.addError(new AssertionError("DocumentBuilder not reused"));
+        if (!builder.isNamespaceAware()) errorCollector.addError(new AssertionError("DocumentBuilder not namespace aware"));
+        if (XMLFactories.getDocumentBuilder(false).isNamespaceAware()) errorCollector.addError(new AssertionError("DocumentBuilder namespace aware"));
+        final DocumentBuilder[] otherThreadBuilder = new DocumentBuilder[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run () {
+                try {
+                    otherThreadBuilder[0] = XMLFactories.getDocumentBuilder(true);
+                } catch (Exception e) {}
+            }
+        };
+        thread.start();
+        thread.join();
+        if (otherThreadBuilder[0] == null || otherThreadBuilder[0] == builder) errorCollector.addError(new AssertionError("DocumentBuilder shared across threads"));
+    }
+
+    @Test
+    public void transformer_reset_test () throws Exception {
+        Transformer transformer = XMLFactories.getTransformer();
+        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+        transformer = XMLFactories.getTransformer();
+        if ("yes".equals(transformer.getOutputProperties().getProperty(OutputKeys.OMIT_XML_DECLARATION))) {
+            errorCollector.addError(new AssertionError("Transformer output properties not reset"));
+        }
+        // Repeated parse/serialize cycles on the cached instances must stay independent
+        for (int i = 0; i < 3; i++) {
+            String xml = "<root><value>" + i + "</value></root>";
+            String result = XMLComparitor.nodeToString(new GenericXMLObject(xml).getRootElement(), false, false);
+            if (!xml.equals(result)) errorCollector.addError(new AssertionError("[" + xml + "] does not equal [" + result + "]"));
+        }
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+
+}
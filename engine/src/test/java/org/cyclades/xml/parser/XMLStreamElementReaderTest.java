@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.xml.parser;
+
+import java.io.ByteArrayInputStream;
+import java.util.Vector;
+import org.cyclades.engine.util.GenericXMLObject;
+import org.cyclades.xml.comparitor.XMLComparitor;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+public class XMLStreamElementReaderTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void matches_dom_test () throws Exception {
+        String xml = "<?xml version=\"1.0\"?><data><ignored><requests><request service=\"no\"/></requests></ignored>" +
+                "<requests><request service=\"one\"><parameters><parameter name=\"a\" value=\"1\"/></parameters></request>" +
+                "<comment>skipped</comment><request service=\"two\"><value>text &amp; more<![CDATA[<raw>]]></value></request>" +
+                "</requests></data>";
+        Vector<Node> domRequests = XMLComparitor.getMatchingChildNodes(XMLComparitor.getFirstMatchingChildNode(
+                new GenericXMLObject(xml).getRootElement(), "requests"), "request");
+        XMLStreamElementReader reader = new XMLStreamElementReader(new ByteArrayInputStream(xml.getBytes("UTF-8")), "requests", "request");
+        int count = 0;
+        while (reader.hasNext()) {
+            Element element = reader.next();
+            String expected = XMLComparitor.nodeToString(domRequests.get(count++), false, false);
+            String actual = XMLComparitor.nodeToString(element, false, false);
+            if (!expected.equals(actual)) errorCollector.addError(new AssertionError("[" + expected + "] does not equal [" + actual + "]"));
+        }
+        reader.close();
+        if (count != domRequests.size()) errorCollector.addError(new AssertionError("Expected " + domRequests.size() + " elements, read " + count));
+    }
+
+    @Test
+    public void missing_container_test () throws Exception {
+        try {
+            new XMLStreamElementReader(new ByteArrayInputStream("<data><request/></data>".getBytes("UTF-8")), "requests", "request");
+            errorCollector.addError(new AssertionError("Missing container element not detected"));
+        } catch (XMLParserException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void validate_test () throws Exception {
+        XMLStreamElementReader.validate(new ByteArrayInputStream("<data><requests><request service=\"one\"/></requests></data>".getBytes("UTF-8")));
+        // The first requests can be streamed before the error, only a whole document pass finds it
+        String malformed = "<data><requests><request service=\"one\"/><request service=\"two\"/><request service=\"three\"></requests></data>";
+        XMLStreamElementReader reader = new XMLStreamElementReader(new ByteArrayInputStream(malformed.getBytes("UTF-8")), "requests", "request");
+        if (!reader.hasNext() || reader.next() == null) errorCollector.addError(new AssertionError("First request not streamed"));
+        reader.close();
+        try {
+            XMLStreamElementReader.validate(new ByteArrayInputStream(malformed.getBytes("UTF-8")));
+            errorCollector.addError(new AssertionError("Malformed document validated"));
+        } catch (XMLParserException e) {
+            // Expected
+        }
+        try {
+            XMLStreamElementReader.validate(new ByteArrayInputStream("<data><requests/></data><trailing/>".getBytes("UTF-8")));
+            errorCollector.addError(new AssertionError("Trailing content validated"));
+        } catch (XMLParserException e) {
+            // Expected
+        }
+    }
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+
+}
@@ -27,6 +27,7 @@
  *******************************************************************************/
 package org.cyclades.nyxlet.admin.actionhandler;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import org.cyclades.engine.nyxlet.templates.stroma.STROMANyxlet;
 import org.cyclades.engine.MetaTypeEnum;
@@ -58,17 +59,23 @@ public class AddHandlerSTROMA extends ChainableActionHandler {
 
     @Override
     public void handleMapChannel (NyxletSession nyxletSession, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter) throws Exception {
-        handleLocal(nyxletSession, baseParameters, stromaResponseWriter, (byte[])nyxletSession.getMapChannelObject(Resource.MAP_CHANNEL_OBJECT));
+        // Off heap if requested (see GetHandler), a byte[] otherwise
+        ByteBuffer chainedInputData = nyxletSession.getTypedMapChannel().remove(Resource.MAP_CHANNEL_BUFFER);
+        if (chainedInputData == null) {
+            byte[] data = (byte[])nyxletSession.getMapChannelObject(Resource.MAP_CHANNEL_OBJECT);
+            chainedInputData = (data == null) ? null : ByteBuffer.wrap(data);
+        }
+        handleLocal(nyxletSession, baseParameters, stromaResponseWriter, chainedInputData);
         nyxletSession.getMapChannel().remove(Resource.MAP_CHANNEL_OBJECT);
     }
 
     @Override
     public void handleSTROMAResponse (NyxletSession nyxletSession, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter, STROMAResponse stromaResponse) throws Exception {
-        byte[] payload = (stromaResponse == null) ? null : nyxletSession.getMetaTypeEnum().createMetaFromObject(stromaResponse.getData()).getBytes();
+        ByteBuffer payload = (stromaResponse == null) ? null : ByteBuffer.wrap(nyxletSession.getMetaTypeEnum().createMetaFromObject(stromaResponse.getData()).getBytes());
         handleLocal(nyxletSession, baseParameters, stromaResponseWriter, payload);
     }
 
-    private void handleLocal (NyxletSession nyxletSession, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter, byte[] chainedInputData) throws Exception {
+    private void handleLocal (NyxletSession nyxletSession, Map<String, List<String>> baseParameters, STROMAResponseWriter stromaResponseWriter, ByteBuffer chainedInputData) throws Exception {
         final String eLabel = "AddHandler.handle: ";
         try {
             StatusCodeEnum statusCodeEnum = StatusCodeEnum.SUCCESS;
@@ -127,6 +134,6 @@ public class AddHandlerSTROMA extends ChainableActionHandler {
 
     @Override
     public Object[] getMapChannelKeyTargets (NyxletSession nyxletSession) {
-        return new Object[]{Resource.MAP_CHANNEL_OBJECT};
+        return new Object[]{(nyxletSession.getMapChannel().containsKey(Resource.MAP_CHANNEL_BUFFER_OBJECT)) ? Resource.MAP_CHANNEL_BUFFER_OBJECT : Resource.MAP_CHANNEL_OBJECT};
     }
 }
@@ -27,6 +27,8 @@
  *******************************************************************************/
 package org.cyclades.nyxlet.admin.actionhandler;
 
+import java.io.File;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 import javax.xml.stream.XMLStreamWriter;
@@ -79,8 +81,22 @@ public class GetHandler extends ActionHandler {
             } else {
                 String absoluteResourceURI = parentNyxlet.getEngineContext().getCanonicalEngineApplicationBaseDirectoryPath(resourceURI);
                 StringBuilder sb = new StringBuilder();
-                if (nyxletSession.chainsForward()) {
+                if (nyxletSession.chainsForward() && !offHeapRequested(baseParameters)) {
                     nyxletSession.getMapChannel().put(Resource.MAP_CHANNEL_OBJECT, ResourceRequestUtils.getData(absoluteResourceURI, null));
+                } else if (nyxletSession.chainsForward()) {
+                    // Hand the resource over off heap, it may be large. Dropped when the orchestration is done.
+                    File resourceFile = new File(absoluteResourceURI);
+                    if (resourceFile.isFile()) {
+                        nyxletSession.getTypedMapChannel().putMapped(Resource.MAP_CHANNEL_BUFFER, resourceFile);
+                    } else {
+                        InputStream is = null;
+                        try {
+                            is = ResourceRequestUtils.getInputStream(absoluteResourceURI, null);
+                            nyxletSession.getTypedMapChannel().putDirect(Resource.MAP_CHANNEL_BUFFER, is, 0);
+                        } finally {
+                            try { is.close(); } catch (Exception e) {}
+                        }
+                    }
                 } else {
                     try {
                         Resource.readResource(absoluteResourceURI, nyxletSession.getOutputStream());
@@ -109,4 +125,8 @@ public class GetHandler extends ActionHandler {
             if (!resourceStreamed) stromaResponseWriter.done();
         }
     }
+
+    private static boolean offHeapRequested (Map<String, List<String>> baseParameters) {
+        return baseParameters.containsKey(Resource.OFF_HEAP_PARAMETER) && baseParameters.get(Resource.OFF_HEAP_PARAMETER).get(0).equalsIgnoreCase("true");
+    }
 }
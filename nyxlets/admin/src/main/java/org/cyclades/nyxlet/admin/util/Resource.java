@@ -31,10 +31,13 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
 import java.util.Map;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
+import org.cyclades.engine.MapChannel;
 import org.cyclades.engine.NyxletSession;
 import org.cyclades.engine.util.TransactionIdentifier;
 import org.cyclades.io.FileUtils;
@@ -89,6 +92,25 @@ public class Resource {
         }
     }
 
+    public static void writeResource (String path, ByteBuffer data) throws Exception {
+        final String eLabel = "ResourceUtils.writeResource: ";
+        FileOutputStream os = null;
+        try {
+            String tempPath = getDocumentTempPath(path);
+            FileUtils.verifyFileOutputDirectory(tempPath);
+            os = new FileOutputStream(new File(tempPath));
+            FileChannel channel = os.getChannel();
+            ByteBuffer toWrite = data.duplicate();
+            while (toWrite.hasRemaining()) channel.write(toWrite);
+            os.close(); // Make sure it is closed before renaming
+            renameResource(tempPath, path);
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        } finally {
+            try { os.close(); } catch (Exception e) {}
+        }
+    }
+
     public static void writeResourceEnhancedXML (String path, Node node) throws Exception {
         final String eLabel = "ResourceUtils.writeResourceEnhancedXML: ";
         OutputStream os = null;
@@ -160,6 +182,10 @@ public class Resource {
 
     public static final String URI_FIELD            = "uri";
     public static final String MAP_CHANNEL_OBJECT   = "binary";
+    // Chained resources handed over off heap (opt in with OFF_HEAP_PARAMETER) instead of as a byte[] under MAP_CHANNEL_OBJECT
+    public static final String MAP_CHANNEL_BUFFER_OBJECT = "binary-buffer";
+    public static final MapChannel.Key<ByteBuffer> MAP_CHANNEL_BUFFER = new MapChannel.Key<ByteBuffer>(MAP_CHANNEL_BUFFER_OBJECT, ByteBuffer.class);
+    public final static String OFF_HEAP_PARAMETER   = "off-heap";
     public final static String PAYLOAD_PARAMETER    = "payload";
     public final static String SOURCE_PARAMETER     = "source";
     private static TransactionIdentifier transactionIdentifier = null;
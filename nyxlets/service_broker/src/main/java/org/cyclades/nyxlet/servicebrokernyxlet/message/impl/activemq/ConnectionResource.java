@@ -66,6 +66,7 @@ public class ConnectionResource {
         try {
             connection = factory.createConnection();
             ActiveMQPrefetchPolicy prefetchPolicy = new ActiveMQPrefetchPolicy();
+            // A consumer with a pool of workers raises the queue prefetch, see ActiveMQDefaultConsumer.init
             prefetchPolicy.setAll((prefetchCount > -1) ? prefetchCount : 1);
             ((ActiveMQConnection)connection).setPrefetchPolicy(prefetchPolicy);
             connection.start();
@@ -108,6 +109,9 @@ public class ConnectionResource {
     public Connection getConnection() {
         return connection;
     }
+    public int getPrefetchCount() {
+        return prefetchCount;
+    }
     public String getConsumerTag() {
         return consumerTag;
     }
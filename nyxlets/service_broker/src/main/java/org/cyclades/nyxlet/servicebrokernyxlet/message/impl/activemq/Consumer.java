@@ -74,6 +74,15 @@ public class Consumer implements MessageConsumer {
             int prefetchCount = -1;
             if (initializationMap.containsKey(PREFETCH_COUNT_CONFIG_PARAMETER)) prefetchCount = Integer.parseInt(initializationMap.get(PREFETCH_COUNT_CONFIG_PARAMETER));
             ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(connectionString);
+            if (initializationMap.containsKey(ASYNC_SEND_CONFIG_PARAMETER) && initializationMap.get(ASYNC_SEND_CONFIG_PARAMETER).equalsIgnoreCase("true")) {
+                // Replies are sent without waiting for the broker's receipt, the producer window bounds the bytes in flight
+                factory.setUseAsyncSend(true);
+                factory.setProducerWindowSize((initializationMap.containsKey(PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER)) ?
+                        Integer.parseInt(initializationMap.get(PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER)) : Producer.DEFAULT_PRODUCER_WINDOW_SIZE);
+            }
+            // Batch the acknowledgements of AUTO_ACKNOWLEDGE sessions (see "acknowledge_mode")
+            if (initializationMap.containsKey(OPTIMIZE_ACKNOWLEDGE_CONFIG_PARAMETER)) factory.setOptimizeAcknowledge(initializationMap.get(OPTIMIZE_ACKNOWLEDGE_CONFIG_PARAMETER).equalsIgnoreCase("true"));
+            if (initializationMap.containsKey(OPTIMIZE_ACKNOWLEDGE_TIMEOUT_CONFIG_PARAMETER)) factory.setOptimizeAcknowledgeTimeOut(Long.parseLong(initializationMap.get(OPTIMIZE_ACKNOWLEDGE_TIMEOUT_CONFIG_PARAMETER)));
             //if (initializationMap.containsKey(CONNECTION_HEARTBEAT_SECONDS_PARAMETER)) factory.setRequestedHeartbeat(Integer.parseInt(initializationMap.get(CONNECTION_HEARTBEAT_SECONDS_PARAMETER)));
             for (int i = 0; i < numConsumers; i++) {
                 connectionResources.add(new ConnectionResource(factory, targetQueue, consumerTag + i, cancelRecovery, prefetchCount, callBackServiceInstance).init(initializationMap, messageProcessor, responseProcessor).connect());
@@ -115,5 +124,9 @@ public class Consumer implements MessageConsumer {
     public static final String CANCEL_RECOVERY_CONFIG_PARAMETER         = "cancel_recovery";
     public static final String PREFETCH_COUNT_CONFIG_PARAMETER          = "prefetch_count";
     public static final String CONNECTION_HEARTBEAT_SECONDS_PARAMETER   = "connection_heartbeat_seconds";
+    public static final String ASYNC_SEND_CONFIG_PARAMETER              = "async_send";
+    public static final String PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER    = "producer_window_size";
+    public static final String OPTIMIZE_ACKNOWLEDGE_CONFIG_PARAMETER    = "optimize_acknowledge";
+    public static final String OPTIMIZE_ACKNOWLEDGE_TIMEOUT_CONFIG_PARAMETER = "optimize_acknowledge_timeout";
 
 }
@@ -65,6 +65,12 @@ public class Producer implements MessageProducer {
         if (initializationMap.containsKey(PREFETCH_COUNT_CONFIG_PARAMETER)) prefetchCount = Integer.parseInt(initializationMap.get(PREFETCH_COUNT_CONFIG_PARAMETER));
         targetQueue = initializationMap.get(TARGET_QUEUE_CONFIG_PARAMETER);
         factory = new ActiveMQConnectionFactory(initializationMap.get(CONNECTION_STRING_CONFIG_PARAMETER));
+        if (initializationMap.containsKey(ASYNC_SEND_CONFIG_PARAMETER) && initializationMap.get(ASYNC_SEND_CONFIG_PARAMETER).equalsIgnoreCase("true")) {
+            // Sends return without waiting for the broker's receipt, the producer window bounds the bytes in flight
+            factory.setUseAsyncSend(true);
+            factory.setProducerWindowSize((initializationMap.containsKey(PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER)) ?
+                    Integer.parseInt(initializationMap.get(PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER)) : DEFAULT_PRODUCER_WINDOW_SIZE);
+        }
         //if (initializationMap.containsKey(CONNECTION_HEARTBEAT_SECONDS_PARAMETER)) factory.setRequestedHeartbeat(Integer.parseInt(initializationMap.get(CONNECTION_HEARTBEAT_SECONDS_PARAMETER)));
         boolean usePool = false;
         if (initializationMap.containsKey(POOL_CONFIG_PARAMETER)) usePool = Boolean.parseBoolean(initializationMap.get(POOL_CONFIG_PARAMETER));
@@ -168,6 +174,10 @@ public class Producer implements MessageProducer {
     public static final String MESSAGE_DELIVERY_MODE                        = "message_delivery_mode";
     public static final String CONNECTION_HEARTBEAT_SECONDS_PARAMETER       = "connection_heartbeat_seconds";
     public static final String PREFETCH_COUNT_CONFIG_PARAMETER              = "prefetch_count";
+    // async send settings
+    public static final String ASYNC_SEND_CONFIG_PARAMETER                  = "async_send";
+    public static final String PRODUCER_WINDOW_SIZE_CONFIG_PARAMETER        = "producer_window_size";
+    public static final int DEFAULT_PRODUCER_WINDOW_SIZE                    = 1048576;
     // reply to queue settings
     public static final String REPLYTO_INACTIVITY_DELETE_CONFIG_PARAMETER   = "replyto_inactivity_delete";
     public static final String REPLYTO_HA_POLICY                            = "replyto_ha_policy";
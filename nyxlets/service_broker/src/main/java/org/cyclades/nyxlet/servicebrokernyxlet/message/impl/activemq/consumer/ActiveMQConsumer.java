@@ -35,5 +35,16 @@ public interface ActiveMQConsumer {
     public void destroy () throws Exception;
 
     public static final String REPLYTO_MESSAGE_DELIVERY_MODE = "replyto_message_delivery_mode";
+    // Worker pool settings
+    public static final String WORKERS                      = "workers";
+    public static final String ORDERING_KEY                 = "ordering_key";
+    public static final String ORDERING_KEY_NONE            = "none";
+    public static final String ORDERING_KEY_REPLYTO         = "replyto";
+    public static final String ORDERING_KEY_HEADER_PREFIX   = "header:";
+    // Session acknowledgement settings
+    public static final String ACKNOWLEDGE_MODE             = "acknowledge_mode";
+    public static final String ACKNOWLEDGE_MODE_CLIENT      = "client";
+    public static final String ACKNOWLEDGE_MODE_AUTO        = "auto";
+    public static final String ACKNOWLEDGE_MODE_DUPS_OK     = "dups_ok";
 
 }
@@ -30,6 +30,12 @@ package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.activemq.consumer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.activemq.ActiveMQConnection;
+import org.apache.activemq.ActiveMQSession;
+import org.cyclades.engine.EngineContext;
+import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.util.KeyedSerialExecutor;
 import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.activemq.ConnectionResource;
 import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.activemq.MessageUtils;
 import javax.jms.MessageProducer;
@@ -39,6 +45,7 @@ import javax.jms.Message;
 import javax.jms.BytesMessage;
 import javax.jms.TextMessage;
 import javax.jms.Destination;
+import javax.jms.JMSException;
 
 public class ActiveMQDefaultConsumer implements ActiveMQConsumer, Runnable {
 
@@ -47,20 +54,45 @@ public class ActiveMQDefaultConsumer implements ActiveMQConsumer, Runnable {
     }
 
     public ActiveMQDefaultConsumer init (Map<String, String> parameters) throws Exception {
+        String acknowledgeMode = (parameters.containsKey(ACKNOWLEDGE_MODE)) ? parameters.get(ACKNOWLEDGE_MODE) : ACKNOWLEDGE_MODE_CLIENT;
         if (parameters.containsKey(REPLYTO_MESSAGE_DELIVERY_MODE)) replyToMessageDeliveryMode = Integer.parseInt(parameters.get(REPLYTO_MESSAGE_DELIVERY_MODE));
-        session = connectionResource.getConnection().createSession(false, Session.CLIENT_ACKNOWLEDGE);
+        int workers = (parameters.containsKey(WORKERS)) ? Integer.parseInt(parameters.get(WORKERS)) : 1;
+        if (workers > 1) {
+            // Messages are processed concurrently on a pool of workers, in order per ordering key. Each message is
+            // acknowledged on its own as its worker finishes, which CLIENT_ACKNOWLEDGE does not allow.
+            if (!acknowledgeMode.equalsIgnoreCase(ACKNOWLEDGE_MODE_CLIENT)) throw new Exception("ActiveMQDefaultConsumer.init: " +
+                    ACKNOWLEDGE_MODE + " \"" + acknowledgeMode + "\" is not supported with " + WORKERS);
+            if (parameters.containsKey(ORDERING_KEY)) orderingKey = parameters.get(ORDERING_KEY);
+            EngineContext engineContext = Nyxlet.getEngineContext();
+            dispatcher = (engineContext != null && engineContext.isVirtualExecutionService()) ?
+                    new KeyedSerialExecutor(workers, engineContext.getExecutionService()) :
+                    new KeyedSerialExecutor(workers, "activemq-consumer-" + connectionResource.getConsumerTag());
+            // JMS sessions are single threaded: this one only receives (and acknowledges, see run), the workers
+            // reply on sessions of their own
+            session = connectionResource.getConnection().createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+            replySessions = new ConcurrentLinkedQueue<ReplySession>();
+            // Keep the workers busy without taking more of the queue than they can work on, messages are only
+            // acknowledged once processed. Read by createConsumer below.
+            int prefetchCount = connectionResource.getPrefetchCount();
+            ((ActiveMQConnection)connectionResource.getConnection()).getPrefetchPolicy().setQueuePrefetch(
+                    (prefetchCount > -1) ? Math.max(prefetchCount, workers) : workers * 2);
+        } else {
+            // "auto" and "dups_ok" acknowledge each message as it is received, before it is processed, "dups_ok" lazily
+            // and in batches. Either saves the acknowledgement round trip per message at the risk of losing a message
+            // if the consumer fails while processing it.
+            session = connectionResource.getConnection().createSession(false, getAcknowledgeMode(acknowledgeMode));
+        }
         consumer = session.createConsumer(session.createQueue(connectionResource.getQueueName()));
-        producer = session.createProducer(null);
-        if (replyToMessageDeliveryMode > -1) producer.setDeliveryMode(replyToMessageDeliveryMode);
+        if (dispatcher == null) receivingReplySession = new ReplySession(session, false);
         return this;
     }
 
     @Override
     public void destroy () throws Exception {
         alive = false;
-        try { session.close(); } catch (Exception e) {}
-        try { consumer.close(); } catch (Exception e) {}
-        try { producer.close(); } catch (Exception e) {}
+        // Unacknowledged messages still queued will be redelivered by the broker
+        if (dispatcher != null) dispatcher.shutdown();
+        close();
     }
 
     @Override
@@ -70,55 +102,169 @@ public class ActiveMQDefaultConsumer implements ActiveMQConsumer, Runnable {
             Message message = null;
             while (alive) {
                 try {
-                    byte[] body;
-                    message = consumer.receive();
-                    if (message == null) continue;
-                    if (message instanceof BytesMessage) {
-                        body = MessageUtils.readBytes((BytesMessage)message);
-                    } else if (message instanceof TextMessage) {
-                        body = ((TextMessage)message).getText().getBytes();
-                    } else {
-                        throw new UnsupportedOperationException("Message type not supported: " + message.getClass().getName());
-                    }
-                    byte[] response;
-                    if (connectionResource.hasMessageProcessor()) {
-                        response = connectionResource.fireMessageProcessor(body);
+                    if (dispatcher == null) {
+                        message = consumer.receive();
                     } else {
-                        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                        connectionResource.getCallBackServiceInstance().processXSTROMAMessagePayload(baos, 
-                                new String(body, "UTF-8"));
-                        response = baos.toByteArray();
+                        acknowledgeProcessed();
+                        // Wake up regularly to acknowledge what the workers have processed
+                        message = consumer.receive(ACKNOWLEDGE_POLL_MS);
                     }
-                    Destination replyToQueue = message.getJMSReplyTo();
-                    if (replyToQueue != null) {
-                        BytesMessage outMessage = session.createBytesMessage();
-                        outMessage.writeBytes(response);
-                        producer.send(replyToQueue, outMessage);
+                    if (message == null) continue;
+                    if (dispatcher == null) {
+                        process(message);
                     } else {
-                        // XXX - Verify this is what we want to do if there is no replyto set...DONT'T REPLY!
-                        //System.out.println(baos.toString());
+                        final Message workerMessage = message;
+                        dispatcher.execute(getOrderingKey(message), new Runnable() {
+                            public void run () {
+                                process(workerMessage);
+                            }
+                        });
                     }
-                    if (connectionResource.hasResponseProcessor()) connectionResource.fireResponseProcessor(response, body);
                 } catch (Exception e) {
                     connectionResource.getCallBackServiceInstance().logStackTrace(e);
-                } finally {
-                    try { message.acknowledge(); } catch (Exception e) {}
                 }
             }
         } catch (Exception e) {
             connectionResource.getCallBackServiceInstance().logStackTrace(e);
         } finally {
-            try { session.close(); } catch (Exception e) {}
-            try { consumer.close(); } catch (Exception e) {}
+            if (dispatcher != null) acknowledgeProcessed();
+            close();
+        }
+    }
+
+    /**
+     * Acknowledge the messages the workers have processed, on the receiving thread
+     */
+    private void acknowledgeProcessed () {
+        Message message;
+        while ((message = processedMessages.poll()) != null) {
+            try { message.acknowledge(); } catch (Exception e) {}
+        }
+    }
+
+    private void close () {
+        try { consumer.close(); } catch (Exception e) {}
+        if (receivingReplySession != null) receivingReplySession.close();
+        if (replySessions != null) {
+            ReplySession replySession;
+            while ((replySession = replySessions.poll()) != null) replySession.close();
+        }
+        try { session.close(); } catch (Exception e) {}
+    }
+
+    private static int getAcknowledgeMode (String acknowledgeMode) throws Exception {
+        if (acknowledgeMode.equalsIgnoreCase(ACKNOWLEDGE_MODE_CLIENT)) return Session.CLIENT_ACKNOWLEDGE;
+        if (acknowledgeMode.equalsIgnoreCase(ACKNOWLEDGE_MODE_AUTO)) return Session.AUTO_ACKNOWLEDGE;
+        if (acknowledgeMode.equalsIgnoreCase(ACKNOWLEDGE_MODE_DUPS_OK)) return Session.DUPS_OK_ACKNOWLEDGE;
+        throw new Exception("ActiveMQDefaultConsumer.getAcknowledgeMode: Unsupported " + ACKNOWLEDGE_MODE + ": " + acknowledgeMode);
+    }
+
+    private Object getOrderingKey (Message message) throws Exception {
+        if (orderingKey.equalsIgnoreCase(ORDERING_KEY_REPLYTO)) {
+            return (message.getJMSReplyTo() != null) ? message.getJMSReplyTo().toString() : null;
+        } else if (orderingKey.startsWith(ORDERING_KEY_HEADER_PREFIX)) {
+            return message.getStringProperty(orderingKey.substring(ORDERING_KEY_HEADER_PREFIX.length()));
+        }
+        return null;
+    }
+
+    private void process (Message message) {
+        try {
+            byte[] body;
+            if (message instanceof BytesMessage) {
+                body = MessageUtils.readBytes((BytesMessage)message);
+            } else if (message instanceof TextMessage) {
+                body = ((TextMessage)message).getText().getBytes();
+            } else {
+                throw new UnsupportedOperationException("Message type not supported: " + message.getClass().getName());
+            }
+            byte[] response;
+            if (connectionResource.hasMessageProcessor()) {
+                response = connectionResource.fireMessageProcessor(body);
+            } else {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                connectionResource.getCallBackServiceInstance().processXSTROMAMessagePayload(baos, 
+                        new String(body, "UTF-8"));
+                response = baos.toByteArray();
+            }
+            Destination replyToQueue = message.getJMSReplyTo();
+            if (replyToQueue != null) {
+                reply(replyToQueue, response);
+            } else {
+                // XXX - Verify this is what we want to do if there is no replyto set...DONT'T REPLY!
+                //System.out.println(baos.toString());
+            }
+            if (connectionResource.hasResponseProcessor()) connectionResource.fireResponseProcessor(response, body);
+        } catch (Exception e) {
+            connectionResource.getCallBackServiceInstance().logStackTrace(e);
+        } finally {
+            if (dispatcher == null) {
+                try { message.acknowledge(); } catch (Exception e) {}
+            } else {
+                // The receiving session is not shared with the workers, run() acknowledges the message
+                processedMessages.offer(message);
+            }
+        }
+    }
+
+    private void reply (Destination replyToQueue, byte[] response) throws Exception {
+        if (dispatcher == null) {
+            receivingReplySession.send(replyToQueue, response);
+            return;
+        }
+        ReplySession replySession = replySessions.poll();
+        if (replySession == null) replySession = new ReplySession(connectionResource.getConnection().createSession(false, Session.AUTO_ACKNOWLEDGE), true);
+        boolean reusable = false;
+        try {
+            replySession.send(replyToQueue, response);
+            reusable = true;
+        } finally {
+            if (reusable && alive) {
+                replySessions.offer(replySession);
+            } else {
+                replySession.close();
+            }
+        }
+    }
+
+    /**
+     * A session and producer to send replies on, used by one thread at a time
+     */
+    private class ReplySession {
+
+        ReplySession (Session session, boolean ownsSession) throws JMSException {
+            this.session = session;
+            this.ownsSession = ownsSession;
+            producer = session.createProducer(null);
+            if (replyToMessageDeliveryMode > -1) producer.setDeliveryMode(replyToMessageDeliveryMode);
+        }
+
+        void send (Destination destination, byte[] response) throws JMSException {
+            BytesMessage outMessage = session.createBytesMessage();
+            outMessage.writeBytes(response);
+            producer.send(destination, outMessage);
+        }
+
+        void close () {
             try { producer.close(); } catch (Exception e) {}
+            if (ownsSession) try { session.close(); } catch (Exception e) {}
         }
+
+        private final Session session;
+        private final boolean ownsSession;
+        private final MessageProducer producer;
     }
 
     ConnectionResource connectionResource;
     private int replyToMessageDeliveryMode = -1;
     private Session session;
     private MessageConsumer consumer;
-    private MessageProducer producer;
+    private ReplySession receivingReplySession = null;
+    private ConcurrentLinkedQueue<ReplySession> replySessions = null;
+    private final ConcurrentLinkedQueue<Message> processedMessages = new ConcurrentLinkedQueue<Message>();
     private volatile boolean alive = true;
+    private KeyedSerialExecutor dispatcher = null;
+    private String orderingKey = ORDERING_KEY_NONE;
+    private static final long ACKNOWLEDGE_POLL_MS = 100;
 
 }
@@ -64,7 +64,10 @@ public class ActiveMQMergingDefaultConsumer extends TimerTask implements ActiveM
             if (parameters.containsKey(REPLYTO_MESSAGE_DELIVERY_MODE)) replyToMessageDeliveryMode = Integer.parseInt(parameters.get(REPLYTO_MESSAGE_DELIVERY_MODE));
             if (parameters.containsKey(MERGE_ON_REPLYTO) && parameters.get(MERGE_ON_REPLYTO) != null) mergeOnReplyTo = parameters.get(MERGE_ON_REPLYTO).equalsIgnoreCase("true");
             if (parameters.containsKey(REPLYTO_UNITY_ONLY) && parameters.get(REPLYTO_UNITY_ONLY) != null) replyToUnityOnly = parameters.get(REPLYTO_UNITY_ONLY).equalsIgnoreCase("true");
-            session = connectionResource.getConnection().createSession(false, Session.CLIENT_ACKNOWLEDGE);
+            if (parameters.containsKey(TRANSACTED) && parameters.get(TRANSACTED) != null) transacted = parameters.get(TRANSACTED).equalsIgnoreCase("true");
+            // A transacted session publishes the replies of a batch and acknowledges its messages in one commit
+            session = (transacted) ? connectionResource.getConnection().createSession(true, Session.SESSION_TRANSACTED) :
+                connectionResource.getConnection().createSession(false, Session.CLIENT_ACKNOWLEDGE);
             consumer = session.createConsumer(session.createQueue(connectionResource.getQueueName()));
             producer = session.createProducer(null);
             if (replyToMessageDeliveryMode > -1) producer.setDeliveryMode(replyToMessageDeliveryMode);
@@ -126,10 +129,16 @@ public class ActiveMQMergingDefaultConsumer extends TimerTask implements ActiveM
             //releaseAlternateFormatMessages();
             if (accumulationExpired()) {
                 processMessages();
-                ackMessages();
-                releaseAlternateFormatMessages();
+                if (transacted) {
+                    releaseAlternateFormatMessages();
+                    ackMessages();
+                } else {
+                    ackMessages();
+                    releaseAlternateFormatMessages();
+                }
             }
         } catch (Exception e) {
+            if (transacted) rollbackMessages();
             throw new Exception(eLabel + e);
         }
     }
@@ -196,13 +205,25 @@ public class ActiveMQMergingDefaultConsumer extends TimerTask implements ActiveM
     public synchronized void ackMessages () throws Exception {
         final String eLabel = "ActiveMQMergingDefaultConsumer.ackMessages: ";
         try {
-            for (Message message : messages.getMessages()) message.jmsMessage.acknowledge();
+            if (transacted) {
+                session.commit();
+            } else if (!messages.getMessages().isEmpty()) {
+                // CLIENT_ACKNOWLEDGE acknowledges every message consumed by the session, one call covers the batch
+                messages.getMessages().get(messages.getMessages().size() - 1).jmsMessage.acknowledge();
+            }
             messages.reset();
         } catch (Exception e) {
             throw new Exception(eLabel + e);
         }
     }
 
+    private synchronized void rollbackMessages () {
+        // The broker redelivers the batch, so drop what was accumulated and start over
+        try { session.rollback(); } catch (Exception e) { connectionResource.getCallBackServiceInstance().logStackTrace(e); }
+        messages.reset();
+        messages.getAlternateFormatMessages().clear();
+    }
+
     private synchronized boolean accumulationExpired () {
         return ((messages.getMessages().size() > 0 && ((messages.getMessages().get(0).timeStamp + accumulationWaitMills) < System.currentTimeMillis())) ||
                 messages.getMessages().size() >= minMessages);
@@ -221,8 +242,10 @@ public class ActiveMQMergingDefaultConsumer extends TimerTask implements ActiveM
     private int replyToMessageDeliveryMode = -1;
     private boolean mergeOnReplyTo = true;
     private boolean replyToUnityOnly = false;
+    private boolean transacted = false;
     private final static String MERGE_ON_REPLYTO    = "merge_on_replyto";
     private final static String REPLYTO_UNITY_ONLY  = "replyto_unity_only";
+    private final static String TRANSACTED          = "transacted";
 
 }
 
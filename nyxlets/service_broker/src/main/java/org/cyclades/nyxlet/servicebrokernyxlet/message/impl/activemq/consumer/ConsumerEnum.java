@@ -28,6 +28,8 @@
 package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.activemq.consumer;
 
 import java.util.Map;
+import org.cyclades.engine.EngineContext;
+import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.activemq.ConnectionResource;
 
 public enum ConsumerEnum {
@@ -35,8 +37,14 @@ public enum ConsumerEnum {
         public ActiveMQConsumer build (ConnectionResource connectionResource, Map<String, String> parameters) throws Exception {
             ActiveMQDefaultConsumer consumer = new ActiveMQDefaultConsumer(connectionResource);
             consumer.init(parameters);
-            Thread t = new Thread(consumer);
-            t.start();
+            EngineContext engineContext = Nyxlet.getEngineContext();
+            if (engineContext != null && engineContext.isVirtualExecutionService()) {
+                // A virtual thread is cheap to park in the blocking receive loop
+                engineContext.getExecutionService().execute(consumer);
+            } else {
+                Thread t = new Thread(consumer);
+                t.start();
+            }
             return consumer;
         }
     },
@@ -0,0 +1,448 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Publishes to a queue with publisher confirms, for high throughput producers.
+ *
+ * - A single connection is kept open, with up to maxChannels long lived channels in confirm mode. Each publish
+ *   borrows an idle channel only for the time it takes to hand the message over, so a channel is used by one
+ *   thread at a time and many publishes are in flight on each channel.
+ * - Confirms are tracked per publish sequence number with a ConfirmListener, a (multiple) ack or nack completes
+ *   exactly the publishes it covers. No thread blocks a channel waiting for confirms.
+ * - Confirms are batched per channel: a channel with confirmWindow unconfirmed publishes is not handed out again
+ *   until the broker confirms enough of them, the other channels take the load meanwhile.
+ * - With waitForConfirm, publish returns once its own message is confirmed and fails if it is nacked, not confirmed
+ *   within confirmTimeoutInMS, or its channel fails (at least once delivery, when the caller retries failures).
+ *   A confirmMaxLatencyInMS (shorter than the confirm timeout) bounds this wait: a publish still unconfirmed by then
+ *   returns, and its later failure is only counted. Without waitForConfirm, publish returns once the message is
+ *   handed to the broker and later failures are only counted in getPublishesFailed (at most once delivery).
+ * - At most maxOutstandingConfirms publishes may be unconfirmed in total. Beyond that, publish waits up to
+ *   backpressureTimeoutInMS for confirms to arrive and then fails, pushing back on the caller.
+ * - Publishes unconfirmed for longer than confirmTimeoutInMS are failed by a background thread.
+ * - The target queue is checked (passive declare) once, and again only after a channel fails.
+ */
+public class ConfirmingPublisher {
+
+    public ConfirmingPublisher (ConnectionFactory factory, final String targetQueue, int maxChannels, int confirmWindow,
+            boolean waitForConfirm, long confirmMaxLatencyInMS, final long confirmTimeoutInMS, int maxOutstandingConfirms,
+            long backpressureTimeoutInMS) {
+        if (maxChannels < 1) throw new IllegalArgumentException("maxChannels must be greater than 0: " + maxChannels);
+        if (confirmWindow < 1) throw new IllegalArgumentException("confirmWindow must be greater than 0: " + confirmWindow);
+        if (maxOutstandingConfirms < 1) throw new IllegalArgumentException("maxOutstandingConfirms must be greater than 0: " + maxOutstandingConfirms);
+        this.factory = factory;
+        this.targetQueue = targetQueue;
+        this.maxChannels = maxChannels;
+        this.confirmWindow = confirmWindow;
+        this.waitForConfirm = waitForConfirm;
+        this.confirmMaxLatencyInMS = confirmMaxLatencyInMS;
+        this.confirmTimeoutInMS = confirmTimeoutInMS;
+        this.maxOutstandingConfirms = maxOutstandingConfirms;
+        this.backpressureTimeoutInMS = backpressureTimeoutInMS;
+        this.outstanding = new Semaphore(maxOutstandingConfirms);
+        if (confirmTimeoutInMS > 0) {
+            expirer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread t = new Thread(r, "rabbitmq-confirm-expirer-" + targetQueue);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long period = Math.min(confirmTimeoutInMS, EXPIRY_PERIOD_MS);
+            expirer.scheduleWithFixedDelay(new Runnable() {
+                public void run () {
+                    expire(System.currentTimeMillis() - confirmTimeoutInMS);
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            expirer = null;
+        }
+    }
+
+    /**
+     * Publish a message to the target queue
+     *
+     * @param properties    The message properties
+     * @param message       The message body
+     * @param replyToQueue  A queue to declare before publishing, null for none
+     * @param replyToArgs   The arguments of the replyToQueue declaration
+     * @param replyToDurable Declare the replyToQueue durable
+     * @throws Exception    If the publish failed, on backpressure, and with waitForConfirm if this message was not
+     *                      confirmed
+     */
+    public void publish (AMQP.BasicProperties properties, byte[] message, String replyToQueue, Map<String, Object> replyToArgs,
+            boolean replyToDurable) throws Exception {
+        final String eLabel = "ConfirmingPublisher.publish: ";
+        if (closed) throw new Exception(eLabel + "Publisher is closed");
+        if (!outstanding.tryAcquire(backpressureTimeoutInMS, TimeUnit.MILLISECONDS)) {
+            backpressureRejections.incrementAndGet();
+            throw new Exception(eLabel + "Backpressure, " + maxOutstandingConfirms + " publishes are awaiting confirmation on queue " + targetQueue);
+        }
+        boolean permitHeld = true;
+        PublishChannel publishChannel = null;
+        boolean reusable = false;
+        Confirmation confirmation;
+        try {
+            publishChannel = borrowChannel();
+            if (!targetQueueVerified) {
+                publishChannel.channel.queueDeclarePassive(targetQueue);
+                targetQueueVerified = true;
+            }
+            if (replyToQueue != null) publishChannel.channel.queueDeclare(replyToQueue, replyToDurable, false, false, replyToArgs);
+            // The permit is now released when this publish is confirmed, or fails
+            permitHeld = false;
+            confirmation = publishChannel.publish(properties, message);
+            reusable = true;
+        } catch (Exception e) {
+            targetQueueVerified = false;
+            throw new Exception(eLabel + e);
+        } finally {
+            if (permitHeld) outstanding.release();
+            if (publishChannel != null) returnChannel(publishChannel, reusable);
+        }
+        if (!waitForConfirm) return;
+        if (confirmMaxLatencyInMS > 0 && (confirmTimeoutInMS <= 0 || confirmMaxLatencyInMS < confirmTimeoutInMS)) {
+            // Bounded wait, a confirm arriving after this is only counted
+            if (!confirmation.awaitCompletion(confirmMaxLatencyInMS) || confirmation.isAcked()) return;
+        } else if (confirmation.await(confirmTimeoutInMS)) {
+            return;
+        }
+        throw new Exception(eLabel + "Message not confirmed by the broker on queue " + targetQueue + ": " + confirmation.getFailure());
+    }
+
+    /**
+     * Fail the publishes that have not been confirmed since before the given time
+     *
+     * @param publishedBefore The time (milliseconds) before which unconfirmed publishes fail
+     */
+    public void expire (long publishedBefore) {
+        for (PublishChannel publishChannel : channels) {
+            publishChannel.expire(publishedBefore);
+        }
+    }
+
+    /**
+     * Wait (at most the confirm timeout) for outstanding confirms and close the connection
+     */
+    public void close () {
+        if (closed) return;
+        closed = true;
+        if (expirer != null) expirer.shutdownNow();
+        try {
+            long waitInMS = (confirmTimeoutInMS > 0) ? confirmTimeoutInMS : backpressureTimeoutInMS;
+            if (outstanding.tryAcquire(maxOutstandingConfirms, waitInMS, TimeUnit.MILLISECONDS)) outstanding.release(maxOutstandingConfirms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        PublishChannel publishChannel;
+        while ((publishChannel = idleChannels.poll()) != null) {
+            returnChannel(publishChannel, false);
+        }
+        synchronized (this) {
+            try { if (connection != null) connection.abort(); } catch (Exception e) { e.printStackTrace(); }
+            connection = null;
+        }
+    }
+
+    public long getPublishesConfirmed () {
+        return publishesConfirmed.get();
+    }
+
+    public long getPublishesFailed () {
+        return publishesFailed.get();
+    }
+
+    public long getBackpressureRejections () {
+        return backpressureRejections.get();
+    }
+
+    /**
+     * @return The number of publishes awaiting confirmation
+     */
+    public int getOutstandingConfirms () {
+        return maxOutstandingConfirms - outstanding.availablePermits();
+    }
+
+    private PublishChannel borrowChannel () throws Exception {
+        PublishChannel publishChannel = pollOpenChannel();
+        if (publishChannel != null) return publishChannel;
+        synchronized (this) {
+            if (channelCount < maxChannels) {
+                if (connection == null || !connection.isOpen()) {
+                    if (connection != null) try { connection.abort(); } catch (Exception e) {}
+                    connection = factory.newConnection();
+                }
+                Channel channel = connection.createChannel();
+                channel.confirmSelect();
+                channelCount++;
+                publishChannel = new PublishChannel(channel);
+                channels.add(publishChannel);
+                return publishChannel;
+            }
+        }
+        // Channels are only held while a message is handed over, this wait is short unless the broker blocks
+        publishChannel = idleChannels.poll(backpressureTimeoutInMS, TimeUnit.MILLISECONDS);
+        if (publishChannel == null) throw new Exception("Timed out waiting for a channel, all " + maxChannels + " are in use");
+        if (!publishChannel.channel.isOpen()) {
+            returnChannel(publishChannel, false);
+            return borrowChannel();
+        }
+        return publishChannel;
+    }
+
+    /**
+     * @return An idle channel that is still open, null if there is none. Idle channels found closed are discarded.
+     */
+    private PublishChannel pollOpenChannel () {
+        PublishChannel publishChannel;
+        while ((publishChannel = idleChannels.poll()) != null) {
+            if (publishChannel.channel.isOpen()) return publishChannel;
+            returnChannel(publishChannel, false);
+        }
+        return null;
+    }
+
+    private void returnChannel (PublishChannel publishChannel, boolean reusable) {
+        if (reusable && !closed && publishChannel.channel.isOpen()) {
+            // A channel at its confirm window is handed back by its ConfirmListener
+            if (!publishChannel.park()) idleChannels.offer(publishChannel);
+            return;
+        }
+        publishChannel.discard();
+        channels.remove(publishChannel);
+        synchronized (this) {
+            channelCount--;
+        }
+    }
+
+    /**
+     * The outcome of one publish, completed once by an ack, a nack, expiry or the failure of its channel
+     */
+    private class Confirmation {
+
+        Confirmation (long publishedAt) {
+            this.publishedAt = publishedAt;
+        }
+
+        void complete (boolean acked, String failure) {
+            if (!completed.compareAndSet(false, true)) return;
+            if (acked) {
+                publishesConfirmed.incrementAndGet();
+            } else {
+                this.failure = failure;
+                publishesFailed.incrementAndGet();
+            }
+            this.acked = acked;
+            outstanding.release();
+            latch.countDown();
+        }
+
+        /**
+         * @param timeoutInMS   Milliseconds to wait, 0 to wait until the confirmation completes
+         * @return true if the publish was acked
+         */
+        boolean await (long timeoutInMS) throws InterruptedException {
+            if (timeoutInMS > 0) {
+                if (!latch.await(timeoutInMS, TimeUnit.MILLISECONDS)) complete(false, "Timed out waiting for the confirm");
+            } else {
+                latch.await();
+            }
+            return acked;
+        }
+
+        /**
+         * @param timeoutInMS   Milliseconds to wait
+         * @return true if the confirmation completed (acked or not) in time
+         */
+        boolean awaitCompletion (long timeoutInMS) throws InterruptedException {
+            return latch.await(timeoutInMS, TimeUnit.MILLISECONDS);
+        }
+
+        boolean isAcked () {
+            return acked;
+        }
+
+        String getFailure () {
+            return failure;
+        }
+
+        final long publishedAt;
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile boolean acked = false;
+        private volatile String failure;
+    }
+
+    private class PublishChannel implements ConfirmListener, ShutdownListener {
+
+        PublishChannel (Channel channel) {
+            this.channel = channel;
+            channel.addConfirmListener(this);
+            channel.addShutdownListener(this);
+        }
+
+        /**
+         * Publish on this channel, the caller has borrowed it
+         */
+        Confirmation publish (AMQP.BasicProperties properties, byte[] message) throws IOException {
+            Confirmation confirmation = new Confirmation(System.currentTimeMillis());
+            long sequenceNumber = channel.getNextPublishSeqNo();
+            unconfirmed.put(sequenceNumber, confirmation);
+            unconfirmedCount.incrementAndGet();
+            try {
+                channel.basicPublish("", targetQueue, properties, message);
+            } catch (Exception e) {
+                // Runtime failures too (i.e. AlreadyClosedException), or the permit would never be released
+                complete(sequenceNumber, false, "Publish failed: " + e);
+                throw e;
+            }
+            return confirmation;
+        }
+
+        public void handleAck (long deliveryTag, boolean multiple) {
+            completeUpTo(deliveryTag, multiple, true, null);
+        }
+
+        public void handleNack (long deliveryTag, boolean multiple) {
+            completeUpTo(deliveryTag, multiple, false, "Nacked by the broker");
+        }
+
+        public void shutdownCompleted (ShutdownSignalException cause) {
+            failAll("Channel closed: " + cause);
+        }
+
+        void expire (long publishedBefore) {
+            for (Map.Entry<Long, Confirmation> entry : unconfirmed.entrySet()) {
+                if (entry.getValue().publishedAt < publishedBefore) complete(entry.getKey(), false, "Not confirmed within " + confirmTimeoutInMS + "ms");
+            }
+        }
+
+        /**
+         * Close this channel, publishes still unconfirmed fail
+         */
+        void discard () {
+            try { if (channel.isOpen()) channel.close(); } catch (Exception e) {}
+            failAll("Channel discarded");
+        }
+
+        /**
+         * Hold this channel back from the idle channels if it is at its confirm window
+         *
+         * @return true if parked, the channel is handed back once confirms bring it below the window
+         */
+        synchronized boolean park () {
+            if (unconfirmedCount.get() < confirmWindow) return false;
+            parked = true;
+            return true;
+        }
+
+        private void unparkBelowWindow () {
+            synchronized (this) {
+                if (!parked || unconfirmedCount.get() >= confirmWindow) return;
+                parked = false;
+            }
+            returnChannel(this, true);
+        }
+
+        private void completeUpTo (long deliveryTag, boolean multiple, boolean acked, String failure) {
+            if (!multiple) {
+                complete(deliveryTag, acked, failure);
+                return;
+            }
+            ConcurrentNavigableMap<Long, Confirmation> covered = unconfirmed.headMap(deliveryTag, true);
+            for (Long sequenceNumber : covered.keySet()) {
+                complete(sequenceNumber, acked, failure);
+            }
+        }
+
+        private void complete (long sequenceNumber, boolean acked, String failure) {
+            // Whoever removes the entry completes it, late or repeated confirms are ignored
+            Confirmation confirmation = unconfirmed.remove(sequenceNumber);
+            if (confirmation == null) return;
+            unconfirmedCount.decrementAndGet();
+            confirmation.complete(acked, failure);
+            unparkBelowWindow();
+        }
+
+        private void failAll (String failure) {
+            for (Long sequenceNumber : unconfirmed.keySet()) {
+                complete(sequenceNumber, false, failure);
+            }
+        }
+
+        final Channel channel;
+        private final ConcurrentSkipListMap<Long, Confirmation> unconfirmed = new ConcurrentSkipListMap<Long, Confirmation>();
+        private final AtomicInteger unconfirmedCount = new AtomicInteger();
+        private boolean parked = false;
+    }
+
+    private final ConnectionFactory factory;
+    private final String targetQueue;
+    private final int maxChannels;
+    private final int confirmWindow;
+    private final boolean waitForConfirm;
+    private final long confirmMaxLatencyInMS;
+    private final long confirmTimeoutInMS;
+    private final int maxOutstandingConfirms;
+    private final long backpressureTimeoutInMS;
+    private final Semaphore outstanding;
+    private final ScheduledExecutorService expirer;
+    private final LinkedBlockingQueue<PublishChannel> idleChannels = new LinkedBlockingQueue<PublishChannel>();
+    private final CopyOnWriteArrayList<PublishChannel> channels = new CopyOnWriteArrayList<PublishChannel>();
+    private Connection connection;
+    private int channelCount = 0;
+    private volatile boolean targetQueueVerified = false;
+    private volatile boolean closed = false;
+    private final AtomicLong publishesConfirmed = new AtomicLong();
+    private final AtomicLong publishesFailed = new AtomicLong();
+    private final AtomicLong backpressureRejections = new AtomicLong();
+    private static final long EXPIRY_PERIOD_MS = 1000;
+}
@@ -30,6 +30,8 @@ package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
+import org.cyclades.engine.EngineContext;
+import org.cyclades.engine.api.Nyxlet;
 import org.cyclades.engine.nyxlet.templates.xstroma.ServiceBrokerNyxletImpl;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.api.MessageProcessor;
 import org.cyclades.engine.nyxlet.templates.xstroma.message.impl.ResponseProcessor;
@@ -61,7 +63,10 @@ public class ConnectionResource {
     public synchronized ConnectionResource connect () throws Exception {
         if (killed) return null;
         try {
-            connection = factory.newConnection();
+            // Deliveries are handed to the consumers on the engine's virtual threads, if configured
+            EngineContext engineContext = Nyxlet.getEngineContext();
+            connection = (engineContext != null && engineContext.isVirtualExecutionService()) ?
+                    factory.newConnection(engineContext.getExecutionService()) : factory.newConnection();
             channel = connection.createChannel();
             Map<String, Object> attributes = new HashMap<String, Object>();
             if (parameters.containsKey(INACTIVITY_DELETE)) attributes.put("x-expires", Long.parseLong(parameters.get(INACTIVITY_DELETE)));
@@ -68,7 +68,16 @@ public class Producer implements MessageProducer {
         factory.setUri(initializationMap.get(CONNECTION_STRING_CONFIG_PARAMETER));
         boolean usePool = false;
         if (initializationMap.containsKey(POOL_CONFIG_PARAMETER)) usePool = Boolean.parseBoolean(initializationMap.get(POOL_CONFIG_PARAMETER));
-        if (usePool) {
+        if (initializationMap.containsKey(PUBLISHER_CONFIRMS) && initializationMap.get(PUBLISHER_CONFIRMS).equalsIgnoreCase("true")) {
+            confirmingPublisher = new ConfirmingPublisher(factory, targetQueue,
+                    initializationMap.containsKey(CHANNELS) ? Integer.parseInt(initializationMap.get(CHANNELS)) : 4,
+                    initializationMap.containsKey(CONFIRM_WINDOW) ? Integer.parseInt(initializationMap.get(CONFIRM_WINDOW)) : 256,
+                    !initializationMap.containsKey(CONFIRM_WAIT) || initializationMap.get(CONFIRM_WAIT).equalsIgnoreCase("true"),
+                    initializationMap.containsKey(CONFIRM_MAX_LATENCY) ? Long.parseLong(initializationMap.get(CONFIRM_MAX_LATENCY)) : 0,
+                    initializationMap.containsKey(CONFIRM_TIMEOUT) ? Long.parseLong(initializationMap.get(CONFIRM_TIMEOUT)) : 10000,
+                    initializationMap.containsKey(MAX_OUTSTANDING_CONFIRMS) ? Integer.parseInt(initializationMap.get(MAX_OUTSTANDING_CONFIRMS)) : 10000,
+                    initializationMap.containsKey(BACKPRESSURE_TIMEOUT) ? Long.parseLong(initializationMap.get(BACKPRESSURE_TIMEOUT)) : 5000);
+        } else if (usePool) {
             connectionPool = new GenericObjectPool<ConnectionObject>(new ConnectionPoolableObjectFactory(factory), new GenericObjectPoolConfigBuilder().build(initializationMap));
         }
     }
@@ -76,6 +85,7 @@ public class Producer implements MessageProducer {
     @Override
     public synchronized void destroy() throws Exception {
         try { if (connectionPool != null) connectionPool.close(); } catch (Exception e) {}
+        if (confirmingPublisher != null) confirmingPublisher.close();
     }
 
     @Override
@@ -85,6 +95,11 @@ public class Producer implements MessageProducer {
     }
     
     public byte[] sendMessage(byte[] message, Map<String, List<String>> attributeMap) throws Exception {
+        if (confirmingPublisher != null) {
+            String replyToQueue = (attributeMap.containsKey(REPLY_TO_PARAMETER)) ? attributeMap.get(REPLY_TO_PARAMETER).get(0) : null;
+            confirmingPublisher.publish(buildProperties(replyToQueue), message, replyToQueue, (replyToQueue != null) ? replyToAttributes() : null, replyToDurableQueue);
+            return null;
+        }
         boolean pooled = false;
         ConnectionObject connObj = null;
         try {
@@ -100,20 +115,14 @@ public class Producer implements MessageProducer {
                 e.printStackTrace();
                 throw e;
             }
-            AMQP.BasicProperties.Builder propsBuilder = new AMQP.BasicProperties.Builder();
-            if (messageDeliveryMode > -1) propsBuilder.deliveryMode(messageDeliveryMode);
-            if (attributeMap.containsKey(REPLY_TO_PARAMETER)) {
-                String replyToQueue = attributeMap.get(REPLY_TO_PARAMETER).get(0);
-                propsBuilder.replyTo(replyToQueue);
-                Map<String, Object> attributes = new HashMap<String, Object>();
-                if (replyToInactivityTimeout > -1) attributes.put("x-expires", replyToInactivityTimeout);
-                if (replyToHAPolicy != null) attributes.put("x-ha-policy", replyToHAPolicy);
-                connObj.getChannel().queueDeclare(replyToQueue, replyToDurableQueue, false, false, attributes);
+            String replyToQueue = (attributeMap.containsKey(REPLY_TO_PARAMETER)) ? attributeMap.get(REPLY_TO_PARAMETER).get(0) : null;
+            if (replyToQueue != null) {
+                connObj.getChannel().queueDeclare(replyToQueue, replyToDurableQueue, false, false, replyToAttributes());
             } /*else {
                 Should we make this synchronous? Probably not, abuse is imminent! Use HTTP adapter instead for now
                 unless you plan on making this Message Queue an Enterprise Integration pattern...good luck.
             }*/
-            connObj.getChannel().basicPublish("", targetQueue, propsBuilder.build(), message);
+            connObj.getChannel().basicPublish("", targetQueue, buildProperties(replyToQueue), message);
             // Make sure to return null, there is no message to return.
             return null;
         } finally {
@@ -125,6 +134,27 @@ public class Producer implements MessageProducer {
         }
     }
 
+    private AMQP.BasicProperties buildProperties (String replyToQueue) {
+        AMQP.BasicProperties.Builder propsBuilder = new AMQP.BasicProperties.Builder();
+        if (messageDeliveryMode > -1) propsBuilder.deliveryMode(messageDeliveryMode);
+        if (replyToQueue != null) propsBuilder.replyTo(replyToQueue);
+        return propsBuilder.build();
+    }
+
+    private Map<String, Object> replyToAttributes () {
+        Map<String, Object> attributes = new HashMap<String, Object>();
+        if (replyToInactivityTimeout > -1) attributes.put("x-expires", replyToInactivityTimeout);
+        if (replyToHAPolicy != null) attributes.put("x-ha-policy", replyToHAPolicy);
+        return attributes;
+    }
+
+    /**
+     * @return The ConfirmingPublisher used when "publisher_confirms" is enabled, null otherwise
+     */
+    public ConfirmingPublisher getConfirmingPublisher () {
+        return confirmingPublisher;
+    }
+
     @Override
     public synchronized boolean isHealthy () throws Exception {
         boolean pooled = false;
@@ -162,12 +192,22 @@ public class Producer implements MessageProducer {
     private boolean replyToDurableQueue = false;
     private int messageDeliveryMode = -1;
     private ObjectPool<ConnectionObject> connectionPool = null;
+    private ConfirmingPublisher confirmingPublisher = null;
     public static final String REPLY_TO_PARAMETER                           = "replyto";
     public static final String TARGET_QUEUE_CONFIG_PARAMETER                = "target_queue";
     public static final String CONNECTION_STRING_CONFIG_PARAMETER           = "connection_string";
     public static final String POOL_CONFIG_PARAMETER                        = "pool";
     public static final String MESSAGE_DELIVERY_MODE                        = "message_delivery_mode";
     public static final String CONNECTION_HEARTBEAT_SECONDS_PARAMETER       = "connection_heartbeat_seconds";
+    // publisher confirms settings
+    public static final String PUBLISHER_CONFIRMS                           = "publisher_confirms";
+    public static final String CHANNELS                                     = "channels";
+    public static final String CONFIRM_WINDOW                               = "confirm_window";
+    public static final String CONFIRM_WAIT                                 = "confirm_wait";
+    public static final String CONFIRM_MAX_LATENCY                          = "confirm_max_latency";
+    public static final String CONFIRM_TIMEOUT                              = "confirm_timeout";
+    public static final String MAX_OUTSTANDING_CONFIRMS                     = "max_outstanding_confirms";
+    public static final String BACKPRESSURE_TIMEOUT                         = "backpressure_timeout";
     // reply to queue settings
     public static final String REPLYTO_INACTIVITY_DELETE_CONFIG_PARAMETER   = "replyto_inactivity_delete";
     public static final String REPLYTO_HA_POLICY                            = "replyto_ha_policy";
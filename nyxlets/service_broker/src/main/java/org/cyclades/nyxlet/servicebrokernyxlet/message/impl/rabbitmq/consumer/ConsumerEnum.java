@@ -40,6 +40,14 @@ public enum ConsumerEnum {
         }
     },
     MERGING {
+        public RabbitMQConsumer build (ConnectionResource connectionResource, Map<String, String> parameters) throws Exception {
+            RabbitMQBatchingConsumer consumer = new RabbitMQBatchingConsumer(connectionResource);
+            consumer.init(parameters);
+            connectionResource.getChannel().basicConsume(connectionResource.getQueueName(), false, connectionResource.getConsumerTag(), consumer);
+            return consumer;
+        }
+    },
+    POLLING_MERGING {
         public RabbitMQConsumer build (ConnectionResource connectionResource, Map<String, String> parameters) throws Exception {
             RabbitMQMergingDefaultConsumer consumer = new RabbitMQMergingDefaultConsumer(connectionResource);
             consumer.init(parameters);
@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.consumer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.cyclades.engine.MetaTypeEnum;
+import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.ConnectionResource;
+import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.Consumer;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Merging consumer that is pushed deliveries (basicConsume) and processes them in batches, as a single merged
+ * X-STROMA request (see ServiceBrokerNyxletImpl.processXSTROMAMessagePayloadBytes). A batch is processed once it
+ * holds "min_messages" messages or "max_batch_bytes" bytes, or "accumulation_wait_mills" after its first message
+ * arrived, whichever comes first. Each batch is acknowledged with a single multiple acknowledgement.
+ *
+ * A message in a different format (JSON vs XML) than the batch so far closes the batch and starts the next one.
+ * A "prefetch_count" below "min_messages" is raised to "min_messages", as a batch can not grow beyond the
+ * unacknowledged messages the broker is willing to deliver.
+ */
+public class RabbitMQBatchingConsumer extends DefaultConsumer implements RabbitMQConsumer {
+
+    public RabbitMQBatchingConsumer (ConnectionResource connectionResource) throws IOException {
+        super(connectionResource.getChannel());
+        this.connectionResource = connectionResource;
+    }
+
+    public RabbitMQBatchingConsumer init (Map<String, String> parameters) throws Exception {
+        final String eLabel = "RabbitMQBatchingConsumer.init: ";
+        try {
+            if (parameters.containsKey(ACCUMULATION_WAIT_MILLS)) accumulationWaitMills = Long.parseLong(parameters.get(ACCUMULATION_WAIT_MILLS));
+            if (parameters.containsKey(MIN_MESSAGES)) minMessages = Integer.parseInt(parameters.get(MIN_MESSAGES));
+            if (parameters.containsKey(MAX_BATCH_BYTES)) maxBatchBytes = Long.parseLong(parameters.get(MAX_BATCH_BYTES));
+            if (parameters.containsKey(REPLYTO_MESSAGE_DELIVERY_MODE)) replyToMessageDeliveryMode = Integer.parseInt(parameters.get(REPLYTO_MESSAGE_DELIVERY_MODE));
+            if (parameters.containsKey(MERGE_ON_REPLYTO) && parameters.get(MERGE_ON_REPLYTO) != null) mergeOnReplyTo = parameters.get(MERGE_ON_REPLYTO).equalsIgnoreCase("true");
+            if (parameters.containsKey(REPLYTO_UNITY_ONLY) && parameters.get(REPLYTO_UNITY_ONLY) != null) replyToUnityOnly = parameters.get(REPLYTO_UNITY_ONLY).equalsIgnoreCase("true");
+            int prefetchCount = (parameters.containsKey(Consumer.PREFETCH_COUNT_CONFIG_PARAMETER)) ?
+                    Integer.parseInt(parameters.get(Consumer.PREFETCH_COUNT_CONFIG_PARAMETER)) : -1;
+            if (prefetchCount > 0 && prefetchCount < minMessages) connectionResource.getChannel().basicQos(minMessages);
+            final String threadName = "rabbitmq-batching-consumer-" + connectionResource.getConsumerTag();
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread (Runnable r) {
+                    Thread t = new Thread(r, threadName);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            return this;
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    public synchronized void destroy () throws Exception {
+        final String eLabel = "RabbitMQBatchingConsumer.destroy: ";
+        try {
+            // Unacknowledged messages of the current batch will be redelivered by the broker
+            batch.clear();
+            scheduler.shutdownNow();
+        } catch (Exception e) {
+            throw new Exception(eLabel + e);
+        }
+    }
+
+    @Override
+    public synchronized void handleDelivery (String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
+        final String eLabel = "RabbitMQBatchingConsumer.handleDelivery: ";
+        if (body.length < 1) {
+            connectionResource.getCallBackServiceInstance().logError(eLabel + "Message body is empty, discarding");
+            // Only this delivery, the deliveries of the current batch have not been processed yet
+            ack(envelope.getDeliveryTag(), false);
+            return;
+        }
+        if (!batch.isEmpty() && batchStartsWith != body[0]) processBatch();
+        if (batch.isEmpty()) {
+            batchStartsWith = body[0];
+            scheduledFlush = scheduler.schedule(new Runnable() {
+                public void run () {
+                    flush();
+                }
+            }, accumulationWaitMills, TimeUnit.MILLISECONDS);
+        }
+        batch.add(new Delivery(envelope.getDeliveryTag(), properties.getReplyTo(), body));
+        batchBytes += body.length;
+        if (batch.size() >= minMessages || (maxBatchBytes > 0 && batchBytes >= maxBatchBytes)) processBatch();
+    }
+
+    private synchronized void flush () {
+        if (!batch.isEmpty()) processBatch();
+    }
+
+    /**
+     * Process and acknowledge the current batch. Exception policy: Exceptions are logged and the batch is
+     * acknowledged regardless, as the default consumer does. When merging on reply-to, a failing group does not
+     * keep the remaining groups from being processed.
+     */
+    private void processBatch () {
+        final String eLabel = "RabbitMQBatchingConsumer.processBatch: ";
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        scheduledFlush = null;
+        long lastDeliveryTag = batch.get(batch.size() - 1).deliveryTag;
+        try {
+            if (mergeOnReplyTo) {
+                Map<String, List<Delivery>> byReplyTo = new LinkedHashMap<String, List<Delivery>>();
+                List<Delivery> group;
+                for (Delivery delivery : batch) {
+                    group = byReplyTo.get(delivery.replyTo);
+                    if (group == null) {
+                        group = new ArrayList<Delivery>();
+                        byReplyTo.put(delivery.replyTo, group);
+                    }
+                    group.add(delivery);
+                }
+                for (List<Delivery> deliveries : byReplyTo.values()) {
+                    try {
+                        processMessageBatch(deliveries);
+                    } catch (Exception e) {
+                        connectionResource.getCallBackServiceInstance().logError(eLabel + e);
+                    }
+                }
+            } else {
+                processMessageBatch(batch);
+            }
+        } catch (Exception e) {
+            connectionResource.getCallBackServiceInstance().logError(eLabel + e);
+        } finally {
+            batch.clear();
+            batchBytes = 0;
+            ack(lastDeliveryTag, true);
+        }
+    }
+
+    private void processMessageBatch (List<Delivery> deliveries) throws Exception {
+        Set<String> replyToQueues = new LinkedHashSet<String>();
+        List<byte[]> messageList = new ArrayList<byte[]>(deliveries.size());
+        for (Delivery delivery : deliveries) {
+            messageList.add(delivery.body);
+            if (delivery.replyTo != null && !delivery.replyTo.isEmpty()) replyToQueues.add(delivery.replyTo);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        connectionResource.getCallBackServiceInstance().processXSTROMAMessagePayloadBytes(baos, messageList,
+                (batchStartsWith == '{') ? MetaTypeEnum.JSON : MetaTypeEnum.XML);
+        byte[] response = baos.toByteArray();
+        if (replyToQueues.size() > 0 && (!replyToUnityOnly || deliveries.size() == 1)) {
+            AMQP.BasicProperties.Builder propsBuilder = new AMQP.BasicProperties.Builder();
+            if (replyToMessageDeliveryMode > -1) propsBuilder.deliveryMode(replyToMessageDeliveryMode);
+            AMQP.BasicProperties messageProps = propsBuilder.build();
+            for (String replyToQueue : replyToQueues) {
+                connectionResource.getChannel().basicPublish("", replyToQueue, messageProps, response);
+            }
+        }
+        // XXX - Passing in the first request here as the value of the original request, as the merging consumer does
+        try {
+            if (connectionResource.hasResponseProcessor()) connectionResource.fireResponseProcessor(response, deliveries.get(0).body);
+        } catch (Exception e) {
+            connectionResource.getCallBackServiceInstance().logStackTrace(e);
+        }
+    }
+
+    /**
+     * @param deliveryTag   The delivery to acknowledge
+     * @param multiple      Also acknowledge every earlier delivery on the channel
+     */
+    private void ack (long deliveryTag, boolean multiple) {
+        final String eLabel = "RabbitMQBatchingConsumer.ack: ";
+        try {
+            connectionResource.getChannel().basicAck(deliveryTag, multiple);
+        } catch (Exception e) {
+            connectionResource.getCallBackServiceInstance().logError(eLabel + e);
+        }
+    }
+
+    @Override
+    public void handleCancel (String consumerTag) throws IOException {
+        final String eLabel = "RabbitMQBatchingConsumer.handleCancel: ";
+        try {
+            if (connectionResource.getCancelRecovery()) {
+                System.out.println(eLabel + "Re-connecting to queue: " + connectionResource.getQueueName() + " consumerTag: " + consumerTag);
+                connectionResource.reconnect();
+            }
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void handleShutdownSignal (String consumerTag, ShutdownSignalException sig) {
+        // The channel is gone, the broker will redeliver the current batch
+        if (scheduledFlush != null) scheduledFlush.cancel(false);
+        scheduledFlush = null;
+        batch.clear();
+        batchBytes = 0;
+    }
+
+    private static class Delivery {
+
+        Delivery (long deliveryTag, String replyTo, byte[] body) {
+            this.deliveryTag = deliveryTag;
+            this.replyTo = replyTo;
+            this.body = body;
+        }
+
+        final long deliveryTag;
+        final String replyTo;
+        final byte[] body;
+    }
+
+    ConnectionResource connectionResource;
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> scheduledFlush;
+    private final List<Delivery> batch = new ArrayList<Delivery>();
+    private long batchBytes = 0;
+    private byte batchStartsWith;
+    private long accumulationWaitMills = 10000;
+    private int minMessages = 10;
+    private long maxBatchBytes = -1;
+    private int replyToMessageDeliveryMode = -1;
+    private boolean mergeOnReplyTo = true;
+    private boolean replyToUnityOnly = false;
+    private final static String ACCUMULATION_WAIT_MILLS = "accumulation_wait_mills";
+    private final static String MIN_MESSAGES            = "min_messages";
+    private final static String MAX_BATCH_BYTES         = "max_batch_bytes";
+    private final static String MERGE_ON_REPLYTO        = "merge_on_replyto";
+    private final static String REPLYTO_UNITY_ONLY      = "replyto_unity_only";
+
+}
@@ -35,5 +35,11 @@ public interface RabbitMQConsumer {
     public void destroy () throws Exception;
 
     public static final String REPLYTO_MESSAGE_DELIVERY_MODE = "replyto_message_delivery_mode";
+    // Worker pool settings
+    public static final String WORKERS                      = "workers";
+    public static final String ORDERING_KEY                 = "ordering_key";
+    public static final String ORDERING_KEY_NONE            = "none";
+    public static final String ORDERING_KEY_REPLYTO         = "replyto";
+    public static final String ORDERING_KEY_HEADER_PREFIX   = "header:";
 
 }
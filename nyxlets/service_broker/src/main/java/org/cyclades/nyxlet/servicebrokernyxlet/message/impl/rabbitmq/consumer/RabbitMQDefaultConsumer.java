@@ -30,7 +30,11 @@ package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.consumer;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Map;
+import org.cyclades.engine.EngineContext;
+import org.cyclades.engine.api.Nyxlet;
+import org.cyclades.engine.util.KeyedSerialExecutor;
 import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.ConnectionResource;
+import org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq.Consumer;
 import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
@@ -45,16 +49,57 @@ public class RabbitMQDefaultConsumer extends DefaultConsumer implements RabbitMQ
 
     public RabbitMQDefaultConsumer init (Map<String, String> parameters) throws Exception {
         if (parameters.containsKey(REPLYTO_MESSAGE_DELIVERY_MODE)) replyToMessageDeliveryMode = Integer.parseInt(parameters.get(REPLYTO_MESSAGE_DELIVERY_MODE));
+        int workers = (parameters.containsKey(WORKERS)) ? Integer.parseInt(parameters.get(WORKERS)) : 1;
+        if (workers > 1) {
+            // Deliveries are processed concurrently on a pool of workers, in order per ordering key
+            if (parameters.containsKey(ORDERING_KEY)) orderingKey = parameters.get(ORDERING_KEY);
+            EngineContext engineContext = Nyxlet.getEngineContext();
+            dispatcher = (engineContext != null && engineContext.isVirtualExecutionService()) ?
+                    new KeyedSerialExecutor(workers, engineContext.getExecutionService()) :
+                    new KeyedSerialExecutor(workers, "rabbitmq-consumer-" + connectionResource.getConsumerTag());
+            // Keep the workers busy without taking more of the queue than they can work on
+            int prefetchCount = (parameters.containsKey(Consumer.PREFETCH_COUNT_CONFIG_PARAMETER)) ?
+                    Integer.parseInt(parameters.get(Consumer.PREFETCH_COUNT_CONFIG_PARAMETER)) : -1;
+            if (prefetchCount < 0) {
+                connectionResource.getChannel().basicQos(workers * 2);
+            } else if (prefetchCount > 0 && prefetchCount < workers) {
+                connectionResource.getChannel().basicQos(workers);
+            }
+        }
         return this;
     }
 
     public void destroy () throws Exception {
-        // No-op
+        // Unacknowledged deliveries still queued will be redelivered by the broker
+        if (dispatcher != null) dispatcher.shutdown();
     }
 
     @Override
-    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) throws IOException {
-        final String eLabel = "RabbitMQDefaultConsumer.handleDelivery: ";
+    public void handleDelivery(final String consumerTag, final Envelope envelope, final AMQP.BasicProperties properties, final byte[] body) throws IOException {
+        if (dispatcher == null) {
+            process(envelope, properties, body);
+            return;
+        }
+        dispatcher.execute(getOrderingKey(properties), new Runnable() {
+            public void run () {
+                process(envelope, properties, body);
+            }
+        });
+    }
+
+    private Object getOrderingKey (AMQP.BasicProperties properties) {
+        if (orderingKey.equalsIgnoreCase(ORDERING_KEY_REPLYTO)) {
+            return properties.getReplyTo();
+        } else if (orderingKey.startsWith(ORDERING_KEY_HEADER_PREFIX)) {
+            Object value = (properties.getHeaders() != null) ? properties.getHeaders().get(orderingKey.substring(ORDERING_KEY_HEADER_PREFIX.length())) : null;
+            // Header values may be LongStrings, which do not compare by value
+            return (value != null) ? value.toString() : null;
+        }
+        return null;
+    }
+
+    private void process (Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        final String eLabel = "RabbitMQDefaultConsumer.process: ";
         try {
             //System.out.println("CONSUMER: " + consumerTag);
             byte[] response;
@@ -69,7 +114,10 @@ public class RabbitMQDefaultConsumer extends DefaultConsumer implements RabbitMQ
             if (replyToQueue != null && !replyToQueue.isEmpty()) {
                 AMQP.BasicProperties.Builder propsBuilder = new AMQP.BasicProperties.Builder();
                 if (replyToMessageDeliveryMode > -1) propsBuilder.deliveryMode(replyToMessageDeliveryMode);
-                connectionResource.getChannel().basicPublish("", replyToQueue, propsBuilder.build(), response);
+                // The channel is shared by the workers
+                synchronized (connectionResource.getChannel()) {
+                    connectionResource.getChannel().basicPublish("", replyToQueue, propsBuilder.build(), response);
+                }
             } else {
                 // XXX - Verify this is what we want to do if there is no replyto set...DONT'T REPLY!
                 //System.out.println(baos.toString());
@@ -79,7 +127,9 @@ public class RabbitMQDefaultConsumer extends DefaultConsumer implements RabbitMQ
             connectionResource.getCallBackServiceInstance().logError(eLabel + e);
         } finally {
             try {
-                connectionResource.getChannel().basicAck(envelope.getDeliveryTag(), false);
+                synchronized (connectionResource.getChannel()) {
+                    connectionResource.getChannel().basicAck(envelope.getDeliveryTag(), false);
+                }
             } catch (Exception e) {
                 connectionResource.getCallBackServiceInstance().logError(eLabel + e);
             }
@@ -107,5 +157,7 @@ public class RabbitMQDefaultConsumer extends DefaultConsumer implements RabbitMQ
 
     ConnectionResource connectionResource;
     private int replyToMessageDeliveryMode = -1;
+    private KeyedSerialExecutor dispatcher = null;
+    private String orderingKey = ORDERING_KEY_NONE;
 
 }
@@ -0,0 +1,328 @@
+/*******************************************************************************
+ * Copyright (c) 2012, THE BOARD OF TRUSTEES OF THE LELAND STANFORD JUNIOR UNIVERSITY
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ *    Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *    Neither the name of the STANFORD UNIVERSITY nor the names of its contributors
+ *    may be used to endorse or promote products derived from this software without
+ *    specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,
+ * BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE
+ * OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED
+ * OF THE POSSIBILITY OF SUCH DAMAGE.
+ *******************************************************************************/
+package org.cyclades.nyxlet.servicebrokernyxlet.message.impl.rabbitmq;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ErrorCollector;
+import com.rabbitmq.client.AlreadyClosedException;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Confirm bookkeeping of the ConfirmingPublisher, against in memory stand-ins for the connection and its channels
+ */
+public class ConfirmingPublisherTest {
+
+    @BeforeClass
+    public static void setUpBefore() throws Exception {
+    }
+
+    @AfterClass
+    public static void tearDownAfter() throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        factory = new FakeConnectionFactory();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+    }
+
+    @Test
+    public void multiple_ack_nack_test () throws Exception {
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 256, false, 0, 0, 100, 100);
+        for (int i = 0; i < 5; i++) publish(publisher);
+        check(publisher, 5, 0, 0, "published");
+        FakeChannel channel = factory.channels.get(0);
+        channel.confirmListener.handleAck(3, true);
+        check(publisher, 2, 3, 0, "multiple ack");
+        channel.confirmListener.handleAck(3, true);
+        channel.confirmListener.handleAck(2, false);
+        check(publisher, 2, 3, 0, "repeated ack");
+        channel.confirmListener.handleNack(5, false);
+        check(publisher, 1, 3, 1, "single nack");
+        channel.confirmListener.handleNack(5, true);
+        check(publisher, 0, 3, 2, "multiple nack");
+        publisher.close();
+    }
+
+    @Test
+    public void expiry_test () throws Exception {
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 256, false, 0, 0, 100, 100);
+        publish(publisher);
+        publish(publisher);
+        publisher.expire(System.currentTimeMillis() - 60000);
+        check(publisher, 2, 0, 0, "expire older");
+        publisher.expire(System.currentTimeMillis() + 1);
+        check(publisher, 0, 0, 2, "expire all");
+        // A late ack for an expired publish is ignored
+        factory.channels.get(0).confirmListener.handleAck(2, true);
+        check(publisher, 0, 0, 2, "late ack");
+        publisher.close();
+    }
+
+    @Test
+    public void channel_shutdown_test () throws Exception {
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 256, false, 0, 0, 100, 100);
+        publish(publisher);
+        publish(publisher);
+        FakeChannel channel = factory.channels.get(0);
+        channel.open = false;
+        channel.shutdownListener.shutdownCompleted(new ShutdownSignalException(false, false, null, channel));
+        check(publisher, 0, 0, 2, "channel shutdown");
+        // The closed channel is replaced
+        publish(publisher);
+        if (factory.channels.size() != 2) errorCollector.addError(new AssertionError("Closed channel not replaced: " + factory.channels.size()));
+        check(publisher, 1, 0, 2, "new channel");
+        publisher.close();
+    }
+
+    @Test
+    public void publish_failure_test () throws Exception {
+        // No confirm timeout: a permit leaked by a failed publish would never be released
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 256, false, 0, 0, 1, 100);
+        factory.failure = new AlreadyClosedException("closed", null);
+        for (int i = 0; i < 2; i++) {
+            try {
+                publish(publisher);
+                errorCollector.addError(new AssertionError("Publish did not fail"));
+            } catch (Exception e) {
+                if (e.getMessage().contains("Backpressure")) errorCollector.addError(new AssertionError("Permit not released: " + e));
+            }
+        }
+        check(publisher, 0, 0, 2, "failed publishes");
+        factory.failure = null;
+        publish(publisher);
+        check(publisher, 1, 0, 2, "publish after failures");
+        publisher.close();
+    }
+
+    @Test
+    public void confirm_window_test () throws Exception {
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 2, false, 0, 0, 100, 50);
+        publish(publisher);
+        publish(publisher);
+        try {
+            publish(publisher);
+            errorCollector.addError(new AssertionError("Channel at its confirm window handed out"));
+        } catch (Exception e) {
+            if (!e.getMessage().contains("Timed out waiting for a channel")) errorCollector.addError(new AssertionError("Unexpected failure: " + e));
+        }
+        factory.channels.get(0).confirmListener.handleAck(1, false);
+        publish(publisher);
+        check(publisher, 2, 1, 0, "window");
+        if (factory.channels.size() != 1) errorCollector.addError(new AssertionError("Unexpected channels: " + factory.channels.size()));
+        publisher.close();
+    }
+
+    @Test
+    public void confirm_wait_test () throws Exception {
+        ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 1, 256, true, 50, 0, 100, 100);
+        // Unconfirmed within the max latency: the publish returns, the confirm is still tracked
+        publish(publisher);
+        check(publisher, 1, 0, 0, "max latency");
+        factory.nack = true;
+        try {
+            publish(publisher);
+            errorCollector.addError(new AssertionError("Nacked publish did not fail"));
+        } catch (Exception e) {
+            if (!e.getMessage().contains("Nacked")) errorCollector.addError(new AssertionError("Unexpected failure: " + e));
+        }
+        check(publisher, 1, 0, 1, "nacked");
+        publisher.close();
+        publisher = new ConfirmingPublisher(factory, "queue", 1, 256, true, 0, 50, 100, 100);
+        factory.nack = false;
+        try {
+            publish(publisher);
+            errorCollector.addError(new AssertionError("Unconfirmed publish did not fail"));
+        } catch (Exception e) {
+            if (!e.getMessage().contains("Timed out")) errorCollector.addError(new AssertionError("Unexpected failure: " + e));
+        }
+        check(publisher, 0, 0, 1, "confirm timeout");
+        publisher.close();
+    }
+
+    /**
+     * Not a broker benchmark: the throughput of the publisher itself, with confirms acked in batches of 32
+     */
+    @Test
+    public void throughput_test () throws Exception {
+        final int threads = 8;
+        final int messages = 200000;
+        final ConfirmingPublisher publisher = new ConfirmingPublisher(factory, "queue", 4, 256, false, 0, 5000, 10000, 5000);
+        factory.ackEvery = 32;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            executor.execute(new Runnable() {
+                public void run () {
+                    try {
+                        for (int i = 0; i < messages / threads; i++) {
+                            try {
+                                publish(publisher);
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // Flush the partial batches, so publishes held back by the windows or backpressure proceed
+        while (!done.await(10, TimeUnit.MILLISECONDS)) {
+            for (FakeChannel channel : factory.channels) channel.ackAll();
+        }
+        for (FakeChannel channel : factory.channels) channel.ackAll();
+        long elapsedNanos = System.nanoTime() - start;
+        executor.shutdown();
+        System.out.println("ConfirmingPublisherTest.throughput_test: " + messages + " confirmed publishes in " +
+                TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms (" + (messages * 1000000000L / Math.max(elapsedNanos, 1)) + " msg/s)");
+        if (failures.get() != 0) errorCollector.addError(new AssertionError("Failed publishes: " + failures.get()));
+        check(publisher, 0, messages, 0, "throughput");
+        publisher.close();
+    }
+
+    private static void publish (ConfirmingPublisher publisher) throws Exception {
+        publisher.publish(null, "message".getBytes(), null, null, false);
+    }
+
+    private void check (ConfirmingPublisher publisher, int outstanding, long confirmed, long failed, String step) {
+        if (publisher.getOutstandingConfirms() != outstanding || publisher.getPublishesConfirmed() != confirmed ||
+                publisher.getPublishesFailed() != failed) {
+            errorCollector.addError(new AssertionError(step + ": expected outstanding/confirmed/failed " + outstanding + "/" +
+                    confirmed + "/" + failed + " but was " + publisher.getOutstandingConfirms() + "/" +
+                    publisher.getPublishesConfirmed() + "/" + publisher.getPublishesFailed()));
+        }
+    }
+
+    private static class FakeConnectionFactory extends ConnectionFactory {
+        @Override
+        public Connection newConnection () throws IOException {
+            return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+                    if (method.getName().equals("createChannel")) {
+                        FakeChannel channel = new FakeChannel(FakeConnectionFactory.this);
+                        channels.add(channel);
+                        return channel.proxy;
+                    }
+                    if (method.getName().equals("isOpen")) return true;
+                    return null;
+                }
+            });
+        }
+
+        final List<FakeChannel> channels = new CopyOnWriteArrayList<FakeChannel>();
+        volatile RuntimeException failure = null;
+        volatile boolean nack = false;
+        volatile int ackEvery = 0;
+    }
+
+    /**
+     * A channel in confirm mode, confirms are sent by the test (or every ackEvery publishes)
+     */
+    private static class FakeChannel implements InvocationHandler {
+        FakeChannel (FakeConnectionFactory factory) {
+            this.factory = factory;
+            this.proxy = (Channel)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Channel.class}, this);
+        }
+
+        public Object invoke (Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("addConfirmListener")) {
+                confirmListener = (ConfirmListener)args[0];
+            } else if (name.equals("addShutdownListener")) {
+                shutdownListener = (ShutdownListener)args[0];
+            } else if (name.equals("getNextPublishSeqNo")) {
+                return nextSequenceNumber;
+            } else if (name.equals("isOpen")) {
+                return open;
+            } else if (name.equals("close")) {
+                open = false;
+            } else if (name.equals("basicPublish")) {
+                publish();
+            }
+            return null;
+        }
+
+        private void publish () throws IOException {
+            long sequenceNumber;
+            synchronized (this) {
+                sequenceNumber = nextSequenceNumber++;
+            }
+            if (factory.failure != null) throw factory.failure;
+            if (factory.nack) confirmListener.handleNack(sequenceNumber, false);
+            if (factory.ackEvery > 0 && sequenceNumber % factory.ackEvery == 0) confirmListener.handleAck(sequenceNumber, true);
+        }
+
+        void ackAll () throws IOException {
+            long sequenceNumber;
+            synchronized (this) {
+                sequenceNumber = nextSequenceNumber - 1;
+            }
+            if (sequenceNumber > 0) confirmListener.handleAck(sequenceNumber, true);
+        }
+
+        final Channel proxy;
+        private final FakeConnectionFactory factory;
+        volatile ConfirmListener confirmListener;
+        volatile ShutdownListener shutdownListener;
+        volatile boolean open = true;
+        private long nextSequenceNumber = 1;
+    }
+
+    private FakeConnectionFactory factory;
+
+    @Rule
+    public ErrorCollector errorCollector = new ErrorCollector();
+}